@@ -0,0 +1,25 @@
+package httpserver.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks with the usual JMH command line, but always with the GC profiler so that allocation rates
+ * are reported, and writes the results as JSON to <code>results/latest.json</code> unless <code>-rff</code> is given
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		var parsed = new CommandLineOptions(args);
+		var options = new OptionsBuilder().parent(parsed);
+		if(parsed.getProfilers().stream().noneMatch(profiler -> profiler.getKlass().equals("gc")))
+			options.addProfiler(GCProfiler.class);
+		if(!parsed.getResult().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+			options.result("results/latest.json");
+		}
+		new Runner(options.build()).run();
+	}
+}
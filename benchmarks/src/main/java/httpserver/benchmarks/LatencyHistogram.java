@@ -0,0 +1,99 @@
+package httpserver.benchmarks;
+
+/**
+ * counts latencies in buckets whose width grows with the value, so that every recorded value is
+ * kept with a relative precision of about 1.6% from nanoseconds up to minutes. not thread-safe,
+ * every client records into its own histogram and they are merged afterwards
+ */
+class LatencyHistogram {
+	private static final int SUB_BITS = 6, HALF = 1 << SUB_BITS, LINEAR = 2 * HALF;
+	
+	private final long[] counts = new long[LINEAR + (63 - SUB_BITS) * HALF];
+	private long total, max;
+	
+	void record(long value) {
+		record(value, 1);
+	}
+	void record(long value, long count) {
+		if(value < 0)
+			value = 0;
+		counts[index(value)] += count;
+		total += count;
+		max = Math.max(max, value);
+	}
+	void add(LatencyHistogram other) {
+		for(int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+	
+	/**
+	 * adds the samples a closed-loop client would have taken if it hadn't been stalled, the same way
+	 * HdrHistogram does: a value larger than the expected interval between requests also stands for
+	 * the requests that would have been sent in the meantime, each waiting one interval less
+	 * @param expectedInterval usually the mean latency of the uncorrected histogram
+	 */
+	LatencyHistogram correctedForCoordinatedOmission(long expectedInterval) {
+		var corrected = new LatencyHistogram();
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] == 0)
+				continue;
+			long value = Math.min(valueAt(i), max);
+			corrected.record(value, counts[i]);
+			if(expectedInterval <= 0)
+				continue;
+			for(long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+				corrected.record(missing, counts[i]);
+		}
+		return corrected;
+	}
+	
+	long getTotal() {
+		return total;
+	}
+	long getMax() {
+		return max;
+	}
+	long getMean() {
+		if(total == 0)
+			return 0;
+		double sum = 0;
+		for(int i = 0; i < counts.length; i++)
+			sum += (double) counts[i] * Math.min(valueAt(i), max);
+		return (long) (sum / total);
+	}
+	/**
+	 * @param percentile e.g. 99.9
+	 * @return the highest value of the bucket that contains the percentile, at most the largest recorded value
+	 */
+	long getValueAtPercentile(double percentile) {
+		if(total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for(int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= target)
+				return Math.min(valueAt(i), max);
+		}
+		return max;
+	}
+	
+	private static int index(long value) {
+		if(value < LINEAR)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // value >> shift is in [HALF, LINEAR)
+		return LINEAR + (shift - 1) * HALF + (int) (value >> shift) - HALF;
+	}
+	/**
+	 * @return the highest value that falls into the bucket
+	 */
+	private static long valueAt(int index) {
+		if(index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / HALF + 1;
+		long sub = (index - LINEAR) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
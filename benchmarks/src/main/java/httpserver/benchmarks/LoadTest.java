@@ -0,0 +1,340 @@
+package httpserver.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger.Level;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+import httpserver.util.StaticFiles;
+
+/**
+ * starts a server on the loopback interface and drives it with concurrent clients, then reports the throughput and
+ * latency percentiles of every kind of request. configured with system properties:
+ * <ul>
+ * <li><code>load.engine</code> BLOCKING or NIO (BLOCKING)</li>
+ * <li><code>load.connections</code> concurrent clients, each on its own connection (64)</li>
+ * <li><code>load.warmup</code>, <code>load.duration</code> seconds without and with measuring (5, 30)</li>
+ * <li><code>load.rate</code> requests per second of all clients together for an open loop, 0 for a closed loop where
+ * every client sends its next request as soon as it has the response (0)</li>
+ * <li><code>load.keepAlive</code> whether connections are reused, otherwise every request opens a new one (true)</li>
+ * <li><code>load.requests</code> the kinds of requests to mix: text, json, file, echo (all)</li>
+ * <li><code>load.maxP99</code>, <code>load.minThroughput</code> milliseconds and requests per second the run has to
+ * stay within, otherwise it exits with status 1 (0, no limit)</li>
+ * </ul>
+ * in an open loop, latencies are measured from the time a request should have been sent, so a stalled server is
+ * charged for the requests that queue up behind it. a closed loop reports the measured latencies and a copy corrected
+ * for coordinated omission with the mean latency as expected interval
+ */
+public class LoadTest {
+	private static final String[] KINDS = { "text", "json", "file", "echo" };
+	
+	private final Engine engine = Engine.valueOf(System.getProperty("load.engine", "BLOCKING").toUpperCase(Locale.ROOT));
+	private final int connections = Integer.getInteger("load.connections", 64);
+	private final int warmup = Integer.getInteger("load.warmup", 5), duration = Integer.getInteger("load.duration", 30);
+	private final int rate = Integer.getInteger("load.rate", 0);
+	private final boolean keepAlive = Boolean.parseBoolean(System.getProperty("load.keepAlive", "true"));
+	private final String[] kinds = System.getProperty("load.requests", String.join(",", KINDS)).split(",");
+	private final double maxP99 = Double.parseDouble(System.getProperty("load.maxP99", "0"));
+	private final double minThroughput = Double.parseDouble(System.getProperty("load.minThroughput", "0"));
+	
+	private final LongAdder completed = new LongAdder(), failed = new LongAdder();
+	private int port;
+	private byte[][] requests;
+	
+	public static void main(String[] args) throws Exception {
+		System.exit(new LoadTest().run() ? 0 : 1);
+	}
+	
+	/**
+	 * @return whether the run stayed within the limits
+	 */
+	boolean run() throws Exception {
+		var root = Files.createTempDirectory("loadtest");
+		try {
+			startServer(root);
+			requests = new byte[kinds.length][];
+			for(int i = 0; i < kinds.length; i++)
+				requests[i] = request(kinds[i].trim());
+			
+			System.out.printf("%s engine, %d connections, %s, %s, %ds warmup, %ds measured%n", engine, connections,
+					rate > 0 ? "open loop at " + rate + " req/s" : "closed loop", keepAlive ? "keep-alive" : "a connection per request",
+					warmup, duration);
+			long start = System.nanoTime();
+			long measureFrom = start + warmup * 1_000_000_000L, end = measureFrom + duration * 1_000_000_000L;
+			var clients = new ArrayList<Client>();
+			var threads = new ArrayList<Thread>();
+			for(int i = 0; i < connections; i++) {
+				var client = new Client(i, start, measureFrom, end);
+				var thread = new Thread(client, "load-client-" + i);
+				thread.setDaemon(true);
+				clients.add(client);
+				threads.add(thread);
+				thread.start();
+			}
+			sample(start, end);
+			for(var thread : threads)
+				thread.join();
+			return report(clients);
+		} finally {
+			try(var files = Files.list(root)) {
+				for(var file : (Iterable<Path>) files::iterator)
+					Files.deleteIfExists(file);
+			}
+			Files.deleteIfExists(root);
+		}
+	}
+	
+	private void startServer(Path root) throws IOException {
+		try(var probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		var logger = new DefaultLogger("loadtest");
+		logger.setLevel(Level.WARNING);
+		var server = new Server(port, logger, engine);
+		// whatever the default limit is, it must not close the connections of the test
+		server.setMaxRequestsPerConnection(Integer.MAX_VALUE);
+		server.setKeepAliveTimeout(30_000);
+		
+		server.route("/text", (method, resource, session) -> {
+			session.sendStatus(HttpStatus.OK);
+			session.sendHeader("Content-Type", "text/plain; charset=utf-8");
+			session.sendBody("Hello World");
+		});
+		var json = new StringBuilder("[");
+		for(int i = 0; json.length() < 1024; i++)
+			json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"}");
+		var jsonBody = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+		server.route("/json", (method, resource, session) -> {
+			session.sendStatus(HttpStatus.OK);
+			session.sendHeader("Content-Type", "application/json");
+			session.sendBody(jsonBody);
+		});
+		var asset = new byte[16 * 1024];
+		ThreadLocalRandom.current().nextBytes(asset);
+		Files.write(root.resolve("asset.bin"), asset);
+		server.route("/static/.*", new StaticFiles("/static/", root));
+		server.route("/echo", (method, resource, session) -> {
+			var body = session.getRequestBodyBytes();
+			session.sendStatus(HttpStatus.OK);
+			session.sendHeader("Content-Type", "application/octet-stream");
+			session.sendHeader("Content-Length", Integer.toString(body.length));
+			session.sendBody(body);
+		});
+		
+		server.setDaemon(true);
+		server.start();
+	}
+	
+	private byte[] request(String kind) {
+		var connection = keepAlive ? "" : "Connection: close\r\n";
+		var head = switch(kind) {
+			case "text" -> "GET /text HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+			case "json" -> "GET /json HTTP/1.1\r\nHost: localhost\r\nAccept: application/json\r\n" + connection + "\r\n";
+			case "file" -> "GET /static/asset.bin HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+			case "echo" -> "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/octet-stream\r\nContent-Length: 512\r\n"
+					+ connection + "\r\n" + "x".repeat(512);
+			default -> throw new IllegalArgumentException("Unknown kind of request: " + kind);
+		};
+		return head.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * prints the throughput, the thread count and the heap usage once per second until the end of the run
+	 */
+	private void sample(long start, long end) throws InterruptedException {
+		var threads = ManagementFactory.getThreadMXBean();
+		var memory = ManagementFactory.getMemoryMXBean();
+		long last = 0, lastFailed = 0;
+		for(long next = start + 1_000_000_000L; next <= end; next += 1_000_000_000L) {
+			Thread.sleep(Math.max(0, (next - System.nanoTime()) / 1_000_000));
+			long done = completed.sum(), errors = failed.sum();
+			System.out.printf("%4ds %9d req/s %6d errors %5d threads %7.1f MB heap%n", (next - start) / 1_000_000_000L,
+					done - last, errors - lastFailed, threads.getThreadCount() - connections,
+					memory.getHeapMemoryUsage().getUsed() / (1024.0 * 1024));
+			last = done;
+			lastFailed = errors;
+		}
+	}
+	
+	private boolean report(List<Client> clients) {
+		var all = new LatencyHistogram();
+		System.out.printf("%n%-8s %10s %10s %9s %9s %9s %9s %9s%n", "", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+		for(int kind = 0; kind < kinds.length; kind++) {
+			var histogram = new LatencyHistogram();
+			for(var client : clients)
+				histogram.add(client.histograms[kind]);
+			all.add(histogram);
+			print(kinds[kind], histogram);
+		}
+		print("all", all);
+		var p99 = all;
+		if(rate <= 0) {
+			p99 = all.correctedForCoordinatedOmission(all.getMean());
+			print("all (CO)", p99);
+		}
+		long errors = clients.stream().mapToLong(client -> client.errors).sum();
+		System.out.printf("%d errors, %d threads in the end%n", errors, ManagementFactory.getThreadMXBean().getThreadCount());
+		
+		boolean passed = true;
+		double throughput = (double) all.getTotal() / duration, p99Millis = p99.getValueAtPercentile(99) / 1e6;
+		if(maxP99 > 0 && p99Millis > maxP99) {
+			System.out.printf("FAILED: p99 of %.2f ms exceeds %.2f ms%n", p99Millis, maxP99);
+			passed = false;
+		}
+		if(minThroughput > 0 && throughput < minThroughput) {
+			System.out.printf("FAILED: %.0f req/s is below %.0f req/s%n", throughput, minThroughput);
+			passed = false;
+		}
+		return passed;
+	}
+	private void print(String name, LatencyHistogram histogram) {
+		System.out.printf("%-8s %10d %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, histogram.getTotal(), (double) histogram.getTotal() / duration,
+				histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+				histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6);
+	}
+	
+	private class Client implements Runnable {
+		final LatencyHistogram[] histograms = new LatencyHistogram[kinds.length];
+		long errors;
+		private final long start, measureFrom, end;
+		/**
+		 * nanoseconds between the requests of this client in an open loop, 0 in a closed loop
+		 */
+		private final long interval;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		
+		Client(int id, long start, long measureFrom, long end) {
+			for(int i = 0; i < histograms.length; i++)
+				histograms[i] = new LatencyHistogram();
+			this.measureFrom = measureFrom;
+			this.end = end;
+			interval = rate > 0 ? 1_000_000_000L * connections / rate : 0;
+			// spreads the clients of an open loop evenly over one interval
+			this.start = start + (rate > 0 ? interval * id / connections : 0);
+		}
+		
+		@Override
+		public void run() {
+			var random = ThreadLocalRandom.current();
+			long next = start;
+			while(true) {
+				long now = System.nanoTime();
+				long intended = now;
+				if(interval > 0) {
+					if(next > now) {
+						LockSupport.parkNanos(next - now);
+						continue;
+					}
+					intended = next;
+					next += interval;
+				}
+				if(intended >= end)
+					break;
+				int kind = random.nextInt(kinds.length);
+				try {
+					exchange(requests[kind]);
+				} catch(IOException e) {
+					closeSocket();
+					failed.increment();
+					if(intended >= measureFrom)
+						errors++;
+					continue;
+				}
+				completed.increment();
+				if(intended >= measureFrom)
+					histograms[kind].record(System.nanoTime() - intended);
+			}
+			closeSocket();
+		}
+		
+		private void exchange(byte[] request) throws IOException {
+			if(socket == null) {
+				socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(30_000);
+				in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+				out = socket.getOutputStream();
+			}
+			out.write(request);
+			
+			var status = readLine();
+			if(!status.startsWith("HTTP/1.1 200 "))
+				throw new IOException("Unexpected response: " + status);
+			long length = -1;
+			boolean chunked = false, close = !keepAlive;
+			for(var line = readLine(); !line.isEmpty(); line = readLine()) {
+				int colon = line.indexOf(':');
+				var name = line.substring(0, colon);
+				var value = line.substring(colon + 1).trim();
+				if(name.equalsIgnoreCase("Content-Length"))
+					length = Long.parseLong(value);
+				else if(name.equalsIgnoreCase("Transfer-Encoding"))
+					chunked = value.equalsIgnoreCase("chunked");
+				else if(name.equalsIgnoreCase("Connection"))
+					close |= value.equalsIgnoreCase("close");
+			}
+			if(chunked) {
+				for(long size; (size = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0; readLine())
+					skip(size);
+				while(!readLine().isEmpty()); // trailers
+			} else if(length >= 0)
+				skip(length);
+			else {
+				while(in.read() >= 0);
+				close = true;
+			}
+			if(close)
+				closeSocket();
+		}
+		private String readLine() throws IOException {
+			var line = new StringBuilder();
+			for(int c; (c = in.read()) != '\n'; ) {
+				if(c < 0)
+					throw new EOFException("Connection closed by the server");
+				if(c != '\r')
+					line.append((char) c);
+			}
+			return line.toString();
+		}
+		private void skip(long n) throws IOException {
+			while(n > 0) {
+				long skipped = in.skip(n);
+				if(skipped <= 0) {
+					if(in.read() < 0)
+						throw new EOFException("Connection closed by the server");
+					skipped = 1;
+				}
+				n -= skipped;
+			}
+		}
+		private void closeSocket() {
+			if(socket == null)
+				return;
+			try {
+				socket.close();
+			} catch(IOException e) { }
+			socket = null;
+		}
+	}
+}
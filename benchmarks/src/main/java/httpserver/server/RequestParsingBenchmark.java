@@ -0,0 +1,109 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import httpserver.util.BufferPool;
+
+/**
+ * parses request heads the way connections do before a request is dispatched
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+	private static final String MINIMAL = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	private static final String BROWSER = "GET /search/results.html?q=http+server&page=2&sort=recent HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Referer: https://www.example.com/search/\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=4f1c2a9be03d47d6a1f0; theme=dark; consent=1\r\n"
+			+ "Upgrade-Insecure-Requests: 1\r\n"
+			+ "Sec-Fetch-Dest: document\r\n"
+			+ "Sec-Fetch-Mode: navigate\r\n"
+			+ "\r\n";
+	
+	@Param({ "minimal", "browser" })
+	public String request;
+	
+	private HttpRequestParser parser;
+	private ByteBuffer bytes;
+	
+	@Setup
+	public void setup() {
+		parser = new HttpRequestParser(new BufferPool(16 * 1024, 16, false), 8 * 1024, 16 * 1024);
+		bytes = ByteBuffer.wrap((request.equals("minimal") ? MINIMAL : BROWSER).getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	private RequestHead parse() throws RequestException {
+		parser.reset();
+		bytes.rewind();
+		if(!parser.feed(bytes))
+			throw new IllegalStateException("incomplete request");
+		return parser.head();
+	}
+	
+	/**
+	 * only finds the boundaries, no strings are created
+	 */
+	@Benchmark
+	public RequestHead parseHead() throws RequestException {
+		return parse();
+	}
+	/**
+	 * parses and reads what every request needs: method, resource, version and connection handling
+	 */
+	@Benchmark
+	public void parseAndRoute(Blackhole blackhole) throws RequestException {
+		var head = parse();
+		blackhole.consume(head.method());
+		blackhole.consume(head.resource());
+		blackhole.consume(head.httpVersion());
+		blackhole.consume(head.isKeepAlive());
+	}
+	/**
+	 * also materializes all headers and parameters, as handlers that copy them do
+	 */
+	@Benchmark
+	public void parseAndMaterialize(Blackhole blackhole) throws RequestException {
+		var head = parse();
+		blackhole.consume(head.requestLine());
+		blackhole.consume(head.headers().entrySet().size());
+		blackhole.consume(head.parameters().get("q"));
+	}
+	/**
+	 * the head arrives in small segments, as from a slow client
+	 */
+	@Benchmark
+	public RequestHead parseSegmented() throws RequestException {
+		parser.reset();
+		int length = bytes.capacity();
+		for(int from = 0; from < length; from += 16) {
+			var segment = bytes.duplicate().position(from).limit(Math.min(from + 16, length));
+			if(parser.feed(segment))
+				return parser.head();
+		}
+		throw new IllegalStateException("incomplete request");
+	}
+}
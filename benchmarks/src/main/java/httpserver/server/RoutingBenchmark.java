@@ -0,0 +1,113 @@
+package httpserver.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * route lookups in a table that mixes literal, regex and parameterized routes,
+ * compared with the linear regex scan that preceded {@link Router}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+	@Param({ "10", "100", "1000" })
+	public int routes;
+	
+	private Router router;
+	private List<Pattern> linear;
+	private String literal, regex, parameterized, prefix;
+	
+	@Setup
+	public void setup() {
+		RouteEndpoint endpoint = (method, resource, session) -> { };
+		router = new Router();
+		linear = new ArrayList<>();
+		for(int i = 0; i < routes; i++) {
+			var route = switch(i % 4) {
+				case 0 -> "/page" + i + ".html";
+				case 1 -> "/api/v" + i + "/users/[0-9]+";
+				case 2 -> "/shop" + i + "/items/{id}";
+				default -> "/static" + i + "/.*";
+			};
+			router.add(route, endpoint);
+			linear.add(Pattern.compile(route.replaceAll("\\{[^/]+\\}", "[^/]+")));
+		}
+		// the last route of each kind, so that nothing is found early by luck
+		int last = routes - 1;
+		literal = "/page" + (last - last % 4) + ".html";
+		regex = "/api/v" + (last - (last + 3) % 4) + "/users/42";
+		parameterized = "/shop" + (last - (last + 2) % 4) + "/items/1337";
+		prefix = "/static" + (last - (last + 1) % 4) + "/js/app.js";
+	}
+	
+	@Benchmark
+	public Router.Match literal() {
+		return router.match(literal);
+	}
+	@Benchmark
+	public Router.Match regex() {
+		return router.match(regex);
+	}
+	@Benchmark
+	public Router.Match parameterized() {
+		return router.match(parameterized);
+	}
+	@Benchmark
+	public Router.Match prefix() {
+		return router.match(prefix);
+	}
+	@Benchmark
+	public Router.Match miss() {
+		return router.match("/does/not/exist");
+	}
+	
+	@Benchmark
+	public int linearLiteral() {
+		return scan(literal);
+	}
+	@Benchmark
+	public int linearRegex() {
+		return scan(regex);
+	}
+	@Benchmark
+	public int linearParameterized() {
+		return scan(parameterized);
+	}
+	@Benchmark
+	public int linearPrefix() {
+		return scan(prefix);
+	}
+	@Benchmark
+	public int linearMiss() {
+		return scan("/does/not/exist");
+	}
+	
+	/**
+	 * the previous lookup, which tried the pattern of every route in turn
+	 * @return the index of the first matching route, -1 if none matches
+	 */
+	private int scan(String path) {
+		for(int i = 0; i < linear.size(); i++)
+			if(linear.get(i).matcher(path).matches())
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,125 @@
+package httpserver.server;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import httpserver.util.BufferPool;
+
+/**
+ * writes complete responses through a session to a connection that discards everything,
+ * so that only building the head, buffering and compressing are measured
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionWriteBenchmark {
+	private Connection connection;
+	private ResponseCompression compression;
+	private Map<String,String> plainHeaders, gzipHeaders;
+	private String json;
+	private byte[] binary;
+	
+	@Setup
+	public void setup() {
+		connection = new DiscardingConnection();
+		compression = new ResponseCompression();
+		plainHeaders = new HashMap<>();
+		plainHeaders.put("Host", "localhost");
+		gzipHeaders = new HashMap<>(plainHeaders);
+		gzipHeaders.put("Accept-Encoding", "gzip, deflate");
+		
+		var builder = new StringBuilder("[");
+		for(int i = 0; builder.length() < 4096; i++)
+			builder.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\",\"active\":true}");
+		json = builder.append(']').toString();
+		binary = new byte[64 * 1024];
+		for(int i = 0; i < binary.length; i++)
+			binary[i] = (byte) (i * 31);
+	}
+	
+	private Session session(Map<String,String> headers) {
+		var session = new Session(connection, headers, Map.of(), "HTTP/1.1", null);
+		session.setCompression(compression);
+		return session;
+	}
+	
+	@Benchmark
+	public void smallText() throws Exception {
+		var session = session(plainHeaders);
+		session.sendStatus(HttpStatus.OK);
+		session.sendHeader("Content-Type", "text/plain; charset=utf-8");
+		session.sendBody("Hello World");
+		session.complete();
+	}
+	@Benchmark
+	public void json() throws Exception {
+		var session = session(plainHeaders);
+		session.sendStatus(HttpStatus.OK);
+		session.sendHeader("Content-Type", "application/json");
+		session.sendBody(json);
+		session.complete();
+	}
+	@Benchmark
+	public void jsonGzip() throws Exception {
+		var session = session(gzipHeaders);
+		session.sendStatus(HttpStatus.OK);
+		session.sendHeader("Content-Type", "application/json");
+		session.sendBody(json);
+		session.complete();
+	}
+	/**
+	 * larger than the body buffer, so it is written through
+	 */
+	@Benchmark
+	public void binary() throws Exception {
+		var session = session(plainHeaders);
+		session.sendStatus(HttpStatus.OK);
+		session.sendHeader("Content-Type", "application/octet-stream");
+		session.sendBody(binary);
+		session.complete();
+	}
+	
+	private static class DiscardingConnection extends Connection {
+		DiscardingConnection() {
+			super(InetAddress.getLoopbackAddress(), new BufferPool(16 * 1024, 16, false), null);
+		}
+		
+		@Override
+		int read(ByteBuffer dst) {
+			return -1;
+		}
+		@Override
+		void write(ByteBuffer... srcs) {
+			for(var src : srcs)
+				src.position(src.limit());
+		}
+		@Override
+		OutputStream getOutputStream() {
+			return OutputStream.nullOutputStream();
+		}
+		@Override
+		void abort() {
+		}
+		@Override
+		public void close() {
+		}
+	}
+}
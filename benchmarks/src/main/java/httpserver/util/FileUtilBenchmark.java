@@ -0,0 +1,83 @@
+package httpserver.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * template loading and rendering and path sanitizing
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileUtilBenchmark {
+	private Path file;
+	private String source;
+	private Template template;
+	private Map<String, Supplier<String>> vars;
+	
+	@Setup
+	public void setup() throws IOException {
+		var builder = new StringBuilder("<!DOCTYPE html>\n<html><head><title>${title}</title></head><body>\n");
+		for(int i = 0; builder.length() < 8 * 1024; i++)
+			builder.append("<p class=\"row").append(i % 2).append("\">${user} wrote ${count} posts, last on ${date}.</p>\n");
+		source = builder.append("</body></html>\n").toString();
+		file = Files.createTempFile("benchmark", ".html");
+		Files.writeString(file, source, StandardCharsets.UTF_8);
+		template = Template.compile(source);
+		
+		vars = new HashMap<>();
+		vars.put("title", () -> "Benchmark");
+		vars.put("user", () -> "someone");
+		vars.put("count", () -> "42");
+		vars.put("date", () -> "2024-01-01");
+	}
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+	
+	/**
+	 * checks the file for changes and renders the cached template
+	 */
+	@Benchmark
+	public Optional<String> loadTemplate() {
+		return FileUtil.loadTemplate(file.toString(), vars);
+	}
+	/**
+	 * compiles the source on every call
+	 */
+	@Benchmark
+	public String renderTemplate() {
+		return FileUtil.renderTemplate(source, vars);
+	}
+	@Benchmark
+	public String renderCompiled() {
+		return template.render(vars);
+	}
+	@Benchmark
+	public String sanitize() {
+		return FileUtil.sanitize("/static/../css/./site:main?.css");
+	}
+}
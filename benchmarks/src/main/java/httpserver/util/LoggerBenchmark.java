@@ -0,0 +1,63 @@
+package httpserver.util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.System.Logger.Level;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the cost of logging for the calling thread, with the output going nowhere
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+	@Param({ "sync", "async" })
+	public String mode;
+	
+	private PrintStream out;
+	private DefaultLogger logger;
+	
+	@Setup
+	public void setup() {
+		out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		logger = new DefaultLogger("benchmark");
+		logger.setLevel(Level.INFO);
+		if(mode.equals("async"))
+			logger.setAsync(64 * 1024, DefaultLogger.Overflow.DROP);
+	}
+	@TearDown
+	public void tearDown() {
+		logger.close();
+		System.setOut(out);
+	}
+	
+	/**
+	 * below the level, nothing is formatted
+	 */
+	@Benchmark
+	public void filtered() {
+		logger.log(Level.DEBUG, "Connection from 127.0.0.1 accepted");
+	}
+	@Benchmark
+	public void logged() {
+		logger.log(Level.INFO, "GET /index.html from 127.0.0.1 took 12 ms");
+	}
+}
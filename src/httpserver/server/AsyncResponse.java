@@ -0,0 +1,128 @@
+package httpserver.server;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * a response waiting for the stage of an {@link AsyncRouteEndpoint} without holding a handler thread.
+ * whichever comes first of the stage completing, the route's timeout and the client disconnecting
+ * finishes the response, the others are ignored
+ */
+final class AsyncResponse {
+	private final Server server;
+	private final Connection conn;
+	private final Session session;
+	private final ServerMetrics.Request request;
+	private final CompletionStage<?> stage;
+	private final Server.Continuation then;
+	private final AtomicBoolean finished = new AtomicBoolean();
+	private volatile ScheduledFuture<?> timeout;
+	
+	AsyncResponse(Server server, Connection conn, Session session, ServerMetrics.Request request, CompletionStage<?> stage, Server.Continuation then) {
+		this.server = server;
+		this.conn = conn;
+		this.session = session;
+		this.request = request;
+		this.stage = stage;
+		this.then = then;
+	}
+	
+	/**
+	 * waits for the stage, must be the last thing the handler thread does with the connection
+	 * @param timeout how long the stage may take, null to wait until it completes
+	 */
+	void start(Duration timeout, ScheduledExecutorService timer) {
+		if(timeout != null) {
+			try {
+				this.timeout = timer.schedule(this::timedOut, timeout.toNanos(), TimeUnit.NANOSECONDS);
+			} catch(RejectedExecutionException e) { } // the server is stopping
+		}
+		// with the request read completely nobody else reads from the connection, so it can be watched for the client leaving
+		if(!session.hasRequestBody() && !conn.buffer.hasRemaining())
+			conn.awaitResponse(this);
+		stage.whenComplete((result, failure) -> {
+			if(!finished.compareAndSet(false, true))
+				return;
+			cancelTimeout();
+			finish(failure);
+		});
+	}
+	
+	private void timedOut() {
+		if(!finished.compareAndSet(false, true))
+			return;
+		cancel(stage);
+		var failure = new TimeoutException("No response within the route's timeout");
+		// the timer thread must not wait for a slow client
+		if(!server.getDispatcher().dispatch(() -> finish(failure)))
+			finish(failure);
+	}
+	
+	/**
+	 * called when the client closed the connection while the stage is pending, the stage is cancelled
+	 * @return whether the response has been abandoned, the connection then has to be closed
+	 */
+	boolean disconnected() {
+		if(!finished.compareAndSet(false, true))
+			return false;
+		cancelTimeout();
+		cancel(stage);
+		server.abandonAsync(conn, session, request);
+		return true;
+	}
+	
+	private void finish(Throwable failure) {
+		var keepAlive = false;
+		try {
+			keepAlive = server.finishAsync(conn, session, request, failure);
+		} finally {
+			then.resume(keepAlive);
+		}
+	}
+	
+	private void cancelTimeout() {
+		var timeout = this.timeout;
+		if(timeout != null)
+			timeout.cancel(false);
+	}
+	
+	/**
+	 * @return the stage as future or null if it can't be converted
+	 */
+	static CompletableFuture<?> toFuture(CompletionStage<?> stage) {
+		try {
+			return stage.toCompletableFuture();
+		} catch(UnsupportedOperationException e) {
+			return null;
+		}
+	}
+	static void cancel(CompletionStage<?> stage) {
+		var future = toFuture(stage);
+		if(future != null)
+			future.cancel(true);
+	}
+	/**
+	 * @return what a completed future failed with or null if it completed normally
+	 */
+	static Throwable failure(CompletableFuture<?> future) {
+		if(!future.isCompletedExceptionally())
+			return null;
+		try {
+			future.join();
+			return null;
+		} catch(CompletionException e) {
+			return e.getCause();
+		} catch(CancellationException e) {
+			return e;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * an endpoint that answers without holding a handler thread while it waits, e.g. for another service.
+ * the response is written to the session, also from the stage's callbacks on whatever thread completes them,
+ * and completed by the server once the stage has completed. the session must not be used after that
+ * @see Server#routeAsync(String, AsyncRouteEndpoint, java.time.Duration)
+ */
+public interface AsyncRouteEndpoint {
+	/**
+	 * @return a stage that completes once the endpoint is done with the session. if it completes exceptionally before
+	 * a status has been sent, the request is answered with the status of a {@link RequestException},
+	 * 504 Gateway Timeout for a {@link java.util.concurrent.TimeoutException} or 500 Internal Server Error otherwise
+	 */
+	public CompletionStage<?> handle(String method, String resource, Session session) throws IOException;
+}
@@ -0,0 +1,425 @@
+package httpserver.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import javax.net.ssl.SSLEngine;
+
+import httpserver.util.BufferPool;
+
+/**
+ * connection on a non-blocking channel owned by an {@link EventLoop}.
+ * 
+ * While no request is being handled the loop feeds received bytes into the parser until a complete request head
+ * has arrived. The head is then dispatched to a handler thread, which reads the remaining bytes and writes
+ * its response through this connection, parking whenever the channel isn't ready.
+ */
+class ChannelConnection extends Connection {
+	/**
+	 * frames a client may fall behind by before it is disconnected
+	 */
+	private static final int MAX_QUEUED = 8 * 1024 * 1024;
+	/**
+	 * queued bytes a sender waits for in {@link #awaitDrained()}
+	 */
+	private static final int DRAINED = 256 * 1024;
+	
+	final SocketChannel channel;
+	final EventLoop loop;
+	SelectionKey key;
+	/**
+	 * the TLS the channel is encrypted with, or null
+	 */
+	private final TlsChannel tls;
+	
+	// only accessed by the loop while idle and by the handler thread while dispatched
+	boolean dispatched;
+	long lastActive = System.currentTimeMillis();
+	int served;
+	
+	// only accessed by the loop
+	/**
+	 * the asynchronous response the connection is waiting for, while it is watched for the client disconnecting
+	 */
+	private AsyncResponse awaited;
+	/**
+	 * bytes of the next request that arrived while the connection was watched
+	 */
+	private ByteBuffer early;
+	/**
+	 * whether the protocol is done and the connection is closed once the queued frames have been written
+	 */
+	boolean closeWhenFlushed;
+	
+	/**
+	 * frames that couldn't be written right away, guarded by itself
+	 */
+	private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+	private long queuedBytes;
+	
+	private final Object readyLock = new Object();
+	private int readyOps;
+	private volatile boolean closed;
+	
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ChannelConnection.this.write(ByteBuffer.wrap(b, off, len));
+		}
+	};
+	
+	/**
+	 * @param engine the engine to encrypt the channel with, or null
+	 */
+	ChannelConnection(SocketChannel channel, EventLoop loop, BufferPool pool, HttpRequestParser parser, SSLEngine engine) {
+		super(channel.socket().getInetAddress(), pool, parser);
+		this.channel = channel;
+		this.loop = loop;
+		tls = engine == null ? null : new TlsChannel(engine, channel, channel);
+	}
+	
+	@Override
+	boolean isSecure() {
+		return tls != null;
+	}
+	
+	@Override
+	int read(ByteBuffer dst) throws IOException {
+		int n;
+		while((n = readNow(dst)) == 0)
+			awaitReady(readInterest());
+		return n;
+	}
+	@Override
+	void write(ByteBuffer... srcs) throws IOException {
+		while(hasRemaining(srcs))
+			if(writeNow(srcs) == 0)
+				awaitReady(SelectionKey.OP_WRITE);
+		if(tls != null)
+			while(!tls.flush())
+				awaitReady(SelectionKey.OP_WRITE);
+	}
+	/**
+	 * reads without waiting, through TLS if the channel is encrypted
+	 * @return the number of bytes read, 0 if the channel isn't ready or -1 at the end of the stream
+	 */
+	int readNow(ByteBuffer dst) throws IOException {
+		return tls != null ? tls.read(dst) : channel.read(dst);
+	}
+	/**
+	 * writes without waiting, through TLS if the channel is encrypted. encrypted bytes the channel didn't take
+	 * are kept until the next write
+	 */
+	long writeNow(ByteBuffer... srcs) throws IOException {
+		return tls != null ? tls.write(srcs) : channel.write(srcs);
+	}
+	/**
+	 * @return the operation a {@link #readNow} that returned 0 waits for, TLS may have to write before it can read
+	 */
+	int readInterest() {
+		return tls != null ? tls.readInterest() : SelectionKey.OP_READ;
+	}
+	/**
+	 * @return whether bytes have been received and decrypted that the selector won't report as readable
+	 */
+	boolean hasBuffered() {
+		return tls != null && tls.hasBuffered();
+	}
+	private boolean isFlushed() {
+		return tls == null || tls.isFlushed();
+	}
+	
+	/**
+	 * encrypted channels copy the file through a buffer
+	 */
+	@Override
+	void transferFrom(FileChannel file, long position, long count) throws IOException {
+		if(tls != null) {
+			super.transferFrom(file, position, count);
+			return;
+		}
+		while(count > 0) {
+			long n = file.transferTo(position, count, channel);
+			if(n == 0) {
+				if(position >= file.size())
+					throw new EOFException("File ended before the requested region");
+				awaitReady(SelectionKey.OP_WRITE);
+			}
+			position += n;
+			count -= n;
+		}
+	}
+	@Override
+	OutputStream getOutputStream() {
+		return out;
+	}
+	
+	/**
+	 * writes as much of a frame as the channel takes right away and queues the rest for the loop,
+	 * so that neither the loop nor the sender blocks
+	 */
+	@Override
+	void send(ByteBuffer... srcs) throws IOException {
+		synchronized(queued) {
+			if(closed || !channel.isOpen())
+				throw new ClosedChannelException();
+			if(queued.isEmpty()) {
+				writeNow(srcs);
+				if(!hasRemaining(srcs) && isFlushed())
+					return;
+			}
+			long length = 0;
+			for(var src : srcs)
+				length += src.remaining();
+			if(queuedBytes + length > MAX_QUEUED) {
+				loop.close(this);
+				throw new IOException("Client doesn't read its messages");
+			}
+			var copy = ByteBuffer.allocate((int) length);
+			for(var src : srcs)
+				copy.put(src);
+			if(queued.isEmpty())
+				loop.execute(() -> {
+					if(key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				});
+			queued.add(copy.flip());
+			queuedBytes += length;
+		}
+	}
+	/**
+	 * parks the sender until the queue fell below a limit, the loop wakes it up as it writes
+	 */
+	@Override
+	void awaitDrained() throws IOException {
+		int timeout = loop.getTimeout();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(queued) {
+			while(queuedBytes > DRAINED) {
+				if(closed || !channel.isOpen())
+					throw new ClosedChannelException();
+				try {
+					if(timeout == 0)
+						queued.wait();
+					else {
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0)
+							throw new SocketTimeoutException("Timed out waiting for the client");
+						queued.wait(remaining);
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the client", e);
+				}
+			}
+		}
+	}
+	/**
+	 * called by the loop when the channel of a protocol became writable
+	 * @return whether all queued frames have been written
+	 */
+	boolean flushQueued() throws IOException {
+		synchronized(queued) {
+			ByteBuffer next;
+			while((next = queued.peek()) != null) {
+				writeNow(next);
+				if(next.hasRemaining())
+					return false;
+				queuedBytes -= next.limit();
+				queued.poll();
+				if(queuedBytes <= DRAINED)
+					queued.notifyAll();
+			}
+			if(tls != null && !tls.flush())
+				return false;
+			if(key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			return true;
+		}
+	}
+	
+	/**
+	 * called by the loop when the channel became readable while idle
+	 * @param readBuffer buffer shared by all connections of the loop
+	 * @return the complete request head, if one has arrived
+	 * @throws IOException If the channel failed, reached end of stream or the head is malformed
+	 */
+	RequestHead readHead(ByteBuffer readBuffer) throws IOException {
+		lastActive = System.currentTimeMillis();
+		int n;
+		do {
+			readBuffer.clear();
+			n = readNow(readBuffer);
+			readBuffer.flip();
+			if(n < 0)
+				throw new ClosedChannelException();
+			bytesRead += n;
+			if(n > 0 && parser.feed(readBuffer)) {
+				if(readBuffer.hasRemaining())
+					keep(readBuffer);
+				return parser.head();
+			}
+		} while(n > 0 && hasBuffered()); // a TLS record may have held more than the buffer
+		if(tls != null)
+			key.interestOps(tls.readInterest());
+		return null;
+	}
+	/**
+	 * tries to parse a head from the bytes already buffered, e.g. a pipelined request
+	 */
+	RequestHead pendingHead() throws IOException {
+		if(buffer.hasRemaining() && parser.feed(buffer))
+			return parser.head();
+		releaseBuffer();
+		return null;
+	}
+	
+	@Override
+	void awaitResponse(AsyncResponse response) {
+		loop.execute(() -> {
+			if(!key.isValid())
+				return;
+			awaited = response;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		});
+	}
+	/**
+	 * called by the loop when the channel became readable while a handler has it, 
+	 * only reads if an asynchronous response is being waited for
+	 * @param readBuffer buffer shared by all connections of the loop
+	 * @return whether the client disconnected and the response has been abandoned
+	 */
+	boolean probe(ByteBuffer readBuffer) {
+		if(awaited == null)
+			return false;
+		readBuffer.clear();
+		int n;
+		try {
+			n = readNow(readBuffer);
+		} catch(IOException e) {
+			n = -1;
+		}
+		readBuffer.flip();
+		if(n == 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			return false;
+		}
+		var response = awaited;
+		awaited = null;
+		if(n < 0)
+			return response.disconnected();
+		// a pipelined request, the end of the stream can't be seen behind it without buffering more
+		early = ByteBuffer.allocate(n).put(readBuffer).flip();
+		return false;
+	}
+	/**
+	 * called by the loop once the response is complete, keeps what arrived while it was watched
+	 */
+	void endAwait() {
+		awaited = null;
+		if(early == null)
+			return;
+		bytesRead += early.remaining();
+		keep(early);
+		early = null;
+	}
+	
+	/**
+	 * parks the handler thread until the loop reports that the channel is ready for the given operation
+	 */
+	private void awaitReady(int op) throws IOException {
+		synchronized(readyLock) {
+			readyOps &= ~op;
+		}
+		loop.execute(() -> {
+			if(key.isValid())
+				key.interestOps(key.interestOps() | op);
+		});
+		
+		int timeout = loop.getTimeout();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(readyLock) {
+			while((readyOps & op) == 0) {
+				if(closed || !channel.isOpen())
+					throw new ClosedChannelException();
+				try {
+					if(timeout == 0)
+						readyLock.wait();
+					else {
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0)
+							throw new SocketTimeoutException("Timed out waiting for the client");
+						readyLock.wait(remaining);
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the client", e);
+				}
+			}
+		}
+	}
+	/**
+	 * called by the loop when operations a handler thread is waiting for are ready
+	 */
+	void ready(int ops) {
+		key.interestOps(key.interestOps() & ~ops);
+		synchronized(readyLock) {
+			readyOps |= ops;
+			readyLock.notifyAll();
+		}
+	}
+	
+	boolean isClosed() {
+		return closed;
+	}
+	
+	@Override
+	void abort() {
+		try {
+			channel.close(); // the key is cancelled along with it
+		} catch(IOException e) { }
+		synchronized(readyLock) {
+			readyLock.notifyAll();
+		}
+		synchronized(queued) {
+			queued.notifyAll();
+		}
+	}
+	
+	/**
+	 * must be called on the loop
+	 */
+	@Override
+	public void close() throws IOException {
+		if(tls != null && !closed)
+			tls.closeOutbound();
+		closed = true;
+		synchronized(readyLock) {
+			readyLock.notifyAll();
+		}
+		synchronized(queued) {
+			queued.notifyAll();
+		}
+		if(key != null)
+			key.cancel();
+		channel.close();
+		if(tls != null)
+			tls.close();
+		if(!dispatched) {
+			releaseBuffer();
+			parser.reset();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package httpserver.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * decodes a body sent with <code>Transfer-Encoding: chunked</code>, trailers are discarded
+ */
+class ChunkedBody extends RequestBody {
+	private static final int MAX_LINE_LENGTH = 4096;
+	
+	private final InputStream in;
+	private final long maxSize;
+	private long chunkRemaining, total;
+	private boolean finished;
+	
+	/**
+	 * @param maxSize how many body bytes are accepted before the request is answered with 413
+	 */
+	ChunkedBody(InputStream in, long maxSize) {
+		this.in = in;
+		this.maxSize = maxSize;
+	}
+	
+	@Override
+	long length() {
+		return -1;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(finished)
+			return -1;
+		if(len == 0)
+			return 0;
+		if(chunkRemaining == 0) {
+			if(total > 0)
+				expectLineEnd();
+			chunkRemaining = readChunkSize();
+			if(chunkRemaining == 0) {
+				skipTrailers();
+				finished = true;
+				return -1;
+			}
+			if(total + chunkRemaining > maxSize)
+				throw new RequestException(HttpStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxSize + " bytes");
+		}
+		int n = in.read(b, off, (int) Math.min(len, chunkRemaining));
+		if(n < 0)
+			throw new EOFException("Connection closed within a chunk");
+		chunkRemaining -= n;
+		total += n;
+		return n;
+	}
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), chunkRemaining);
+	}
+	
+	private long readChunkSize() throws IOException {
+		long size = 0;
+		int digits = 0, c;
+		while((c = in.read()) >= 0) {
+			int digit = Character.digit(c, 16);
+			if(digit < 0)
+				break;
+			if(++digits > 15)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Chunk size too large");
+			size = size * 16 + digit;
+		}
+		if(digits == 0)
+			throw new RequestException(HttpStatus.BAD_REQUEST, "Missing chunk size");
+		// skip chunk extensions
+		for(int length = 0; c != '\n'; length++) {
+			if(c < 0)
+				throw new EOFException("Connection closed within a chunk header");
+			if(length > MAX_LINE_LENGTH)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Chunk header too long");
+			c = in.read();
+		}
+		return size;
+	}
+	private void expectLineEnd() throws IOException {
+		int c = in.read();
+		if(c == '\r')
+			c = in.read();
+		if(c != '\n')
+			throw new RequestException(HttpStatus.BAD_REQUEST, "Missing line break after chunk");
+	}
+	private void skipTrailers() throws IOException {
+		int length = 0, c;
+		while((c = in.read()) >= 0) {
+			if(c == '\n') {
+				if(length == 0)
+					return;
+				length = 0;
+			} else if(c != '\r' && ++length > MAX_LINE_LENGTH)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Trailer too long");
+		}
+		throw new EOFException("Connection closed within trailers");
+	}
+}
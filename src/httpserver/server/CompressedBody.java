@@ -0,0 +1,129 @@
+package httpserver.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import httpserver.util.BufferPool;
+
+/**
+ * compresses a response body as it is sent, with gzip or deflate (zlib) framing.
+ * compressed data is handed to the sink whenever the output buffer is full
+ */
+class CompressedBody {
+	private static final BufferPool BUFFERS = new BufferPool(16 * 1024, 1024, false);
+	private static final byte[] NO_INPUT = new byte[0];
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	
+	interface Sink {
+		void write(ByteBuffer data) throws IOException;
+	}
+	
+	private final ResponseCompression compression;
+	private final boolean gzip;
+	private final Deflater deflater;
+	private final CRC32 crc;
+	private ByteBuffer out = BUFFERS.acquire();
+	
+	CompressedBody(ResponseCompression compression, boolean gzip) {
+		this.compression = compression;
+		this.gzip = gzip;
+		deflater = compression.acquire(gzip);
+		crc = gzip ? new CRC32() : null;
+		if(gzip)
+			out.put(GZIP_HEADER);
+	}
+	
+	/**
+	 * compresses all remaining bytes of the input
+	 */
+	void write(ByteBuffer input, Sink sink) throws IOException {
+		if(!input.hasRemaining())
+			return;
+		if(gzip)
+			crc.update(input.duplicate());
+		deflater.setInput(input);
+		while(!deflater.needsInput())
+			deflate(Deflater.NO_FLUSH, sink);
+		// the deflater would otherwise read the buffer again once the caller reuses it
+		deflater.setInput(NO_INPUT);
+	}
+	/**
+	 * hands everything compressed so far to the sink, so that the client can decompress it
+	 */
+	void flush(Sink sink) throws IOException {
+		while(true) {
+			int space = out.remaining();
+			// a deflate that fills the whole buffer may have more output pending
+			if(deflater.deflate(out, Deflater.SYNC_FLUSH) < space)
+				break;
+			emit(sink);
+		}
+		emit(sink);
+	}
+	/**
+	 * finishes the compressed stream, including the gzip trailer
+	 */
+	void finish(Sink sink) throws IOException {
+		deflater.finish();
+		while(!deflater.finished())
+			deflate(Deflater.NO_FLUSH, sink);
+		if(gzip) {
+			if(out.remaining() < 8)
+				emit(sink);
+			out.order(ByteOrder.LITTLE_ENDIAN)
+					.putInt((int) crc.getValue())
+					.putInt((int) deflater.getBytesRead())
+					.order(ByteOrder.BIG_ENDIAN);
+		}
+		emit(sink);
+	}
+	private void deflate(int flush, Sink sink) throws IOException {
+		deflater.deflate(out, flush);
+		if(!out.hasRemaining())
+			emit(sink);
+	}
+	private void emit(Sink sink) throws IOException {
+		if(out.position() == 0)
+			return;
+		sink.write(out.flip());
+		out.clear();
+	}
+	
+	/**
+	 * compresses a whole body at once
+	 * @param data the parts of the body, nulls are skipped
+	 */
+	static byte[] compress(ResponseCompression compression, boolean gzip, ByteBuffer... data) throws IOException {
+		long length = 0;
+		for(var part : data)
+			if(part != null)
+				length += part.remaining();
+		var compressed = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, 64 * 1024));
+		Sink sink = out -> compressed.write(out.array(), out.arrayOffset() + out.position(), out.remaining());
+		var body = new CompressedBody(compression, gzip);
+		try {
+			for(var part : data)
+				if(part != null)
+					body.write(part, sink);
+			body.finish(sink);
+		} finally {
+			body.release();
+		}
+		return compressed.toByteArray();
+	}
+	
+	/**
+	 * returns the deflater and buffer to their pools, must be called once the body is finished or abandoned
+	 */
+	void release() {
+		if(out == null)
+			return;
+		compression.release(deflater, gzip);
+		BUFFERS.release(out);
+		out = null;
+	}
+}
@@ -0,0 +1,230 @@
+package httpserver.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import httpserver.util.BufferPool;
+
+/**
+ * a client connection as seen by request handlers, reads and writes block the calling thread
+ */
+abstract class Connection implements Closeable {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	/**
+	 * direct buffers for copying file regions where the transport can't transfer them itself
+	 */
+	private static final BufferPool TRANSFER_BUFFERS = new BufferPool(256 * 1024, 32, true);
+	
+	private final InetAddress address;
+	private final BufferPool pool;
+	final HttpRequestParser parser;
+	/**
+	 * bytes received from the client but not consumed yet, in read mode.
+	 * a pooled buffer is only held while there is something to read
+	 */
+	ByteBuffer buffer = EMPTY;
+	/**
+	 * bytes received since {@link #takeBytesRead()} was called last
+	 */
+	long bytesRead;
+	/**
+	 * nanoseconds the connection waited for a handler thread before its current request
+	 */
+	long queueDelay;
+	/**
+	 * the protocol the connection has been switched to, or null while it speaks HTTP/1.x
+	 */
+	Protocol protocol;
+	
+	private final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			if(!buffer.hasRemaining() && !fill())
+				return -1;
+			return buffer.get() & 0xff;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(!buffer.hasRemaining() && !fill())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	};
+	
+	Connection(InetAddress address, BufferPool pool, HttpRequestParser parser) {
+		this.address = address;
+		this.pool = pool;
+		this.parser = parser;
+	}
+	
+	InetAddress getAddress() {
+		return address;
+	}
+	
+	/**
+	 * reads from the client, blocking until at least one byte is available
+	 * @return the number of bytes read or -1 at the end of the stream
+	 */
+	abstract int read(ByteBuffer dst) throws IOException;
+	/**
+	 * writes all remaining bytes of the buffers to the client, blocking until they have been written
+	 */
+	abstract void write(ByteBuffer... srcs) throws IOException;
+	abstract OutputStream getOutputStream();
+	/**
+	 * writes a frame of the {@link #protocol} from any thread, one at a time. transports whose writes would block
+	 * an event loop override this to queue what can't be written right away
+	 */
+	void send(ByteBuffer... srcs) throws IOException {
+		write(srcs);
+	}
+	/**
+	 * blocks until frames {@link #send sent} earlier have mostly been written, so that a sender producing many of them
+	 * doesn't queue more than the client takes. writes that block already wait for the client
+	 */
+	void awaitDrained() throws IOException {
+	}
+	static boolean hasRemaining(ByteBuffer[] buffers) {
+		for(var buffer : buffers)
+			if(buffer.hasRemaining())
+				return true;
+		return false;
+	}
+	
+	/**
+	 * sends a region of a file to the client, by copying it through a pooled direct buffer.
+	 * transports that can hand the file to the kernel override this
+	 */
+	void transferFrom(FileChannel file, long position, long count) throws IOException {
+		var buffer = TRANSFER_BUFFERS.acquire();
+		try {
+			while(count > 0) {
+				buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+				int n = file.read(buffer, position);
+				if(n < 0)
+					throw new EOFException("File ended before the requested region");
+				buffer.flip();
+				write(buffer);
+				position += n;
+				count -= n;
+			}
+		} finally {
+			TRANSFER_BUFFERS.release(buffer);
+		}
+	}
+	
+	/**
+	 * @return a stream of the bytes following the current request head
+	 */
+	InputStream getInputStream() {
+		return in;
+	}
+	
+	/**
+	 * blocks until the next request head has been received
+	 * @return the head or null if the client closed the connection before starting another request
+	 */
+	RequestHead readHead() throws IOException {
+		while(!buffer.hasRemaining() || !parser.feed(buffer)) {
+			if(!fill()) {
+				if(parser.isStarted())
+					throw new RequestException(HttpStatus.BAD_REQUEST, "Connection closed within request head");
+				return null;
+			}
+		}
+		return parser.head();
+	}
+	
+	/**
+	 * replaces the consumed contents of the buffer with newly received bytes
+	 * @return false at the end of the stream
+	 */
+	boolean fill() throws IOException {
+		if(buffer == EMPTY)
+			buffer = pool.acquire();
+		buffer.clear();
+		int n = read(buffer);
+		buffer.flip();
+		if(n > 0)
+			bytesRead += n;
+		return n >= 0;
+	}
+	/**
+	 * stores bytes that were received beyond the end of a request head
+	 */
+	void keep(ByteBuffer leftover) {
+		if(buffer == EMPTY)
+			buffer = pool.acquire();
+		buffer.clear();
+		buffer.put(leftover);
+		buffer.flip();
+	}
+	
+	long takeBytesRead() {
+		var n = bytesRead;
+		bytesRead = 0;
+		return n;
+	}
+	
+	/**
+	 * @return whether the transport is encrypted with TLS
+	 */
+	boolean isSecure() {
+		return false;
+	}
+	/**
+	 * @return whether the transport frames messages itself, as a stream of an HTTP/2 connection does. bodies are then
+	 * neither chunked nor delimited by closing and the response head doesn't manage the connection
+	 */
+	boolean isFramed() {
+		return false;
+	}
+	/**
+	 * called once a response has been written completely, transports that frame messages end it here
+	 * @param trailers the trailer fields as header lines if the body has any and isn't chunked, otherwise null
+	 */
+	void completeResponse(CharSequence trailers) throws IOException {
+	}
+	
+	/**
+	 * called when the handler thread leaves the connection to an asynchronous response. transports that can notice
+	 * the client disconnecting without a thread reading from the connection override this to report it
+	 * to {@link AsyncResponse#disconnected()}
+	 */
+	void awaitResponse(AsyncResponse response) {
+	}
+	
+	/**
+	 * closes the transport under a thread that may be blocked on it, so that its read or write fails.
+	 * the connection still has to be closed by its owner, which releases its resources
+	 */
+	abstract void abort();
+	
+	/**
+	 * releases the resources of the current request once it has been answered
+	 */
+	void finishRequest() {
+		parser.reset();
+		if(!buffer.hasRemaining())
+			releaseBuffer();
+	}
+	void releaseBuffer() {
+		if(buffer != EMPTY)
+			pool.release(buffer);
+		buffer = EMPTY;
+	}
+}
@@ -0,0 +1,78 @@
+package httpserver.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decides on which thread an accepted connection is handled
+ */
+public interface ConnectionDispatcher {
+	/**
+	 * hands a connection handler off for execution
+	 * @return false if the handler has been rejected, e.g. because the queue is full
+	 */
+	public boolean dispatch(Runnable handler);
+	
+	/**
+	 * @return the number of handlers waiting for a thread
+	 */
+	public int getQueueDepth();
+	/**
+	 * @return the number of handlers currently running
+	 */
+	public int getActiveHandlers();
+	/**
+	 * @return the number of handlers rejected since creation
+	 */
+	public long getRejected();
+	
+	/**
+	 * stops accepting new handlers, running handlers are left to finish
+	 */
+	public void shutdown();
+	
+	/**
+	 * starts a new platform thread for every connection, without any limit
+	 */
+	public static ConnectionDispatcher threadPerConnection() {
+		return new ExecutorDispatcher(handler -> {
+			var thread = new Thread(handler);
+			thread.start();
+		});
+	}
+	/**
+	 * starts a new virtual thread for every connection
+	 * @throws UnsupportedOperationException If the runtime does not provide virtual threads (Java 21+)
+	 */
+	public static ConnectionDispatcher virtualThreads() {
+		try {
+			// looked up reflectively so the library keeps building and running on Java 17
+			var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new ExecutorDispatcher((ExecutorService) factory.invoke(null));
+		} catch(ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+		}
+	}
+	/**
+	 * handles connections on a fixed number of platform threads
+	 * @param threads number of handler threads
+	 * @param queueCapacity number of connections that may wait for a free thread before new ones are rejected
+	 */
+	public static ConnectionDispatcher boundedPool(int threads, int queueCapacity) {
+		if(threads < 1)
+			throw new IllegalArgumentException("at least one thread is required");
+		if(queueCapacity < 1)
+			throw new IllegalArgumentException("queue capacity must be positive");
+		var executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<>(queueCapacity), 
+				handler -> {
+					var thread = new Thread(handler, "HttpServer-handler");
+					thread.setDaemon(true);
+					return thread;
+				});
+		return new ExecutorDispatcher(executor);
+	}
+}
@@ -0,0 +1,16 @@
+package httpserver.server;
+
+/**
+ * I/O model used by a {@link Server}
+ */
+public enum Engine {
+	/**
+	 * blocking sockets, every connection occupies a handler thread for as long as it is open
+	 */
+	BLOCKING,
+	/**
+	 * non-blocking channels multiplexed by a selector per core, handler threads are only
+	 * occupied while a request is being answered so idle keep-alive connections are cheap
+	 */
+	NIO;
+}
@@ -0,0 +1,141 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * selector thread multiplexing the connections assigned to it by the {@link NioEngine}
+ */
+class EventLoop extends Thread {
+	private static final int SWEEP_INTERVAL = 1000;
+	
+	private final NioEngine engine;
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final ByteBuffer readBuffer;
+	private volatile boolean running = true;
+	private long lastSweep = System.currentTimeMillis();
+	
+	EventLoop(NioEngine engine, int index) throws IOException {
+		super("HttpServer-loop-" + index);
+		setDaemon(true);
+		this.engine = engine;
+		selector = Selector.open();
+		readBuffer = ByteBuffer.allocate(engine.getBufferSize());
+	}
+	
+	/**
+	 * runs a task on this loop's thread
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * closes a connection on this loop's thread
+	 */
+	void close(ChannelConnection conn) {
+		engine.close(conn);
+	}
+	
+	void register(SocketChannel channel) {
+		execute(() -> {
+			var conn = engine.connect(channel, this);
+			try {
+				channel.configureBlocking(false);
+				engine.configure(channel);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch(IOException e) {
+				engine.close(conn);
+			}
+		});
+	}
+	
+	/**
+	 * reads from a connection that has received more than the selector reports, must be called on this loop
+	 */
+	void readBuffered(ChannelConnection conn) {
+		if(conn.protocol != null)
+			engine.protocolReady(conn, SelectionKey.OP_READ, readBuffer);
+		else
+			engine.readable(conn, readBuffer);
+	}
+	
+	/**
+	 * @return the timeout for idle connections and for handlers waiting on the client in milliseconds
+	 */
+	int getTimeout() {
+		return engine.getTimeout();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while(running) {
+				selector.select(SWEEP_INTERVAL);
+				
+				Runnable task;
+				while((task = tasks.poll()) != null)
+					task.run();
+				
+				var selected = selector.selectedKeys();
+				for(var key : selected) {
+					var conn = (ChannelConnection) key.attachment();
+					if(!key.isValid())
+						continue;
+					if(conn.dispatched) {
+						conn.ready(key.readyOps());
+						if(key.isReadable() && conn.probe(readBuffer))
+							engine.close(conn); // the client left while an asynchronous response was pending
+					} else if(conn.protocol != null)
+						engine.protocolReady(conn, key.readyOps(), readBuffer);
+					else
+						engine.readable(conn, readBuffer); // or writable, while a TLS handshake waits to write
+				}
+				selected.clear();
+				
+				sweep();
+			}
+		} catch(IOException | ClosedSelectorException e) {
+			engine.failed(this, e);
+		} finally {
+			for(var key : selector.keys())
+				engine.closeNow((ChannelConnection) key.attachment());
+			try {
+				selector.close();
+			} catch(IOException e) { }
+		}
+	}
+	
+	/**
+	 * closes idle connections that exceeded the keep-alive timeout and keeps switched protocols alive
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		if(now - lastSweep < SWEEP_INTERVAL)
+			return;
+		lastSweep = now;
+		int timeout = getTimeout();
+		for(var key : selector.keys()) {
+			var conn = (ChannelConnection) key.attachment();
+			if(conn.dispatched)
+				continue;
+			if(conn.protocol != null)
+				engine.keepAlive(conn, now);
+			else if(timeout != 0 && now - conn.lastActive > timeout)
+				engine.close(conn);
+		}
+	}
+	
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
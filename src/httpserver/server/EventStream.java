@@ -0,0 +1,299 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * a stream of Server-Sent Events that any number of clients subscribe to, registered with
+ * <code>server.routeAsync("/events", events)</code> and without a timeout.
+ * every event is encoded once, including its chunk framing, and the same bytes are written to all subscribers
+ * by a few shared threads, so subscribers don't hold a thread while they wait. a subscriber whose queue overflows
+ * because it doesn't read fast enough is dropped, it can't hold up the others or make the server buffer without bound.
+ * streams that are idle get a comment as heartbeat, which keeps proxies from closing them and notices clients that left
+ */
+public final class EventStream implements AsyncRouteEndpoint {
+	private static final int DEFAULT_QUEUE = 256;
+	private static final Duration DEFAULT_HEARTBEAT = Duration.ofSeconds(15);
+	/**
+	 * events written with one gathering write at most
+	 */
+	private static final int MAX_BATCH = 64;
+	/**
+	 * a subscriber whose write hasn't returned for this long is dropped, it stopped reading
+	 */
+	private static final long WRITE_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+	private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+	private static final Event HEARTBEAT = new Event(":\n\n");
+	
+	private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	private final int queueCapacity;
+	private final long heartbeat;
+	private final ScheduledFuture<?> ticks;
+	private final LongAdder published = new LongAdder(), dropped = new LongAdder();
+	private volatile boolean closed;
+	
+	public EventStream() {
+		this(DEFAULT_QUEUE, DEFAULT_HEARTBEAT);
+	}
+	/**
+	 * @param queueCapacity how many events a subscriber may fall behind before it is dropped
+	 * @param heartbeat how long a stream may be idle until a heartbeat is sent
+	 */
+	public EventStream(int queueCapacity, Duration heartbeat) {
+		if(queueCapacity < 1)
+			throw new IllegalArgumentException("queue capacity must be positive");
+		if(heartbeat.isNegative() || heartbeat.isZero())
+			throw new IllegalArgumentException("heartbeat interval must be positive");
+		this.queueCapacity = queueCapacity;
+		this.heartbeat = heartbeat.toNanos();
+		long tick = Math.min(TICK, this.heartbeat);
+		ticks = Writers.POOL.scheduleAtFixedRate(this::tick, tick, tick, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * subscribes the client to the events published from now on, the stage completes once it is unsubscribed
+	 */
+	@Override
+	public CompletionStage<?> handle(String method, String resource, Session session) throws IOException {
+		if(!method.equals("GET")) {
+			session.sendStatus(HttpStatus.METHOD_NOT_ALLOWED);
+			session.sendHeader("Allow", "GET");
+			return CompletableFuture.completedFuture(null);
+		}
+		if(closed) {
+			session.sendStatus(HttpStatus.NO_CONTENT); // tells the client not to reconnect
+			return CompletableFuture.completedFuture(null);
+		}
+		session.sendStatus(HttpStatus.OK);
+		session.sendHeader("Content-Type", "text/event-stream");
+		session.sendHeader("Cache-Control", "no-cache");
+		session.startStream();
+		var subscriber = new Subscriber(session);
+		subscribers.add(subscriber);
+		if(closed)
+			subscriber.end(false);
+		return subscriber.done;
+	}
+	
+	/**
+	 * sends an event of the default type <code>message</code> to all subscribers
+	 */
+	public void publish(String data) {
+		publish(null, null, data);
+	}
+	/**
+	 * sends an event to all subscribers
+	 * @param event the type of the event, null for <code>message</code>
+	 */
+	public void publish(String event, String data) {
+		publish(null, event, data);
+	}
+	/**
+	 * sends an event to all subscribers
+	 * @param id the id the client reports as Last-Event-ID when it reconnects, or null
+	 * @param event the type of the event, null for <code>message</code>
+	 * @param data the data, lines are sent as separate data fields and joined by the client again
+	 * @throws IllegalArgumentException If the id or type contain a line break
+	 */
+	public void publish(String id, String event, String data) {
+		var encoded = Event.encode(id, event, data);
+		published.increment();
+		for(var subscriber : subscribers)
+			subscriber.offer(encoded);
+	}
+	
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+	public long getPublished() {
+		return published.sum();
+	}
+	/**
+	 * @return subscribers that have been dropped because they fell behind
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	/**
+	 * ends the stream of every subscriber after the events queued for it and refuses new subscribers
+	 * with 204 No Content, which tells them not to reconnect
+	 */
+	public void close() {
+		closed = true;
+		ticks.cancel(false);
+		for(var subscriber : subscribers)
+			subscriber.end(false);
+	}
+	
+	/**
+	 * drops subscribers whose write is stuck and sends heartbeats to idle ones
+	 */
+	private void tick() {
+		long now = System.nanoTime();
+		for(var subscriber : subscribers) {
+			long writing = subscriber.writingSince;
+			if(writing != 0 && now - writing > WRITE_TIMEOUT)
+				subscriber.drop();
+			else if(now - subscriber.lastWrite >= heartbeat)
+				subscriber.offer(HEARTBEAT);
+		}
+	}
+	
+	/**
+	 * an event encoded as one chunk, whose payload is also sent as it is to clients without chunked transfer-encoding
+	 */
+	private static final class Event {
+		final byte[] chunk;
+		final int offset, length;
+		
+		Event(String text) {
+			var payload = text.getBytes(StandardCharsets.UTF_8);
+			var size = (Integer.toHexString(payload.length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+			chunk = new byte[size.length + payload.length + 2];
+			System.arraycopy(size, 0, chunk, 0, size.length);
+			System.arraycopy(payload, 0, chunk, size.length, payload.length);
+			chunk[chunk.length - 2] = '\r';
+			chunk[chunk.length - 1] = '\n';
+			offset = size.length;
+			length = payload.length;
+		}
+		
+		static Event encode(String id, String event, String data) {
+			var text = new StringBuilder(data.length() + 32);
+			if(id != null)
+				text.append("id: ").append(field(id)).append('\n');
+			if(event != null)
+				text.append("event: ").append(field(event)).append('\n');
+			for(var line : data.split("\r\n|\r|\n", -1))
+				text.append("data: ").append(line).append('\n');
+			return new Event(text.append('\n').toString());
+		}
+		private static String field(String value) {
+			if(value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+				throw new IllegalArgumentException("Event fields must not contain line breaks");
+			return value;
+		}
+		
+		/**
+		 * @return a buffer over the shared bytes, one per subscriber
+		 */
+		ByteBuffer buffer(boolean chunked) {
+			return chunked ? ByteBuffer.wrap(chunk) : ByteBuffer.wrap(chunk, offset, length);
+		}
+	}
+	
+	private final class Subscriber {
+		final Session session;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		private final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<>(queueCapacity);
+		private final boolean chunked;
+		/**
+		 * whether a writer drains the queue right now, only one does at a time
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(), ending = new AtomicBoolean();
+		private volatile boolean failed;
+		volatile long lastWrite = System.nanoTime(), writingSince;
+		
+		Subscriber(Session session) {
+			this.session = session;
+			chunked = session.isChunked();
+			// cancelled by the server if the client disconnects
+			done.whenComplete((result, failure) -> end(true));
+		}
+		
+		void offer(Event event) {
+			if(ending.get())
+				return;
+			if(!queue.offer(event)) {
+				drop();
+				return;
+			}
+			schedule();
+		}
+		void drop() {
+			if(!ending.get())
+				dropped.increment();
+			end(true);
+		}
+		/**
+		 * unsubscribes, the queued events are still written unless the subscriber is aborted
+		 */
+		void end(boolean abort) {
+			if(!ending.compareAndSet(false, true))
+				return;
+			subscribers.remove(this);
+			if(abort) {
+				failed = true;
+				queue.clear();
+				session.setKeepAlive(false);
+				session.abort(); // fails a write that is stuck on the client
+			}
+			schedule(); // the writer completes the stage
+		}
+		
+		private void schedule() {
+			if(scheduled.compareAndSet(false, true))
+				Writers.POOL.execute(this::drain);
+		}
+		private void drain() {
+			var batch = new ByteBuffer[MAX_BATCH];
+			while(true) {
+				int n = 0;
+				Event event;
+				while(n < batch.length && (event = queue.poll()) != null)
+					batch[n++] = event.buffer(chunked);
+				if(n > 0 && !failed) {
+					writingSince = System.nanoTime();
+					try {
+						session.writeEncoded(n == batch.length ? batch : Arrays.copyOf(batch, n));
+						lastWrite = System.nanoTime();
+					} catch(IOException | IllegalStateException e) {
+						end(true);
+					} finally {
+						writingSince = 0;
+					}
+					continue;
+				}
+				if(ending.get()) {
+					// the server completes the session once the stage is done, the writer must be done with it by then
+					done.complete(null);
+					return;
+				}
+				scheduled.set(false);
+				if(queue.isEmpty() || !scheduled.compareAndSet(false, true))
+					return;
+			}
+		}
+	}
+	
+	/**
+	 * threads shared by all event streams, created with the first of them
+	 */
+	private static final class Writers {
+		static final ScheduledExecutorService POOL;
+		static {
+			var pool = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()), task -> {
+				var thread = new Thread(task, "HttpServer-events");
+				thread.setDaemon(true);
+				return thread;
+			});
+			pool.setRemoveOnCancelPolicy(true);
+			POOL = pool;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package httpserver.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ConnectionDispatcher} backed by an {@link Executor}, counting queued and running handlers
+ */
+class ExecutorDispatcher implements ConnectionDispatcher {
+	private final Executor executor;
+	private final AtomicInteger queued = new AtomicInteger(), active = new AtomicInteger();
+	private final LongAdder rejected = new LongAdder();
+	private volatile boolean shutdown;
+	
+	ExecutorDispatcher(Executor executor) {
+		this.executor = executor;
+	}
+	
+	@Override
+	public boolean dispatch(Runnable handler) {
+		if(shutdown) {
+			rejected.increment();
+			return false;
+		}
+		queued.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				queued.decrementAndGet();
+				active.incrementAndGet();
+				try {
+					handler.run();
+				} finally {
+					active.decrementAndGet();
+				}
+			});
+			return true;
+		} catch(RejectedExecutionException e) {
+			queued.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+	}
+	
+	@Override
+	public int getQueueDepth() {
+		return queued.get();
+	}
+	@Override
+	public int getActiveHandlers() {
+		return active.get();
+	}
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+	
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		if(executor instanceof ExecutorService service)
+			service.shutdown();
+	}
+}
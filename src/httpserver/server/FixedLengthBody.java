@@ -0,0 +1,41 @@
+package httpserver.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * body delimited by a Content-Length header
+ */
+class FixedLengthBody extends RequestBody {
+	private final InputStream in;
+	private final long length;
+	private long remaining;
+	
+	FixedLengthBody(InputStream in, long length) {
+		this.in = in;
+		this.length = remaining = length;
+	}
+	
+	@Override
+	long length() {
+		return length;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(remaining == 0)
+			return -1;
+		if(len == 0)
+			return 0;
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if(n < 0)
+			throw new EOFException("Connection closed " + remaining + " bytes before the end of the body");
+		remaining -= n;
+		return n;
+	}
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+}
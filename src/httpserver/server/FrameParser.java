@@ -0,0 +1,117 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * incremental parser of the WebSocket frames a client sends (RFC 6455, section 5.2). the payload is unmasked in place
+ * and handed on in the pieces it arrived in, frames are neither copied nor buffered by the parser
+ */
+final class FrameParser {
+	interface Handler {
+		/**
+		 * called once the header of a frame has been parsed, before its payload
+		 */
+		void frame(int opcode, boolean fin, boolean rsv1, long length) throws WebSocket.CloseException;
+		/**
+		 * called with the unmasked payload as it arrives, at least once per frame
+		 * @param piece only valid during the call
+		 * @param last whether the piece ends the frame
+		 */
+		void payload(ByteBuffer piece, boolean last) throws WebSocket.CloseException;
+	}
+	
+	/**
+	 * the header as far as it has arrived, at most 2 bytes, 8 bytes of extended length and 4 bytes of mask
+	 */
+	private final byte[] header = new byte[14];
+	private int headerLength;
+	/**
+	 * bytes of the payload of the current frame still to come, -1 while its header is being parsed
+	 */
+	private long remaining = -1;
+	private int mask, maskOffset;
+	
+	/**
+	 * parses all bytes of the buffer, leaving its position at its limit
+	 * @throws WebSocket.CloseException If the client violated the protocol or the handler refused a frame
+	 */
+	void feed(ByteBuffer data, Handler handler) throws WebSocket.CloseException {
+		while(data.hasRemaining() || remaining == 0) {
+			if(remaining < 0) {
+				if(!parseHeader(data, handler))
+					return;
+				if(remaining > 0 && !data.hasRemaining())
+					return;
+			}
+			int n = (int) Math.min(remaining, data.remaining());
+			int start = data.position();
+			unmask(data, start, start + n, mask, maskOffset);
+			maskOffset = (maskOffset + n) & 3;
+			remaining -= n;
+			var piece = data.slice(start, n);
+			data.position(start + n);
+			var last = remaining == 0;
+			if(last)
+				remaining = -1;
+			handler.payload(piece, last);
+		}
+	}
+	
+	/**
+	 * @return whether the header is complete
+	 */
+	private boolean parseHeader(ByteBuffer data, Handler handler) throws WebSocket.CloseException {
+		while(data.hasRemaining()) {
+			header[headerLength++] = data.get();
+			if(headerLength == 2 && (header[1] & 0x80) == 0)
+				throw new WebSocket.CloseException(WebSocket.PROTOCOL_ERROR, "Client frames must be masked");
+			if(headerLength < 2 || headerLength < headerSize())
+				continue;
+			int b0 = header[0] & 0xff, b1 = header[1] & 0xff;
+			int lengthBytes = lengthBytes(b1);
+			long length = b1 & 0x7f;
+			if(lengthBytes > 0) {
+				length = 0;
+				for(int i = 0; i < lengthBytes; i++)
+					length = length << 8 | (header[2 + i] & 0xff);
+				if(length < 0)
+					throw new WebSocket.CloseException(WebSocket.PROTOCOL_ERROR, "Frame length out of range");
+			}
+			int m = 2 + lengthBytes;
+			mask = (header[m] & 0xff) << 24 | (header[m + 1] & 0xff) << 16 | (header[m + 2] & 0xff) << 8 | (header[m + 3] & 0xff);
+			maskOffset = 0;
+			headerLength = 0;
+			remaining = length;
+			if((b0 & 0x30) != 0)
+				throw new WebSocket.CloseException(WebSocket.PROTOCOL_ERROR, "Reserved bits are set");
+			handler.frame(b0 & 0x0f, (b0 & 0x80) != 0, (b0 & 0x40) != 0, length);
+			return true;
+		}
+		return false;
+	}
+	private int headerSize() {
+		return 2 + lengthBytes(header[1] & 0xff) + 4;
+	}
+	private static int lengthBytes(int b1) {
+		int length = b1 & 0x7f;
+		return length == 126 ? 2 : length == 127 ? 8 : 0;
+	}
+	
+	/**
+	 * applies the masking key to a region of the buffer, eight bytes at a time
+	 * @param offset the position within the key the region starts at
+	 */
+	static void unmask(ByteBuffer data, int from, int to, int mask, int offset) {
+		int key = Integer.rotateLeft(mask, 8 * offset);
+		long wide = (key & 0xffffffffL) << 32 | (key & 0xffffffffL);
+		int i = from;
+		if(data.order() == ByteOrder.BIG_ENDIAN)
+			for(; i + 8 <= to; i += 8)
+				data.putLong(i, data.getLong(i) ^ wide);
+		for(; i < to; i++) {
+			data.put(i, (byte) (data.get(i) ^ key >>> 24));
+			key = Integer.rotateLeft(key, 8);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package httpserver.server;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * resolves the host names of clients in the background. reverse lookups can take seconds when a resolver is slow,
+ * so callers only ever get what is cached and a miss starts a lookup whose result serves later connections.
+ * the cache holds a bounded number of addresses, the least recently used are evicted first, and remembers addresses
+ * without a name for a shorter time, so that a client without one doesn't cause a lookup per connection
+ */
+final class HostResolver {
+	private static final int MAX_ENTRIES = 4096;
+	private static final long TTL = TimeUnit.MINUTES.toNanos(10), NEGATIVE_TTL = TimeUnit.MINUTES.toNanos(1);
+	
+	private final Map<InetAddress, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetAddress, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	/**
+	 * a few threads with a bounded queue, lookups that don't fit are dropped and retried by a later connection
+	 */
+	private final ThreadPoolExecutor lookups;
+	
+	HostResolver() {
+		lookups = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256), task -> {
+			var thread = new Thread(task, "HttpServer-resolver");
+			thread.setDaemon(true);
+			return thread;
+		}, (task, executor) -> { });
+		lookups.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * never blocks
+	 * @return the cached host name of the address or null if it has none or hasn't been resolved yet,
+	 * in which case it is looked up in the background
+	 */
+	String lookup(InetAddress address) {
+		long now = System.nanoTime();
+		synchronized(entries) {
+			var entry = entries.get(address);
+			if(entry != null && now - entry.expires < 0)
+				return entry.host;
+			// stands in for the lookup, a lookup that was dropped is retried once it expires
+			entries.put(address, new Entry(null, now + NEGATIVE_TTL));
+		}
+		lookups.execute(() -> resolve(address));
+		return null;
+	}
+	
+	private void resolve(InetAddress address) {
+		String host = null;
+		try {
+			// a fresh instance, the connection's address must not be resolved as a side effect
+			var name = InetAddress.getByAddress(address.getAddress()).getHostName();
+			if(!name.equals(address.getHostAddress()))
+				host = name;
+		} catch(Exception e) { }
+		var entry = new Entry(host, System.nanoTime() + (host != null ? TTL : NEGATIVE_TTL));
+		synchronized(entries) {
+			entries.put(address, entry);
+		}
+	}
+	
+	void shutdown() {
+		lookups.shutdownNow();
+	}
+	
+	private static final class Entry {
+		final String host;
+		final long expires;
+		
+		Entry(String host, long expires) {
+			this.host = host;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package httpserver.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). the static table and the Huffman code are shared,
+ * every connection has a {@link Decoder} for the requests and an {@link Encoder} for the responses,
+ * each with a dynamic table of its own
+ */
+final class Hpack {
+	/**
+	 * the size of the dynamic tables unless the peer announces a smaller one
+	 */
+	static final int TABLE_SIZE = 4096;
+	/**
+	 * the static table (appendix A), names at even and values at odd positions, index 1 first
+	 */
+	private static final String[] STATIC = {
+			":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+			":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+			":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+			"accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+			"access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+			"content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+			"content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+			"expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+			"if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+			"location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+			"referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+			"strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+			"www-authenticate", "" };
+	private static final int STATIC_SIZE = STATIC.length / 2;
+	/**
+	 * static indices by name and by name and value, the lowest index of a name wins
+	 */
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<>(), STATIC_FIELDS = new HashMap<>();
+	static {
+		for(int i = STATIC_SIZE; i >= 1; i--) {
+			STATIC_NAMES.put(STATIC[2 * i - 2], i);
+			STATIC_FIELDS.put(STATIC[2 * i - 2] + '\0' + STATIC[2 * i - 1], i);
+		}
+	}
+	
+	/**
+	 * the lengths of the Huffman codes of the 256 octets and EOS (appendix B). the code is canonical,
+	 * so the codes themselves follow from the lengths
+	 */
+	private static final byte[] CODE_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30 };
+	private static final int EOS = 256, MAX_CODE_LENGTH = 30;
+	private static final int[] CODES = new int[257];
+	/**
+	 * per code length the first code, the number of codes and where their symbols start in {@link #SYMBOLS}
+	 */
+	private static final long[] FIRST_CODE = new long[MAX_CODE_LENGTH + 1];
+	private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1], SYMBOL_OFFSET = new int[MAX_CODE_LENGTH + 1];
+	private static final int[] SYMBOLS = new int[257];
+	static {
+		for(int symbol = 0; symbol <= EOS; symbol++)
+			CODE_COUNT[CODE_LENGTHS[symbol]]++;
+		long code = 0;
+		for(int length = 1, offset = 0; length <= MAX_CODE_LENGTH; length++) {
+			FIRST_CODE[length] = code;
+			SYMBOL_OFFSET[length] = offset;
+			offset += CODE_COUNT[length];
+			code = (code + CODE_COUNT[length]) << 1;
+		}
+		var next = new int[MAX_CODE_LENGTH + 1];
+		for(int symbol = 0; symbol <= EOS; symbol++) {
+			int length = CODE_LENGTHS[symbol];
+			CODES[symbol] = (int) FIRST_CODE[length] + next[length];
+			SYMBOLS[SYMBOL_OFFSET[length] + next[length]++] = symbol;
+		}
+	}
+	
+	/**
+	 * names whose values rarely repeat or must not be kept in a table an intermediary might share
+	 */
+	private static final Set<String> NOT_INDEXED = Set.of("content-length", "etag", "last-modified", "content-range",
+			"set-cookie", "location", "authorization");
+	
+	private Hpack() {
+	}
+	
+	/**
+	 * a header block that can't be decoded, which is a connection error
+	 */
+	static final class CompressionException extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		CompressionException(String message) {
+			super(message);
+		}
+	}
+	
+	/**
+	 * receives the fields of a header block in order
+	 */
+	interface FieldSink {
+		void field(String name, String value);
+	}
+	
+	/**
+	 * decodes the header blocks a client sends, in the order it sent them
+	 */
+	static final class Decoder {
+		private final Table table = new Table(TABLE_SIZE);
+		
+		void decode(ByteBuffer block, FieldSink sink) throws CompressionException {
+			var start = true;
+			while(block.hasRemaining()) {
+				int b = block.get(block.position()) & 0xff;
+				if((b & 0x80) != 0) {
+					int index = readInt(block, 7);
+					sink.field(name(index), value(index));
+				} else if((b & 0x40) != 0) {
+					int index = readInt(block, 6);
+					var name = index == 0 ? readString(block) : name(index);
+					var value = readString(block);
+					table.add(name, value);
+					sink.field(name, value);
+				} else if((b & 0x20) != 0) {
+					// a size update, only allowed at the start of a block
+					if(!start)
+						throw new CompressionException("Table size update within a header block");
+					int size = readInt(block, 5);
+					if(size > TABLE_SIZE)
+						throw new CompressionException("Table size update exceeds the announced size");
+					table.resize(size);
+					continue;
+				} else {
+					// without indexing or never indexed
+					int index = readInt(block, 4);
+					var name = index == 0 ? readString(block) : name(index);
+					sink.field(name, readString(block));
+				}
+				start = false;
+			}
+		}
+		
+		private String name(int index) throws CompressionException {
+			if(index >= 1 && index <= STATIC_SIZE)
+				return STATIC[2 * index - 2];
+			var entry = table.get(index - STATIC_SIZE);
+			if(entry == null)
+				throw new CompressionException("Invalid table index " + index);
+			return entry.name;
+		}
+		private String value(int index) throws CompressionException {
+			if(index >= 1 && index <= STATIC_SIZE)
+				return STATIC[2 * index - 1];
+			var entry = table.get(index - STATIC_SIZE);
+			if(entry == null)
+				throw new CompressionException("Invalid table index " + index);
+			return entry.value;
+		}
+		
+		private static int readInt(ByteBuffer block, int prefixBits) throws CompressionException {
+			int max = (1 << prefixBits) - 1;
+			int value = block.get() & max;
+			if(value < max)
+				return value;
+			for(int shift = 0; ; shift += 7) {
+				if(!block.hasRemaining())
+					throw new CompressionException("Truncated integer");
+				int b = block.get() & 0xff;
+				if(shift > 21)
+					throw new CompressionException("Integer out of range");
+				value += (b & 0x7f) << shift;
+				if(value < 0)
+					throw new CompressionException("Integer out of range");
+				if((b & 0x80) == 0)
+					return value;
+			}
+		}
+		private static String readString(ByteBuffer block) throws CompressionException {
+			if(!block.hasRemaining())
+				throw new CompressionException("Truncated string");
+			var huffman = (block.get(block.position()) & 0x80) != 0;
+			int length = readInt(block, 7);
+			if(length > block.remaining())
+				throw new CompressionException("Truncated string");
+			if(!huffman) {
+				var raw = new byte[length];
+				block.get(raw);
+				return new String(raw, StandardCharsets.ISO_8859_1);
+			}
+			var out = new byte[length * 8 / 5 + 1]; // the shortest code has 5 bits
+			int n = 0, bits = 0;
+			long code = 0;
+			for(int i = 0; i < length; i++) {
+				int b = block.get() & 0xff;
+				for(int bit = 7; bit >= 0; bit--) {
+					code = code << 1 | (b >>> bit & 1);
+					bits++;
+					long offset = code - FIRST_CODE[bits];
+					if(offset >= 0 && offset < CODE_COUNT[bits]) {
+						int symbol = SYMBOLS[SYMBOL_OFFSET[bits] + (int) offset];
+						if(symbol == EOS)
+							throw new CompressionException("EOS in Huffman string");
+						out[n++] = (byte) symbol;
+						code = 0;
+						bits = 0;
+					} else if(bits == MAX_CODE_LENGTH)
+						throw new CompressionException("Invalid Huffman code");
+				}
+			}
+			// the padding is the most significant bits of EOS, all ones and shorter than a byte
+			if(bits > 7 || code != (1L << bits) - 1)
+				throw new CompressionException("Invalid Huffman padding");
+			return new String(out, 0, n, StandardCharsets.ISO_8859_1);
+		}
+	}
+	
+	/**
+	 * encodes the header blocks of responses, which must be sent in the order they were encoded
+	 */
+	static final class Encoder {
+		private final Table table = new Table(TABLE_SIZE);
+		/**
+		 * the smallest size the table had since the last block, -1 if it wasn't resized.
+		 * the decoder has to learn about both the smallest and the final size
+		 */
+		private int minSize = -1;
+		
+		/**
+		 * applies the table size the client announced, the change is signalled with the next block
+		 */
+		void setMaxTableSize(int size) {
+			size = Math.min(size, TABLE_SIZE);
+			if(size == table.maxSize)
+				return;
+			minSize = minSize < 0 ? size : Math.min(minSize, size);
+			table.resize(size);
+		}
+		
+		/**
+		 * @param fields names at even and values at odd positions, names in lower case
+		 */
+		byte[] encode(String[] fields, int count) {
+			var out = new ByteArrayOutputStream(64);
+			if(minSize >= 0) {
+				writeInt(out, 0x20, 5, minSize);
+				if(minSize != table.maxSize)
+					writeInt(out, 0x20, 5, table.maxSize);
+				minSize = -1;
+			}
+			for(int i = 0; i < count; i += 2) {
+				var name = fields[i];
+				var value = fields[i + 1];
+				var index = STATIC_FIELDS.get(name + '\0' + value);
+				if(index == null) {
+					int dynamic = table.indexOf(name, value);
+					if(dynamic > 0)
+						index = STATIC_SIZE + dynamic;
+				}
+				if(index != null) {
+					writeInt(out, 0x80, 7, index);
+					continue;
+				}
+				var nameIndex = STATIC_NAMES.get(name);
+				if(nameIndex == null) {
+					int dynamic = table.indexOfName(name);
+					nameIndex = dynamic > 0 ? STATIC_SIZE + dynamic : 0;
+				}
+				if(NOT_INDEXED.contains(name) || name.length() + value.length() + 32 > table.maxSize / 2)
+					writeInt(out, name.equals("set-cookie") || name.equals("authorization") ? 0x10 : 0x00, 4, nameIndex);
+				else {
+					writeInt(out, 0x40, 6, nameIndex);
+					table.add(name, value);
+				}
+				if(nameIndex == 0)
+					writeString(out, name);
+				writeString(out, value);
+			}
+			return out.toByteArray();
+		}
+		
+		private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+			int max = (1 << prefixBits) - 1;
+			if(value < max) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | max);
+			value -= max;
+			while(value >= 0x80) {
+				out.write(value & 0x7f | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+		/**
+		 * writes the string Huffman-coded if that makes it shorter
+		 */
+		private static void writeString(ByteArrayOutputStream out, String text) {
+			long bits = 0;
+			for(int i = 0; i < text.length(); i++)
+				bits += CODE_LENGTHS[latin1(text.charAt(i))];
+			int length = (int) ((bits + 7) / 8);
+			if(length >= text.length()) {
+				writeInt(out, 0x00, 7, text.length());
+				for(int i = 0; i < text.length(); i++)
+					out.write(latin1(text.charAt(i)));
+				return;
+			}
+			writeInt(out, 0x80, 7, length);
+			long pending = 0;
+			int pendingBits = 0;
+			for(int i = 0; i < text.length(); i++) {
+				int symbol = latin1(text.charAt(i));
+				pending = pending << CODE_LENGTHS[symbol] | CODES[symbol];
+				pendingBits += CODE_LENGTHS[symbol];
+				while(pendingBits >= 8) {
+					pendingBits -= 8;
+					out.write((int) (pending >>> pendingBits));
+				}
+			}
+			if(pendingBits > 0)
+				out.write((int) (pending << 8 - pendingBits) | 0xff >>> pendingBits);
+		}
+		private static int latin1(char c) {
+			return c > 0xff ? '?' : c;
+		}
+	}
+	
+	private static final class Entry {
+		final String name, value;
+		final long id;
+		
+		Entry(String name, String value, long id) {
+			this.name = name;
+			this.value = value;
+			this.id = id;
+		}
+		
+		int size() {
+			return name.length() + value.length() + 32;
+		}
+	}
+	
+	/**
+	 * a dynamic table, entries are numbered in the order they were added so that lookups survive evictions
+	 */
+	private static final class Table {
+		private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+		/**
+		 * ids of the newest entry by name and by name and value, only kept for encoding
+		 */
+		private final Map<String, Long> names = new HashMap<>(), fields = new HashMap<>();
+		private int size, maxSize;
+		private long added;
+		
+		Table(int maxSize) {
+			this.maxSize = maxSize;
+		}
+		
+		/**
+		 * @param index 1 for the newest entry
+		 */
+		Entry get(int index) {
+			if(index < 1 || index > entries.size())
+				return null;
+			var iterator = entries.iterator();
+			for(int i = 1; i < index; i++)
+				iterator.next();
+			return iterator.next();
+		}
+		int indexOf(String name, String value) {
+			return index(fields.get(name + '\0' + value));
+		}
+		int indexOfName(String name) {
+			return index(names.get(name));
+		}
+		private int index(Long id) {
+			return id == null ? 0 : (int) (added - id);
+		}
+		
+		void add(String name, String value) {
+			var entry = new Entry(name, value, added++);
+			size += entry.size();
+			entries.addFirst(entry);
+			names.put(name, entry.id);
+			fields.put(name + '\0' + value, entry.id);
+			evict();
+		}
+		void resize(int maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+		/**
+		 * removes the oldest entries until the table fits, an entry larger than the table empties it
+		 */
+		private void evict() {
+			while(size > maxSize) {
+				var entry = entries.removeLast();
+				size -= entry.size();
+				names.remove(entry.name, entry.id);
+				fields.remove(entry.name + '\0' + entry.value, entry.id);
+			}
+		}
+	}
+}
@@ -0,0 +1,884 @@
+package httpserver.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * an HTTP/2 connection over cleartext (RFC 9113), reached by upgrading an HTTP/1.1 request (h2c) or by a client that
+ * starts with the HTTP/2 preface. frames are read by the engine's thread, every stream is answered on a handler thread
+ * of the server's dispatcher like an HTTP/1.1 request, see {@link Http2Stream}. the handlers write their frames
+ * themselves, one at a time, within the flow-control windows of the client
+ */
+final class Http2Connection extends Protocol {
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * the length of the part of the preface that an HTTP/1.1 parser takes for a request head
+	 */
+	private static final int PREFACE_HEAD = 18;
+	/**
+	 * the largest frame the server accepts, the default every client supports
+	 */
+	static final int FRAME_SIZE = 16384;
+	/**
+	 * the largest DATA frame sent even if the client accepts larger ones, so that streams take turns
+	 */
+	private static final int MAX_SEND_FRAME = 64 * 1024;
+	/**
+	 * header blocks beyond this size are refused before they are decoded
+	 */
+	private static final int MAX_HEADER_BLOCK = 256 * 1024;
+	private static final int DEFAULT_WINDOW = 65535, STREAM_WINDOW = 256 * 1024, CONNECTION_WINDOW = 1024 * 1024;
+	private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
+	
+	private static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5, PING = 6,
+			GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9;
+	private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+	private static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3,
+			STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9,
+			ENHANCE_YOUR_CALM = 11;
+	private static final int HEADER_TABLE_SIZE = 1, ENABLE_PUSH = 2, MAX_CONCURRENT_STREAMS = 3, INITIAL_WINDOW_SIZE = 4,
+			MAX_FRAME_SIZE = 5, MAX_HEADER_LIST_SIZE = 6;
+	
+	private final Server server;
+	private final Connection conn;
+	private final int maxStreams, maxHeaderListSize;
+	private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+	/**
+	 * the request that upgraded the connection as the head of stream 1 and the settings it came with,
+	 * null with prior knowledge
+	 */
+	private byte[] upgrade;
+	private ByteBuffer upgradeSettings;
+	
+	// only accessed by the thread reading from the connection
+	private final Hpack.Decoder decoder = new Hpack.Decoder();
+	private int prefaceOffset;
+	private boolean settingsReceived, goAwayReceived;
+	/**
+	 * a frame that arrived in pieces, in write mode
+	 */
+	private ByteBuffer frame;
+	/**
+	 * the header block of a HEADERS frame followed by CONTINUATION frames, null while there is none
+	 */
+	private ByteArrayOutputStream block;
+	private int blockStream;
+	private boolean blockEndsStream;
+	
+	private volatile int lastStreamId;
+	private volatile boolean goingAway, closed;
+	private volatile long lastActive = System.currentTimeMillis();
+	
+	private final Object writeLock = new Object();
+	// guarded by writeLock
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	
+	private final Object flowLock = new Object();
+	// guarded by flowLock
+	private long sendWindow = DEFAULT_WINDOW;
+	private int initialWindow = DEFAULT_WINDOW, receiveWindow = CONNECTION_WINDOW, unacknowledged;
+	private volatile int maxFrameSize = FRAME_SIZE;
+	
+	/**
+	 * @param upgrade the request that upgraded the connection as the head of stream 1, or null with prior knowledge
+	 * @param settings the payload of the client's HTTP2-Settings header, or null
+	 */
+	Http2Connection(Server server, Connection conn, byte[] upgrade, ByteBuffer settings) {
+		this.server = server;
+		this.conn = conn;
+		this.upgrade = upgrade;
+		upgradeSettings = settings;
+		maxStreams = server.getMaxConcurrentStreams();
+		maxHeaderListSize = server.getMaxHeaderSize();
+		prefaceOffset = upgrade == null ? PREFACE_HEAD : 0;
+	}
+	
+	/**
+	 * @return the settings of an HTTP2-Settings header or null if the header isn't valid
+	 */
+	static ByteBuffer decodeSettings(String header) {
+		try {
+			var settings = Base64.getUrlDecoder().decode(header.trim());
+			return settings.length % 6 == 0 ? ByteBuffer.wrap(settings) : null;
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+	}
+	/**
+	 * @return the head of an upgrade request as stream 1 receives it, without the headers of the upgrade
+	 */
+	static byte[] upgradeHead(RequestHead head) {
+		var line = head.requestLine();
+		var text = new StringBuilder(256).append(line, 0, line.lastIndexOf(' ')).append(" HTTP/2\r\n");
+		for(int i = 0; i < head.headerCount(); i++) {
+			var name = head.headerName(i).toLowerCase(Locale.ROOT);
+			if(!Http2Stream.CONNECTION_HEADERS.contains(name) && !name.equals("http2-settings"))
+				text.append(name).append(": ").append(head.headerValue(i)).append("\r\n");
+		}
+		return text.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	InetAddress getAddress() {
+		return conn.getAddress();
+	}
+	/**
+	 * @return how long a stream waits for the client in milliseconds, 0 for no limit
+	 */
+	int getTimeout() {
+		return server.getKeepAliveTimeout();
+	}
+	
+	/**
+	 * sends the server's settings and answers the upgrade request on stream 1
+	 */
+	@Override
+	boolean open() throws IOException {
+		server.protocolOpened(this);
+		var settings = ByteBuffer.allocate(18)
+				.putShort((short) MAX_CONCURRENT_STREAMS).putInt(maxStreams)
+				.putShort((short) INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW)
+				.putShort((short) MAX_HEADER_LIST_SIZE).putInt(maxHeaderListSize).flip();
+		var increment = ByteBuffer.allocate(4).putInt(CONNECTION_WINDOW - DEFAULT_WINDOW).flip();
+		synchronized(writeLock) {
+			conn.send(frameHeader(settings.remaining(), SETTINGS, 0, 0), settings, frameHeader(4, WINDOW_UPDATE, 0, 0), increment);
+		}
+		if(upgrade == null)
+			return true;
+		try {
+			synchronized(writeLock) {
+				applySettings(upgradeSettings);
+			}
+		} catch(ConnectionException e) {
+			goAway(e.code, e.getMessage());
+			return false;
+		}
+		lastStreamId = 1;
+		var stream = newStream(1);
+		stream.received(NO_DATA, true); // the request had no body
+		request(stream, upgrade);
+		upgrade = null;
+		upgradeSettings = null;
+		return true;
+	}
+	
+	@Override
+	boolean receive(ByteBuffer data) throws IOException {
+		lastActive = System.currentTimeMillis();
+		try {
+			if(prefaceOffset < PREFACE.length && !readPreface(data))
+				return true;
+			while(data.hasRemaining()) {
+				if(frame == null && data.remaining() >= 9) {
+					int length = checkLength(data, data.position());
+					if(data.remaining() >= 9 + length) {
+						// the whole frame has arrived, it is handled where it is
+						int start = data.position();
+						data.position(start + 9 + length);
+						handle(data, start, data.slice(start + 9, length));
+						continue;
+					}
+				}
+				if(frame == null)
+					frame = ByteBuffer.allocate(9 + FRAME_SIZE);
+				int needed = frame.position() < 9 ? 9 - frame.position() : 9 + (frame.getInt(0) >>> 8) - frame.position();
+				int n = Math.min(needed, data.remaining());
+				frame.put(frame.position(), data, data.position(), n);
+				frame.position(frame.position() + n);
+				data.position(data.position() + n);
+				if(frame.position() < 9)
+					continue;
+				int length = checkLength(frame, 0);
+				if(frame.position() == 9 + length) {
+					var complete = frame;
+					frame = null;
+					handle(complete, 0, complete.slice(9, length));
+				}
+			}
+		} catch(ConnectionException e) {
+			goAway(e.code, e.getMessage());
+			return false;
+		}
+		return !(goingAway || goAwayReceived) || !streams.isEmpty();
+	}
+	private boolean readPreface(ByteBuffer data) throws ConnectionException {
+		while(prefaceOffset < PREFACE.length && data.hasRemaining())
+			if(data.get() != PREFACE[prefaceOffset++])
+				throw new ConnectionException(PROTOCOL_ERROR, "Invalid connection preface");
+		return prefaceOffset == PREFACE.length;
+	}
+	/**
+	 * @return the length of the frame whose header starts at the index
+	 */
+	private static int checkLength(ByteBuffer header, int index) throws ConnectionException {
+		int length = header.getInt(index) >>> 8;
+		if(length > FRAME_SIZE)
+			throw new ConnectionException(FRAME_SIZE_ERROR, "Frame exceeds " + FRAME_SIZE + " bytes");
+		return length;
+	}
+	
+	/**
+	 * @param payload only valid during the call
+	 */
+	private void handle(ByteBuffer header, int index, ByteBuffer payload) throws ConnectionException, IOException {
+		int type = header.get(index + 3) & 0xff, flags = header.get(index + 4) & 0xff;
+		int id = header.getInt(index + 5) & 0x7fffffff;
+		if(block != null && type != CONTINUATION)
+			throw new ConnectionException(PROTOCOL_ERROR, "Header block interrupted");
+		if(!settingsReceived && type != SETTINGS)
+			throw new ConnectionException(PROTOCOL_ERROR, "Expected SETTINGS");
+		switch(type) {
+		case DATA:
+			data(id, flags, payload);
+			break;
+		case HEADERS:
+			headers(id, flags, payload);
+			break;
+		case CONTINUATION:
+			if(block == null || id != blockStream)
+				throw new ConnectionException(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+			appendBlock(payload);
+			if((flags & END_HEADERS) != 0) {
+				var complete = ByteBuffer.wrap(block.toByteArray());
+				block = null;
+				headerBlock(id, complete, blockEndsStream);
+			}
+			break;
+		case PRIORITY:
+			if(id == 0)
+				throw new ConnectionException(PROTOCOL_ERROR, "PRIORITY on stream 0");
+			if(payload.remaining() != 5)
+				sendReset(id, FRAME_SIZE_ERROR);
+			break; // streams are answered in the order they arrive
+		case RST_STREAM:
+			if(id == 0 || id > lastStreamId)
+				throw new ConnectionException(PROTOCOL_ERROR, "RST_STREAM on an idle stream");
+			if(payload.remaining() != 4)
+				throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+			var stream = streams.get(id);
+			if(stream != null) {
+				stream.reset(payload.getInt());
+				wakeSenders();
+			}
+			break;
+		case SETTINGS:
+			settings(id, flags, payload);
+			break;
+		case PUSH_PROMISE:
+			throw new ConnectionException(PROTOCOL_ERROR, "Clients must not push");
+		case PING:
+			if(id != 0)
+				throw new ConnectionException(PROTOCOL_ERROR, "PING on a stream");
+			if(payload.remaining() != 8)
+				throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid PING");
+			if((flags & ACK) == 0)
+				sendFrame(PING, ACK, 0, ByteBuffer.allocate(8).put(payload).flip());
+			break;
+		case GOAWAY:
+			if(id != 0)
+				throw new ConnectionException(PROTOCOL_ERROR, "GOAWAY on a stream");
+			if(payload.remaining() < 8)
+				throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid GOAWAY");
+			goAwayReceived = true; // the streams in flight are still answered
+			break;
+		case WINDOW_UPDATE:
+			windowUpdate(id, payload);
+			break;
+		default:
+			break; // unknown frame types are ignored
+		}
+	}
+	
+	private void data(int id, int flags, ByteBuffer payload) throws ConnectionException, IOException {
+		if(id == 0 || id > lastStreamId)
+			throw new ConnectionException(PROTOCOL_ERROR, "DATA on an idle stream");
+		int length = payload.remaining();
+		int padding = padding(flags, payload);
+		payload.limit(payload.limit() - padding);
+		var stream = streams.get(id);
+		synchronized(flowLock) {
+			if(length > receiveWindow)
+				throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window exceeded");
+			receiveWindow -= length;
+		}
+		if(stream == null || stream.isReset() || stream.isEndReceived()) {
+			// e.g. the response was complete while the client was still sending
+			consumed(null, length);
+			if(stream != null && !stream.isReset())
+				reset(stream, STREAM_CLOSED);
+			return;
+		}
+		boolean exceeded;
+		synchronized(flowLock) {
+			exceeded = length > stream.receiveWindow;
+			if(!exceeded)
+				stream.receiveWindow -= length;
+		}
+		if(exceeded) {
+			consumed(null, length);
+			reset(stream, FLOW_CONTROL_ERROR);
+			return;
+		}
+		int received = payload.remaining();
+		stream.received(payload, (flags & END_STREAM) != 0);
+		consumed(stream, length - received); // the padding
+	}
+	
+	private void headers(int id, int flags, ByteBuffer payload) throws ConnectionException, IOException {
+		if(id == 0 || id % 2 == 0)
+			throw new ConnectionException(PROTOCOL_ERROR, "Invalid stream identifier " + id);
+		int padding = padding(flags, payload);
+		if((flags & PRIORITY_FLAG) != 0) {
+			if(payload.remaining() - padding < 5)
+				throw new ConnectionException(PROTOCOL_ERROR, "Invalid HEADERS");
+			payload.position(payload.position() + 5);
+		}
+		if(padding > payload.remaining())
+			throw new ConnectionException(PROTOCOL_ERROR, "Padding exceeds the frame");
+		payload.limit(payload.limit() - padding);
+		var endsStream = (flags & END_STREAM) != 0;
+		if((flags & END_HEADERS) != 0) {
+			headerBlock(id, payload, endsStream);
+			return;
+		}
+		block = new ByteArrayOutputStream(2 * FRAME_SIZE);
+		blockStream = id;
+		blockEndsStream = endsStream;
+		appendBlock(payload);
+	}
+	private void appendBlock(ByteBuffer payload) throws ConnectionException {
+		if(block.size() + payload.remaining() > MAX_HEADER_BLOCK)
+			throw new ConnectionException(ENHANCE_YOUR_CALM, "Header block exceeds " + MAX_HEADER_BLOCK + " bytes");
+		while(payload.hasRemaining())
+			block.write(payload.get());
+	}
+	/**
+	 * @return the length of the padding, the byte announcing it has been consumed
+	 */
+	private static int padding(int flags, ByteBuffer payload) throws ConnectionException {
+		if((flags & PADDED) == 0)
+			return 0;
+		if(!payload.hasRemaining())
+			throw new ConnectionException(PROTOCOL_ERROR, "Invalid padding");
+		int padding = payload.get() & 0xff;
+		if(padding > payload.remaining())
+			throw new ConnectionException(PROTOCOL_ERROR, "Padding exceeds the frame");
+		return padding;
+	}
+	
+	/**
+	 * decodes a complete header block, which starts a stream or carries the trailers of a request
+	 */
+	private void headerBlock(int id, ByteBuffer block, boolean endsStream) throws ConnectionException, IOException {
+		var fields = new RequestFields(maxHeaderListSize);
+		try {
+			// also decoded if the stream is refused, the table must stay in sync with the client's
+			decoder.decode(block, fields);
+		} catch(Hpack.CompressionException e) {
+			throw new ConnectionException(COMPRESSION_ERROR, e.getMessage());
+		}
+		if(id <= lastStreamId) {
+			var stream = streams.get(id);
+			if(stream == null || stream.isReset())
+				return;
+			if(stream.isEndReceived())
+				reset(stream, STREAM_CLOSED);
+			else if(!endsStream)
+				reset(stream, PROTOCOL_ERROR);
+			else
+				stream.received(NO_DATA, true); // trailers, which aren't passed on
+			return;
+		}
+		lastStreamId = id;
+		if(goingAway)
+			return; // the client learned from GOAWAY that it wasn't processed
+		if(streams.size() >= maxStreams) {
+			sendReset(id, REFUSED_STREAM);
+			return;
+		}
+		var head = fields.head();
+		if(head == null) {
+			sendReset(id, PROTOCOL_ERROR);
+			return;
+		}
+		var stream = newStream(id);
+		if(endsStream)
+			stream.received(NO_DATA, true);
+		if(fields.isTooLarge()) {
+			reject(stream, HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+			return;
+		}
+		request(stream, head);
+	}
+	private Http2Stream newStream(int id) {
+		Http2Stream stream;
+		synchronized(flowLock) {
+			stream = new Http2Stream(this, id, initialWindow, STREAM_WINDOW, server);
+		}
+		streams.put(id, stream);
+		return stream;
+	}
+	
+	/**
+	 * parses the request head like one received over HTTP/1.1, so that the server's limits apply, and dispatches it
+	 */
+	private void request(Http2Stream stream, byte[] head) throws IOException {
+		RequestHead parsed;
+		try {
+			if(!stream.parser.feed(ByteBuffer.wrap(head)))
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Incomplete request head");
+			parsed = stream.parser.head();
+		} catch(RequestException e) {
+			server.logRequestError(stream, e);
+			reject(stream, e.getStatus());
+			return;
+		}
+		long queued = System.nanoTime();
+		var accepted = server.getDispatcher().dispatch(() -> {
+			stream.queueDelay = System.nanoTime() - queued;
+			var outcome = Server.Outcome.CLOSE;
+			try {
+				outcome = server.respond(stream, parsed, true, keepAlive -> finish(stream));
+			} catch(IOException e) {
+				if(!stream.isReset())
+					server.logIOException(stream, e);
+			} catch(RuntimeException e) {
+				server.logHandlerFailure(stream, e); // e.g. an endpoint that failed after its response had begun
+			} finally {
+				// an incomplete response is reset with INTERNAL_ERROR, the stream would otherwise count against the limit forever
+				if(outcome != Server.Outcome.PENDING)
+					finish(stream);
+			}
+		});
+		if(!accepted) {
+			// the client may retry a refused stream
+			server.logRejected(stream);
+			server.getMetrics().requestShed();
+			reset(stream, REFUSED_STREAM);
+			finish(stream);
+		}
+	}
+	/**
+	 * answers a request that can't be handled with an empty response
+	 */
+	private void reject(Http2Stream stream, HttpStatus status) throws IOException {
+		var session = new Session(stream, new HashMap<>(), new HashMap<>(), "HTTP/2", "");
+		session.sendStatus(status);
+		session.complete();
+		server.getMetrics().response(status);
+		finish(stream);
+	}
+	
+	/**
+	 * called once the response of a stream has been sent or abandoned. a stream whose response is incomplete is reset,
+	 * so is one whose request the client is still sending, as it is no longer read
+	 */
+	void finish(Http2Stream stream) {
+		if(!streams.remove(stream.id, stream))
+			return;
+		lastActive = System.currentTimeMillis();
+		try {
+			if(!stream.isReset() && !stream.isComplete())
+				reset(stream, INTERNAL_ERROR);
+			else if(!stream.isReset() && !stream.isEndReceived())
+				reset(stream, NO_ERROR);
+			consumed(null, stream.discardReceived());
+		} catch(IOException e) {
+			// the connection is lost
+		} finally {
+			stream.close();
+		}
+	}
+	/**
+	 * resets a stream whose response is abandoned, e.g. because the client stopped reading it
+	 */
+	void cancel(Http2Stream stream) {
+		if(stream.isReset() || streams.get(stream.id) != stream)
+			return;
+		try {
+			reset(stream, CANCEL);
+		} catch(IOException e) { }
+	}
+	private void reset(Http2Stream stream, int code) throws IOException {
+		stream.reset(code);
+		wakeSenders();
+		sendReset(stream.id, code);
+	}
+	private void sendReset(int id, int code) throws IOException {
+		sendFrame(RST_STREAM, 0, id, ByteBuffer.allocate(4).putInt(code).flip());
+	}
+	
+	private void settings(int id, int flags, ByteBuffer payload) throws ConnectionException, IOException {
+		if(id != 0)
+			throw new ConnectionException(PROTOCOL_ERROR, "SETTINGS on a stream");
+		if((flags & ACK) != 0) {
+			if(payload.hasRemaining())
+				throw new ConnectionException(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+			return;
+		}
+		if(payload.remaining() % 6 != 0)
+			throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+		synchronized(writeLock) {
+			// applied before anything else is encoded or sent
+			applySettings(payload);
+			conn.send(frameHeader(0, SETTINGS, ACK, 0));
+		}
+		settingsReceived = true;
+	}
+	/**
+	 * the caller holds the write lock
+	 */
+	private void applySettings(ByteBuffer settings) throws ConnectionException {
+		while(settings.hasRemaining()) {
+			int key = settings.getShort() & 0xffff;
+			long value = settings.getInt() & 0xffffffffL;
+			switch(key) {
+			case HEADER_TABLE_SIZE:
+				encoder.setMaxTableSize((int) Math.min(value, Hpack.TABLE_SIZE));
+				break;
+			case ENABLE_PUSH:
+				if(value > 1)
+					throw new ConnectionException(PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+				break;
+			case INITIAL_WINDOW_SIZE:
+				if(value > Integer.MAX_VALUE)
+					throw new ConnectionException(FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE");
+				synchronized(flowLock) {
+					// applies to the windows of open streams as well
+					int delta = (int) value - initialWindow;
+					initialWindow = (int) value;
+					for(var stream : streams.values()) {
+						stream.sendWindow += delta;
+						if(stream.sendWindow > Integer.MAX_VALUE)
+							throw new ConnectionException(FLOW_CONTROL_ERROR, "Stream window overflow");
+					}
+					flowLock.notifyAll();
+				}
+				break;
+			case MAX_FRAME_SIZE:
+				if(value < FRAME_SIZE || value > 0xffffff)
+					throw new ConnectionException(PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE");
+				maxFrameSize = (int) Math.min(value, MAX_SEND_FRAME);
+				break;
+			default:
+				break; // e.g. the client's own MAX_CONCURRENT_STREAMS, the server doesn't push
+			}
+		}
+	}
+	
+	private void windowUpdate(int id, ByteBuffer payload) throws ConnectionException, IOException {
+		if(payload.remaining() != 4)
+			throw new ConnectionException(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+		int increment = payload.getInt() & 0x7fffffff;
+		if(id == 0) {
+			if(increment == 0)
+				throw new ConnectionException(PROTOCOL_ERROR, "Window increment of 0");
+			synchronized(flowLock) {
+				sendWindow += increment;
+				if(sendWindow > Integer.MAX_VALUE)
+					throw new ConnectionException(FLOW_CONTROL_ERROR, "Connection window overflow");
+				flowLock.notifyAll();
+			}
+			return;
+		}
+		if(id > lastStreamId)
+			throw new ConnectionException(PROTOCOL_ERROR, "WINDOW_UPDATE on an idle stream");
+		var stream = streams.get(id);
+		if(stream == null)
+			return;
+		if(increment == 0) {
+			reset(stream, PROTOCOL_ERROR);
+			return;
+		}
+		boolean overflow;
+		synchronized(flowLock) {
+			stream.sendWindow += increment;
+			overflow = stream.sendWindow > Integer.MAX_VALUE;
+			flowLock.notifyAll();
+		}
+		if(overflow)
+			reset(stream, FLOW_CONTROL_ERROR);
+	}
+	
+	/**
+	 * credits bytes that have been read to the receive windows. WINDOW_UPDATE is only sent once half a window has been
+	 * used up, so that a client sending a large body gets few of them
+	 * @param stream the stream that read them or null if only the connection's window is credited
+	 */
+	void consumed(Http2Stream stream, int n) throws IOException {
+		if(n <= 0)
+			return;
+		int connectionIncrement = 0, streamIncrement = 0;
+		synchronized(flowLock) {
+			unacknowledged += n;
+			if(unacknowledged >= CONNECTION_WINDOW / 2) {
+				connectionIncrement = unacknowledged;
+				receiveWindow += unacknowledged;
+				unacknowledged = 0;
+			}
+			if(stream != null) {
+				stream.unacknowledged += n;
+				if(stream.unacknowledged >= STREAM_WINDOW / 2 && !stream.isEndReceived()) {
+					streamIncrement = stream.unacknowledged;
+					stream.receiveWindow += stream.unacknowledged;
+					stream.unacknowledged = 0;
+				}
+			}
+		}
+		if(connectionIncrement > 0)
+			sendFrame(WINDOW_UPDATE, 0, 0, ByteBuffer.allocate(4).putInt(connectionIncrement).flip());
+		if(streamIncrement > 0)
+			sendFrame(WINDOW_UPDATE, 0, stream.id, ByteBuffer.allocate(4).putInt(streamIncrement).flip());
+	}
+	
+	/**
+	 * sends a response head, followed by as much of the data as the windows allow right away
+	 * and then the rest of it as {@link #sendData} does
+	 * @param fields names at even and values at odd positions
+	 * @param data the beginning of the body or null
+	 * @param endsStream whether the head, or the data, ends the stream
+	 */
+	void sendHeaders(Http2Stream stream, String[] fields, int count, ByteBuffer data, boolean endsStream) throws IOException {
+		int n = data == null ? 0 : tryAcquire(stream, data.remaining());
+		synchronized(writeLock) {
+			if(stream.isReset())
+				throw new IOException("Stream has been reset");
+			var encoded = encoder.encode(fields, count);
+			var frames = new ArrayList<ByteBuffer>(4);
+			int max = maxFrameSize;
+			for(int offset = 0; offset < encoded.length; offset += max) {
+				int length = Math.min(max, encoded.length - offset);
+				int flags = (offset + length == encoded.length ? END_HEADERS : 0) | (offset == 0 && data == null && endsStream ? END_STREAM : 0);
+				frames.add(frameHeader(length, offset == 0 ? HEADERS : CONTINUATION, flags, stream.id));
+				frames.add(ByteBuffer.wrap(encoded, offset, length));
+			}
+			if(n > 0) {
+				frames.add(frameHeader(n, DATA, n == data.remaining() && endsStream ? END_STREAM : 0, stream.id));
+				frames.add(data.slice(data.position(), n));
+				data.position(data.position() + n);
+			}
+			conn.send(frames.toArray(new ByteBuffer[0]));
+		}
+		if(data != null && data.hasRemaining())
+			sendData(stream, data, endsStream);
+	}
+	/**
+	 * sends body data in frames as the windows of the client allow, waiting for it to make room
+	 * and for what has been queued for it to be written
+	 */
+	void sendData(Http2Stream stream, ByteBuffer data, boolean endsStream) throws IOException {
+		do {
+			int n = data.hasRemaining() ? acquire(stream, data.remaining()) : 0;
+			conn.awaitDrained();
+			synchronized(writeLock) {
+				if(stream.isReset())
+					throw new IOException("Stream has been reset");
+				int flags = n == data.remaining() && endsStream ? END_STREAM : 0;
+				conn.send(frameHeader(n, DATA, flags, stream.id), data.slice(data.position(), n));
+				data.position(data.position() + n);
+			}
+		} while(data.hasRemaining());
+	}
+	/**
+	 * takes what the windows allow right away
+	 * @return the number of bytes that may be sent, possibly 0
+	 */
+	private int tryAcquire(Http2Stream stream, int n) {
+		synchronized(flowLock) {
+			n = (int) Math.min(Math.min(n, maxFrameSize), Math.min(sendWindow, stream.sendWindow));
+			if(n <= 0)
+				return 0;
+			sendWindow -= n;
+			stream.sendWindow -= n;
+			return n;
+		}
+	}
+	/**
+	 * waits until both windows allow sending
+	 * @return the number of bytes that may be sent, at least 1
+	 */
+	private int acquire(Http2Stream stream, int n) throws IOException {
+		int timeout = getTimeout();
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized(flowLock) {
+			while(sendWindow <= 0 || stream.sendWindow <= 0) {
+				if(stream.isReset() || closed)
+					throw new IOException("Stream has been reset");
+				try {
+					if(timeout == 0)
+						flowLock.wait();
+					else {
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0)
+							throw new SocketTimeoutException("Timed out waiting for the client's flow-control window");
+						flowLock.wait(remaining);
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the client", e);
+				}
+			}
+		}
+		return tryAcquire(stream, n);
+	}
+	private void wakeSenders() {
+		synchronized(flowLock) {
+			flowLock.notifyAll();
+		}
+	}
+	
+	private void sendFrame(int type, int flags, int id, ByteBuffer payload) throws IOException {
+		synchronized(writeLock) {
+			conn.send(frameHeader(payload.remaining(), type, flags, id), payload);
+		}
+	}
+	private static ByteBuffer frameHeader(int length, int type, int flags, int id) {
+		return ByteBuffer.allocate(9).putInt(length << 8 | type).put((byte) flags).putInt(id).flip();
+	}
+	private void goAway(int code, String message) throws IOException {
+		goingAway = true;
+		var debug = message == null ? new byte[0] : message.getBytes(StandardCharsets.UTF_8);
+		sendFrame(GOAWAY, 0, 0, ByteBuffer.allocate(8 + debug.length).putInt(lastStreamId).putInt(code).put(debug).flip());
+	}
+	
+	/**
+	 * closes an idle connection once the keep-alive timeout expired, and one that is going away once its streams are done
+	 */
+	@Override
+	boolean keepAlive(long now) throws IOException {
+		if(closed)
+			return false;
+		if(!streams.isEmpty())
+			return true;
+		if(goingAway || goAwayReceived)
+			return false;
+		int timeout = getTimeout();
+		if(timeout != 0 && now - lastActive > timeout) {
+			goAway(NO_ERROR, null);
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * sends GOAWAY, the streams in flight are still answered but no new ones accepted
+	 */
+	@Override
+	void shutdown() throws IOException {
+		if(!goingAway)
+			goAway(NO_ERROR, "Server is shutting down");
+	}
+	@Override
+	void disconnected() {
+		closed = true;
+		for(var stream : streams.values())
+			stream.reset(CANCEL);
+		wakeSenders();
+		server.protocolClosed(this);
+	}
+	
+	/**
+	 * a connection error, the connection is closed with GOAWAY
+	 */
+	private static final class ConnectionException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int code;
+		
+		ConnectionException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+	
+	/**
+	 * checks the fields of a request (RFC 9113, section 8.3) and turns them into an HTTP/1.1-style head
+	 */
+	private static final class RequestFields implements Hpack.FieldSink {
+		private final int max;
+		private final StringBuilder headers = new StringBuilder(256);
+		private String method, scheme, authority, path, cookies;
+		private int size;
+		private boolean malformed, regular, host;
+		
+		RequestFields(int max) {
+			this.max = max;
+		}
+		
+		@Override
+		public void field(String name, String value) {
+			size += name.length() + value.length() + 32;
+			if(malformed || size > max)
+				return;
+			for(int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if(c == '\r' || c == '\n' || c == 0)
+					malformed = true;
+			}
+			if(name.startsWith(":")) {
+				malformed |= regular || value.isEmpty() || value.indexOf(' ') >= 0;
+				switch(name) {
+				case ":method":
+					malformed |= method != null;
+					method = value;
+					break;
+				case ":scheme":
+					malformed |= scheme != null;
+					scheme = value;
+					break;
+				case ":authority":
+					malformed |= authority != null;
+					authority = value;
+					break;
+				case ":path":
+					malformed |= path != null;
+					path = value;
+					break;
+				default:
+					malformed = true;
+				}
+				return;
+			}
+			regular = true;
+			for(int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if(c >= 'A' && c <= 'Z' || c <= ' ' || c == ':' || c >= 0x7f)
+					malformed = true;
+			}
+			if(name.isEmpty() || Http2Stream.CONNECTION_HEADERS.contains(name) || name.equals("te") && !value.equals("trailers"))
+				malformed = true;
+			else if(name.equals("cookie"))
+				cookies = cookies == null ? value : cookies + "; " + value;
+			else {
+				host |= name.equals("host");
+				headers.append(name).append(": ").append(value).append("\r\n");
+			}
+		}
+		
+		boolean isTooLarge() {
+			return size > max;
+		}
+		/**
+		 * @return the head or null if the request is malformed
+		 */
+		byte[] head() {
+			if(malformed || method == null || scheme == null || path == null)
+				return null;
+			var head = new StringBuilder(headers.length() + path.length() + 64);
+			head.append(method).append(' ').append(path).append(" HTTP/2\r\n");
+			if(authority != null && !host)
+				head.append("host: ").append(authority).append("\r\n");
+			head.append(headers);
+			if(cookies != null)
+				head.append("cookie: ").append(cookies).append("\r\n");
+			return head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * a stream of an {@link Http2Connection} seen as a connection that carries a single request, so that it is answered
+ * by {@link Server#respond} like any other. the request body is read from the DATA frames the connection received,
+ * the response head the {@link Session} writes is translated into a HEADERS frame and its body into DATA frames
+ * within the flow-control windows of the client
+ */
+final class Http2Stream extends Connection {
+	/**
+	 * headers that only apply to an HTTP/1.x connection (RFC 9113, section 8.2.2)
+	 */
+	static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+	private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
+	
+	final int id;
+	private final Http2Connection connection;
+	
+	// guarded by this
+	/**
+	 * DATA received and not read yet
+	 */
+	private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+	private int receivedBytes;
+	private boolean endReceived;
+	/**
+	 * the error code the stream has been reset with by either side, -1 while it is open
+	 */
+	private volatile int resetCode = -1;
+	
+	// guarded by the connection's flow lock
+	long sendWindow;
+	int receiveWindow, unacknowledged;
+	
+	// only accessed by the thread writing the response
+	private byte[] head = new byte[256];
+	private int headLength;
+	private boolean inBody, complete;
+	/**
+	 * the fields of the response head and a small first piece of its body, held back so that a short response
+	 * is sent in one piece with the end of the stream
+	 */
+	private String[] heldFields;
+	private int heldCount;
+	private ByteBuffer heldBody;
+	
+	private volatile AsyncResponse awaited;
+	
+	private final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Http2Stream.this.write(ByteBuffer.wrap(b, off, len));
+		}
+	};
+	
+	Http2Stream(Http2Connection connection, int id, long sendWindow, int receiveWindow, Server server) {
+		super(connection.getAddress(), server.getBufferPool(), server.newParser());
+		this.connection = connection;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		this.receiveWindow = receiveWindow;
+	}
+	
+	@Override
+	boolean isFramed() {
+		return true;
+	}
+	
+	/**
+	 * called by the connection with the payload of a DATA frame
+	 */
+	synchronized void received(ByteBuffer data, boolean end) {
+		if(data.hasRemaining()) {
+			received.add(ByteBuffer.allocate(data.remaining()).put(data).flip());
+			receivedBytes += data.remaining();
+		}
+		endReceived |= end;
+		notifyAll();
+	}
+	synchronized boolean isEndReceived() {
+		return endReceived;
+	}
+	/**
+	 * drops what hasn't been read
+	 * @return the number of bytes dropped, which the connection credits to its window
+	 */
+	synchronized int discardReceived() {
+		int n = receivedBytes;
+		received.clear();
+		receivedBytes = 0;
+		return n;
+	}
+	
+	@Override
+	int read(ByteBuffer dst) throws IOException {
+		int n;
+		synchronized(this) {
+			int timeout = connection.getTimeout();
+			long deadline = System.currentTimeMillis() + timeout;
+			ByteBuffer next;
+			while((next = received.peek()) == null) {
+				if(resetCode >= 0)
+					throw new IOException("Stream has been reset");
+				if(endReceived)
+					return -1;
+				try {
+					if(timeout == 0)
+						wait();
+					else {
+						long remaining = deadline - System.currentTimeMillis();
+						if(remaining <= 0)
+							throw new SocketTimeoutException("Timed out waiting for the client");
+						wait(remaining);
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the client", e);
+				}
+			}
+			n = Math.min(dst.remaining(), next.remaining());
+			dst.put(next.slice(next.position(), n));
+			next.position(next.position() + n);
+			if(!next.hasRemaining())
+				received.poll();
+			receivedBytes -= n;
+		}
+		connection.consumed(this, n);
+		return n;
+	}
+	
+	/**
+	 * @return a body over the DATA frames, bounded by the maximum body size
+	 */
+	RequestBody openBody(long contentLength, long maxBodySize) throws RequestException {
+		if(contentLength > maxBodySize)
+			throw new RequestException(HttpStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxBodySize + " bytes");
+		synchronized(this) {
+			if(endReceived && received.isEmpty() && !buffer.hasRemaining())
+				return RequestBody.EMPTY;
+		}
+		if(contentLength >= 0)
+			return new FixedLengthBody(getInputStream(), contentLength);
+		return new StreamBody(maxBodySize);
+	}
+	
+	/**
+	 * translates what the session writes, the head into HEADERS and the body into DATA frames
+	 */
+	@Override
+	void write(ByteBuffer... srcs) throws IOException {
+		for(var src : srcs) {
+			if(!inBody)
+				readHead(src);
+			if(inBody && src.hasRemaining())
+				writeBody(src);
+		}
+	}
+	private void readHead(ByteBuffer src) throws IOException {
+		while(src.hasRemaining()) {
+			if(headLength == head.length)
+				head = Arrays.copyOf(head, 2 * head.length);
+			head[headLength++] = src.get();
+			if(headLength >= 4 && head[headLength - 1] == '\n' && head[headLength - 2] == '\r'
+					&& head[headLength - 3] == '\n' && head[headLength - 4] == '\r') {
+				endHead();
+				if(inBody)
+					return;
+			}
+		}
+	}
+	/**
+	 * turns the status line and header lines into fields, dropping those HTTP/2 doesn't have
+	 */
+	private void endHead() throws IOException {
+		var text = new String(head, 0, headLength, StandardCharsets.ISO_8859_1);
+		headLength = 0;
+		int lineEnd = text.indexOf("\r\n");
+		int space = text.indexOf(' ');
+		var status = text.substring(space + 1, space + 4);
+		var fields = new String[16];
+		fields[0] = ":status";
+		fields[1] = status;
+		int count = 2;
+		for(int start = lineEnd + 2; (lineEnd = text.indexOf("\r\n", start)) > start; start = lineEnd + 2) {
+			int colon = text.indexOf(':', start);
+			if(colon < 0 || colon > lineEnd)
+				continue;
+			var name = text.substring(start, colon).trim().toLowerCase(Locale.ROOT);
+			if(CONNECTION_HEADERS.contains(name))
+				continue;
+			if(count == fields.length)
+				fields = Arrays.copyOf(fields, 2 * count);
+			fields[count++] = name;
+			fields[count++] = text.substring(colon + 1, lineEnd).trim();
+		}
+		if(status.charAt(0) == '1') {
+			// an interim response, e.g. 100 Continue, the final one follows
+			connection.sendHeaders(this, fields, count, null, false);
+			return;
+		}
+		heldFields = fields;
+		heldCount = count;
+		inBody = true;
+	}
+	private void writeBody(ByteBuffer src) throws IOException {
+		if(heldFields != null) {
+			if(heldBody == null && src.remaining() <= Http2Connection.FRAME_SIZE) {
+				heldBody = ByteBuffer.allocate(src.remaining()).put(src).flip();
+				return;
+			}
+			sendHeld(false);
+		}
+		connection.sendData(this, src, false);
+	}
+	private void sendHeld(boolean end) throws IOException {
+		var fields = heldFields;
+		var body = heldBody;
+		heldFields = null;
+		heldBody = null;
+		connection.sendHeaders(this, fields, heldCount, body, end);
+	}
+	
+	/**
+	 * ends the stream with the held head, an empty DATA frame or the trailers
+	 */
+	@Override
+	void completeResponse(CharSequence trailers) throws IOException {
+		if(!inBody)
+			throw new IOException("Response ended without a head");
+		String[] fields = null;
+		int count = 0;
+		if(trailers != null) {
+			var lines = trailers.toString().split("\r\n");
+			fields = new String[2 * lines.length];
+			for(var line : lines) {
+				int colon = line.indexOf(':');
+				if(colon < 0)
+					continue;
+				fields[count++] = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				fields[count++] = line.substring(colon + 1).trim();
+			}
+		}
+		if(heldFields != null)
+			sendHeld(fields == null);
+		else if(fields == null)
+			connection.sendData(this, NO_DATA, true);
+		if(fields != null)
+			connection.sendHeaders(this, fields, count, null, true);
+		complete = true;
+	}
+	/**
+	 * @return whether the response has been sent completely
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+	
+	@Override
+	OutputStream getOutputStream() {
+		return out;
+	}
+	
+	@Override
+	void awaitResponse(AsyncResponse response) {
+		awaited = response;
+		if(resetCode >= 0)
+			abandon();
+	}
+	/**
+	 * called by the connection once the stream has been reset by either side or the connection has been lost,
+	 * fails the reads and writes of the handler
+	 */
+	void reset(int code) {
+		synchronized(this) {
+			if(resetCode < 0)
+				resetCode = code;
+			notifyAll();
+		}
+		abandon();
+	}
+	boolean isReset() {
+		return resetCode >= 0;
+	}
+	/**
+	 * reports the reset to an asynchronous response waiting for its stage
+	 */
+	private void abandon() {
+		var response = awaited;
+		if(response != null && response.disconnected())
+			connection.finish(this);
+	}
+	
+	/**
+	 * resets the stream under a thread that may be waiting for the client
+	 */
+	@Override
+	void abort() {
+		connection.cancel(this);
+	}
+	
+	@Override
+	public void close() {
+		releaseBuffer();
+		parser.reset();
+	}
+	
+	/**
+	 * a body that ends with the stream, for requests that don't announce their length
+	 */
+	private final class StreamBody extends RequestBody {
+		private final long max;
+		private long read;
+		
+		StreamBody(long max) {
+			this.max = max;
+		}
+		
+		@Override
+		long length() {
+			return -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = getInputStream().read(b, off, len);
+			if(n > 0 && (read += n) > max)
+				throw new RequestException(HttpStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + max + " bytes");
+			return n;
+		}
+		@Override
+		public int available() throws IOException {
+			return getInputStream().available();
+		}
+	}
+}
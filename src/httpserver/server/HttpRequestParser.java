@@ -0,0 +1,245 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import httpserver.util.BufferPool;
+
+/**
+ * incremental HTTP/1.x request head parser driven by a state machine.
+ * 
+ * Bytes can be fed in arbitrarily sized pieces as they arrive, the parser copies the head into a pooled buffer
+ * and only records offsets, Strings are built by {@link RequestHead} once they are asked for. A parser is owned
+ * by a single connection and reused for all of its requests, {@link #reset()} prepares it for the next one.
+ */
+final class HttpRequestParser {
+	private static final int START = 0, METHOD = 1, TARGET = 2, VERSION = 3, REQUEST_LINE_LF = 4,
+			LINE_START = 5, HEADER_NAME = 6, VALUE_START = 7, VALUE = 8, HEADER_LF = 9, END_LF = 10, DONE = 11;
+	
+	/**
+	 * token characters allowed in methods and header names (RFC 9110, section 5.6.2)
+	 */
+	private static final boolean[] TOKEN = new boolean[128];
+	static {
+		for(char c = '0'; c <= '9'; c++)
+			TOKEN[c] = true;
+		for(char c = 'a'; c <= 'z'; c++)
+			TOKEN[c] = TOKEN[c - 32] = true;
+		for(var c : "!#$%&'*+-.^_`|~".toCharArray())
+			TOKEN[c] = true;
+	}
+	
+	private final BufferPool pool;
+	private final int maxRequestLineLength, maxHeaderSize;
+	private final RequestHead head = new RequestHead();
+	
+	private ByteBuffer pooled;
+	private byte[] data;
+	private int len, state = START;
+	private int lineStart, nameEnd, valueStart, valueEnd;
+	private long startTime, parseTime;
+	
+	/**
+	 * @param pool pool the head buffers are taken from
+	 * @param maxRequestLineLength longest accepted request line, longer ones are answered with 414
+	 * @param maxHeaderSize largest accepted header section in bytes, larger ones are answered with 431
+	 */
+	HttpRequestParser(BufferPool pool, int maxRequestLineLength, int maxHeaderSize) {
+		this.pool = pool;
+		this.maxRequestLineLength = maxRequestLineLength;
+		this.maxHeaderSize = maxHeaderSize;
+	}
+	
+	/**
+	 * consumes bytes of the request head, the position of the buffer is left on the first byte after the head
+	 * @return whether the head is complete, see {@link #head()}
+	 * @throws RequestException If the head is malformed or exceeds a limit
+	 */
+	boolean feed(ByteBuffer in) throws RequestException {
+		while(state != DONE && in.hasRemaining()) {
+			var b = in.get();
+			if(state == START) {
+				if(b == '\r' || b == '\n')
+					continue; // tolerate empty lines between pipelined requests
+				begin();
+				state = METHOD;
+			}
+			append(b);
+			
+			switch(state) {
+			case METHOD:
+				if(b == ' ') {
+					if(len == 1)
+						throw bad("Bad request: missing method");
+					head.methodEnd = len - 1;
+					head.targetStart = len;
+					state = TARGET;
+				} else if(!isToken(b))
+					throw bad("Bad request: illegal character in method");
+				checkRequestLine();
+				break;
+			case TARGET:
+				if(b == ' ') {
+					head.targetEnd = len - 1;
+					head.versionStart = len;
+					state = VERSION;
+				} else if(b == '\r' || b == '\n')
+					throw bad("Bad request: " + text(0, len - 1));
+				checkRequestLine();
+				break;
+			case VERSION:
+				if(b == '\r' || b == '\n') {
+					head.versionEnd = len - 1;
+					if(head.versionEnd == head.versionStart)
+						throw bad("Bad request: missing version");
+					head.requestLineEnd = len - 1;
+					lineStart = len;
+					state = b == '\r' ? REQUEST_LINE_LF : LINE_START;
+				} else if(b == ' ')
+					throw bad("Bad request: " + text(0, len));
+				checkRequestLine();
+				break;
+			case REQUEST_LINE_LF:
+				expectLF(b);
+				lineStart = len;
+				state = LINE_START;
+				break;
+			case LINE_START:
+				if(b == '\r')
+					state = END_LF;
+				else if(b == '\n')
+					finish();
+				else if(b == ' ' || b == '\t')
+					throw bad("Obsolete line folding is not supported");
+				else if(isToken(b))
+					state = HEADER_NAME;
+				else
+					throw bad("Illegal header formatting");
+				break;
+			case HEADER_NAME:
+				if(b == ':') {
+					nameEnd = len - 1;
+					state = VALUE_START;
+				} else if(!isToken(b))
+					throw bad("Illegal header formatting: " + text(lineStart, len));
+				checkHeaders();
+				break;
+			case VALUE_START:
+				if(b == ' ' || b == '\t')
+					break;
+				valueStart = valueEnd = len - 1;
+				if(b == '\r' || b == '\n')
+					endHeader(b); // empty value
+				else {
+					valueEnd = len;
+					state = VALUE;
+				}
+				checkHeaders();
+				break;
+			case VALUE:
+				if(b == '\r' || b == '\n')
+					endHeader(b);
+				else if(b != ' ' && b != '\t')
+					valueEnd = len; // trailing whitespace isn't part of the value
+				checkHeaders();
+				break;
+			case HEADER_LF:
+				expectLF(b);
+				lineStart = len;
+				state = LINE_START;
+				break;
+			case END_LF:
+				expectLF(b);
+				finish();
+				break;
+			}
+		}
+		return state == DONE;
+	}
+	
+	/**
+	 * @return whether part of a request has been received
+	 */
+	boolean isStarted() {
+		return state != START;
+	}
+	/**
+	 * @return the parsed head, only valid after {@link #feed(ByteBuffer)} returned true and until {@link #reset()}
+	 */
+	RequestHead head() {
+		if(state != DONE)
+			throw new IllegalStateException("Request head is incomplete");
+		return head;
+	}
+	
+	/**
+	 * @return nanoseconds from the first byte of the head until its end, including the time spent waiting for the
+	 * rest of it. only valid once the head is complete
+	 */
+	long getParseTime() {
+		return parseTime;
+	}
+	
+	/**
+	 * discards the current request and returns its buffer to the pool
+	 */
+	void reset() {
+		if(pooled != null)
+			pool.release(pooled);
+		pooled = null;
+		data = null;
+		len = 0;
+		state = START;
+		head.clear();
+	}
+	
+	private void begin() {
+		startTime = System.nanoTime();
+		pooled = pool.acquire();
+		data = pooled.array();
+		len = 0;
+	}
+	private void append(byte b) throws RequestException {
+		if(len == data.length) {
+			// heads that don't fit into a pooled buffer are rare, they get their own array
+			var size = Math.min(data.length * 2, maxRequestLineLength + maxHeaderSize + 4);
+			if(size <= len)
+				throw new RequestException(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request head too large");
+			data = Arrays.copyOf(data, size);
+		}
+		data[len++] = b;
+	}
+	private void endHeader(byte b) {
+		head.addHeader(lineStart, nameEnd, valueStart, valueEnd);
+		state = b == '\r' ? HEADER_LF : LINE_START;
+	}
+	private void finish() throws RequestException {
+		head.init(data, len);
+		state = DONE;
+		parseTime = System.nanoTime() - startTime;
+	}
+	
+	private void checkRequestLine() throws RequestException {
+		if(len > maxRequestLineLength)
+			throw new RequestException(HttpStatus.REQUEST_URI_TOO_LONG, "Request line exceeds " + maxRequestLineLength + " bytes");
+	}
+	private void checkHeaders() throws RequestException {
+		if(len - head.requestLineEnd > maxHeaderSize)
+			throw new RequestException(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, "Headers exceed " + maxHeaderSize + " bytes");
+	}
+	private void expectLF(byte b) throws RequestException {
+		if(b != '\n')
+			throw bad("Bad request: expected line feed after carriage return");
+	}
+	
+	private static boolean isToken(byte b) {
+		return b >= 0 && TOKEN[b];
+	}
+	private String text(int from, int to) {
+		return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+	private static RequestException bad(String message) {
+		return new RequestException(HttpStatus.BAD_REQUEST, message);
+	}
+}
@@ -37,6 +37,7 @@ public enum HttpStatus {
     EXPECTATION_FAILED(417),
     UNPROCESSABLE_ENTITY(422),
     UPGRADE_REQUIRED(426),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431),
     INTERNAL_SERVER_ERROR(500),
     NOT_IMPLEMENTED(501),
     BAD_GATEWAY(502),
@@ -0,0 +1,43 @@
+package httpserver.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decides whether a request waited so long for a handler thread that it is better answered with 503 right away,
+ * after CoDel: a queue is standing if not even the shortest delay within an interval stayed below the target.
+ * while it stands, requests that waited longer than the target are shed, otherwise only those that waited
+ * longer than a whole interval. a short burst passes, a backlog that doesn't go away is cut down to the target
+ */
+final class LoadShedder {
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	private final long target;
+	private long intervalStart = System.nanoTime(), minDelay = Long.MAX_VALUE;
+	private boolean standing;
+	
+	/**
+	 * @param target the acceptable queueing delay in nanoseconds
+	 */
+	LoadShedder(long target) {
+		this.target = target;
+	}
+	
+	long getTarget() {
+		return target;
+	}
+	
+	/**
+	 * @param delay how long the request waited for a handler thread in nanoseconds
+	 * @return whether to shed the request
+	 */
+	synchronized boolean shed(long delay, long now) {
+		if(now - intervalStart >= INTERVAL) {
+			standing = minDelay != Long.MAX_VALUE && minDelay > target;
+			intervalStart = now;
+			minDelay = Long.MAX_VALUE;
+		}
+		if(delay < minDelay)
+			minDelay = delay;
+		return delay > (standing ? target : INTERVAL);
+	}
+}
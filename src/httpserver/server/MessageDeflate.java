@@ -0,0 +1,136 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * the permessage-deflate extension (RFC 7692) without context takeover in either direction. every message is
+ * compressed on its own, so connections don't keep a deflater or inflater and their native memory between messages,
+ * they are borrowed from pools instead
+ */
+final class MessageDeflate {
+	static final String RESPONSE = "permessage-deflate; server_no_context_takeover; client_no_context_takeover";
+	/**
+	 * the end of a sync flush, which senders strip from every message
+	 */
+	private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+	private static final byte[] NO_INPUT = new byte[0];
+	private static final int MAX_POOLED = 256;
+	private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+	
+	private MessageDeflate() {
+	}
+	
+	/**
+	 * @param extensions the Sec-WebSocket-Extensions header of a handshake, or null
+	 * @return whether the client offered permessage-deflate with parameters that can be accepted
+	 */
+	static boolean accepts(String extensions) {
+		if(extensions == null)
+			return false;
+		offers: for(var offer : extensions.split(",")) {
+			var params = offer.split(";");
+			if(!params[0].trim().equalsIgnoreCase("permessage-deflate"))
+				continue;
+			for(int i = 1; i < params.length; i++) {
+				var param = params[i].trim();
+				int eq = param.indexOf('=');
+				var name = (eq < 0 ? param : param.substring(0, eq)).trim();
+				var value = eq < 0 ? null : param.substring(eq + 1).trim().replace("\"", "");
+				switch(name.toLowerCase(Locale.ROOT)) {
+				case "server_no_context_takeover", "client_no_context_takeover", "client_max_window_bits":
+					break;
+				case "server_max_window_bits":
+					// the deflater always uses the largest window
+					if(!"15".equals(value))
+						continue offers;
+					break;
+				default:
+					continue offers;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * decompresses a message
+	 * @param out a buffer to reuse or null
+	 * @return the message in read mode, in out unless it had to grow
+	 * @throws WebSocket.CloseException If the data is corrupt or the message exceeds the size limit
+	 */
+	static ByteBuffer inflate(ByteBuffer compressed, ByteBuffer out, int maxSize) throws WebSocket.CloseException {
+		var inflater = INFLATERS.poll();
+		if(inflater == null)
+			inflater = new Inflater(true);
+		else
+			pooled.decrementAndGet();
+		try {
+			if(out == null)
+				out = ByteBuffer.allocate(Math.min(Math.max(4096, compressed.remaining() * 4), maxSize + 1));
+			out.clear();
+			inflater.setInput(compressed);
+			var tail = false;
+			while(!inflater.finished()) {
+				if(!out.hasRemaining()) {
+					// one byte beyond the limit tells a message that exceeds it from one that fills it exactly
+					if(out.capacity() > maxSize)
+						throw new WebSocket.CloseException(WebSocket.MESSAGE_TOO_BIG, "Message exceeds " + maxSize + " bytes");
+					out = ByteBuffer.allocate((int) Math.min(2L * out.capacity(), maxSize + 1L)).put(out.flip());
+				}
+				if(inflater.inflate(out) == 0 && inflater.needsInput()) {
+					if(tail)
+						break;
+					inflater.setInput(TAIL);
+					tail = true;
+				}
+			}
+			return out.flip();
+		} catch(DataFormatException e) {
+			throw new WebSocket.CloseException(WebSocket.INVALID_DATA, "Corrupt compressed message");
+		} finally {
+			inflater.setInput(NO_INPUT);
+			if(pooled.incrementAndGet() > MAX_POOLED) {
+				pooled.decrementAndGet();
+				inflater.end();
+			} else {
+				inflater.reset();
+				INFLATERS.offer(inflater);
+			}
+		}
+	}
+	
+	/**
+	 * compresses a message with a deflater borrowed from the server's response compression
+	 * @param out a buffer to reuse or null
+	 * @return the compressed message in read mode, in out unless it had to grow
+	 */
+	static ByteBuffer deflate(ByteBuffer message, ByteBuffer out, ResponseCompression compression) {
+		var deflater = compression.acquire(true);
+		try {
+			if(out == null || out.capacity() < 64)
+				out = ByteBuffer.allocate(Math.max(64, message.remaining() / 2));
+			out.clear();
+			deflater.setInput(message);
+			while(true) {
+				int space = out.remaining();
+				// a deflate that fills the whole buffer may have more output pending
+				if(deflater.deflate(out, Deflater.SYNC_FLUSH) < space)
+					break;
+				out = ByteBuffer.allocate(2 * out.capacity()).put(out.flip());
+			}
+			deflater.setInput(NO_INPUT);
+			return out.flip().limit(out.limit() - TAIL.length);
+		} finally {
+			compression.release(deflater, true);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * runs connections of a {@link Server} on a fixed number of {@link EventLoop}s, 
+ * requests are answered by the server's {@link ConnectionDispatcher}
+ */
+class NioEngine {
+	private static final byte[] EMPTY_CLOSE = "Content-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	private final Server server;
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+	
+	NioEngine(Server server, int loopCount) throws IOException {
+		this.server = server;
+		loops = new EventLoop[loopCount];
+		for(int i = 0; i < loopCount; i++)
+			loops[i] = new EventLoop(this, i);
+	}
+	
+	void start() {
+		for(var loop : loops)
+			loop.start();
+	}
+	void shutdown() {
+		for(var loop : loops)
+			loop.shutdown();
+	}
+	
+	/**
+	 * assigns an accepted connection to one of the loops in turn, called by all acceptor threads
+	 */
+	void register(SocketChannel channel) {
+		loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel);
+	}
+	
+	int getTimeout() {
+		return server.getKeepAliveTimeout();
+	}
+	
+	/**
+	 * creates the state of a newly accepted connection
+	 */
+	ChannelConnection connect(SocketChannel channel, EventLoop loop) {
+		var conn = new ChannelConnection(channel, loop, server.getBufferPool(), server.newParser(), server.newSslEngine());
+		server.logConnected(conn.getAddress());
+		return conn;
+	}
+	void configure(SocketChannel channel) throws IOException {
+		server.configure(channel);
+	}
+	int getBufferSize() {
+		return server.getBufferPool().getBufferSize();
+	}
+	
+	/**
+	 * called by a loop when an idle connection received data
+	 */
+	void readable(ChannelConnection conn, ByteBuffer readBuffer) {
+		try {
+			var head = conn.readHead(readBuffer);
+			if(head != null)
+				dispatch(conn, head);
+		} catch(RequestException e) {
+			server.logRequestError(conn, e);
+			writeAndClose(conn, e.getStatus());
+		} catch(IOException e) {
+			close(conn);
+		}
+	}
+	
+	private void dispatch(ChannelConnection conn, RequestHead head) {
+		conn.dispatched = true;
+		conn.key.interestOps(0);
+		conn.served++;
+		var mayKeepAlive = conn.served < server.getMaxRequestsPerConnection();
+		long queued = System.nanoTime();
+		var accepted = server.getDispatcher().dispatch(() -> {
+			conn.queueDelay = System.nanoTime() - queued;
+			var outcome = Server.Outcome.CLOSE;
+			try {
+				outcome = server.respond(conn, head, mayKeepAlive, keepAlive -> finished(conn, keepAlive));
+			} catch(IOException e) {
+				server.logIOException(conn, e);
+			} catch(RuntimeException e) {
+				server.logHandlerFailure(conn, e); // e.g. an endpoint that failed after its response had begun
+			} finally {
+				// also after an error, the connection would otherwise stay dispatched and never be closed
+				if(outcome == Server.Outcome.UPGRADED)
+					conn.loop.execute(() -> upgraded(conn));
+				else if(outcome != Server.Outcome.PENDING)
+					finished(conn, outcome == Server.Outcome.KEEP_ALIVE);
+			}
+		});
+		if(!accepted) {
+			server.logRejected(conn);
+			server.getMetrics().connectionRejected();
+			if(server.getRejectPolicy() == RejectPolicy.SERVICE_UNAVAILABLE)
+				writeAndClose(conn, HttpStatus.SERVICE_UNAVAILABLE);
+			else
+				close(conn);
+		}
+	}
+	
+	private void finished(ChannelConnection conn, boolean keepAlive) {
+		if(keepAlive)
+			conn.loop.execute(() -> resume(conn));
+		else
+			close(conn);
+	}
+	
+	/**
+	 * makes a connection idle again after a response, dispatching pipelined requests right away
+	 */
+	private void resume(ChannelConnection conn) {
+		if(!conn.key.isValid())
+			return;
+		conn.endAwait();
+		conn.dispatched = false;
+		conn.lastActive = System.currentTimeMillis();
+		try {
+			var head = conn.pendingHead();
+			if(head != null)
+				dispatch(conn, head);
+			else if(conn.hasBuffered())
+				conn.loop.readBuffered(conn); // decrypted before the response, the selector won't report it
+			else
+				conn.key.interestOps(SelectionKey.OP_READ);
+		} catch(RequestException e) {
+			server.logRequestError(conn, e);
+			writeAndClose(conn, e.getStatus());
+		} catch(IOException e) {
+			close(conn);
+		}
+	}
+	
+	/**
+	 * hands a connection whose switch has been answered to its protocol, which is served by the loop from now on
+	 */
+	private void upgraded(ChannelConnection conn) {
+		if(!conn.key.isValid())
+			return;
+		conn.dispatched = false;
+		var protocol = conn.protocol;
+		try {
+			// frames the client sent right behind its handshake
+			if(!protocol.open() || conn.buffer.hasRemaining() && !protocol.receive(conn.buffer)) {
+				protocolDone(conn);
+				return;
+			}
+			conn.releaseBuffer();
+			conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+			if(conn.hasBuffered())
+				conn.loop.readBuffered(conn);
+		} catch(IOException e) {
+			closeNow(conn);
+		}
+	}
+	/**
+	 * called by a loop when the channel of a protocol is ready, e.g. a WebSocket's listener is called on the loop
+	 */
+	void protocolReady(ChannelConnection conn, int ops, ByteBuffer readBuffer) {
+		try {
+			if((ops & SelectionKey.OP_WRITE) != 0 && conn.flushQueued() && conn.closeWhenFlushed) {
+				closeNow(conn);
+				return;
+			}
+			if((ops & conn.readInterest()) == 0 || conn.closeWhenFlushed)
+				return;
+			int n;
+			do {
+				readBuffer.clear();
+				n = conn.readNow(readBuffer);
+				readBuffer.flip();
+				if(n < 0) {
+					closeNow(conn);
+					return;
+				}
+				if(!conn.protocol.receive(readBuffer)) {
+					protocolDone(conn);
+					return;
+				}
+			} while(n > 0 && conn.hasBuffered());
+			if(n == 0 && conn.readInterest() == SelectionKey.OP_WRITE)
+				conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+		} catch(IOException e) {
+			closeNow(conn);
+		}
+	}
+	/**
+	 * called by a loop about once per second for every connection that switched protocols
+	 */
+	void keepAlive(ChannelConnection conn, long now) {
+		try {
+			if(!conn.protocol.keepAlive(now))
+				closeNow(conn);
+		} catch(IOException e) {
+			closeNow(conn);
+		}
+	}
+	/**
+	 * closes the connection of a protocol that is done once the frames queued for it, e.g. a close frame, are written
+	 */
+	private void protocolDone(ChannelConnection conn) throws IOException {
+		if(conn.flushQueued() || !conn.key.isValid())
+			closeNow(conn);
+		else {
+			conn.closeWhenFlushed = true;
+			conn.key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * answers with an empty response without blocking the loop and closes the connection,
+	 * the response is small enough to always fit into the socket's send buffer
+	 */
+	private void writeAndClose(ChannelConnection conn, HttpStatus status) {
+		try {
+			conn.writeNow(ByteBuffer.wrap(ResponseHead.encodedStatusLine("HTTP/1.1", status)), ByteBuffer.wrap(EMPTY_CLOSE));
+			server.getMetrics().response(status);
+		} catch(IOException e) { }
+		close(conn);
+	}
+	
+	/**
+	 * closes a connection on its loop, so that the channel is deregistered right away
+	 */
+	void close(ChannelConnection conn) {
+		conn.loop.execute(() -> closeNow(conn));
+	}
+	/**
+	 * must be called on the connection's loop
+	 */
+	void closeNow(ChannelConnection conn) {
+		if(conn.isClosed())
+			return;
+		try {
+			conn.close();
+		} catch(IOException e) { }
+		if(conn.protocol != null && !conn.dispatched)
+			conn.protocol.disconnected();
+		server.getMetrics().connectionClosed();
+		server.logDisconnected(conn);
+	}
+	
+	void failed(EventLoop loop, Exception e) {
+		server.logFailure(loop.getName() + " failed: " + e.getMessage());
+	}
+}
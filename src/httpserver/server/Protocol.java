@@ -0,0 +1,36 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * a protocol a connection has been switched to, a {@link WebSocket} or an {@link Http2Connection}.
+ * the engine feeds it what the client sends on the thread that reads from the connection,
+ * the protocol writes through {@link Connection#send}
+ */
+abstract class Protocol {
+	/**
+	 * called by the engine once the switch has been answered, before anything is received
+	 * @return false if the connection should be closed right away
+	 */
+	abstract boolean open() throws IOException;
+	/**
+	 * called by the engine with bytes received from the client
+	 * @param data only valid during the call
+	 * @return false once the connection should be closed
+	 */
+	abstract boolean receive(ByteBuffer data) throws IOException;
+	/**
+	 * called by the engine about once per second while nothing is received, on the thread that reads
+	 * @return false if the connection should be closed
+	 */
+	abstract boolean keepAlive(long now) throws IOException;
+	/**
+	 * asks the client to wind the connection down because the server is shutting down
+	 */
+	abstract void shutdown() throws IOException;
+	/**
+	 * called by the engine once the connection has been closed
+	 */
+	abstract void disconnected();
+}
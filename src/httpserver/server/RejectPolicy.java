@@ -0,0 +1,15 @@
+package httpserver.server;
+
+/**
+ * what happens to a connection the {@link ConnectionDispatcher} refused to take
+ */
+public enum RejectPolicy {
+	/**
+	 * answer with 503 Service Unavailable and close the connection
+	 */
+	SERVICE_UNAVAILABLE,
+	/**
+	 * close the connection without answering
+	 */
+	CLOSE;
+}
@@ -0,0 +1,48 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * stream over the body of a request that ends where the body ends, leaving the connection at the next request
+ */
+abstract class RequestBody extends InputStream {
+	/**
+	 * an empty body, for requests without Content-Length and Transfer-Encoding
+	 */
+	static final RequestBody EMPTY = new RequestBody() {
+		@Override
+		public int read(byte[] b, int off, int len) {
+			return -1;
+		}
+		@Override
+		long length() {
+			return 0;
+		}
+	};
+	
+	/**
+	 * @return the announced length of the body or -1 if it isn't known in advance
+	 */
+	abstract long length();
+	
+	@Override
+	public int read() throws IOException {
+		var b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+	
+	/**
+	 * discards what the handler didn't read, so that the connection can be reused
+	 * @param max the most bytes worth discarding
+	 * @return whether the end of the body was reached
+	 */
+	boolean skipRemaining(long max) throws IOException {
+		var discard = new byte[4096];
+		long skipped = 0;
+		int n;
+		while(skipped <= max && (n = read(discard, 0, discard.length)) >= 0)
+			skipped += n;
+		return skipped <= max;
+	}
+}
@@ -0,0 +1,21 @@
+package httpserver.server;
+
+import java.io.IOException;
+
+/**
+ * thrown when a request can't be processed, the status describes the error response sent to the client
+ */
+public class RequestException extends IOException {
+	private static final long serialVersionUID = 1L;
+	
+	private final HttpStatus status;
+	
+	public RequestException(HttpStatus status, String message) {
+		super(message);
+		this.status = status;
+	}
+	
+	public HttpStatus getStatus() {
+		return status;
+	}
+}
@@ -0,0 +1,344 @@
+package httpserver.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * request line, headers and query parameters of a request as parsed by {@link HttpRequestParser}.
+ * 
+ * Only offsets into the raw head are stored, Strings are built and cached when they are first asked for.
+ * An instance is reused for every request of a connection and must not be used after the request completed.
+ */
+final class RequestHead {
+	private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "CONNECT", "TRACE" };
+	private static final String[] VERSIONS = { "HTTP/1.1", "HTTP/1.0", "HTTP/2" };
+	private static final String[] HEADER_NAMES = { 
+			"Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Accept", "Accept-Encoding", 
+			"Accept-Language", "User-Agent", "Cookie", "Referer", "Origin", "Authorization", "Cache-Control", "Upgrade",
+			"If-None-Match", "If-Modified-Since", "Range", "Expect", "Pragma" };
+	
+	private byte[] data;
+	int methodEnd, targetStart, targetEnd, versionStart, versionEnd, requestLineEnd;
+	private int resourceEnd, queryStart;
+	
+	// four offsets per header: name start, name end, value start, value end
+	private int[] headers = new int[4 * 16];
+	private int headerCount;
+	private String[] names = new String[16], values = new String[16];
+	private String method, resource, version;
+	
+	private final HeaderMap headerMap = new HeaderMap();
+	private final ParameterMap parameterMap = new ParameterMap();
+	
+	void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if(4 * headerCount == headers.length) {
+			headers = Arrays.copyOf(headers, headers.length * 2);
+			names = Arrays.copyOf(names, headerCount * 2);
+			values = Arrays.copyOf(values, headerCount * 2);
+		}
+		int i = 4 * headerCount++;
+		headers[i] = nameStart;
+		headers[i + 1] = nameEnd;
+		headers[i + 2] = valueStart;
+		headers[i + 3] = valueEnd;
+	}
+	
+	/**
+	 * completes the head once all headers were added, validating the request target
+	 */
+	void init(byte[] data, int length) throws RequestException {
+		this.data = data;
+		
+		queryStart = -1;
+		resourceEnd = targetEnd;
+		for(int i = targetStart; i < targetEnd; i++)
+			if(data[i] == '?') {
+				resourceEnd = i;
+				queryStart = i + 1;
+				break;
+			}
+		if((resourceEnd == targetStart || data[targetStart] != '/') && !isPreface())
+			throw new RequestException(HttpStatus.BAD_REQUEST, "Bad request: " + text(targetStart, targetEnd));
+		
+		if(queryStart >= 0 && queryStart < targetEnd) {
+			// every parameter needs a value, e.g. ?a=1&b=2
+			boolean assigned = false;
+			int segmentStart = queryStart;
+			for(int i = queryStart; i <= targetEnd; i++) {
+				if(i == targetEnd || data[i] == '&') {
+					if(!assigned && !(i == targetEnd && i == segmentStart))
+						throw new RequestException(HttpStatus.BAD_REQUEST, "Illegal Parameter Formatting: " + requestLine());
+					assigned = false;
+					segmentStart = i + 1;
+				} else if(data[i] == '=')
+					assigned = true;
+			}
+		}
+	}
+	
+	void clear() {
+		data = null;
+		Arrays.fill(names, 0, headerCount, null);
+		Arrays.fill(values, 0, headerCount, null);
+		headerCount = 0;
+		method = resource = version = null;
+		headerMap.clear();
+		parameterMap.clear();
+	}
+	
+	String method() {
+		if(method == null)
+			method = lookup(METHODS, 0, methodEnd);
+		return method;
+	}
+	/**
+	 * @return the requested path without query parameters
+	 */
+	String resource() {
+		if(resource == null)
+			resource = text(targetStart, resourceEnd);
+		return resource;
+	}
+	String httpVersion() {
+		if(version == null)
+			version = lookup(VERSIONS, versionStart, versionEnd);
+		return version;
+	}
+	String requestLine() {
+		return text(0, requestLineEnd);
+	}
+	/**
+	 * @return whether this is the start of the connection preface of an HTTP/2 client that doesn't upgrade
+	 * (RFC 9113, section 3.4)
+	 */
+	boolean isPreface() {
+		return targetEnd - targetStart == 1 && data[targetStart] == '*' && method().equals("PRI") && httpVersion().equals("HTTP/2.0");
+	}
+	
+	int headerCount() {
+		return headerCount;
+	}
+	String headerName(int index) {
+		if(names[index] == null)
+			names[index] = lookup(HEADER_NAMES, headers[4 * index], headers[4 * index + 1]);
+		return names[index];
+	}
+	String headerValue(int index) {
+		if(values[index] == null)
+			values[index] = text(headers[4 * index + 2], headers[4 * index + 3]);
+		return values[index];
+	}
+	/**
+	 * @return the index of the last header with the given name, ignoring case, or -1
+	 */
+	int indexOf(String name) {
+		for(int i = headerCount - 1; i >= 0; i--)
+			if(equalsIgnoreCase(headers[4 * i], headers[4 * i + 1], name))
+				return i;
+		return -1;
+	}
+	/**
+	 * looks up a header regardless of the capitalization used by the client
+	 */
+	String header(String name) {
+		var index = indexOf(name);
+		return index < 0 ? null : headerValue(index);
+	}
+	/**
+	 * @return whether the value of a header contains a token, ignoring case
+	 */
+	boolean headerContains(String name, String token) {
+		var index = indexOf(name);
+		if(index < 0)
+			return false;
+		int from = headers[4 * index + 2], to = headers[4 * index + 3];
+		for(int i = from; i + token.length() <= to; i++)
+			if(equalsIgnoreCase(i, i + token.length(), token))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * @return the value of the Content-Length header or -1 if there is none
+	 * @throws RequestException If a value isn't a number or the request has several headers that disagree,
+	 * which would let the server and a proxy in front of it see different bodies (RFC 9112, section 6.3)
+	 */
+	long contentLength() throws RequestException {
+		long length = -1;
+		for(int index = 0; index < headerCount; index++) {
+			if(!equalsIgnoreCase(headers[4 * index], headers[4 * index + 1], "Content-Length"))
+				continue;
+			int from = headers[4 * index + 2], to = headers[4 * index + 3];
+			if(from == to || to - from > 18)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Expected numerical value for Content-Length");
+			long value = 0;
+			for(int i = from; i < to; i++) {
+				if(data[i] < '0' || data[i] > '9')
+					throw new RequestException(HttpStatus.BAD_REQUEST, "Expected numerical value for Content-Length");
+				value = value * 10 + data[i] - '0';
+			}
+			if(length >= 0 && value != length)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Conflicting Content-Length headers");
+			length = value;
+		}
+		return length;
+	}
+	/**
+	 * @return whether the body is sent with chunked transfer-encoding, according to all Transfer-Encoding headers
+	 * @throws RequestException If chunked isn't the only and final coding, other codings aren't supported
+	 */
+	boolean isChunked() throws RequestException {
+		if(indexOf("Transfer-Encoding") < 0)
+			return false;
+		var codings = new ArrayList<String>(1);
+		for(int index = 0; index < headerCount; index++)
+			if(equalsIgnoreCase(headers[4 * index], headers[4 * index + 1], "Transfer-Encoding"))
+				for(var coding : headerValue(index).split(","))
+					if(!coding.isBlank())
+						codings.add(coding.trim());
+		if(codings.isEmpty() || !codings.get(codings.size() - 1).equalsIgnoreCase("chunked"))
+			throw new RequestException(HttpStatus.BAD_REQUEST, "Transfer-Encoding doesn't end with chunked");
+		if(codings.size() > 1)
+			throw new RequestException(HttpStatus.NOT_IMPLEMENTED, "Unsupported transfer encoding");
+		return true;
+	}
+	
+	/**
+	 * HTTP/1.1 connections are persistent unless the client asks to close them,
+	 * HTTP/1.0 connections only if the client explicitly asks for keep-alive
+	 */
+	boolean isKeepAlive() {
+		if("HTTP/1.1".equals(httpVersion()))
+			return !headerContains("Connection", "close");
+		return headerContains("Connection", "keep-alive");
+	}
+	
+	/**
+	 * @return the headers as a map whose lookups ignore case
+	 */
+	Map<String,String> headers() {
+		return headerMap;
+	}
+	/**
+	 * @return the query parameters, decoded when first accessed
+	 */
+	Map<String,String> parameters() {
+		return parameterMap;
+	}
+	
+	private boolean equalsIgnoreCase(int from, int to, String text) {
+		if(to - from != text.length())
+			return false;
+		for(int i = 0; i < text.length(); i++) {
+			int a = data[from + i], b = text.charAt(i);
+			if(a == b)
+				continue;
+			if(b >= 'A' && b <= 'Z' ? a != b + 32 : b < 'a' || b > 'z' || a != b - 32)
+				return false;
+		}
+		return true;
+	}
+	/**
+	 * @return a constant from the table if it matches the bytes exactly, otherwise a new String
+	 */
+	private String lookup(String[] table, int from, int to) {
+		outer:
+		for(var candidate : table) {
+			if(candidate.length() != to - from)
+				continue;
+			for(int i = 0; i < candidate.length(); i++)
+				if(data[from + i] != candidate.charAt(i))
+					continue outer;
+			return candidate;
+		}
+		return text(from, to);
+	}
+	private String text(int from, int to) {
+		return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * header view that builds Strings on demand, values put by the application take precedence
+	 */
+	private class HeaderMap extends AbstractMap<String,String> {
+		private final Map<String,String> overrides = new LinkedHashMap<>();
+		private Map<String,String> materialized;
+		
+		@Override
+		public String get(Object key) {
+			if(!(key instanceof String name))
+				return null;
+			for(var entry : overrides.entrySet())
+				if(entry.getKey().equalsIgnoreCase(name))
+					return entry.getValue();
+			return header(name);
+		}
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+		@Override
+		public String put(String key, String value) {
+			materialized = null;
+			return overrides.put(key, value);
+		}
+		@Override
+		public Set<Entry<String,String>> entrySet() {
+			if(materialized == null) {
+				materialized = new LinkedHashMap<>();
+				for(int i = 0; i < headerCount; i++)
+					materialized.put(headerName(i), headerValue(i));
+				materialized.putAll(overrides);
+			}
+			return Collections.unmodifiableMap(materialized).entrySet();
+		}
+		@Override
+		public void clear() {
+			overrides.clear();
+			materialized = null;
+		}
+	}
+	
+	/**
+	 * query parameters, '+' is decoded to a space
+	 */
+	private class ParameterMap extends AbstractMap<String,String> {
+		private Map<String,String> parameters;
+		
+		private Map<String,String> parameters() {
+			if(parameters == null) {
+				parameters = new HashMap<>();
+				if(queryStart >= 0 && queryStart < targetEnd)
+					for(var param : text(queryStart, targetEnd).split("&")) {
+						int eq = param.indexOf('=');
+						parameters.put(param.substring(0, eq).replace('+', ' '), param.substring(eq + 1).replace('+', ' '));
+					}
+			}
+			return parameters;
+		}
+		
+		@Override
+		public String get(Object key) {
+			return parameters().get(key);
+		}
+		@Override
+		public String put(String key, String value) {
+			return parameters().put(key, value);
+		}
+		@Override
+		public Set<Entry<String,String>> entrySet() {
+			return parameters().entrySet();
+		}
+		@Override
+		public void clear() {
+			parameters = null;
+		}
+	}
+}
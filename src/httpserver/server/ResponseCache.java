@@ -0,0 +1,548 @@
+package httpserver.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * caches the responses of endpoints that answer identical GET requests with the same bytes, so that repeated requests
+ * are answered without calling the endpoint. endpoints are wrapped with {@link #cache}, e.g.
+ * <code>server.route("/report", cache.cache(Main::report, Duration.ofSeconds(30)))</code>.
+ * responses are keyed on the resource, the query and the headers named in Vary, and evicted least recently used first.
+ * concurrent misses of a key wait for a single call of the endpoint, expired responses may be refreshed in the background.
+ * only GET requests without Authorization are cached, responses that are private, set cookies, are too large,
+ * streamed or sent from a file are not
+ */
+public final class ResponseCache {
+	/**
+	 * statuses that are cacheable by default (RFC 9110, section 15.1)
+	 */
+	private static final Set<Integer> CACHEABLE = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+	/**
+	 * headers the session writes for every response on its own, lower case
+	 */
+	private static final Set<String> PER_RESPONSE = Set.of("content-length", "date", "connection", "keep-alive", "age");
+	/**
+	 * what an entry is charged besides its bytes
+	 */
+	private static final int OVERHEAD = 256;
+	
+	private final long maxBytes;
+	private final int maxEntrySize;
+	/**
+	 * responses and the Vary of resources whose responses vary, by key, guarded by itself
+	 */
+	private final Map<String, Item> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long size;
+	/**
+	 * the misses whose endpoint is answering, completed once its response has been stored or turned out not to be cacheable
+	 */
+	private final Map<String, CompletableFuture<Void>> flights = new ConcurrentHashMap<>();
+	private final AtomicInteger endpoints = new AtomicInteger();
+	private final LongAdder hits = new LongAdder(), staleHits = new LongAdder(), misses = new LongAdder();
+	/**
+	 * a few threads with a bounded queue, revalidations that don't fit are dropped and retried by a later request
+	 */
+	private final ThreadPoolExecutor revalidations;
+	
+	/**
+	 * @param maxBytes the budget of the bodies, header lines and compressed copies of all responses
+	 * @throws IllegalArgumentException If the budget isn't positive
+	 */
+	public ResponseCache(long maxBytes) {
+		if(maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes must be positive");
+		this.maxBytes = maxBytes;
+		maxEntrySize = (int) Math.min(maxBytes / 8, Integer.MAX_VALUE - 8);
+		revalidations = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(256), task -> {
+			var thread = new Thread(task, "HttpServer-revalidator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		revalidations.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * wraps an endpoint whose responses are cached for a time, keyed on all query parameters
+	 * @see #cache(RouteEndpoint, Duration, Duration, String...)
+	 */
+	public RouteEndpoint cache(RouteEndpoint endpoint, Duration ttl) {
+		return cache(endpoint, ttl, Duration.ZERO);
+	}
+	/**
+	 * wraps an endpoint whose responses are cached for a time
+	 * @param ttl how long a response is served from the cache
+	 * @param staleWhileRevalidate how long a response is still served after it expired, while it is refreshed in the background
+	 * @param keyParameters the query parameters the responses depend on, all of them if none are given
+	 * @throws IllegalArgumentException If the ttl isn't positive or staleWhileRevalidate is negative
+	 */
+	public RouteEndpoint cache(RouteEndpoint endpoint, Duration ttl, Duration staleWhileRevalidate, String... keyParameters) {
+		if(ttl.isNegative() || ttl.isZero())
+			throw new IllegalArgumentException("ttl must be positive");
+		if(staleWhileRevalidate.isNegative())
+			throw new IllegalArgumentException("staleWhileRevalidate must not be negative");
+		return new CachedEndpoint(endpoint, endpoints.incrementAndGet() + " ", ttl.toNanos(), staleWhileRevalidate.toNanos(), keyParameters.clone());
+	}
+	
+	/**
+	 * removes all responses, responses being captured right now are still stored
+	 */
+	public void clear() {
+		synchronized(entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+	/**
+	 * @return the bytes the cached responses take
+	 */
+	public long getSize() {
+		synchronized(entries) {
+			return size;
+		}
+	}
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	/**
+	 * @return the number of requests answered from the cache, including stale responses
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	/**
+	 * @return the number of requests answered with a response that had expired while it was being refreshed
+	 */
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+	/**
+	 * @return the number of cacheable requests whose response wasn't cached, including those that waited for another one
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * @return the fresh or stale response stored under the key, null if there is none
+	 */
+	private Entry get(String key, long now) {
+		synchronized(entries) {
+			if(!(entries.get(key) instanceof Entry entry))
+				return null;
+			if(now - entry.staleUntil >= 0) {
+				entries.remove(key);
+				size -= entry.size;
+				return null;
+			}
+			return entry;
+		}
+	}
+	/**
+	 * @return the key of the request's response, which is the primary key unless the responses vary by request headers
+	 */
+	private String variantKey(String primary, Session session) {
+		Item item;
+		synchronized(entries) {
+			item = entries.get(primary);
+		}
+		if(!(item instanceof Variants variants))
+			return primary;
+		var key = new StringBuilder(primary);
+		for(var name : variants.names)
+			appendVariant(key, name, session.requestHeader(name).orElse(null));
+		return key.toString();
+	}
+	private static void appendVariant(StringBuilder key, String name, String value) {
+		key.append('\n').append(name).append(": ");
+		if(value != null)
+			key.append(value);
+	}
+	private void put(String key, Item item) {
+		synchronized(entries) {
+			var old = entries.put(key, item);
+			if(old != null)
+				size -= old.size;
+			size += item.size;
+			evict();
+		}
+	}
+	/**
+	 * charges a compressed copy of a body to its entry, if it is still cached
+	 */
+	private void charge(Entry entry, int bytes) {
+		synchronized(entries) {
+			entry.size += bytes;
+			if(entries.get(entry.key) != entry)
+				return;
+			size += bytes;
+			evict();
+		}
+	}
+	/**
+	 * removes the least recently used items until the cache is within its budget, must hold the lock of the entries
+	 */
+	private void evict() {
+		var iterator = entries.values().iterator();
+		while(size > maxBytes && iterator.hasNext()) {
+			size -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * stores a captured response under its key, along with its Vary if it has one
+	 */
+	private void store(String primary, Capture capture, long ttl, long staleWhileRevalidate) {
+		var key = primary;
+		if(capture.varyNames != null) {
+			var names = capture.varyNames.toArray(new String[0]);
+			var variant = new StringBuilder(primary);
+			for(int i = 0; i < names.length; i++)
+				appendVariant(variant, names[i], capture.varyValues.get(i));
+			key = variant.toString();
+			put(primary, new Variants(names, primary.length()));
+		}
+		var entry = capture.toEntry(key, System.nanoTime(), ttl, staleWhileRevalidate);
+		if(entry != null)
+			put(key, entry);
+	}
+	
+	/**
+	 * writes a cached response, compressed with the content-coding the client accepts
+	 */
+	private void replay(Entry entry, Session session, long now) throws IOException {
+		var body = entry.body;
+		var encoding = body.length == 0 ? null : session.negotiateEncoding(entry.status, entry.contentType, body.length);
+		if(encoding != null)
+			body = compressed(entry, encoding, session.getCompression());
+		session.sendCached(entry.status, entry.head, encoding, body.length);
+		session.sendHeader("Age", Long.toString(TimeUnit.NANOSECONDS.toSeconds(now - entry.created)));
+		if(body.length > 0)
+			session.sendBody(ByteBuffer.wrap(body));
+	}
+	/**
+	 * @return the body compressed with gzip or deflate, compressed once per entry
+	 */
+	private byte[] compressed(Entry entry, String encoding, ResponseCompression compression) throws IOException {
+		boolean gzip = encoding.equals("gzip");
+		var body = gzip ? entry.gzip : entry.deflate;
+		if(body != null)
+			return body;
+		body = CompressedBody.compress(compression, gzip, ByteBuffer.wrap(entry.body));
+		synchronized(entry) {
+			// another request may have compressed it at the same time
+			if((gzip ? entry.gzip : entry.deflate) != null)
+				return body;
+			if(gzip)
+				entry.gzip = body;
+			else
+				entry.deflate = body;
+		}
+		charge(entry, body.length);
+		return body;
+	}
+	
+	private static void await(CompletableFuture<Void> flight) throws IOException {
+		try {
+			flight.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the response to be cached", e);
+		} catch(ExecutionException e) { } // flights are only ever completed normally
+	}
+	
+	/**
+	 * an endpoint whose responses are cached
+	 */
+	private final class CachedEndpoint implements RouteEndpoint {
+		private final RouteEndpoint endpoint;
+		/**
+		 * sets the keys of the endpoint apart from those of other endpoints
+		 */
+		private final String prefix;
+		private final long ttl, staleWhileRevalidate;
+		private final String[] keyParameters;
+		
+		CachedEndpoint(RouteEndpoint endpoint, String prefix, long ttl, long staleWhileRevalidate, String[] keyParameters) {
+			this.endpoint = endpoint;
+			this.prefix = prefix;
+			this.ttl = ttl;
+			this.staleWhileRevalidate = staleWhileRevalidate;
+			this.keyParameters = keyParameters;
+		}
+		
+		@Override
+		public void handle(String method, String resource, Session session) throws IOException {
+			if(!method.equals("GET") || session.requestHeader("Authorization").isPresent()) {
+				endpoint.handle(method, resource, session);
+				return;
+			}
+			var primary = primaryKey(resource, session.getParameters());
+			var key = variantKey(primary, session);
+			long now = System.nanoTime();
+			var entry = get(key, now);
+			if(entry != null) {
+				hits.increment();
+				if(now - entry.expires >= 0) {
+					staleHits.increment();
+					revalidate(primary, entry, resource, session);
+				}
+				replay(entry, session, now);
+				return;
+			}
+			
+			misses.increment();
+			var flight = new CompletableFuture<Void>();
+			var leader = flights.putIfAbsent(key, flight);
+			if(leader != null) {
+				await(leader);
+				now = System.nanoTime();
+				entry = get(variantKey(primary, session), now);
+				if(entry != null)
+					replay(entry, session, now);
+				else
+					endpoint.handle(method, resource, session); // the response couldn't be shared
+				return;
+			}
+			try {
+				var capture = new Capture(session, maxEntrySize, flight);
+				session.setCapture(capture);
+				endpoint.handle(method, resource, session);
+				store(primary, capture, ttl, staleWhileRevalidate);
+			} finally {
+				session.setCapture(null);
+				flights.remove(key, flight);
+				flight.complete(null);
+			}
+		}
+		
+		private String primaryKey(String resource, Map<String, String> parameters) {
+			var key = new StringBuilder(prefix).append(resource);
+			if(keyParameters.length == 0) {
+				for(var parameter : new TreeMap<>(parameters).entrySet())
+					key.append('\0').append(parameter.getKey()).append('=').append(parameter.getValue());
+			} else {
+				for(var name : keyParameters) {
+					var value = parameters.get(name);
+					key.append('\0');
+					if(value != null)
+						key.append('=').append(value);
+				}
+			}
+			return key.toString();
+		}
+		
+		/**
+		 * refreshes an expired response in the background, unless it is already being refreshed.
+		 * the endpoint answers a copy of the request whose response is discarded once it has been captured
+		 */
+		private void revalidate(String primary, Entry entry, String resource, Session session) {
+			if(!entry.revalidating.compareAndSet(false, true))
+				return;
+			var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			headers.putAll(session.getRequestHeaders());
+			var parameters = new HashMap<>(session.getParameters());
+			var pathParameters = session.getPathParameters();
+			try {
+				revalidations.execute(() -> {
+					var detached = new Session(OutputStream.nullOutputStream(), headers, parameters, session.getHttpVersion(), "");
+					detached.setPathParameters(pathParameters);
+					var capture = new Capture(detached, maxEntrySize, null);
+					detached.setCapture(capture);
+					try {
+						endpoint.handle("GET", resource, detached);
+						store(primary, capture, ttl, staleWhileRevalidate);
+						if(!detached.isDisposed())
+							detached.complete();
+					} catch(Exception e) {
+						// the stale response is served until it is refreshed by a later request or runs out
+					} finally {
+						entry.revalidating.set(false);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				entry.revalidating.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * records what an endpoint sends through its session, called by the session
+	 */
+	static final class Capture {
+		private final Session session;
+		private final int maxSize;
+		/**
+		 * the flight of the miss, completed early once the response turns out not to be cacheable, or null
+		 */
+		private final CompletableFuture<Void> flight;
+		private HttpStatus status;
+		private final StringBuilder head = new StringBuilder();
+		private String contentType;
+		private ByteArrayOutputStream body = new ByteArrayOutputStream();
+		/**
+		 * the request headers named by the Vary of the response, lower case, and their values in the request
+		 */
+		private List<String> varyNames, varyValues;
+		private boolean refused;
+		
+		Capture(Session session, int maxSize, CompletableFuture<Void> flight) {
+			this.session = session;
+			this.maxSize = maxSize;
+			this.flight = flight;
+		}
+		
+		void status(HttpStatus status) {
+			this.status = status;
+			if(!CACHEABLE.contains(status.code))
+				refuse();
+		}
+		void header(String key, String value) {
+			if(refused)
+				return;
+			var name = key.toLowerCase(Locale.ROOT);
+			switch(name) {
+			case "set-cookie":
+			case "transfer-encoding":
+			case "content-encoding":
+				// personal or encoded by the endpoint itself
+				refuse();
+				return;
+			case "cache-control":
+				var directives = value.toLowerCase(Locale.ROOT);
+				if(directives.contains("no-store") || directives.contains("no-cache") || directives.contains("private")) {
+					refuse();
+					return;
+				}
+				break;
+			case "vary":
+				for(var field : value.split(",")) {
+					var vary = field.trim().toLowerCase(Locale.ROOT);
+					if(vary.equals("*")) {
+						refuse();
+						return;
+					}
+					if(vary.isEmpty() || varyNames != null && varyNames.contains(vary))
+						continue;
+					if(varyNames == null) {
+						varyNames = new ArrayList<>(2);
+						varyValues = new ArrayList<>(2);
+					}
+					varyNames.add(vary);
+					varyValues.add(session.requestHeader(vary).orElse(null));
+				}
+				break;
+			case "content-type":
+				contentType = value;
+				break;
+			}
+			if(!PER_RESPONSE.contains(name))
+				head.append(key).append(": ").append(value).append("\r\n");
+		}
+		void body(ByteBuffer data) {
+			if(refused)
+				return;
+			if(body.size() + (long) data.remaining() > maxSize) {
+				refuse();
+				return;
+			}
+			if(data.hasArray())
+				body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			else {
+				var copy = new byte[data.remaining()];
+				data.get(copy);
+				body.writeBytes(copy);
+			}
+		}
+		/**
+		 * the response can't be cached, e.g. because it is streamed
+		 */
+		void refuse() {
+			refused = true;
+			body = null;
+			if(flight != null)
+				flight.complete(null); // waiting requests call the endpoint themselves
+		}
+		
+		/**
+		 * @return the captured response, null if it can't be cached
+		 */
+		Entry toEntry(String key, long now, long ttl, long staleWhileRevalidate) {
+			if(refused || status == null)
+				return null;
+			var bytes = body.toByteArray();
+			var lines = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+			if(bytes.length + lines.length > maxSize)
+				return null;
+			return new Entry(key, status, lines, contentType, bytes, now, now + ttl, now + ttl + staleWhileRevalidate);
+		}
+	}
+	
+	/**
+	 * what the cache holds under a key, charged to its budget
+	 */
+	private abstract static class Item {
+		long size;
+	}
+	/**
+	 * a response with its header lines except those written per response
+	 */
+	private static final class Entry extends Item {
+		final String key;
+		final HttpStatus status;
+		final byte[] head;
+		final String contentType;
+		final byte[] body;
+		final long created, expires, staleUntil;
+		/**
+		 * compressed copies of the body, guarded by the entry
+		 */
+		volatile byte[] gzip, deflate;
+		final AtomicBoolean revalidating = new AtomicBoolean();
+		
+		Entry(String key, HttpStatus status, byte[] head, String contentType, byte[] body, long created, long expires, long staleUntil) {
+			this.key = key;
+			this.status = status;
+			this.head = head;
+			this.contentType = contentType;
+			this.body = body;
+			this.created = created;
+			this.expires = expires;
+			this.staleUntil = staleUntil;
+			size = OVERHEAD + 2L * key.length() + head.length + body.length;
+		}
+	}
+	/**
+	 * the request headers the responses of a resource vary by, stored under its primary key
+	 */
+	private static final class Variants extends Item {
+		final String[] names;
+		
+		Variants(String[] names, int keyLength) {
+			this.names = names;
+			size = OVERHEAD + 2L * keyLength;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package httpserver.server;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * settings of the on-the-fly response compression and the pool of deflaters shared by all responses of a server
+ */
+class ResponseCompression {
+	static final Set<String> DEFAULT_TYPES = Set.of("text/html", "text/plain", "text/css", "text/csv", "text/markdown",
+			"text/xml", "text/javascript", "application/javascript", "application/json", "application/xml", "image/svg+xml");
+	private static final int MAX_POOLED = 256;
+	
+	volatile boolean enabled = true;
+	volatile int minSize = 1024, level = Deflater.DEFAULT_COMPRESSION;
+	volatile Set<String> types = DEFAULT_TYPES;
+	
+	/**
+	 * deflaters without zlib wrapper for gzip, with wrapper for deflate
+	 */
+	private final Queue<Deflater> raw = new ConcurrentLinkedQueue<>(), wrapped = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * @param length the length of the uncompressed body, or -1 if it isn't known yet
+	 * @return the content-coding to compress the response with, or null if it should be sent as it is
+	 */
+	String negotiate(String acceptEncoding, HttpStatus status, String contentType, long length) {
+		if(!enabled || acceptEncoding == null || contentType == null)
+			return null;
+		if(status.code < 200 || status == HttpStatus.NO_CONTENT || status == HttpStatus.PARTIAL_CONTENT || status == HttpStatus.NOT_MODIFIED)
+			return null;
+		if(length >= 0 && length < minSize)
+			return null;
+		if(!isCompressible(contentType))
+			return null;
+		return selectCoding(acceptEncoding);
+	}
+	boolean isCompressible(String contentType) {
+		int semicolon = contentType.indexOf(';');
+		var type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+		var types = this.types;
+		if(types.contains(type))
+			return true;
+		int slash = type.indexOf('/');
+		return slash > 0 && types.contains(type.substring(0, slash) + "/*");
+	}
+	/**
+	 * @return gzip or deflate, whichever the client prefers, gzip if both are equally acceptable. null if neither is
+	 */
+	static String selectCoding(String acceptEncoding) {
+		float gzip = -1, deflate = -1, any = -1;
+		for(var coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			var name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+			float q = semicolon < 0 ? 1 : quality(coding.substring(semicolon + 1));
+			if(name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip"))
+				gzip = q;
+			else if(name.equalsIgnoreCase("deflate"))
+				deflate = q;
+			else if(name.equals("*"))
+				any = q;
+		}
+		if(gzip < 0)
+			gzip = any;
+		if(deflate < 0)
+			deflate = any;
+		if(gzip > 0 && gzip >= deflate)
+			return "gzip";
+		return deflate > 0 ? "deflate" : null;
+	}
+	private static float quality(String params) {
+		for(var param : params.split(";")) {
+			param = param.trim();
+			if(param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=')
+				try {
+					return Float.parseFloat(param.substring(2));
+				} catch(NumberFormatException e) {
+					return 0;
+				}
+		}
+		return 1;
+	}
+	
+	/**
+	 * @param gzip whether the deflater is used for gzip, which has its own header and trailer
+	 */
+	Deflater acquire(boolean gzip) {
+		var deflater = (gzip ? raw : wrapped).poll();
+		if(deflater == null)
+			return new Deflater(level, gzip);
+		pooled.decrementAndGet();
+		deflater.setLevel(level);
+		return deflater;
+	}
+	/**
+	 * returns a deflater to the pool, its native memory is freed if the pool is full
+	 */
+	void release(Deflater deflater, boolean gzip) {
+		if(pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		(gzip ? raw : wrapped).offer(deflater);
+	}
+}
@@ -0,0 +1,133 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import httpserver.util.BufferPool;
+
+/**
+ * builds the head of a response in a pooled buffer from pre-encoded status lines and header names
+ */
+class ResponseHead {
+	private static final BufferPool BUFFERS = new BufferPool(2048, 1024, false);
+	
+	private static final byte[][] STATUS_LINES_11 = statusLines("HTTP/1.1"), STATUS_LINES_10 = statusLines("HTTP/1.0"),
+			STATUS_LINES_2 = statusLines("HTTP/2");
+	private static final Map<String, byte[]> NAMES = new HashMap<>();
+	static {
+		for(var name : new String[] { "Content-Length", "Content-Type", "Content-Encoding", "Transfer-Encoding", "Connection",
+				"Date", "ETag", "Last-Modified", "Cache-Control", "Location", "Vary", "Allow", "Retry-After", "Server",
+				"Set-Cookie", "Accept-Ranges", "Content-Range", "Expires", "Upgrade" })
+			NAMES.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
+	}
+	static final byte[] CRLF = { '\r', '\n' },
+			LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII),
+			CONNECTION_CLOSE = "Connection: close\r\n".getBytes(StandardCharsets.US_ASCII),
+			CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+	
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	private static volatile CachedDate date = new CachedDate(-1);
+	
+	private ByteBuffer buffer = BUFFERS.acquire();
+	
+	private static byte[][] statusLines(String version) {
+		var lines = new byte[HttpStatus.values().length][];
+		for(var status : HttpStatus.values())
+			lines[status.ordinal()] = statusLine(version, status);
+		return lines;
+	}
+	private static byte[] statusLine(String version, HttpStatus status) {
+		return (version + " " + status.code + " " + status.name() + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+	/**
+	 * @return the encoded status line, including its line break
+	 */
+	static byte[] encodedStatusLine(String version, HttpStatus status) {
+		if(version.equals("HTTP/1.1"))
+			return STATUS_LINES_11[status.ordinal()];
+		if(version.equals("HTTP/1.0"))
+			return STATUS_LINES_10[status.ordinal()];
+		if(version.equals("HTTP/2"))
+			return STATUS_LINES_2[status.ordinal()];
+		return statusLine(version, status);
+	}
+	/**
+	 * @return the encoded Date header for the current second, including its line break
+	 */
+	static byte[] dateHeader() {
+		long second = System.currentTimeMillis() / 1000;
+		var cached = date;
+		if(cached.second != second)
+			date = cached = new CachedDate(second);
+		return cached.header;
+	}
+	
+	void status(String version, HttpStatus status) {
+		put(encodedStatusLine(version, status));
+	}
+	void header(String name, String value) {
+		var encoded = NAMES.get(name);
+		if(encoded != null)
+			put(encoded);
+		else {
+			putLatin1(name);
+			put((byte) ':');
+			put((byte) ' ');
+		}
+		putLatin1(value);
+		put(CRLF);
+	}
+	void put(byte[] bytes) {
+		ensure(bytes.length);
+		buffer.put(bytes);
+	}
+	private void put(byte b) {
+		ensure(1);
+		buffer.put(b);
+	}
+	/**
+	 * header text is sent as ISO-8859-1, characters outside of it are replaced with '?'
+	 */
+	private void putLatin1(String text) {
+		ensure(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			buffer.put(c > 0xFF ? (byte) '?' : (byte) c);
+		}
+	}
+	private void ensure(int n) {
+		if(buffer.remaining() >= n)
+			return;
+		var old = buffer.flip();
+		buffer = ByteBuffer.allocate(Math.max(old.capacity() * 2, old.limit() + n)).put(old);
+		BUFFERS.release(old);
+	}
+	
+	/**
+	 * @return the head in read mode, valid until {@link #release()}
+	 */
+	ByteBuffer flip() {
+		return buffer.flip();
+	}
+	void release() {
+		if(buffer != null)
+			BUFFERS.release(buffer);
+		buffer = null;
+	}
+	
+	private static class CachedDate {
+		final long second;
+		final byte[] header;
+		
+		CachedDate(long second) {
+			this.second = second;
+			header = ("Date: " + DATE_FORMAT.format(Instant.ofEpochSecond(Math.max(second, 0))) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+}
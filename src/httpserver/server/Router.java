@@ -0,0 +1,206 @@
+package httpserver.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * route table that is compiled when routes are added, so that a lookup never compiles a pattern.
+ * 
+ * A route is matched in this order:
+ * <ol>
+ * <li>literal routes, e.g. <code>/index.html</code>, by an exact lookup</li>
+ * <li>parameterized routes, e.g. <code>/users/{id}</code>, by walking a tree of path segments where
+ * literal segments take precedence over parameters</li>
+ * <li>regular expressions, e.g. <code>/static/.*</code>, in the order they were added</li>
+ * </ol>
+ * A route without parameters that contains regex metacharacters is added as both a literal and an expression,
+ * just like every route used to be tried as both.
+ */
+public final class Router {
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+	
+	private final Map<String, RouteEndpoint> literals = new ConcurrentHashMap<>();
+	private final Node root = new Node();
+	private final List<RegexRoute> expressions = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * adds a route, replacing an endpoint previously added for the same route
+	 * @throws IllegalArgumentException If a parameter segment has no name
+	 */
+	public synchronized void add(String route, RouteEndpoint endpoint) {
+		if(route.contains("/{")) {
+			addParameterized(route, endpoint);
+			return;
+		}
+		literals.put(route, endpoint);
+		if(!hasMetacharacters(route))
+			return;
+		try {
+			var pattern = Pattern.compile(route);
+			expressions.removeIf(r -> r.route.equals(route));
+			expressions.add(new RegexRoute(route, pattern, endpoint));
+		} catch(PatternSyntaxException e) { 
+			// not an expression, the literal entry is enough
+		}
+	}
+	
+	/**
+	 * @return the matching endpoint and its path parameters or null if no route matches
+	 */
+	public Match match(String path) {
+		var endpoint = literals.get(path);
+		if(endpoint != null)
+			return new Match(path, endpoint, Map.of());
+		
+		if(root.hasChildren()) {
+			var values = new ArrayList<String>(4);
+			var node = root.find(path, 1, values);
+			if(node != null) {
+				var parameters = new HashMap<String, String>();
+				for(int i = 0; i < values.size(); i++)
+					parameters.put(node.parameterNames.get(i), values.get(i));
+				return new Match(node.route, node.endpoint, Collections.unmodifiableMap(parameters));
+			}
+		}
+		
+		for(var expression : expressions)
+			if(path.startsWith(expression.prefix) && expression.pattern.matcher(path).matches())
+				return new Match(expression.route, expression.endpoint, Map.of());
+		return null;
+	}
+	
+	private void addParameterized(String route, RouteEndpoint endpoint) {
+		if(!route.startsWith("/"))
+			throw new IllegalArgumentException("Parameterized routes must start with '/': " + route);
+		var node = root;
+		var names = new ArrayList<String>();
+		for(var segment : route.substring(1).split("/", -1)) {
+			if(segment.startsWith("{") && segment.endsWith("}")) {
+				var name = segment.substring(1, segment.length() - 1);
+				if(name.isEmpty())
+					throw new IllegalArgumentException("Unnamed parameter in route " + route);
+				names.add(name);
+				if(node.parameter == null)
+					node.parameter = new Node();
+				node = node.parameter;
+			} else
+				node = node.literals.computeIfAbsent(segment, s -> new Node());
+		}
+		node.parameterNames = names;
+		node.route = route;
+		node.endpoint = endpoint;
+	}
+	
+	private static boolean hasMetacharacters(String route) {
+		for(int i = 0; i < route.length(); i++)
+			if(METACHARACTERS.indexOf(route.charAt(i)) >= 0)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * result of a successful lookup
+	 */
+	public static final class Match {
+		private final String route;
+		private final RouteEndpoint endpoint;
+		private final Map<String, String> parameters;
+		
+		private Match(String route, RouteEndpoint endpoint, Map<String, String> parameters) {
+			this.route = route;
+			this.endpoint = endpoint;
+			this.parameters = parameters;
+		}
+		
+		/**
+		 * @return the route as it was added, e.g. <code>/users/{id}</code>
+		 */
+		public String getRoute() {
+			return route;
+		}
+		public RouteEndpoint getEndpoint() {
+			return endpoint;
+		}
+		/**
+		 * @return the values of the <code>{name}</code> segments of a parameterized route
+		 */
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+	}
+	
+	private static final class Node {
+		private final Map<String, Node> literals = new ConcurrentHashMap<>();
+		private volatile Node parameter;
+		private volatile RouteEndpoint endpoint;
+		private volatile String route;
+		private volatile List<String> parameterNames;
+		
+		boolean hasChildren() {
+			return !literals.isEmpty() || parameter != null;
+		}
+		
+		/**
+		 * matches the path from the given index onwards, collecting parameter values
+		 * @return the node of the matching route or null
+		 */
+		Node find(String path, int from, List<String> values) {
+			if(from > path.length())
+				return endpoint != null ? this : null;
+			int end = path.indexOf('/', from);
+			if(end < 0)
+				end = path.length();
+			var segment = path.substring(from, end);
+			
+			var literal = literals.get(segment);
+			if(literal != null) {
+				var found = literal.find(path, end + 1, values);
+				if(found != null)
+					return found;
+			}
+			if(parameter != null && !segment.isEmpty()) {
+				values.add(segment);
+				var found = parameter.find(path, end + 1, values);
+				if(found != null)
+					return found;
+				values.remove(values.size() - 1);
+			}
+			return null;
+		}
+	}
+	
+	private static final class RegexRoute {
+		private final String route, prefix;
+		private final Pattern pattern;
+		private final RouteEndpoint endpoint;
+		
+		RegexRoute(String route, Pattern pattern, RouteEndpoint endpoint) {
+			this.route = route;
+			this.pattern = pattern;
+			this.endpoint = endpoint;
+			prefix = literalPrefix(route);
+		}
+		
+		/**
+		 * @return the text every match has to start with, so most paths can be rejected without running the matcher
+		 */
+		private static String literalPrefix(String route) {
+			if(route.indexOf('|') >= 0)
+				return "";
+			int end = 0;
+			while(end < route.length() && METACHARACTERS.indexOf(route.charAt(end)) < 0)
+				end++;
+			// a quantifier makes the preceding character optional or repeatable
+			if(end < route.length() && end > 0 && "?*+{".indexOf(route.charAt(end)) >= 0)
+				end--;
+			return route.substring(0, end);
+		}
+	}
+}
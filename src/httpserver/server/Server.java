@@ -2,187 +2,1318 @@ package httpserver.server;
 
 import static httpserver.util.ColorUtil.rst;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.regex.PatternSyntaxException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import httpserver.util.BufferPool;
 import httpserver.util.ColorUtil;
 import httpserver.util.ColorUtil.Prefix;
 
 public class Server extends Thread {
-	private List<Session> sessions;
-	private Map<String, RouteEndpoint> routes;
-	private ServerSocket socket;
+	/**
+	 * unread request bodies up to this size are discarded to keep the connection, larger ones close it
+	 */
+	private static final long MAX_DISCARD = 64 * 1024;
+	private static final boolean REUSE_PORT = supportsReusePort();
+	private static final Set<String> TLS_PROTOCOLS = Set.of("TLSv1.3", "TLSv1.2");
+	
+	private Router routes;
+	/**
+	 * the listening socket of every acceptor thread. with SO_REUSEPORT each acceptor of an address has a socket
+	 * of its own and the kernel spreads the connections across them, otherwise the acceptors of an address share one
+	 */
+	private final List<ServerSocketChannel> listeners = new ArrayList<>();
+	/**
+	 * the bound addresses, with the port the system chose for port 0
+	 */
+	private final List<InetSocketAddress> addresses = new ArrayList<>();
+	private final int backlog;
+	private int acceptors = 1;
+	private volatile boolean tcpNoDelay = true;
+	private volatile int sendBufferSize, receiveBufferSize;
+	private NioEngine nio;
 	private Logger logger;
+	private int keepAliveTimeout = 5000;
+	private int maxRequestsPerConnection = 100;
+	private ConnectionDispatcher dispatcher = ConnectionDispatcher.threadPerConnection();
+	private RejectPolicy rejectPolicy = RejectPolicy.SERVICE_UNAVAILABLE;
+	private final BufferPool buffers = new BufferPool(16 * 1024, 4096, false);
+	private int maxRequestLineLength = 8 * 1024;
+	private int maxHeaderSize = 16 * 1024;
+	private long maxBodySize = 16 * 1024 * 1024;
+	private final ResponseCompression compression = new ResponseCompression();
+	private final ServerMetrics metrics = new ServerMetrics(this);
+	/**
+	 * expires the timeouts of asynchronous routes, created with the first of them
+	 */
+	private volatile ScheduledExecutorService timer;
+	private int maxConnections, maxInFlight;
+	private volatile LoadShedder shedder;
+	/**
+	 * connections of the blocking engine, so that they can be closed when the server is shut down
+	 */
+	private final Set<SocketConnection> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean stopping, drained;
+	private volatile long stopDeadline;
+	private volatile Duration webSocketPingInterval = Duration.ofSeconds(30);
+	private volatile int maxWebSocketMessageSize = 1024 * 1024;
+	private volatile boolean webSocketCompression;
+	private volatile boolean http2 = true;
+	private volatile int maxConcurrentStreams = 100;
+	private SSLContext tls;
+	private int tlsSessionCacheSize = 20480;
+	private Duration tlsSessionTimeout = Duration.ofHours(24);
+	private final Set<Protocol> protocols = ConcurrentHashMap.newKeySet();
+	/**
+	 * looks up the host names of clients for the log, null if lookups are disabled
+	 */
+	private volatile HostResolver resolver = new HostResolver();
 	
 	/**
 	 * 
 	 * */
 	public Server(int port, Logger logger) throws IOException {
-		socket = new ServerSocket(port);
+		this(port, logger, Engine.BLOCKING);
+	}
+	/**
+	 * @param engine the I/O model, {@link Engine#NIO} handles requests on a bounded pool by default
+	 */
+	public Server(int port, Logger logger, Engine engine) throws IOException {
+		this(port, logger, engine, 0);
+	}
+	/**
+	 * @param backlog how many connections the operating system queues until they are accepted, 0 for its default.
+	 * a long queue only adds waiting time once the server is saturated, a short one makes clients retry sooner
+	 */
+	public Server(int port, Logger logger, Engine engine, int backlog) throws IOException {
+		if(backlog < 0)
+			throw new IllegalArgumentException("backlog must not be negative");
+		this.backlog = backlog;
+		listen(new InetSocketAddress(port));
 		this.logger = logger;
-		routes = new HashMap<>();
-		sessions = new ArrayList<>();
+		routes = new Router();
+		if(engine == Engine.NIO) {
+			var cores = Runtime.getRuntime().availableProcessors();
+			nio = new NioEngine(this, cores);
+			dispatcher = ConnectionDispatcher.boundedPool(Math.max(8, cores * 4), 1024);
+		}
+	}
+	
+	/**
+	 * binds another address the server accepts connections on, e.g. a second port or only the loopback interface.
+	 * must be called before the server is started
+	 */
+	public void addListener(InetSocketAddress address) throws IOException {
+		if(isAlive())
+			throw new IllegalStateException("Server is already running");
+		listen(address);
+	}
+	/**
+	 * sets the number of threads that accept connections on each address, must be called before the server is started.
+	 * where the system supports SO_REUSEPORT every acceptor gets a listening socket of its own and the kernel spreads
+	 * new connections across them, otherwise the acceptors take turns on one socket. the addresses are bound again,
+	 * connections the system queued in the meantime are lost
+	 * @param count acceptors per address, 1 by default, which is enough unless connections are set up at a high rate
+	 */
+	public void setAcceptors(int count) throws IOException {
+		if(isAlive())
+			throw new IllegalStateException("Server is already running");
+		if(count < 1)
+			throw new IllegalArgumentException("at least one acceptor is required");
+		if(count == acceptors)
+			return;
+		var bound = new ArrayList<>(addresses);
+		closeListeners();
+		listeners.clear();
+		addresses.clear();
+		acceptors = count;
+		for(var address : bound)
+			listen(address);
+	}
+	public int getAcceptors() {
+		return acceptors;
+	}
+	/**
+	 * @return the addresses the server accepts connections on
+	 */
+	public List<InetSocketAddress> getLocalAddresses() {
+		return List.copyOf(addresses);
+	}
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	private void listen(InetSocketAddress address) throws IOException {
+		var reusePort = acceptors > 1 && REUSE_PORT;
+		var bound = new ArrayList<ServerSocketChannel>(acceptors);
+		try {
+			var first = open(address, reusePort);
+			bound.add(first);
+			address = (InetSocketAddress) first.getLocalAddress();
+			for(int i = 1; i < acceptors; i++)
+				bound.add(reusePort ? open(address, true) : first);
+		} catch(IOException e) {
+			for(var channel : bound)
+				channel.close();
+			throw e;
+		}
+		listeners.addAll(bound);
+		addresses.add(address);
+	}
+	private ServerSocketChannel open(InetSocketAddress address, boolean reusePort) throws IOException {
+		var channel = ServerSocketChannel.open();
+		try {
+			if(reusePort)
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			// accepted sockets inherit it, only before the handshake it also sizes the TCP window scale
+			if(receiveBufferSize > 0)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			channel.bind(address, backlog);
+			return channel;
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	private void closeListeners() {
+		for(var listener : listeners)
+			try {
+				listener.close();
+			} catch(IOException e) { }
 	}
 	
+	/**
+	 * registers an endpoint for a route, which is either a literal path, a path with named parameter segments
+	 * like <code>/users/{id}</code> (see {@link Session#getPathParameters()}) or a regular expression
+	 * @see Router
+	 */
 	public void route(String route, RouteEndpoint endpoint) {
-		routes.put(route, endpoint);
+		routes.add(route, endpoint);
+	}
+	/**
+	 * registers an endpoint that answers asynchronously and waits for it indefinitely
+	 * @see #routeAsync(String, AsyncRouteEndpoint, Duration)
+	 */
+	public void routeAsync(String route, AsyncRouteEndpoint endpoint) {
+		routeAsync(route, endpoint, null);
+	}
+	/**
+	 * registers an endpoint that answers asynchronously, the handler thread is released while its stage is pending.
+	 * with the {@link Engine#NIO} engine the stage is cancelled if the client disconnects while it is pending
+	 * and the request had no body
+	 * @param timeout how long the stage may take before it is cancelled and the request is answered with
+	 * 504 Gateway Timeout, or null to wait until it completes
+	 */
+	public void routeAsync(String route, AsyncRouteEndpoint endpoint, Duration timeout) {
+		if(timeout != null && (timeout.isNegative() || timeout.isZero()))
+			throw new IllegalArgumentException("timeout must be positive");
+		if(timeout != null && timer == null) {
+			synchronized(routes) {
+				if(timer == null) {
+					var executor = new ScheduledThreadPoolExecutor(1, task -> {
+						var thread = new Thread(task, "HttpServer-timer");
+						thread.setDaemon(true);
+						return thread;
+					});
+					executor.setRemoveOnCancelPolicy(true); // most timeouts are cancelled long before they expire
+					timer = executor;
+				}
+			}
+		}
+		routes.add(route, new AsyncRoute(endpoint, timeout));
+	}
+	/**
+	 * registers an endpoint that switches connections to the WebSocket protocol. requests that aren't a valid
+	 * handshake are answered with 400 Bad Request or 426 Upgrade Required. with the {@link Engine#NIO} engine
+	 * the connections are served by the event loops and don't hold a handler thread,
+	 * with the blocking engine each of them keeps its thread
+	 */
+	public void routeWebSocket(String route, WebSocketEndpoint endpoint) {
+		routes.add(route, new WebSocketRoute(endpoint));
+	}
+	
+	/**
+	 * sets how long an idle keep-alive connection is kept open while waiting for the next request
+	 * @param millis the idle timeout in milliseconds, 0 waits indefinitely
+	 */
+	public void setKeepAliveTimeout(int millis) {
+		if(millis < 0)
+			throw new IllegalArgumentException("timeout must not be negative");
+		keepAliveTimeout = millis;
+	}
+	public int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+	/**
+	 * sets how many requests may be served over a single connection before it is closed
+	 * @param max the maximum number of requests, 1 disables keep-alive
+	 */
+	public void setMaxRequestsPerConnection(int max) {
+		if(max < 1)
+			throw new IllegalArgumentException("at least one request per connection is required");
+		maxRequestsPerConnection = max;
+	}
+	public int getMaxRequestsPerConnection() {
+		return maxRequestsPerConnection;
+	}
+	
+	/**
+	 * sets the longest request line (method, resource and version) that is accepted,
+	 * longer ones are answered with 414 URI Too Long
+	 * @param bytes the maximum length in bytes
+	 */
+	public void setMaxRequestLineLength(int bytes) {
+		if(bytes < 16)
+			throw new IllegalArgumentException("request line limit is too small");
+		maxRequestLineLength = bytes;
+	}
+	public int getMaxRequestLineLength() {
+		return maxRequestLineLength;
+	}
+	/**
+	 * sets the largest header section that is accepted, larger ones are answered with 431 Request Header Fields Too Large
+	 * @param bytes the maximum size of all header lines in bytes
+	 */
+	public void setMaxHeaderSize(int bytes) {
+		if(bytes < 0)
+			throw new IllegalArgumentException("header size limit must not be negative");
+		maxHeaderSize = bytes;
+	}
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+	
+	/**
+	 * sets the largest request body that is accepted, larger ones are answered with 413 Request Entity Too Large.
+	 * bodies are streamed to the handler, so the limit doesn't determine how much memory a request takes
+	 * unless the handler buffers the body
+	 * @param bytes the maximum body size in bytes, 16 MiB by default
+	 */
+	public void setMaxBodySize(long bytes) {
+		if(bytes < 0)
+			throw new IllegalArgumentException("body size limit must not be negative");
+		maxBodySize = bytes;
+	}
+	public long getMaxBodySize() {
+		return maxBodySize;
+	}
+	
+	/**
+	 * sets whether responses are compressed with gzip or deflate when the client accepts it, enabled by default.
+	 * only bodies of a compressible Content-Type and at least the minimum size are compressed, bodies whose length
+	 * isn't known before they are sent are compressed with chunked transfer-encoding.
+	 * responses that set Content-Encoding themselves, e.g. precompressed files, are sent as they are
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		compression.enabled = enabled;
+	}
+	public boolean isCompressionEnabled() {
+		return compression.enabled;
+	}
+	/**
+	 * @param bytes smaller bodies are sent uncompressed, 1024 by default
+	 */
+	public void setCompressionMinSize(int bytes) {
+		if(bytes < 0)
+			throw new IllegalArgumentException("minimum size must not be negative");
+		compression.minSize = bytes;
+	}
+	public int getCompressionMinSize() {
+		return compression.minSize;
+	}
+	/**
+	 * @param level the deflate level from 1 (fastest) to 9 (smallest), or -1 for the default of zlib
+	 */
+	public void setCompressionLevel(int level) {
+		if(level < -1 || level > 9)
+			throw new IllegalArgumentException("compression level must be between -1 and 9");
+		compression.level = level;
+	}
+	public int getCompressionLevel() {
+		return compression.level;
+	}
+	/**
+	 * @param types the media types that are compressed, e.g. <code>application/json</code> or <code>text/*</code>.
+	 * by default common textual types are compressed
+	 */
+	public void setCompressibleTypes(Set<String> types) {
+		compression.types = types.stream().map(type -> type.trim().toLowerCase(Locale.ROOT)).collect(Collectors.toUnmodifiableSet());
+	}
+	public Set<String> getCompressibleTypes() {
+		return compression.types;
+	}
+	
+	/**
+	 * sets the strategy that decides on which thread accepted connections are handled,
+	 * must be called before the server is started
+	 * @see ConnectionDispatcher#threadPerConnection()
+	 * @see ConnectionDispatcher#virtualThreads()
+	 * @see ConnectionDispatcher#boundedPool(int, int)
+	 */
+	public void setDispatcher(ConnectionDispatcher dispatcher) {
+		if(isAlive())
+			throw new IllegalStateException("Server is already running");
+		this.dispatcher = dispatcher;
+	}
+	/**
+	 * @return the dispatcher, e.g. to read its queue depth and number of active handlers
+	 */
+	public ConnectionDispatcher getDispatcher() {
+		return dispatcher;
+	}
+	/**
+	 * sets what happens to connections the dispatcher rejects
+	 */
+	public void setRejectPolicy(RejectPolicy rejectPolicy) {
+		this.rejectPolicy = rejectPolicy;
+	}
+	public RejectPolicy getRejectPolicy() {
+		return rejectPolicy;
+	}
+	/**
+	 * limits the number of open connections, further ones are rejected right after they were accepted
+	 * as configured by {@link #setRejectPolicy(RejectPolicy)}
+	 * @param max the most connections open at once, 0 for no limit
+	 */
+	public void setMaxConnections(int max) {
+		if(max < 0)
+			throw new IllegalArgumentException("connection limit must not be negative");
+		maxConnections = max;
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	/**
+	 * limits the number of requests being handled at once, further ones are answered with 503 Service Unavailable
+	 * before their handler is called. asynchronous requests count until their stage has completed
+	 * @param max the most requests in flight, 0 for no limit
+	 */
+	public void setMaxInFlight(int max) {
+		if(max < 0)
+			throw new IllegalArgumentException("in-flight limit must not be negative");
+		maxInFlight = max;
+	}
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	/**
+	 * sheds load based on how long requests wait for a handler thread: once even the shortest wait within
+	 * 100 ms exceeds the target, requests that waited longer than the target are answered with 503 Service Unavailable
+	 * right away instead of adding to the latency of all others. short bursts are let through
+	 * @param target the acceptable queueing delay, e.g. 5 to 20 ms, or null to never shed requests
+	 */
+	public void setQueueDelayTarget(Duration target) {
+		if(target != null && (target.isNegative() || target.isZero()))
+			throw new IllegalArgumentException("target must be positive");
+		shedder = target == null ? null : new LoadShedder(target.toNanos());
+	}
+	public Duration getQueueDelayTarget() {
+		var shedder = this.shedder;
+		return shedder == null ? null : Duration.ofNanos(shedder.getTarget());
+	}
+	/**
+	 * sets how long a WebSocket may be idle before it is pinged, a client that doesn't answer within
+	 * another interval is disconnected
+	 * @param interval the idle time, 30 seconds by default, or null to never ping
+	 */
+	public void setWebSocketPingInterval(Duration interval) {
+		if(interval != null && (interval.isNegative() || interval.isZero()))
+			throw new IllegalArgumentException("ping interval must be positive");
+		webSocketPingInterval = interval;
+	}
+	public Duration getWebSocketPingInterval() {
+		return webSocketPingInterval;
+	}
+	/**
+	 * sets the largest WebSocket message that is accepted, the connection is closed with
+	 * {@link WebSocket#MESSAGE_TOO_BIG} if a client sends a larger one. messages are buffered whole
+	 * @param bytes the maximum size in bytes after decompression, 1 MiB by default
+	 */
+	public void setMaxWebSocketMessageSize(int bytes) {
+		if(bytes < 125)
+			throw new IllegalArgumentException("message size limit is too small");
+		maxWebSocketMessageSize = bytes;
+	}
+	public int getMaxWebSocketMessageSize() {
+		return maxWebSocketMessageSize;
+	}
+	/**
+	 * sets whether WebSockets are compressed with permessage-deflate if the client offers it, disabled by default.
+	 * messages are compressed on their own, at the level and from the minimum size of the response compression
+	 */
+	public void setWebSocketCompressionEnabled(boolean enabled) {
+		webSocketCompression = enabled;
+	}
+	public boolean isWebSocketCompressionEnabled() {
+		return webSocketCompression;
+	}
+	/**
+	 * sets whether clients may switch to HTTP/2 over cleartext, enabled by default. a client either upgrades
+	 * an HTTP/1.1 request without a body (h2c) or starts with the HTTP/2 preface right away.
+	 * WebSockets are only available over HTTP/1.1
+	 */
+	public void setHttp2Enabled(boolean enabled) {
+		http2 = enabled;
+	}
+	public boolean isHttp2Enabled() {
+		return http2;
+	}
+	/**
+	 * limits the number of requests an HTTP/2 client may have open on one connection,
+	 * each of them takes a handler thread of the dispatcher while it is answered
+	 * @param max the most streams at once, 100 by default
+	 */
+	public void setMaxConcurrentStreams(int max) {
+		if(max < 1)
+			throw new IllegalArgumentException("stream limit must be positive");
+		maxConcurrentStreams = max;
+	}
+	public int getMaxConcurrentStreams() {
+		return maxConcurrentStreams;
+	}
+	/**
+	 * serves HTTPS with the key and certificate chain of a keystore, see {@link #setTls(SSLContext)}
+	 * @param keyStore a PKCS12 or JKS file holding one private key entry
+	 * @param password the password of the keystore and its key
+	 */
+	public void setTls(Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+		var store = KeyStore.getInstance(keyStore.toFile(), password);
+		var keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(store, password);
+		var context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+		setTls(context);
+	}
+	/**
+	 * serves HTTPS instead of HTTP on all addresses, must be called before the server is started.
+	 * connections negotiate TLS 1.3 or 1.2 and, by ALPN, HTTP/2 if it is enabled. both engines encrypt in pooled
+	 * direct buffers, the NIO engine performs handshakes on its event loops. sendfile isn't available for
+	 * encrypted connections, files are copied through a buffer instead
+	 * @param context the context holding the server's keys, or null to serve HTTP
+	 */
+	public void setTls(SSLContext context) {
+		if(isAlive())
+			throw new IllegalStateException("Server is already running");
+		tls = context;
+		if(context != null) {
+			context.getServerSessionContext().setSessionCacheSize(tlsSessionCacheSize);
+			context.getServerSessionContext().setSessionTimeout((int) tlsSessionTimeout.toSeconds());
+		}
+	}
+	public SSLContext getTls() {
+		return tls;
+	}
+	/**
+	 * sets how many TLS sessions clients can resume and for how long, which saves them a full handshake
+	 * on a new connection. the JDK resumes sessions by stateless tickets unless the system property
+	 * <code>jdk.tls.server.enableSessionTicketExtension</code> is false, the cache then holds the sessions
+	 * @param size the most sessions cached, 20480 by default, 0 for no limit
+	 * @param timeout how long a session can be resumed, 24 hours by default
+	 */
+	public void setTlsSessionCache(int size, Duration timeout) {
+		if(size < 0)
+			throw new IllegalArgumentException("cache size must not be negative");
+		if(timeout.isNegative() || timeout.isZero())
+			throw new IllegalArgumentException("timeout must be positive");
+		tlsSessionCacheSize = size;
+		tlsSessionTimeout = timeout;
+		if(tls != null)
+			setTls(tls);
+	}
+	public int getTlsSessionCacheSize() {
+		return tlsSessionCacheSize;
+	}
+	public Duration getTlsSessionTimeout() {
+		return tlsSessionTimeout;
+	}
+	/**
+	 * sets whether the host names of clients are looked up for the log, enabled by default. lookups happen in the
+	 * background and are cached, a connection is logged with the host name only if it is known already
+	 */
+	public void setHostnameLookups(boolean enabled) {
+		if(enabled == (resolver != null))
+			return;
+		if(!enabled) {
+			resolver.shutdown();
+			resolver = null;
+		} else
+			resolver = new HostResolver();
+	}
+	public boolean isHostnameLookups() {
+		return resolver != null;
+	}
+	
+	/**
+	 * sets whether Nagle's algorithm is disabled on connections, which it is by default.
+	 * responses are written in as few writes as possible, delaying the last one only adds a round trip
+	 */
+	public void setTcpNoDelay(boolean noDelay) {
+		tcpNoDelay = noDelay;
+	}
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+	/**
+	 * sets the size of the socket send buffer of connections, a larger one lets large responses be written
+	 * with fewer wakeups on fast links
+	 * @param bytes the size in bytes, 0 for the system's default which it may tune automatically
+	 */
+	public void setSendBufferSize(int bytes) {
+		if(bytes < 0)
+			throw new IllegalArgumentException("buffer size must not be negative");
+		sendBufferSize = bytes;
+	}
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+	/**
+	 * sets the size of the socket receive buffer of connections, which also bounds the TCP window
+	 * @param bytes the size in bytes, 0 for the system's default which it may tune automatically
+	 */
+	public void setReceiveBufferSize(int bytes) throws IOException {
+		if(bytes < 0)
+			throw new IllegalArgumentException("buffer size must not be negative");
+		receiveBufferSize = bytes;
+		if(bytes > 0)
+			for(var listener : listeners)
+				listener.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+	}
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+	
+	/**
+	 * sets the number of selector threads of the {@link Engine#NIO} engine,
+	 * must be called before the server is started
+	 * @param count number of event loops, defaults to the number of available processors
+	 */
+	public void setEventLoops(int count) throws IOException {
+		if(nio == null)
+			throw new IllegalStateException("Event loops are only used by the NIO engine");
+		if(isAlive())
+			throw new IllegalStateException("Server is already running");
+		if(count < 1)
+			throw new IllegalArgumentException("at least one event loop is required");
+		nio = new NioEngine(this, count);
+	}
+	
+	/**
+	 * @return the counters and latency histograms of this server, see {@link ServerMetrics#endpoint()} to serve them
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
 	}
 	
 	public void run() {
 		logger.log(Level.INFO, 
-				"Serving HTTP on " + socket.getLocalSocketAddress());
-		while(!socket.isClosed()) {
+				"Serving " + (tls != null ? "HTTPS" : "HTTP") + " on " + addresses.stream().map(InetSocketAddress::toString).collect(Collectors.joining(", "))
+				+ (acceptors > 1 ? " with " + acceptors + " acceptors each" : ""));
+		if(nio != null)
+			nio.start();
+		var threads = new ArrayList<Thread>();
+		for(int i = 1; i < listeners.size(); i++) {
+			var listener = listeners.get(i);
+			var thread = new Thread(() -> accept(listener), "HttpServer-acceptor-" + i);
+			thread.setDaemon(isDaemon());
+			thread.start();
+			threads.add(thread);
+		}
+		accept(listeners.get(0));
+		for(var thread : threads)
 			try {
-				var client = socket.accept();
-				logger.log(Level.INFO, ColorUtil.fromIP(client.getInetAddress(), Prefix.BACKGROUND) +
-						"connected: " 
-							+ client.getInetAddress().getHostAddress()
-							+ " | " + client.getInetAddress().getHostName()
-				+ rst());
+				thread.join();
+			} catch(InterruptedException e) { }
+		
+		if(stopping)
+			drained = drain();
+		if(nio != null)
+			nio.shutdown();
+		dispatcher.shutdown();
+		if(timer != null)
+			timer.shutdownNow();
+		var resolver = this.resolver;
+		if(resolver != null)
+			resolver.shutdown();
+		logger.log(Level.INFO, "Server stopped");
+	}
+	/**
+	 * accepts connections from a listening socket and hands them off until it is closed
+	 */
+	private void accept(ServerSocketChannel listener) {
+		while(listener.isOpen()) {
+			try {
+				var client = listener.accept();
+				// everything else, from socket options to logging, is up to the thread the connection is handed to
+				long accepted = System.nanoTime();
+				metrics.connectionAccepted();
 				
-				new Thread(() -> {
-					try {
-						handle(client);
-						client.close();
-						logger.log(Level.INFO, ColorUtil.fromIP(client.getInetAddress(), Prefix.BACKGROUND) +
-								"disconnected: " + client.getInetAddress().getHostAddress()
-						+ rst());
-					} catch (IOException e) {
-						logger.log(Level.WARNING, ColorUtil.fromIP(client.getInetAddress(), Prefix.BACKGROUND) +
-								"I/O Exception: " + e.getMessage()
-						+ rst());
-					}
-				}).start();
+				if(maxConnections > 0 && metrics.getActiveConnections() > maxConnections) {
+					reject(new SocketConnection(client.socket(), buffers, newParser()));
+					continue;
+				}
+				if(nio != null) {
+					nio.register(client);
+					metrics.acceptCompleted(System.nanoTime() - accepted);
+					continue;
+				}
+				
+				var conn = new SocketConnection(client.socket(), buffers, newParser());
+				connections.add(conn);
+				if(!dispatcher.dispatch(() -> serve(conn, 1, accepted))) {
+					connections.remove(conn);
+					reject(conn);
+					continue;
+				}
+				metrics.acceptCompleted(System.nanoTime() - accepted);
 			} catch (IOException e) {
+				if(!listener.isOpen())
+					break; // shut down
 				logger.log(Level.WARNING, 
 						"I/O Exception: " + e.getMessage());
 			}
 		}
-		
-		logger.log(Level.INFO, "Server stopped");
 	}
 	
-	private void handle(Socket client) throws IOException {
-		var inStream = client.getInputStream();
-		var reader = new BufferedReader(new InputStreamReader(inStream));
-		final var address = client.getInetAddress();
+	/**
+	 * stops accepting connections and waits for the requests in flight to be answered, which close their connections
+	 * afterwards. idle keep-alive connections are closed once all requests have been answered
+	 * or the timeout expired, in which case the connections still busy are closed as well
+	 * @return whether all requests in flight have been answered in time
+	 */
+	public boolean shutdown(Duration timeout) throws InterruptedException {
+		stopDeadline = System.nanoTime() + timeout.toNanos();
+		stopping = true;
+		closeListeners();
+		if(getState() == State.NEW) {
+			// never started, nothing to drain
+			if(timer != null)
+				timer.shutdownNow();
+			return true;
+		}
+		join(Math.max(1, timeout.toMillis()) + 1000);
+		return drained;
+	}
+	/**
+	 * @return whether the server is shutting down or has been shut down
+	 */
+	public boolean isStopping() {
+		return stopping;
+	}
+	/**
+	 * waits until the requests in flight have been answered or the shutdown deadline passed, then closes all connections
+	 * @return whether all requests have been answered
+	 */
+	private boolean drain() {
+		logger.log(Level.INFO, "Draining " + metrics.getInFlight().size() + " requests");
+		for(var protocol : protocols)
+			try {
+				protocol.shutdown();
+			} catch(IOException e) { }
+		var drained = true;
+		try {
+			while(!metrics.getInFlight().isEmpty()) {
+				if(System.nanoTime() - stopDeadline >= 0) {
+					drained = false;
+					break;
+				}
+				Thread.sleep(10);
+			}
+		} catch(InterruptedException e) {
+			drained = false;
+		}
+		for(var conn : connections)
+			try {
+				conn.getSocket().close(); // the connection's thread cleans up
+			} catch(IOException e) { }
+		return drained;
+	}
+	
+	private void reject(SocketConnection conn) {
+		logRejected(conn);
+		metrics.connectionRejected();
+		try(conn) {
+			// a TLS client would need a handshake first, which is too much for the acceptor, it is just closed
+			if(rejectPolicy == RejectPolicy.SERVICE_UNAVAILABLE && tls == null) {
+				var session = new Session(conn, new HashMap<>(), new HashMap<>(), "HTTP/1.1", "");
+				session.setKeepAlive(false);
+				session.sendStatus(HttpStatus.SERVICE_UNAVAILABLE);
+				session.sendHeader("Retry-After", "1");
+				session.complete();
+				metrics.response(HttpStatus.SERVICE_UNAVAILABLE);
+			}
+		} catch(IOException e) {
+		} finally {
+			metrics.connectionClosed();
+		}
+	}
+	
+	/**
+	 * handles requests on a connection until it is closed or an asynchronous endpoint takes it over
+	 * @param served the number of the next request on this connection
+	 * @param queued when the connection was handed to the dispatcher
+	 */
+	private void serve(SocketConnection conn, int served, long queued) {
+		conn.queueDelay = System.nanoTime() - queued;
+		var pending = false;
+		try {
+			if(served == 1) {
+				configure(conn.getSocket().getChannel());
+				var engine = newSslEngine();
+				if(engine != null)
+					conn.startTls(engine);
+				logConnected(conn.getAddress());
+			}
+			pending = handle(conn, served);
+		} catch (IOException e) {
+			if(!stopping || !conn.getSocket().isClosed())
+				logIOException(conn, e);
+			return;
+		} catch(RuntimeException e) {
+			logHandlerFailure(conn, e);
+			return;
+		} finally {
+			if(!pending)
+				close(conn);
+		}
+		if(!pending)
+			logDisconnected(conn);
+	}
+	/**
+	 * continues with a connection on a new handler once an asynchronous response has been completed
+	 */
+	private void resume(SocketConnection conn, boolean keepAlive, int served) {
+		long queued = System.nanoTime();
+		if(keepAlive && dispatcher.dispatch(() -> serve(conn, served, queued)))
+			return;
+		close(conn);
+		logDisconnected(conn);
+	}
+	private void close(SocketConnection conn) {
+		connections.remove(conn);
+		try {
+			conn.close();
+		} catch(IOException e) {
+		} finally {
+			metrics.connectionClosed();
+		}
+	}
+	
+	/**
+	 * @return whether an asynchronous endpoint took the connection over
+	 */
+	private boolean handle(SocketConnection conn, int served) throws IOException {
+		conn.getSocket().setSoTimeout(keepAliveTimeout);
 		
-		String[] request = null;
-		var headers = new HashMap<String,String>();
-		var line = "";
-		while((line = reader.readLine()) != null && !line.isBlank()) {
-			if(request == null) {
-				request = line.split(" ");
+		for(; served <= maxRequestsPerConnection; served++) {
+			RequestHead head;
+			try {
+				head = conn.readHead();
+			} catch(SocketTimeoutException e) {
+				return false; // idle keep-alive connection timed out
+			} catch(RequestException e) {
+				logRequestError(conn, e);
+				var session = new Session(conn, new HashMap<>(), new HashMap<>(), "HTTP/1.1", "");
+				session.setKeepAlive(false);
+				session.sendStatus(e.getStatus());
+				session.complete();
+				metrics.response(e.getStatus());
+				conn.lingeringClose();
+				return false;
+			}
+			if(head == null)
+				return false;
+			var next = served + 1;
+			var outcome = respond(conn, head, served < maxRequestsPerConnection, keepAlive -> resume(conn, keepAlive, next));
+			if(outcome == Outcome.UPGRADED) {
+				serveProtocol(conn);
+				return false;
+			}
+			if(outcome != Outcome.KEEP_ALIVE)
+				return outcome == Outcome.PENDING;
+		}
+		return false;
+	}
+	
+	/**
+	 * reads the frames of a WebSocket or HTTP/2 connection until it is closed, waking up every second to keep it alive
+	 */
+	private void serveProtocol(SocketConnection conn) throws IOException {
+		var protocol = conn.protocol;
+		conn.getSocket().setSoTimeout(1000);
+		try {
+			if(!protocol.open() || conn.buffer.hasRemaining() && !protocol.receive(conn.buffer))
+				return;
+			while(true) {
+				try {
+					if(!conn.fill())
+						return;
+				} catch(SocketTimeoutException e) {
+					if(!protocol.keepAlive(System.currentTimeMillis()))
+						return;
+					continue;
+				}
+				if(!protocol.receive(conn.buffer))
+					return;
+			}
+		} catch(IOException e) {
+			// the client is gone, which the listener learns from the protocol being closed
+		} finally {
+			protocol.disconnected();
+		}
+	}
+	
+	/**
+	 * reads the body of a request and answers it
+	 * @param mayKeepAlive whether the connection may be reused if the client wants to
+	 * @param then called instead once the response has been completed if it is {@link Outcome#PENDING}
+	 */
+	Outcome respond(Connection conn, RequestHead head, boolean mayKeepAlive, Continuation then) throws IOException {
+		if(!conn.isFramed()) {
+			var outcome = switchToHttp2(conn, head, mayKeepAlive);
+			if(outcome != null)
+				return outcome;
+		}
+		var request = metrics.begin(conn, head);
+		Session session = null;
+		var pending = false;
+		try {
+			final var address = conn.getAddress();
+			if(logger.isLoggable(Level.INFO))
 				logger.log(Level.INFO, ColorUtil.fromIP(address) +
-						"[" + address.getHostAddress() + "] " + line
+						"[" + address.getHostAddress() + "] " + head.requestLine()
 				+ rst());
-				
-				if(request.length != 3) {
-					logger.log(Level.WARNING, ColorUtil.fromIP(address) +
-							"[" + address.getHostAddress() + "] < Bad request: " + line 
+			if(logger.isLoggable(Level.DEBUG))
+				for(int i = 0; i < head.headerCount(); i++)
+					logger.log(Level.DEBUG, ColorUtil.fromIP(address) +
+							"[" + address.getHostAddress() + "] " + head.headerName(i) + ": " + head.headerValue(i)
 					+ rst());
-					var session = new Session(client, "HTTP/1.1");
-					session.sendStatus(HttpStatus.BAD_REQUEST);
-					session.complete();
-					return;
-				}
-				continue;
-			} else
-				logger.log(Level.DEBUG, ColorUtil.fromIP(address) +
-						"[" + address.getHostAddress() + "] " + line
-				+ rst());
 			
-			if(!line.matches("([A-Za-z-]+):.+")) {
-				logger.log(Level.WARNING, "400 Bad Request: Illegal header formatting");
-				return;
+			session = new Session(conn, head.headers(), head.parameters(), head.httpVersion(), null);
+			session.setKeepAlive(mayKeepAlive && head.isKeepAlive() && !stopping);
+			session.setCompression(compression);
+			
+			RequestBody body;
+			try {
+				body = openBody(conn, head);
+			} catch(RequestException e) {
+				logger.log(Level.WARNING, e.getStatus().code + " " + e.getStatus().name() + ": " + e.getMessage());
+				session.setKeepAlive(false);
+				session.sendStatus(e.getStatus());
+				session.complete();
+				return Outcome.CLOSE;
 			}
+			session.setRequestBody(body, head.headerContains("Expect", "100-continue"));
 			
-			var header = line.split(":");
-			headers.put(header[0].trim(), header[1].trim());
-		}
-		if(request == null)
-			return;
-		
-		var parameters = new HashMap<String, String>();
-		var httpVersion = request[0];
-		var resource = request[1];
-		var resourceSplit = resource.split("\\?");
-		if(resourceSplit.length == 2) {
-			resource = resourceSplit[0];
-			var params = resourceSplit[1].split("&");
-			for(var param : params) {
-				if(!param.contains("=")) {
-					logger.log(Level.WARNING, ColorUtil.fromIP(address) +
-							"Illegal Parameter Formatting: " + line
-					+ rst());
-					return;
+			var match = routes.match(head.resource());
+			RouteEndpoint endpoint = (m,r,s) -> s.sendStatus(HttpStatus.NOT_FOUND);
+			if(match != null) {
+				endpoint = match.getEndpoint();
+				session.setPathParameters(match.getParameters());
+				request.setRoute(match.getRoute());
+			}
+			if(isOverloaded(conn)) {
+				metrics.requestShed();
+				session.sendStatus(HttpStatus.SERVICE_UNAVAILABLE);
+				session.sendHeader("Retry-After", "1");
+				if(!session.discardRequestBody(MAX_DISCARD))
+					session.setKeepAlive(false);
+				return complete(session) ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+			}
+			try {
+				long start = System.nanoTime();
+				CompletionStage<?> stage = null;
+				WebSocket webSocket = null;
+				try {
+					if(endpoint instanceof AsyncRoute async)
+						stage = async.endpoint.handle(head.method(), head.resource(), session);
+					else if(endpoint instanceof WebSocketRoute upgrade)
+						webSocket = WebSocket.accept(this, conn, head, session, upgrade.endpoint);
+					else
+						endpoint.handle(
+							head.method(),
+							head.resource(),
+							session
+						);
+				} catch(UncheckedIOException e) {
+					throw e.getCause(); // e.g. thrown by Session.getRequestBody()
+				} finally {
+					request.setHandlerTime(System.nanoTime() - start - session.getWriteTime());
+				}
+				if(stage != null) {
+					pending = true; // the response is finished once the stage completed
+					return await(conn, session, request, stage, ((AsyncRoute) endpoint).timeout, then);
+				}
+				if(webSocket != null) {
+					conn.protocol = webSocket;
+					return Outcome.UPGRADED;
 				}
-				parameters.put(param.split("=")[0].replaceAll("\\+", " "), param.split("=")[1].replaceAll("\\+", " "));
+				if(!session.isDisposed() && !session.discardRequestBody(MAX_DISCARD))
+					session.setKeepAlive(false);
+			} catch(RequestException e) {
+				// e.g. the body turned out to be too large while the handler was reading it
+				logRequestError(conn, e);
+				if(session.isDisposed() || session.isStatusSent())
+					throw e;
+				session.setKeepAlive(false);
+				session.sendStatus(e.getStatus());
+			} catch(RuntimeException e) {
+				// a failing endpoint is answered with 500 unless its response has begun, which can only be broken off
+				if(session.isDisposed() || session.isStatusSent())
+					throw e;
+				logHandlerFailure(conn, e);
+				session.setKeepAlive(false);
+				session.sendStatus(HttpStatus.INTERNAL_SERVER_ERROR);
+			}
+			
+			return complete(session) ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+		} finally {
+			if(!pending) {
+				metrics.end(request, session, conn);
+				conn.finishRequest();
 			}
 		}
-		if(resource.endsWith("?"))
-			resource = resource.substring(0, resource.length() - 1);
-		var session = new Session(client, headers, parameters, request[2]);
-		if(!resource.startsWith("/")) {
-			session.sendStatus(HttpStatus.BAD_REQUEST);
+	}
+	/**
+	 * @return whether the request should be shed instead of being handled,
+	 * because too many requests are in flight or it waited too long for a handler thread
+	 */
+	private boolean isOverloaded(Connection conn) {
+		long queueDelay = conn.queueDelay;
+		conn.queueDelay = 0; // only the first request after being dispatched has waited
+		var shedder = this.shedder;
+		if(shedder != null && shedder.shed(queueDelay, System.nanoTime()))
+			return true;
+		return maxInFlight > 0 && metrics.getInFlight().size() > maxInFlight;
+	}
+	/**
+	 * completes the session unless the handler did
+	 * @return whether the connection may be reused
+	 */
+	private boolean complete(Session session) throws IOException {
+		if(!session.isDisposed()) {
+			if(stopping)
+				session.setKeepAlive(false); // the request was already in flight when the server began to shut down
 			session.complete();
-			logger.log(Level.WARNING, ColorUtil.fromIP(address) + 
-					"[" + address.getHostAddress() + "] < Bad request: " + resource
-			+ rst());
-			return;
-		}
-		
-		var content_len = headers.get("Content-Length");
-		String str = "";
-		if(content_len != null) {
-			if(!content_len.matches("\\d+")) {
-				logger.log(Level.WARNING, "400 Bad Request: Expected numerical value for Content-Length");
-				session.sendStatus(HttpStatus.BAD_REQUEST);
-				return;
+		} else if(session.isKeepAlive() && !session.discardRequestBody(MAX_DISCARD))
+			return false;
+		return session.isKeepAlive() && !stopping;
+	}
+	
+	private Outcome await(Connection conn, Session session, ServerMetrics.Request request, CompletionStage<?> stage,
+			Duration timeout, Continuation then) {
+		var future = AsyncResponse.toFuture(stage);
+		if(future != null && future.isDone()) // e.g. answered from a cache, the connection doesn't need to be handed over
+			return finishAsync(conn, session, request, AsyncResponse.failure(future)) ? Outcome.KEEP_ALIVE : Outcome.CLOSE;
+		new AsyncResponse(this, conn, session, request, stage, then).start(timeout, timer);
+		return Outcome.PENDING;
+	}
+	/**
+	 * completes the response of an asynchronous endpoint whose stage completed, failed or timed out
+	 * @param failure what the stage failed with or null
+	 * @return whether the connection may be reused
+	 */
+	boolean finishAsync(Connection conn, Session session, ServerMetrics.Request request, Throwable failure) {
+		try {
+			if(failure == null) {
+				if(!session.isDisposed() && !session.discardRequestBody(MAX_DISCARD))
+					session.setKeepAlive(false);
+				return complete(session);
 			}
-			var len = Integer.parseInt(content_len);
-			while(str.length() < len) {
-				int c = reader.read();
-				str += (char) c;
+			while((failure instanceof CompletionException || failure instanceof ExecutionException
+					|| failure instanceof UncheckedIOException) && failure.getCause() != null)
+				failure = failure.getCause();
+			HttpStatus status;
+			if(failure instanceof RequestException e) {
+				logRequestError(conn, e);
+				status = e.getStatus();
+			} else {
+				status = failure instanceof TimeoutException ? HttpStatus.GATEWAY_TIMEOUT
+						: failure instanceof SocketTimeoutException ? HttpStatus.REQUEST_TIMEOUT // the client was too slow sending the body
+						: HttpStatus.INTERNAL_SERVER_ERROR;
+				if(logger.isLoggable(Level.WARNING))
+					logger.log(Level.WARNING, ColorUtil.fromIP(conn.getAddress()) +
+							"[" + conn.getAddress().getHostAddress() + "] < " + status.code + " " + failure
+					+ rst());
 			}
+			if(session.isDisposed() || session.isStatusSent())
+				return false; // the response has already begun, it can only be cut off
+			session.setKeepAlive(false);
+			session.sendStatus(status);
+			session.complete();
+			return false;
+		} catch(IOException e) {
+			logIOException(conn, e);
+			return false;
+		} finally {
+			metrics.end(request, session, conn);
+			conn.finishRequest();
+		}
+	}
+	/**
+	 * records a request whose client disconnected before its asynchronous endpoint answered it
+	 */
+	void abandonAsync(Connection conn, Session session, ServerMetrics.Request request) {
+		metrics.end(request, session, conn);
+		conn.finishRequest();
+	}
+	
+	/**
+	 * switches the connection to HTTP/2 if the request is the preface of a client with prior knowledge
+	 * or asks to upgrade to h2c
+	 * @return the outcome if the request has been answered, null if it is answered as HTTP/1.1
+	 */
+	private Outcome switchToHttp2(Connection conn, RequestHead head, boolean mayKeepAlive) throws IOException {
+		if(head.isPreface()) {
+			if(!http2 || stopping) {
+				var session = new Session(conn, new HashMap<>(), new HashMap<>(), "HTTP/1.1", "");
+				session.setKeepAlive(false);
+				session.sendStatus(HttpStatus.HTTP_VERSION_NOT_SUPPORTED);
+				session.complete();
+				metrics.response(HttpStatus.HTTP_VERSION_NOT_SUPPORTED);
+				conn.finishRequest();
+				return Outcome.CLOSE;
+			}
+			conn.finishRequest();
+			conn.protocol = new Http2Connection(this, conn, null, null);
+			return Outcome.UPGRADED;
+		}
+		// h2c is only for cleartext, over TLS HTTP/2 is negotiated by ALPN and starts with the preface
+		if(!http2 || stopping || !mayKeepAlive || conn.isSecure() || !head.headerContains("Upgrade", "h2c")
+				|| !head.httpVersion().equals("HTTP/1.1") || head.indexOf("Transfer-Encoding") >= 0)
+			return null;
+		try {
+			if(head.contentLength() > 0)
+				return null; // the body would have to be read before switching, which isn't worth it
+		} catch(RequestException e) {
+			return null; // answered as HTTP/1.1
+		}
+		int i = head.indexOf("HTTP2-Settings");
+		var settings = i < 0 ? null : Http2Connection.decodeSettings(head.headerValue(i));
+		if(settings == null)
+			return null;
+		var upgrade = Http2Connection.upgradeHead(head);
+		conn.write(ByteBuffer.wrap("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+				.getBytes(StandardCharsets.US_ASCII)));
+		conn.finishRequest();
+		conn.protocol = new Http2Connection(this, conn, upgrade, settings);
+		return Outcome.UPGRADED;
+	}
+	
+	/**
+	 * @return a stream over the body announced by the head, bounded by the maximum body size
+	 */
+	private RequestBody openBody(Connection conn, RequestHead head) throws RequestException {
+		var contentLength = head.contentLength();
+		if(conn instanceof Http2Stream stream)
+			return stream.openBody(contentLength, maxBodySize);
+		if(head.isChunked()) {
+			if(contentLength >= 0)
+				throw new RequestException(HttpStatus.BAD_REQUEST, "Both Content-Length and Transfer-Encoding are present");
+			return new ChunkedBody(conn.getInputStream(), maxBodySize);
+		}
+		if(contentLength > maxBodySize)
+			throw new RequestException(HttpStatus.REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxBodySize + " bytes");
+		if(contentLength <= 0)
+			return RequestBody.EMPTY;
+		return new FixedLengthBody(conn.getInputStream(), contentLength);
+	}
+	
+	void protocolOpened(Protocol protocol) {
+		protocols.add(protocol);
+	}
+	void protocolClosed(Protocol protocol) {
+		protocols.remove(protocol);
+	}
+	ResponseCompression getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * applies the socket options to an accepted connection
+	 */
+	void configure(SocketChannel channel) throws IOException {
+		if(tcpNoDelay)
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		if(sendBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+		if(receiveBufferSize > 0)
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+	}
+	/**
+	 * @return an engine for a new connection or null if the server doesn't use TLS
+	 */
+	SSLEngine newSslEngine() {
+		var context = tls;
+		if(context == null)
+			return null;
+		var engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		var parameters = engine.getSSLParameters();
+		parameters.setProtocols(Arrays.stream(engine.getSupportedProtocols()).filter(TLS_PROTOCOLS::contains).toArray(String[]::new));
+		parameters.setUseCipherSuitesOrder(true);
+		engine.setSSLParameters(parameters);
+		engine.setHandshakeApplicationProtocolSelector((e, offered) ->
+				http2 && offered.contains("h2") ? "h2" : offered.contains("http/1.1") ? "http/1.1" : "");
+		return engine;
+	}
+	HttpRequestParser newParser() {
+		return new HttpRequestParser(buffers, maxRequestLineLength, maxHeaderSize);
+	}
+	BufferPool getBufferPool() {
+		return buffers;
+	}
+	
+	/**
+	 * called by the thread that took over a newly accepted connection, never blocks on a name lookup
+	 */
+	void logConnected(InetAddress address) {
+		if(!logger.isLoggable(Level.INFO))
+			return;
+		var resolver = this.resolver;
+		var host = resolver != null ? resolver.lookup(address) : null;
+		logger.log(Level.INFO, ColorUtil.fromIP(address, Prefix.BACKGROUND) +
+				"connected: " 
+					+ address.getHostAddress()
+					+ (host != null ? " | " + host : "")
+		+ rst());
+	}
+	void logDisconnected(Connection conn) {
+		if(!logger.isLoggable(Level.INFO))
+			return;
+		logger.log(Level.INFO, ColorUtil.fromIP(conn.getAddress(), Prefix.BACKGROUND) +
+				"disconnected: " + conn.getAddress().getHostAddress()
+		+ rst());
+	}
+	void logRejected(Connection conn) {
+		if(!logger.isLoggable(Level.WARNING))
+			return;
+		logger.log(Level.WARNING, ColorUtil.fromIP(conn.getAddress(), Prefix.BACKGROUND) +
+				"rejected: " + conn.getAddress().getHostAddress()
+				+ " (" + dispatcher.getQueueDepth() + " queued, " + dispatcher.getActiveHandlers() + " active)"
+		+ rst());
+	}
+	void logRequestError(Connection conn, RequestException e) {
+		if(!logger.isLoggable(Level.WARNING))
+			return;
+		logger.log(Level.WARNING, ColorUtil.fromIP(conn.getAddress()) +
+				"[" + conn.getAddress().getHostAddress() + "] < " + e.getStatus().code + " " + e.getMessage()
+		+ rst());
+	}
+	void logIOException(Connection conn, IOException e) {
+		if(!logger.isLoggable(Level.WARNING))
+			return;
+		logger.log(Level.WARNING, ColorUtil.fromIP(conn.getAddress(), Prefix.BACKGROUND) +
+				"I/O Exception: " + e.getMessage()
+		+ rst());
+	}
+	void logHandlerFailure(Connection conn, RuntimeException e) {
+		logger.log(Level.ERROR, ColorUtil.fromIP(conn.getAddress(), Prefix.BACKGROUND) +
+				"Endpoint failed: " + e
+		+ rst(), e);
+	}
+	void logFailure(String message) {
+		logger.log(Level.ERROR, message);
+	}
+	
+	private static boolean supportsReusePort() {
+		try(var channel = ServerSocketChannel.open()) {
+			return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch(IOException e) {
+			return false;
 		}
-		session.setRequestBody(str);
+	}
+	
+	/**
+	 * what becomes of a connection once {@link Server#respond} returns
+	 */
+	enum Outcome {
+		KEEP_ALIVE,
+		CLOSE,
+		/**
+		 * an asynchronous endpoint is still answering, the engine must leave the connection alone
+		 */
+		PENDING,
+		/**
+		 * the connection has been switched to its {@link Connection#protocol}, the engine serves it from now on
+		 */
+		UPGRADED
+	}
+	/**
+	 * continues with a connection once its pending response has been completed
+	 */
+	interface Continuation {
+		void resume(boolean keepAlive);
+	}
+	
+	/**
+	 * adapts an asynchronous endpoint to the router, the server recognizes it and doesn't wait for its stage
+	 */
+	private static final class AsyncRoute implements RouteEndpoint {
+		final AsyncRouteEndpoint endpoint;
+		final Duration timeout;
 		
-		sessions.add(session);
+		AsyncRoute(AsyncRouteEndpoint endpoint, Duration timeout) {
+			this.endpoint = endpoint;
+			this.timeout = timeout;
+		}
 		
-		getRoute(resource)
-			.orElseGet(() -> (m,r,s) -> s.sendStatus(HttpStatus.NOT_FOUND))
-			.handle(
-				httpVersion,
-				resource,
-				session
-			);
+		/**
+		 * only called when the router is used on its own, waits for the stage
+		 */
+		@Override
+		public void handle(String method, String resource, Session session) throws IOException {
+			endpoint.handle(method, resource, session).toCompletableFuture().join();
+		}
+	}
+	/**
+	 * adapts a WebSocket endpoint to the router, the server recognizes it and performs the handshake
+	 */
+	private static final class WebSocketRoute implements RouteEndpoint {
+		final WebSocketEndpoint endpoint;
 		
-		if(!session.isDisposed())
-			session.complete();
+		WebSocketRoute(WebSocketEndpoint endpoint) {
+			this.endpoint = endpoint;
+		}
 		
-		sessions.remove(session);
-	}
-	
-	private Optional<RouteEndpoint> getRoute(String route) {
-		if(routes.containsKey(route))
-			return Optional.of(routes.get(route));
-		for(var entry : routes.entrySet())
-			try {
-				if(route.matches(entry.getKey()))
-					return Optional.of(entry.getValue());
-			} catch(PatternSyntaxException e) { }
-		return Optional.empty();
+		/**
+		 * only called when the router is used on its own, which can't switch protocols
+		 */
+		@Override
+		public void handle(String method, String resource, Session session) throws IOException {
+			session.sendStatus(HttpStatus.UPGRADE_REQUIRED);
+			session.sendHeader("Upgrade", "websocket");
+		}
 	}
 }
@@ -0,0 +1,352 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and per-route latency histograms of a {@link Server} and the requests it is handling right now.
+ * everything is recorded with lock-free adders, so the metrics are always on.
+ * {@link #endpoint()} serves them in the Prometheus text format, e.g.
+ * <code>server.route("/metrics", server.getMetrics().endpoint())</code>
+ */
+public final class ServerMetrics {
+	/**
+	 * the route label of requests no route matched
+	 */
+	public static final String UNMATCHED = "unmatched";
+	/**
+	 * upper bounds of the histogram buckets in seconds
+	 */
+	private static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	private static final String[] BUCKET_LABELS = new String[BUCKETS.length];
+	static {
+		for(int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+			BUCKET_LABELS[i] = Double.toString(BUCKETS[i]);
+		}
+	}
+	
+	private final Server server;
+	private final LongAdder accepted = new LongAdder(), closed = new LongAdder(), rejected = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder(), bytesSent = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+	/**
+	 * how long the acceptor spends on each connection until it has been handed off
+	 */
+	private final Histogram accept = new Histogram();
+	/**
+	 * the second the accept rate is counted in, advanced by the first acceptor that notices the next one
+	 */
+	private final AtomicLong acceptSecond = new AtomicLong();
+	/**
+	 * connections accepted before the current second and during the one before it
+	 */
+	private volatile long acceptedBefore, acceptedLastSecond;
+	/**
+	 * responses by status class, 1xx to 5xx
+	 */
+	private final LongAdder[] responses = new LongAdder[5];
+	private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+	private final Set<Request> inFlight = ConcurrentHashMap.newKeySet();
+	
+	ServerMetrics(Server server) {
+		this.server = server;
+		for(int i = 0; i < responses.length; i++)
+			responses[i] = new LongAdder();
+	}
+	
+	void connectionAccepted() {
+		accepted.increment();
+	}
+	/**
+	 * records a connection the acceptor has handed off
+	 * @param nanos the time since it was accepted
+	 */
+	void acceptCompleted(long nanos) {
+		accept.record(nanos);
+		long second = System.nanoTime() / 1_000_000_000L, current = acceptSecond.get();
+		if(second != current && acceptSecond.compareAndSet(current, second)) {
+			long total = accepted.sum();
+			acceptedLastSecond = second == current + 1 ? total - acceptedBefore : 0;
+			acceptedBefore = total;
+		}
+	}
+	void connectionClosed() {
+		closed.increment();
+	}
+	void connectionRejected() {
+		rejected.increment();
+	}
+	void requestShed() {
+		shed.increment();
+	}
+	void response(HttpStatus status) {
+		if(status != null && status.code >= 100 && status.code < 600)
+			responses[status.code / 100 - 1].increment();
+	}
+	
+	/**
+	 * registers a request whose head has been parsed, it is in flight until {@link #end(Request, Session, Connection)}
+	 */
+	Request begin(Connection conn, RequestHead head) {
+		var request = new Request(conn.getAddress(), head.method(), head.resource(), conn.parser.getParseTime());
+		inFlight.add(request);
+		return request;
+	}
+	/**
+	 * records a request that has been answered or failed
+	 * @param session the session of the request, null if none was created
+	 */
+	void end(Request request, Session session, Connection conn) {
+		inFlight.remove(request);
+		bytesReceived.add(conn.takeBytesRead());
+		var route = routes.get(request.route);
+		if(route == null)
+			route = routes.computeIfAbsent(request.route, r -> new RouteMetrics());
+		route.parse.record(request.parseTime);
+		if(request.handlerTime >= 0)
+			route.handler.record(request.handlerTime);
+		if(session == null)
+			return;
+		bytesSent.add(session.getBytesWritten());
+		route.write.record(session.getWriteTime());
+		if(session.isDisposed())
+			response(session.getStatus());
+	}
+	
+	public long getConnectionsAccepted() {
+		return accepted.sum();
+	}
+	public long getConnectionsClosed() {
+		return closed.sum();
+	}
+	/**
+	 * @return connections that have been accepted but not closed yet
+	 */
+	public long getActiveConnections() {
+		return Math.max(0, accepted.sum() - closed.sum());
+	}
+	/**
+	 * @return connections accepted during the last full second
+	 */
+	public long getAcceptRate() {
+		long second = System.nanoTime() / 1_000_000_000L, current = acceptSecond.get();
+		if(second == current)
+			return acceptedLastSecond;
+		return second == current + 1 ? accepted.sum() - acceptedBefore : 0;
+	}
+	/**
+	 * @return connections that were closed right away because the dispatcher didn't accept them
+	 * or too many connections were open
+	 */
+	public long getConnectionsRejected() {
+		return rejected.sum();
+	}
+	/**
+	 * @return requests that were answered with 503 without calling their handler because the server was overloaded
+	 */
+	public long getRequestsShed() {
+		return shed.sum();
+	}
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+	/**
+	 * @param statusClass 1 to 5 for 1xx to 5xx
+	 */
+	public long getResponses(int statusClass) {
+		if(statusClass < 1 || statusClass > 5)
+			throw new IllegalArgumentException("Status class must be between 1 and 5");
+		return responses[statusClass - 1].sum();
+	}
+	/**
+	 * @return a live view of the requests that are being handled
+	 */
+	public Collection<Request> getInFlight() {
+		return Collections.unmodifiableSet(inFlight);
+	}
+	
+	/**
+	 * @return an endpoint that answers GET requests with the metrics in the Prometheus text format
+	 */
+	public RouteEndpoint endpoint() {
+		return (method, resource, session) -> {
+			if(!method.equals("GET") && !method.equals("HEAD")) {
+				session.sendStatus(HttpStatus.METHOD_NOT_ALLOWED);
+				session.sendHeader("Allow", "GET, HEAD");
+				return;
+			}
+			var text = new StringBuilder(4096);
+			writePrometheus(text);
+			session.sendStatus(HttpStatus.OK);
+			session.sendHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			session.sendHeader("Cache-Control", "no-store");
+			if(method.equals("GET"))
+				session.sendBody(text.toString());
+		};
+	}
+	
+	/**
+	 * writes all metrics in the Prometheus text exposition format
+	 */
+	public void writePrometheus(Appendable out) throws IOException {
+		counter(out, "httpserver_connections_accepted_total", "Connections accepted.", accepted.sum());
+		counter(out, "httpserver_connections_closed_total", "Connections closed.", closed.sum());
+		counter(out, "httpserver_connections_rejected_total", "Connections rejected because the dispatcher was saturated or the connection limit reached.", rejected.sum());
+		gauge(out, "httpserver_connections_active", "Connections currently open.", getActiveConnections());
+		gauge(out, "httpserver_accept_rate", "Connections accepted during the last full second.", getAcceptRate());
+		header(out, "httpserver_accept_duration_seconds", "Time the acceptor spent per connection until it was handed off.", "histogram");
+		accept.write(out, "httpserver_accept_duration_seconds", "");
+		counter(out, "httpserver_received_bytes_total", "Bytes received from clients.", bytesReceived.sum());
+		counter(out, "httpserver_sent_bytes_total", "Bytes of responses written to clients.", bytesSent.sum());
+		
+		header(out, "httpserver_responses_total", "Responses by status class.", "counter");
+		for(int i = 0; i < responses.length; i++)
+			out.append("httpserver_responses_total{class=\"").append(Integer.toString(i + 1)).append("xx\"} ")
+					.append(Long.toString(responses[i].sum())).append('\n');
+		
+		long oldest = 0, now = System.currentTimeMillis();
+		int count = 0;
+		for(var request : inFlight) {
+			oldest = Math.max(oldest, now - request.startTime);
+			count++;
+		}
+		gauge(out, "httpserver_requests_in_flight", "Requests being handled.", count);
+		counter(out, "httpserver_requests_shed_total", "Requests answered with 503 because the server was overloaded.", shed.sum());
+		header(out, "httpserver_request_oldest_in_flight_seconds", "Age of the oldest request being handled.", "gauge");
+		out.append("httpserver_request_oldest_in_flight_seconds ").append(Double.toString(oldest / 1e3)).append('\n');
+		var dispatcher = server.getDispatcher();
+		gauge(out, "httpserver_dispatcher_queued", "Connections waiting for a handler thread.", dispatcher.getQueueDepth());
+		gauge(out, "httpserver_dispatcher_active", "Handler threads that are busy.", dispatcher.getActiveHandlers());
+		
+		header(out, "httpserver_request_duration_seconds", "Time spent per request and phase: parsing the head, "
+				+ "in the handler excluding writes and writing the response.", "histogram");
+		for(var entry : routes.entrySet()) {
+			var route = escape(entry.getKey());
+			var metrics = entry.getValue();
+			metrics.parse.write(out, "httpserver_request_duration_seconds", "route=\"" + route + "\",phase=\"parse\",");
+			metrics.handler.write(out, "httpserver_request_duration_seconds", "route=\"" + route + "\",phase=\"handler\",");
+			metrics.write.write(out, "httpserver_request_duration_seconds", "route=\"" + route + "\",phase=\"write\",");
+		}
+	}
+	private static void counter(Appendable out, String name, String help, long value) throws IOException {
+		header(out, name, help, "counter");
+		out.append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+	private static void gauge(Appendable out, String name, String help, long value) throws IOException {
+		header(out, name, help, "gauge");
+		out.append(name).append(' ').append(Long.toString(value)).append('\n');
+	}
+	private static void header(Appendable out, String name, String help, String type) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	private static String escape(String label) {
+		if(label.indexOf('\\') < 0 && label.indexOf('"') < 0 && label.indexOf('\n') < 0)
+			return label;
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	/**
+	 * a request that is being handled
+	 */
+	public static final class Request {
+		private final InetAddress address;
+		private final String method, resource;
+		private final long startTime, parseTime;
+		private volatile String route = UNMATCHED;
+		/**
+		 * nanoseconds in the handler without the time spent writing, -1 until the handler returned
+		 */
+		private long handlerTime = -1;
+		
+		private Request(InetAddress address, String method, String resource, long parseTime) {
+			this.address = address;
+			this.method = method;
+			this.resource = resource;
+			this.parseTime = parseTime;
+			startTime = System.currentTimeMillis();
+		}
+		
+		void setRoute(String route) {
+			this.route = route;
+		}
+		void setHandlerTime(long nanos) {
+			handlerTime = nanos;
+		}
+		
+		public InetAddress getAddress() {
+			return address;
+		}
+		public String getMethod() {
+			return method;
+		}
+		public String getResource() {
+			return resource;
+		}
+		/**
+		 * @return the route that matched the resource or {@link ServerMetrics#UNMATCHED}
+		 */
+		public String getRoute() {
+			return route;
+		}
+		/**
+		 * @return when the head had been parsed, in milliseconds since the epoch
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+	}
+	
+	private static final class RouteMetrics {
+		final Histogram parse = new Histogram(), handler = new Histogram(), write = new Histogram();
+	}
+	
+	/**
+	 * a Prometheus histogram with fixed buckets, counts are kept per bucket and accumulated when written
+	 */
+	private static final class Histogram {
+		private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder sum = new LongAdder();
+		
+		Histogram() {
+			for(int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+		
+		void record(long nanos) {
+			int i = 0;
+			while(i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i])
+				i++;
+			counts[i].increment();
+			sum.add(nanos);
+		}
+		
+		/**
+		 * @param labels the labels of the series, each followed by a comma
+		 */
+		void write(Appendable out, String name, String labels) throws IOException {
+			long cumulative = 0;
+			for(int i = 0; i < counts.length; i++) {
+				cumulative += counts[i].sum();
+				out.append(name).append("_bucket{").append(labels)
+						.append("le=\"").append(i < BUCKETS.length ? BUCKET_LABELS[i] : "+Inf").append("\"} ")
+						.append(Long.toString(cumulative)).append('\n');
+			}
+			var series = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+			out.append(name).append("_sum").append(series).append(' ').append(Double.toString(sum.sum() / 1e9)).append('\n');
+			out.append(name).append("_count").append(series).append(' ').append(Long.toString(cumulative)).append('\n');
+		}
+	}
+}
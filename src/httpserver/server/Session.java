@@ -1,25 +1,67 @@
 package httpserver.server;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 
+import httpserver.util.BufferPool;
+
 public class Session {
+	private static final BufferPool BODY_BUFFERS = new BufferPool(16 * 1024, 1024, false);
+	
 	private boolean disposed = false;
 	
 	// request
+	private Connection connection;
 	private OutputStream outputStream;
-	private BufferedWriter writer;
-	private Map<String, String> requestHeaders, parameters;
+	private Map<String, String> requestHeaders, parameters, pathParameters = Map.of();
 	private String httpVersion, body;
+	private RequestBody bodyStream;
+	private byte[] bodyBytes;
+	private boolean expectContinue;
 	
 	// response
 	private HttpStatus status;
+	private boolean keepAlive = true, sentContentLength, sentDate, sentConnection, sentEncoding;
+	/**
+	 * the values of the headers the body is sent according to, the length is only written with the rest of the head
+	 * because it doesn't apply to a compressed body
+	 */
+	private String contentLength, contentType;
+	/**
+	 * the head until it has been written, then null
+	 */
+	private ResponseHead head;
+	/**
+	 * body data that hasn't been written yet, in write mode
+	 */
+	private ByteBuffer pending;
+	private ResponseCompression compression;
+	private boolean uncompressed, chunked;
+	private CompressedBody compressor;
+	/**
+	 * trailer fields sent after the last chunk, null if there are none
+	 */
+	private StringBuilder trailers;
+	/**
+	 * what has been written to the client so far and the nanoseconds spent on it
+	 */
+	private long bytesWritten, writeTime;
+	/**
+	 * records the response for a {@link ResponseCache} as it is sent, or null
+	 */
+	private ResponseCache.Capture capture;
 	
 	public Session(Socket client, String httpVersion) throws IOException {
 		this(client, new HashMap<>(), httpVersion);
@@ -31,11 +73,18 @@ public class Session {
 		this(client, requestHeaders, parameters, httpVersion, "");
 	}
 	public Session(Socket client, Map<String,String> requestHeaders, Map<String,String> parameters, String httpVersion, String body) throws IOException {
+		this(client.getOutputStream(), requestHeaders, parameters, httpVersion, body);
+	}
+	Session(Connection connection, Map<String,String> requestHeaders, Map<String,String> parameters, String httpVersion, String body) {
+		this(connection.getOutputStream(), requestHeaders, parameters, httpVersion, body);
+		this.connection = connection;
+	}
+	Session(OutputStream outputStream, Map<String,String> requestHeaders, Map<String,String> parameters, String httpVersion, String body) {
 		this.requestHeaders = requestHeaders;
 		this.httpVersion = httpVersion;
 		this.parameters = parameters;
 		this.body = body;
-		writer = new BufferedWriter(new OutputStreamWriter(outputStream = client.getOutputStream()));
+		this.outputStream = outputStream;
 	}
 	
 	public void setRequestHeaders(Map<String,String> requestHeaders) {
@@ -50,6 +99,10 @@ public class Session {
 	public void setRequestBody(String body) {
 		this.body = body;
 	}
+	void setRequestBody(RequestBody bodyStream, boolean expectContinue) {
+		this.bodyStream = bodyStream;
+		this.expectContinue = expectContinue;
+	}
 	
 	
 	public Optional<String> requestHeader(String key) {
@@ -61,12 +114,128 @@ public class Session {
 	public Map<String,String> getParameters() {
 		return Map.copyOf(parameters);
 	}
+	/**
+	 * @return the values of the named segments of the matched route, e.g. <code>id</code> for <code>/users/{id}</code>
+	 */
+	public Map<String,String> getPathParameters() {
+		return pathParameters;
+	}
+	public Optional<String> pathParameter(String name) {
+		return Optional.ofNullable(pathParameters.get(name));
+	}
+	void setPathParameters(Map<String,String> pathParameters) {
+		this.pathParameters = pathParameters;
+	}
 	public String getHttpVersion() {
 		return httpVersion;
 	}
+	/**
+	 * reads the whole body and decodes it as UTF-8, prefer {@link #getRequestBodyStream()} for large or binary bodies
+	 * @throws UncheckedIOException If the body couldn't be read
+	 */
 	public String getRequestBody() {
+		if(body == null)
+			try {
+				body = new String(getRequestBodyBytes(), StandardCharsets.UTF_8);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		return body;
 	}
+	/**
+	 * reads the whole body into an array, which is allocated once if the client announced the length
+	 * @throws RequestException If the body exceeds the maximum body size of the server
+	 * @throws IllegalStateException If the body has already been consumed through {@link #getRequestBodyStream()}
+	 */
+	public byte[] getRequestBodyBytes() throws IOException {
+		if(bodyBytes != null)
+			return bodyBytes;
+		if(bodyStream == null)
+			return bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+		var stream = getRequestBodyStream();
+		var length = bodyStream.length();
+		if(length > Integer.MAX_VALUE - 8)
+			throw new RequestException(HttpStatus.REQUEST_ENTITY_TOO_LARGE, "Body is too large to be buffered");
+		bodyBytes = length >= 0 ? stream.readNBytes((int) length) : stream.readAllBytes();
+		return bodyBytes;
+	}
+	/**
+	 * @return a stream of the body as it arrives from the client, ending at the end of the body.
+	 * the stream is consumed in constant memory, a body sent with chunked transfer-encoding is decoded
+	 */
+	public InputStream getRequestBodyStream() throws IOException {
+		if(bodyStream == null)
+			return new ByteArrayInputStream(getRequestBodyBytes());
+		if(expectContinue) {
+			// the client waits for permission before sending the body
+			expectContinue = false;
+			if(status == null)
+				write(ByteBuffer.wrap(ResponseHead.encodedStatusLine(httpVersion, HttpStatus.CONTINUE)), ByteBuffer.wrap(ResponseHead.CRLF));
+		}
+		return bodyStream;
+	}
+	/**
+	 * discards the unread rest of the body so that the connection can be reused
+	 * @return false if the connection has to be closed because the body couldn't be discarded
+	 */
+	boolean discardRequestBody(long max) throws IOException {
+		if(bodyStream == null)
+			return true;
+		if(expectContinue)
+			return false; // the client never got to send the body
+		return bodyStream.skipRemaining(max);
+	}
+	/**
+	 * @return whether the request announced a body, whether it has been read or not
+	 */
+	boolean hasRequestBody() {
+		return bodyStream != null && bodyStream != RequestBody.EMPTY;
+	}
+	void setCompression(ResponseCompression compression) {
+		this.compression = compression;
+	}
+	ResponseCompression getCompression() {
+		return compression;
+	}
+	/**
+	 * @return the content-coding a complete body of the given length would be compressed with for this request, or null
+	 */
+	String negotiateEncoding(HttpStatus status, String contentType, long length) {
+		if(compression == null || requestHeaders == null)
+			return null;
+		return compression.negotiate(requestHeaders.get("Accept-Encoding"), status, contentType, length);
+	}
+	void setCapture(ResponseCache.Capture capture) {
+		this.capture = capture;
+	}
+	boolean isStatusSent() {
+		return status != null;
+	}
+	/**
+	 * @return the status of the response, also once it has been completed
+	 */
+	HttpStatus getStatus() {
+		return status;
+	}
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+	long getWriteTime() {
+		return writeTime;
+	}
+	
+	/**
+	 * @param keepAlive whether the connection should stay open for further requests after this response
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+	/**
+	 * @return whether the connection can be reused after this response has been completed
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
 	
 	/**
 	 * sends a status code with http version to the client
@@ -81,10 +250,31 @@ public class Session {
 			throw new IllegalStateException("Status has already been set");
 		
 		this.status = status;
-		writer.write(httpVersion + " " + status.code + " " + status.name() + "\r\n");
+		head = new ResponseHead();
+		head.status(httpVersion, status);
+		if(capture != null)
+			capture.status(status);
+	}
+	/**
+	 * starts a response replayed by a {@link ResponseCache}, whose header lines are already encoded.
+	 * the body has to follow with the given length, compressed with the given content-coding
+	 * @param encoding the content-coding the body is compressed with, or null
+	 */
+	void sendCached(HttpStatus status, byte[] headerLines, String encoding, long length) throws IOException {
+		sendStatus(status);
+		head.put(headerLines);
+		if(encoding != null) {
+			head.header("Content-Encoding", encoding);
+			head.header("Vary", "Accept-Encoding");
+		}
+		uncompressed = true; // the cache chose the coding
+		if(allowsBody()) {
+			sentContentLength = true;
+			contentLength = Long.toString(length);
+		}
 	}
 	/**
-	 * sends a header to the client
+	 * sends a header to the client. Content-Length and Date are added automatically if they haven't been sent
 	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
 	 * @throws IllegalStateException If the status hasn't been set, the session has been disposed or body data has already been sent
 	 */
@@ -95,26 +285,227 @@ public class Session {
 			throw new IllegalStateException("Status has not been set");
 		if(sentBodyData)
 			throw new IllegalStateException("Body data has already been sent");
-		writer.write(key + ": " + value + "\r\n");
+		if(capture != null)
+			capture.header(key, value);
+		if(key.equalsIgnoreCase("Content-Length")) {
+			sentContentLength = true;
+			contentLength = value;
+			return;
+		} else if(key.equalsIgnoreCase("Transfer-Encoding") || key.equalsIgnoreCase("Content-Encoding")) {
+			// the handler encodes the body itself
+			sentContentLength |= key.equalsIgnoreCase("Transfer-Encoding");
+			sentEncoding = true;
+		} else if(key.equalsIgnoreCase("Content-Type"))
+			contentType = value;
+		else if(key.equalsIgnoreCase("Date"))
+			sentDate = true;
+		else if(key.equalsIgnoreCase("Connection")) {
+			sentConnection = true;
+			if(value.equalsIgnoreCase("close"))
+				keepAlive = false;
+		}
+		head.header(key, value);
 	}
 	
 	private boolean sentBodyData;
 	/**
-	 * sends body-data to the client, it will also ensure that the body is seperated by a newline
-	 * 
-	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
-	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 * terminates the response head, announcing the length of the body and whether the connection stays open
+	 * @param length the length of the whole body as sent, or -1 if it isn't known yet
+	 * @param encoding the content-coding the body is compressed with, or null
 	 */
-	public void sendBody(String body) throws IOException {
+	private void endHead(long length, String encoding) {
+		if(encoding != null) {
+			head.header("Content-Encoding", encoding);
+			head.header("Vary", "Accept-Encoding");
+		} else if(contentLength != null)
+			head.header("Content-Length", contentLength);
+		if((encoding != null || !sentContentLength) && allowsBody()) {
+			if(length >= 0)
+				head.header("Content-Length", Long.toString(length));
+			else if(httpVersion.equals("HTTP/1.0"))
+				keepAlive = false; // the body is delimited by closing the connection
+			else if(!isFramed()) {
+				chunked = true;
+				head.header("Transfer-Encoding", "chunked");
+			}
+		}
+		if(!sentDate)
+			head.put(ResponseHead.dateHeader());
+		if(!sentConnection && !isFramed()) {
+			if(!keepAlive)
+				head.put(ResponseHead.CONNECTION_CLOSE);
+			else if(httpVersion.equals("HTTP/1.0"))
+				head.put(ResponseHead.CONNECTION_KEEP_ALIVE);
+		}
+		head.put(ResponseHead.CRLF);
+	}
+	/**
+	 * @return whether the transport delimits the body, e.g. with the end of an HTTP/2 stream
+	 */
+	private boolean isFramed() {
+		return connection != null && connection.isFramed();
+	}
+	/**
+	 * @return whether the status allows a body, the others must not announce a length (RFC 9110, section 8.6)
+	 */
+	private boolean allowsBody() {
+		return status.code >= 200 && status != HttpStatus.NO_CONTENT && status != HttpStatus.NOT_MODIFIED;
+	}
+	private void startBody() {
 		if(disposed)
 			throw new IllegalStateException("Session is disposed");
 		if(status == null)
 			throw new IllegalStateException("Status has not been set");
-		if(!sentBodyData) {
-			writer.write("\r\n");
-			sentBodyData = true;
+		sentBodyData = true;
+		if(pending == null)
+			pending = BODY_BUFFERS.acquire();
+	}
+	/**
+	 * writes the head if it hasn't been written, the buffered body data and the further data with one gathering write.
+	 * when the head is written it is decided whether the body is compressed
+	 * @param last whether the further data ends the body, so that its length is known
+	 */
+	private void writePending(boolean last, ByteBuffer further) throws IOException {
+		var body = pending == null || pending.position() == 0 ? null : pending.flip();
+		try {
+			if(head != null)
+				writeHead(last, body, further);
+			else if(compressor != null) {
+				if(body != null)
+					compressor.write(body, this::writeChunk);
+				if(further != null)
+					compressor.write(further, this::writeChunk);
+			} else {
+				writeBody(body, further, last);
+				return;
+			}
+			if(last && compressor != null)
+				compressor.finish(this::writeChunk);
+			if(last && chunked)
+				write(lastChunk());
+		} finally {
+			if(body != null)
+				body.clear();
+		}
+	}
+	private void writeHead(boolean last, ByteBuffer body, ByteBuffer further) throws IOException {
+		long length = -1;
+		if(last && (trailers == null || httpVersion.equals("HTTP/1.0") || isFramed()))
+			length = remaining(body) + remaining(further);
+		String encoding = null;
+		if(compression != null && !uncompressed && !sentEncoding && requestHeaders != null)
+			encoding = compression.negotiate(requestHeaders.get("Accept-Encoding"), status, contentType,
+					last ? length : parseLength(contentLength));
+		
+		if(encoding == null) {
+			endHead(length, null);
+			if(chunked) {
+				long size = remaining(body) + remaining(further);
+				write(head.flip(), size == 0 ? null : chunkSize(size), body, further, size == 0 ? null : ByteBuffer.wrap(ResponseHead.CRLF));
+			} else
+				write(head.flip(), body, further);
+		} else if(last) {
+			// the whole body is known, so it is compressed at once and sent with its length
+			var compressed = CompressedBody.compress(compression, encoding.equals("gzip"), body, further);
+			endHead(compressed.length, encoding);
+			write(head.flip(), ByteBuffer.wrap(compressed));
+		} else {
+			chunked = !httpVersion.equals("HTTP/1.0") && !isFramed();
+			compressor = new CompressedBody(compression, encoding.equals("gzip"));
+			endHead(-1, encoding);
+			write(head.flip());
+			if(body != null)
+				compressor.write(body, this::writeChunk);
+			if(further != null)
+				compressor.write(further, this::writeChunk);
+		}
+		head.release();
+		head = null;
+	}
+	private static long parseLength(String contentLength) {
+		if(contentLength == null)
+			return -1;
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch(NumberFormatException e) {
+			return -1;
 		}
-		writer.write(body);
+	}
+	/**
+	 * writes data as one chunk of a body with chunked transfer-encoding, or as it is if the body isn't chunked
+	 */
+	private void writeChunk(ByteBuffer data) throws IOException {
+		writeBody(data, null, false);
+	}
+	/**
+	 * writes body data after the head, as one chunk if the body is chunked
+	 * @param last whether the data ends the body, the last chunk is then written with it
+	 */
+	private void writeBody(ByteBuffer data, ByteBuffer further, boolean last) throws IOException {
+		if(!chunked) {
+			write(data, further);
+			return;
+		}
+		long size = remaining(data) + remaining(further);
+		if(size == 0) {
+			if(last)
+				write(lastChunk());
+			return;
+		}
+		write(chunkSize(size), data, further, ByteBuffer.wrap(ResponseHead.CRLF), last ? lastChunk() : null);
+	}
+	private static ByteBuffer chunkSize(long size) {
+		return ByteBuffer.wrap((Long.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+	}
+	private ByteBuffer lastChunk() {
+		if(trailers == null)
+			return ByteBuffer.wrap(ResponseHead.LAST_CHUNK);
+		return ByteBuffer.wrap(("0\r\n" + trailers + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+	private static long remaining(ByteBuffer buffer) {
+		return buffer == null ? 0 : buffer.remaining();
+	}
+	/**
+	 * writes the buffers to the connection, skipping nulls
+	 */
+	private void write(ByteBuffer... srcs) throws IOException {
+		int n = 0;
+		for(var src : srcs)
+			if(src != null && src.hasRemaining())
+				srcs[n++] = src;
+		if(n == 0)
+			return;
+		long start = System.nanoTime();
+		for(int i = 0; i < n; i++)
+			bytesWritten += srcs[i].remaining();
+		if(connection != null)
+			connection.write(n == srcs.length ? srcs : Arrays.copyOf(srcs, n));
+		else {
+			for(int i = 0; i < n; i++) {
+				var src = srcs[i];
+				if(src.hasArray()) {
+					outputStream.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+					src.position(src.limit());
+				} else {
+					var copy = new byte[src.remaining()];
+					src.get(copy);
+					outputStream.write(copy);
+				}
+			}
+			outputStream.flush();
+		}
+		writeTime += System.nanoTime() - start;
+	}
+	
+	/**
+	 * sends body-data to the client encoded as UTF-8.
+	 * body-data is buffered, a body that is sent completely before the buffer has to be written gets its Content-Length automatically
+	 * 
+	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void sendBody(String body) throws IOException {
+		sendBody(body.getBytes(StandardCharsets.UTF_8));
 	}
 	/**
 	 * sends body-data to the client
@@ -123,16 +514,7 @@ public class Session {
 	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
 	 */
 	public void sendBody(byte[] body) throws IOException {
-		if(disposed)
-			throw new IllegalStateException("Session is disposed");
-		if(status == null)
-			throw new IllegalStateException("Status has not been set");
-		if(!sentBodyData) {
-			writer.write("\r\n");
-			sentBodyData = true;
-		}
-		outputStream.write(body);
-		outputStream.flush();
+		sendBody(body, 0, body.length);
 	}
 	/**
 	 * sends n bytes of the body-data to the client
@@ -141,21 +523,156 @@ public class Session {
 	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
 	 */
 	public void sendBody(byte[] body, int offset, int length) throws IOException {
+		startBody();
+		if(capture != null)
+			capture.body(ByteBuffer.wrap(body, offset, length));
+		if(length <= pending.remaining())
+			pending.put(body, offset, length);
+		else
+			writePending(false, ByteBuffer.wrap(body, offset, length));
+	}
+	/**
+	 * sends the remaining bytes of the buffer as body-data to the client, without copying them where the connection allows it
+	 * 
+	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void sendBody(ByteBuffer body) throws IOException {
+		startBody();
+		if(capture != null)
+			capture.body(body.duplicate());
+		if(body.remaining() <= pending.remaining())
+			pending.put(body);
+		else
+			writePending(false, body);
+	}
+	/**
+	 * sends a region of a file as body-data to the client. the bytes are handed to the kernel
+	 * without being copied into the heap where the connection allows it
+	 * 
+	 * @throws IOException If an I/O error occurs (e.g. the client disconnects) or the file is shorter than the region
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void sendBody(FileChannel file, long position, long count) throws IOException {
+		startBody();
+		if(count == 0)
+			return; // an empty chunk would end a chunked body
+		if(capture != null)
+			capture.refuse();
+		uncompressed = true; // files are transferred as they are, unless compression has already started
+		writePending(false, null);
+		if(compressor != null) {
+			var buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+			while(count > 0) {
+				buf.clear().limit((int) Math.min(buf.capacity(), count));
+				int n = file.read(buf, position);
+				if(n < 0)
+					throw new EOFException("File ended before the requested region");
+				writePending(false, buf.flip());
+				position += n;
+				count -= n;
+			}
+			return;
+		}
+		if(chunked)
+			write(chunkSize(count));
+		long start = System.nanoTime();
+		bytesWritten += count;
+		if(connection != null) {
+			connection.transferFrom(file, position, count);
+			writeTime += System.nanoTime() - start;
+			if(chunked)
+				write(ByteBuffer.wrap(ResponseHead.CRLF));
+			return;
+		}
+		var buf = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+		while(count > 0) {
+			buf.clear().limit((int) Math.min(buf.capacity(), count));
+			int n = file.read(buf, position);
+			if(n < 0)
+				throw new EOFException("File ended before the requested region");
+			outputStream.write(buf.array(), 0, n);
+			position += n;
+			count -= n;
+		}
+		outputStream.flush();
+		writeTime += System.nanoTime() - start;
+		if(chunked)
+			write(ByteBuffer.wrap(ResponseHead.CRLF));
+	}
+	/**
+	 * writes the head right away and streams the body from now on: every {@link #flush()} sends the body-data
+	 * buffered so far, as one chunk of chunked transfer-encoding unless a Content-Length has been sent.
+	 * the body isn't compressed, so that what is flushed reaches the client as it is.
+	 * for HTTP/1.0 clients the body ends by closing the connection
+	 * 
+	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void startStream() throws IOException {
+		startBody();
+		if(capture != null)
+			capture.refuse();
+		uncompressed = true;
+		writePending(false, null);
+	}
+	/**
+	 * sends a trailer field after the body, e.g. a checksum computed while streaming it. trailers can be sent until
+	 * the session is completed and are only sent with a chunked body: a response whose head hasn't been written yet is
+	 * chunked because of them, for HTTP/1.0 clients and bodies with a Content-Length they are left out.
+	 * HTTP/2 clients get them with any body
+	 * 
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void sendTrailer(String key, String value) {
 		if(disposed)
 			throw new IllegalStateException("Session is disposed");
 		if(status == null)
 			throw new IllegalStateException("Status has not been set");
-		if(!sentBodyData) {
-			writer.write("\r\n");
-			sentBodyData = true;
-		}
-		writer.flush(); // make sure to not mess up order
-		outputStream.write(body, offset, length);
-		outputStream.flush();
+		if(capture != null)
+			capture.refuse();
+		if(trailers == null)
+			trailers = new StringBuilder();
+		trailers.append(key).append(": ").append(value).append("\r\n");
+	}
+	/**
+	 * @return a stream that sends what is written to it as body-data, flushing it {@link #flush() flushes} the session.
+	 * closing the stream doesn't complete the session
+	 */
+	public OutputStream getResponseBodyStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				sendBody(new byte[] { (byte) b });
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				sendBody(b, off, len);
+			}
+			@Override
+			public void flush() throws IOException {
+				Session.this.flush();
+			}
+		};
+	}
+	/**
+	 * writes the head and the buffered body-data to the client. a response that is flushed before its body is complete
+	 * is sent with chunked transfer-encoding unless it announced its Content-Length, for HTTP/1.0 clients the connection
+	 * is closed after it
+	 * 
+	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
+	 * @throws IllegalStateException If the status hasn't been set or the session has been disposed
+	 */
+	public void flush() throws IOException {
+		startBody();
+		writePending(false, null);
+		if(compressor != null)
+			compressor.flush(this::writeChunk);
 	}
 	
 	/**
-	 * completes the transaction and disposes this session
+	 * completes the transaction and disposes this session, the connection itself is left open
+	 * so that it can be reused for further requests if {@link #isKeepAlive()} permits
 	 * 
 	 * @throws IOException If an I/O error occurs (e.g. the client disconnects)
 	 * @throws IllegalStateException If the session has already been disposed
@@ -163,20 +680,58 @@ public class Session {
 	public void complete() throws IOException {
 		if(disposed)
 			throw new IllegalStateException("Session is disposed");
-		writer.write("\r\n");
-		writer.flush();
-		outputStream.flush();
-		writer.close();
-		outputStream.close();
-		
-		writer = null;
-		requestHeaders = null;
-		status = null;
-		disposed = true;
+		if(status == null)
+			sendStatus(HttpStatus.NO_CONTENT);
+		try {
+			writePending(true, null);
+			if(connection != null)
+				connection.completeResponse(isFramed() ? trailers : null);
+		} finally {
+			if(compressor != null)
+				compressor.release();
+			if(head != null)
+				head.release();
+			if(pending != null)
+				BODY_BUFFERS.release(pending);
+			head = null;
+			pending = null;
+			compressor = null;
+			requestHeaders = null;
+			disposed = true;
+		}
 	}
 	
 	
 	public boolean isDisposed() {
 		return disposed;
 	}
+	
+	/**
+	 * @return whether the body is sent with chunked transfer-encoding, known once the head has been written
+	 */
+	boolean isChunked() {
+		return chunked;
+	}
+	/**
+	 * writes body data that is already encoded for the transfer-coding of the body, e.g. a chunk shared by many responses.
+	 * the head has to be written and nothing may be buffered, as after {@link #startStream()}
+	 */
+	void writeEncoded(ByteBuffer... data) throws IOException {
+		if(disposed)
+			throw new IllegalStateException("Session is disposed");
+		if(head != null || compressor != null || pending != null && pending.position() > 0)
+			throw new IllegalStateException("Stream has not been started");
+		write(data);
+	}
+	/**
+	 * closes the connection under a thread that may be blocked writing to it, e.g. to drop a client that stopped reading
+	 */
+	void abort() {
+		if(connection != null)
+			connection.abort();
+		else
+			try {
+				outputStream.close();
+			} catch(IOException e) { }
+	}
 }
@@ -0,0 +1,152 @@
+package httpserver.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import javax.net.ssl.SSLEngine;
+
+import httpserver.util.BufferPool;
+
+/**
+ * connection on a blocking socket, reads honour the socket's SO_TIMEOUT, also while TLS is used
+ */
+class SocketConnection extends Connection {
+	private static final int LINGER_TIMEOUT = 1000, MAX_LINGER_BYTES = 64 * 1024;
+	
+	private final Socket socket;
+	private final InputStream in;
+	private OutputStream out;
+	/**
+	 * the TLS the connection is encrypted with, or null
+	 */
+	private TlsChannel tls;
+	
+	SocketConnection(Socket socket, BufferPool pool, HttpRequestParser parser) throws IOException {
+		super(socket.getInetAddress(), pool, parser);
+		this.socket = socket;
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+	}
+	
+	Socket getSocket() {
+		return socket;
+	}
+	
+	/**
+	 * encrypts the connection, must be called before anything is read. the handshake is performed by the first read
+	 */
+	void startTls(SSLEngine engine) {
+		var channel = socket.getChannel();
+		tls = new TlsChannel(engine, Channels.newChannel(in), channel != null ? channel : Channels.newChannel(out));
+		out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				SocketConnection.this.write(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+	@Override
+	boolean isSecure() {
+		return tls != null;
+	}
+	
+	@Override
+	int read(ByteBuffer dst) throws IOException {
+		if(tls != null)
+			return tls.read(dst);
+		int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+		if(n > 0)
+			dst.position(dst.position() + n);
+		return n;
+	}
+	@Override
+	void write(ByteBuffer... srcs) throws IOException {
+		if(tls != null) {
+			// the transport blocks, so everything is written by the time the call returns
+			while(hasRemaining(srcs))
+				tls.write(srcs);
+			return;
+		}
+		var channel = socket.getChannel();
+		if(channel != null) {
+			while(hasRemaining(srcs))
+				channel.write(srcs);
+			return;
+		}
+		for(var src : srcs) {
+			if(src.hasArray()) {
+				out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				src.position(src.limit());
+			} else {
+				var copy = new byte[src.remaining()];
+				src.get(copy);
+				out.write(copy);
+			}
+		}
+	}
+	/**
+	 * sockets accepted from a channel let the kernel copy the file (sendfile on Linux) unless it has to be encrypted
+	 */
+	@Override
+	void transferFrom(FileChannel file, long position, long count) throws IOException {
+		var channel = socket.getChannel();
+		if(channel == null || tls != null) {
+			super.transferFrom(file, position, count);
+			return;
+		}
+		while(count > 0) {
+			long n = file.transferTo(position, count, channel);
+			if(n == 0 && position >= file.size())
+				throw new EOFException("File ended before the requested region");
+			position += n;
+			count -= n;
+		}
+	}
+	@Override
+	OutputStream getOutputStream() {
+		return out;
+	}
+	
+	/**
+	 * closes the connection after an error response without resetting it, so that the client gets to read the response
+	 * even if it is still sending the rest of its request
+	 */
+	void lingeringClose() throws IOException {
+		socket.shutdownOutput();
+		socket.setSoTimeout(LINGER_TIMEOUT);
+		var discard = new byte[4096];
+		int total = 0, n;
+		try {
+			while(total < MAX_LINGER_BYTES && (n = in.read(discard)) >= 0)
+				total += n;
+		} catch(IOException e) { }
+		close();
+	}
+	
+	@Override
+	void abort() {
+		try {
+			socket.close();
+		} catch(IOException e) { }
+	}
+	
+	@Override
+	public void close() throws IOException {
+		releaseBuffer();
+		parser.reset();
+		// without a close_notify, which could block on a client that stopped reading. responses are delimited anyway
+		socket.close();
+		if(tls != null)
+			tls.close();
+	}
+}
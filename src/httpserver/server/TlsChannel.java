@@ -0,0 +1,318 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import httpserver.util.BufferPool;
+
+/**
+ * TLS over a transport by an {@link SSLEngine}, reads and writes block or return 0 like those of the transport.
+ * the reads perform the handshake, writes never wait for the client and refuse renegotiation.
+ * records are kept in pooled direct buffers only while they have content.
+ * reads and writes may run on different threads at once.
+ */
+final class TlsChannel {
+	/**
+	 * twice the largest standard record with its overhead, which also fits the larger records some clients send
+	 */
+	private static final int BUFFER_SIZE = 2 * 17 * 1024;
+	private static final BufferPool BUFFERS = new BufferPool(BUFFER_SIZE, 1024, true);
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	
+	private final SSLEngine engine;
+	private final ReadableByteChannel in;
+	private final WritableByteChannel out;
+	
+	// guarded by readLock, both in read mode
+	private final ReentrantLock readLock = new ReentrantLock();
+	/**
+	 * received records that haven't been decrypted yet, the last one usually incomplete
+	 */
+	private ByteBuffer netIn = EMPTY;
+	/**
+	 * decrypted bytes that haven't been read yet
+	 */
+	private ByteBuffer appIn = EMPTY;
+	private boolean started, inboundDone;
+	
+	// guarded by writeLock, in read mode
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * encrypted records that haven't been written yet
+	 */
+	private ByteBuffer netOut = EMPTY;
+	
+	/**
+	 * the operation the transport has to become ready for before the last read that returned 0 can continue
+	 */
+	private volatile int readInterest = SelectionKey.OP_READ;
+	
+	/**
+	 * @param engine a server engine, the handshake begins with the first read
+	 */
+	TlsChannel(SSLEngine engine, ReadableByteChannel in, WritableByteChannel out) {
+		this.engine = engine;
+		this.in = in;
+		this.out = out;
+	}
+	
+	/**
+	 * @return the protocol the client and server agreed on during the handshake by ALPN, e.g. <code>h2</code>,
+	 * null if the handshake hasn't completed yet and an empty string if none was negotiated
+	 */
+	String getApplicationProtocol() {
+		return engine.getApplicationProtocol();
+	}
+	
+	/**
+	 * @return the number of bytes read, 0 if the transport isn't ready or -1 once the client closed the connection
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		readLock.lock();
+		try {
+			if(!started) {
+				engine.beginHandshake();
+				started = true;
+			}
+			while(true) {
+				if(appIn.hasRemaining()) {
+					int n = Math.min(dst.remaining(), appIn.remaining());
+					dst.put(appIn.slice(appIn.position(), n));
+					appIn.position(appIn.position() + n);
+					if(!appIn.hasRemaining())
+						appIn = release(appIn);
+					return n;
+				}
+				if(inboundDone)
+					return -1;
+				var status = engine.getHandshakeStatus();
+				if(status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+				if(status == HandshakeStatus.NEED_WRAP) {
+					// the server's part of the handshake, or the tickets for resuming the session afterwards
+					if(!wrapHandshake()) {
+						readInterest = SelectionKey.OP_WRITE;
+						return 0;
+					}
+					continue;
+				}
+				if(netIn.hasRemaining() && unwrap())
+					continue;
+				int n = receive();
+				if(n == 0) {
+					readInterest = SelectionKey.OP_READ;
+					return 0;
+				}
+				if(n < 0) {
+					inboundDone = true;
+					netIn = release(netIn);
+					return -1; // the client closed its side, possibly without a close_notify
+				}
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+	/**
+	 * decrypts the next record that is complete
+	 * @return false if more has to be received first
+	 */
+	private boolean unwrap() throws IOException {
+		appIn = appIn == EMPTY ? BUFFERS.acquire() : appIn.compact();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			appIn.flip();
+			if(!appIn.hasRemaining())
+				appIn = release(appIn);
+			if(!netIn.hasRemaining())
+				netIn = release(netIn);
+		}
+		switch(result.getStatus()) {
+		case CLOSED:
+			inboundDone = true; // a close_notify, answered by the next wrap
+			return true;
+		case BUFFER_UNDERFLOW:
+			return false;
+		case BUFFER_OVERFLOW:
+			throw new SSLException("Record exceeds " + BUFFER_SIZE + " bytes");
+		default:
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0
+					|| result.getHandshakeStatus() == HandshakeStatus.NEED_TASK || result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+		}
+	}
+	/**
+	 * reads from the transport behind what is buffered
+	 */
+	private int receive() throws IOException {
+		if(netIn == EMPTY)
+			netIn = BUFFERS.acquire();
+		else
+			netIn.compact();
+		if(!netIn.hasRemaining()) {
+			netIn.flip();
+			throw new SSLException("Record exceeds " + BUFFER_SIZE + " bytes");
+		}
+		int n;
+		try {
+			n = in.read(netIn);
+		} finally {
+			netIn.flip();
+			if(!netIn.hasRemaining())
+				netIn = release(netIn);
+		}
+		return n;
+	}
+	/**
+	 * @return whether bytes have been received that haven't been read yet, the transport won't report them as readable
+	 */
+	boolean hasBuffered() {
+		return appIn.hasRemaining() || netIn.hasRemaining();
+	}
+	
+	/**
+	 * encrypts as much as can be written, records that didn't fit into the transport are kept for the next call
+	 * or {@link #flush()}
+	 * @return the number of bytes taken from the buffers
+	 */
+	long write(ByteBuffer... srcs) throws IOException {
+		writeLock.lock();
+		try {
+			long written = 0;
+			while(flush()) {
+				if(!Connection.hasRemaining(srcs))
+					return written;
+				var status = engine.getHandshakeStatus();
+				if(status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				}
+				var result = wrap(srcs);
+				written += result.bytesConsumed();
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+					throw new SSLException("Connection has been closed");
+				if(result.bytesConsumed() == 0 && result.bytesProduced() == 0 && result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP)
+					throw new SSLException("Renegotiation isn't supported while a response is being written");
+			}
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	/**
+	 * writes the records produced earlier
+	 * @return false if the transport didn't take all of them
+	 */
+	boolean flush() throws IOException {
+		writeLock.lock();
+		try {
+			while(netOut.hasRemaining())
+				if(out.write(netOut) == 0)
+					return false;
+			netOut = release(netOut);
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	/**
+	 * @return whether all records have been written
+	 */
+	boolean isFlushed() {
+		writeLock.lock();
+		try {
+			return !netOut.hasRemaining();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	private boolean wrapHandshake() throws IOException {
+		writeLock.lock();
+		try {
+			if(!flush())
+				return false;
+			wrap(EMPTY);
+			return flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	private SSLEngineResult wrap(ByteBuffer... srcs) throws IOException {
+		netOut = netOut == EMPTY ? BUFFERS.acquire() : netOut.compact();
+		try {
+			var result = engine.wrap(srcs, netOut);
+			if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0)
+				throw new SSLException("Record exceeds " + BUFFER_SIZE + " bytes");
+			return result;
+		} finally {
+			netOut.flip();
+		}
+	}
+	private void runTasks() {
+		Runnable task;
+		while((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+	
+	/**
+	 * @return {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}, whichever the last read that returned 0
+	 * waits for, usually the former but the handshake may have to write first
+	 */
+	int readInterest() {
+		return readInterest;
+	}
+	
+	/**
+	 * sends a close_notify as far as the transport takes it without blocking
+	 */
+	void closeOutbound() {
+		if(!writeLock.tryLock())
+			return; // a write is stuck, the transport is about to be closed under it
+		try {
+			engine.closeOutbound();
+			if(flush()) {
+				wrap(EMPTY);
+				flush();
+			}
+		} catch(IOException e) {
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	/**
+	 * returns the buffers to the pool unless a read or write is still using them,
+	 * must be called once the transport has been closed
+	 */
+	void close() {
+		if(readLock.tryLock())
+			try {
+				netIn = release(netIn);
+				appIn = release(appIn);
+			} finally {
+				readLock.unlock();
+			}
+		if(writeLock.tryLock())
+			try {
+				netOut = release(netOut);
+			} finally {
+				writeLock.unlock();
+			}
+	}
+	private static ByteBuffer release(ByteBuffer buffer) {
+		if(buffer != EMPTY)
+			BUFFERS.release(buffer);
+		return EMPTY;
+	}
+}
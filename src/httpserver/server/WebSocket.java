@@ -0,0 +1,522 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * a connection that has been switched to the WebSocket protocol (RFC 6455) by a route registered with
+ * {@link Server#routeWebSocket(String, WebSocketEndpoint)}. messages can be sent from any thread,
+ * concurrent messages are sent one after the other. pings are answered and, if the server has a ping interval,
+ * sent to idle connections, which are closed if the client doesn't answer
+ */
+public final class WebSocket extends Protocol {
+	public static final int NORMAL_CLOSURE = 1000, GOING_AWAY = 1001, PROTOCOL_ERROR = 1002, UNSUPPORTED_DATA = 1003,
+			NO_STATUS = 1005, ABNORMAL_CLOSURE = 1006, INVALID_DATA = 1007, POLICY_VIOLATION = 1008,
+			MESSAGE_TOO_BIG = 1009, INTERNAL_ERROR = 1011;
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int CONTINUATION = 0, TEXT = 1, BINARY = 2, CLOSE = 8, PING = 9, PONG = 10;
+	/**
+	 * how long the client has to answer a close frame in milliseconds
+	 */
+	private static final long CLOSE_TIMEOUT = 5000;
+	/**
+	 * message buffers that grew beyond this are dropped after the message instead of being kept for the next one
+	 */
+	private static final int KEPT_BUFFER = 64 * 1024;
+	
+	private final Server server;
+	private final Connection conn;
+	private final WebSocketListener listener;
+	private final String resource;
+	private final int maxMessageSize;
+	private final long pingInterval;
+	/**
+	 * the server's deflaters if permessage-deflate has been negotiated, otherwise null
+	 */
+	private final ResponseCompression compression;
+	
+	// only accessed by the thread reading from the connection
+	private final FrameParser parser = new FrameParser();
+	private final Frames frames = new Frames();
+	private final ByteBuffer control = ByteBuffer.allocate(125);
+	private ByteBuffer message, inflated;
+	private CharsetDecoder decoder;
+	private long lastReceived = System.currentTimeMillis(), lastPing;
+	private boolean closeReceived, failed;
+	
+	private final Object sendLock = new Object();
+	// guarded by sendLock
+	private final ByteBuffer header = ByteBuffer.allocate(10);
+	private ByteBuffer deflated;
+	private volatile long closeSent;
+	
+	private final AtomicBoolean closed = new AtomicBoolean();
+	
+	private WebSocket(Server server, Connection conn, WebSocketListener listener, String resource, boolean deflate) {
+		this.server = server;
+		this.conn = conn;
+		this.listener = listener;
+		this.resource = resource;
+		maxMessageSize = server.getMaxWebSocketMessageSize();
+		var interval = server.getWebSocketPingInterval();
+		pingInterval = interval == null ? 0 : interval.toMillis();
+		compression = deflate ? server.getCompression() : null;
+	}
+	
+	/**
+	 * answers a handshake request (RFC 6455, section 4.2), either by switching the connection to a WebSocket
+	 * or with an error status
+	 * @return the WebSocket, once the response has been sent, or null if the handshake has been refused
+	 */
+	static WebSocket accept(Server server, Connection conn, RequestHead head, Session session, WebSocketEndpoint endpoint) throws IOException {
+		if(!head.headerContains("Upgrade", "websocket")) {
+			session.sendStatus(HttpStatus.UPGRADE_REQUIRED);
+			session.sendHeader("Upgrade", "websocket");
+			return null;
+		}
+		var key = head.header("Sec-WebSocket-Key");
+		if(!head.method().equals("GET") || !"HTTP/1.1".equals(head.httpVersion()) || !head.headerContains("Connection", "upgrade")
+				|| key == null || !isValidKey(key) || session.hasRequestBody()) {
+			session.sendStatus(HttpStatus.BAD_REQUEST);
+			return null;
+		}
+		if(!"13".equals(head.header("Sec-WebSocket-Version"))) {
+			session.sendStatus(HttpStatus.UPGRADE_REQUIRED);
+			session.sendHeader("Sec-WebSocket-Version", "13");
+			return null;
+		}
+		if(server.isStopping()) {
+			session.sendStatus(HttpStatus.SERVICE_UNAVAILABLE);
+			return null;
+		}
+		var listener = endpoint.accept(head.resource(), session);
+		if(listener == null) {
+			if(!session.isStatusSent())
+				session.sendStatus(HttpStatus.FORBIDDEN);
+			return null;
+		}
+		if(session.isStatusSent())
+			throw new IllegalStateException("A status must only be sent to refuse the handshake");
+		
+		session.sendStatus(HttpStatus.SWITCHING_PROTOCOLS);
+		session.sendHeader("Upgrade", "websocket");
+		session.sendHeader("Connection", "Upgrade");
+		session.sendHeader("Sec-WebSocket-Accept", acceptKey(key));
+		var protocols = head.header("Sec-WebSocket-Protocol");
+		if(protocols != null) {
+			var offered = new ArrayList<String>();
+			for(var protocol : protocols.split(","))
+				if(!protocol.isBlank())
+					offered.add(protocol.trim());
+			var selected = endpoint.selectSubprotocol(offered);
+			if(selected != null) {
+				if(!offered.contains(selected))
+					throw new IllegalStateException("Subprotocol " + selected + " wasn't offered");
+				session.sendHeader("Sec-WebSocket-Protocol", selected);
+			}
+		}
+		var deflate = server.isWebSocketCompressionEnabled() && MessageDeflate.accepts(head.header("Sec-WebSocket-Extensions"));
+		if(deflate)
+			session.sendHeader("Sec-WebSocket-Extensions", MessageDeflate.RESPONSE);
+		session.complete();
+		return new WebSocket(server, conn, listener, head.resource(), deflate);
+	}
+	private static boolean isValidKey(String key) {
+		try {
+			return Base64.getDecoder().decode(key.trim()).length == 16;
+		} catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+	static String acceptKey(String key) {
+		try {
+			var sha1 = MessageDigest.getInstance("SHA-1").digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+			return Base64.getEncoder().encodeToString(sha1);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is required by the Java platform", e);
+		}
+	}
+	
+	public String getResource() {
+		return resource;
+	}
+	public InetAddress getRemoteAddress() {
+		return conn.getAddress();
+	}
+	/**
+	 * @return whether messages can still be sent, i.e. the closing handshake hasn't begun
+	 */
+	public boolean isOpen() {
+		return closeSent == 0 && !closed.get();
+	}
+	
+	/**
+	 * sends a text message, compressed if permessage-deflate has been negotiated and it is large enough.
+	 * with the {@link Engine#NIO} engine this doesn't block: what the client can't take yet is queued,
+	 * a client that falls too far behind is disconnected
+	 * @throws IOException If the WebSocket has been closed or the client disconnected
+	 */
+	public void sendText(String text) throws IOException {
+		send(TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+	/**
+	 * sends the remaining bytes of the buffer as a binary message, the buffer's position is left unchanged
+	 * @throws IOException If the WebSocket has been closed or the client disconnected
+	 * @see #sendText(String)
+	 */
+	public void sendBinary(ByteBuffer data) throws IOException {
+		send(BINARY, data.duplicate());
+	}
+	/**
+	 * sends a ping, the client's pong is reported to {@link WebSocketListener#onPong}
+	 * @param data at most 125 bytes
+	 */
+	public void ping(ByteBuffer data) throws IOException {
+		if(data.remaining() > 125)
+			throw new IllegalArgumentException("Control frames carry at most 125 bytes");
+		synchronized(sendLock) {
+			if(closeSent != 0)
+				throw new IOException("WebSocket is closed");
+			writeFrame(PING, data.duplicate(), false);
+		}
+	}
+	/**
+	 * closes the WebSocket with {@link #NORMAL_CLOSURE}
+	 */
+	public void close() throws IOException {
+		close(NORMAL_CLOSURE, "");
+	}
+	/**
+	 * begins the closing handshake, nothing can be sent afterwards. the connection is closed once the client
+	 * confirmed, or after a few seconds if it doesn't. does nothing if the handshake has already begun
+	 * @param code a status code like {@link #NORMAL_CLOSURE} or an application's code from 4000 to 4999
+	 * @param reason at most 123 bytes in UTF-8
+	 */
+	public void close(int code, String reason) throws IOException {
+		if(code < 1000 || code >= 5000 || code == NO_STATUS || code == ABNORMAL_CLOSURE || code == 1015)
+			throw new IllegalArgumentException("Invalid status code " + code);
+		var text = reason.getBytes(StandardCharsets.UTF_8);
+		if(text.length > 123)
+			throw new IllegalArgumentException("Close reason is longer than 123 bytes");
+		synchronized(sendLock) {
+			if(closeSent != 0)
+				return;
+			closeSent = System.currentTimeMillis();
+			var payload = ByteBuffer.allocate(2 + text.length).putShort((short) code).put(text).flip();
+			writeFrame(CLOSE, payload, false);
+		}
+	}
+	
+	private void send(int opcode, ByteBuffer payload) throws IOException {
+		synchronized(sendLock) {
+			if(closeSent != 0)
+				throw new IOException("WebSocket is closed");
+			if(compression != null && payload.remaining() >= compression.minSize) {
+				deflated = MessageDeflate.deflate(payload.duplicate(), deflated, compression);
+				if(deflated.remaining() < payload.remaining()) {
+					try {
+						writeFrame(opcode, deflated, true);
+					} finally {
+						if(deflated.capacity() > KEPT_BUFFER)
+							deflated = null;
+					}
+					return;
+				}
+			}
+			writeFrame(opcode, payload, false);
+		}
+	}
+	/**
+	 * writes an unfragmented frame, the caller holds the send lock
+	 */
+	private void writeFrame(int opcode, ByteBuffer payload, boolean compressed) throws IOException {
+		int length = payload.remaining();
+		header.clear().put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+		if(length < 126)
+			header.put((byte) length);
+		else if(length < 65536)
+			header.put((byte) 126).putShort((short) length);
+		else
+			header.put((byte) 127).putLong(length);
+		conn.send(header.flip(), payload);
+	}
+	
+	/**
+	 * called by the engine once the handshake response has been sent, before anything is received
+	 * @return false if the listener failed and the connection should be closed
+	 */
+	@Override
+	boolean open() {
+		server.protocolOpened(this);
+		try {
+			listener.onOpen(this);
+		} catch(RuntimeException e) {
+			error(e);
+		}
+		return !failed;
+	}
+	
+	/**
+	 * called by the engine with bytes received from the client
+	 * @return false once the connection should be closed, because the closing handshake is done or the client failed
+	 * @throws IOException If a frame couldn't be sent, the connection is lost then
+	 */
+	@Override
+	boolean receive(ByteBuffer data) throws IOException {
+		if(closeReceived || failed)
+			return false;
+		lastReceived = System.currentTimeMillis();
+		try {
+			parser.feed(data, frames);
+		} catch(CloseException e) {
+			fail(e.code, e.getMessage());
+		}
+		return !closeReceived && !failed;
+	}
+	
+	/**
+	 * called by the engine about once per second while nothing is received, on the thread that reads
+	 * @return false if the connection should be closed, because the client stopped answering
+	 */
+	@Override
+	boolean keepAlive(long now) throws IOException {
+		if(closeReceived || failed)
+			return false;
+		var closeSent = this.closeSent;
+		if(closeSent != 0)
+			return now - closeSent < CLOSE_TIMEOUT;
+		if(pingInterval == 0)
+			return true;
+		if(now - lastReceived >= 2 * pingInterval)
+			return false; // not even the last ping was answered
+		if(now - lastReceived >= pingInterval && now - lastPing >= pingInterval) {
+			lastPing = now;
+			synchronized(sendLock) {
+				if(this.closeSent == 0)
+					writeFrame(PING, ByteBuffer.allocate(0), false);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * begins the closing handshake with {@link #GOING_AWAY}
+	 */
+	@Override
+	void shutdown() throws IOException {
+		close(GOING_AWAY, "Server is shutting down");
+	}
+	
+	/**
+	 * called by the engine once the connection has been closed, reports it unless the closing handshake did
+	 */
+	@Override
+	void disconnected() {
+		notifyClosed(ABNORMAL_CLOSURE, "");
+		message = null;
+		inflated = null;
+	}
+	
+	private void fail(int code, String reason) {
+		failed = true;
+		try {
+			var text = reason.getBytes(StandardCharsets.UTF_8);
+			close(code, text.length > 123 ? "" : reason);
+		} catch(IOException e) { }
+		notifyClosed(code, reason);
+	}
+	private void error(RuntimeException e) {
+		try {
+			listener.onError(this, e);
+		} catch(RuntimeException ignored) { }
+		fail(INTERNAL_ERROR, "");
+	}
+	private void notifyClosed(int code, String reason) {
+		if(!closed.compareAndSet(false, true))
+			return;
+		server.protocolClosed(this);
+		try {
+			listener.onClose(this, code, reason);
+		} catch(RuntimeException e) { }
+	}
+	
+	/**
+	 * assembles messages from the frames of the parser and answers control frames
+	 */
+	private final class Frames implements FrameParser.Handler {
+		/**
+		 * the opcode of the data message in progress or -1
+		 */
+		private int messageType = -1;
+		private int opcode;
+		private boolean fin, compressed;
+		private long messageLength;
+		
+		@Override
+		public void frame(int opcode, boolean fin, boolean rsv1, long length) throws CloseException {
+			this.opcode = opcode;
+			if(opcode >= CLOSE) {
+				if(opcode > PONG)
+					throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+				if(!fin || length > 125 || rsv1)
+					throw new CloseException(PROTOCOL_ERROR, "Invalid control frame");
+				control.clear();
+				return;
+			}
+			if(opcode == CONTINUATION) {
+				if(messageType < 0)
+					throw new CloseException(PROTOCOL_ERROR, "Continuation without a message");
+				if(rsv1)
+					throw new CloseException(PROTOCOL_ERROR, "Continuation marked as compressed");
+			} else if(opcode == TEXT || opcode == BINARY) {
+				if(messageType >= 0)
+					throw new CloseException(PROTOCOL_ERROR, "Message interrupted by another");
+				if(rsv1 && compression == null)
+					throw new CloseException(PROTOCOL_ERROR, "Compressed message without permessage-deflate");
+				messageType = opcode;
+				compressed = rsv1;
+				messageLength = 0;
+			} else
+				throw new CloseException(PROTOCOL_ERROR, "Unknown opcode " + opcode);
+			this.fin = fin;
+			messageLength += length;
+			if(messageLength > maxMessageSize)
+				throw new CloseException(MESSAGE_TOO_BIG, "Message exceeds " + maxMessageSize + " bytes");
+		}
+		
+		@Override
+		public void payload(ByteBuffer piece, boolean last) throws CloseException {
+			if(closeReceived)
+				return; // nothing may follow the close frame
+			if(opcode >= CLOSE) {
+				control.put(piece);
+				if(last)
+					control(control.flip());
+				return;
+			}
+			if(last && fin && (message == null || message.position() == 0)) {
+				deliver(piece); // the whole message arrived at once, it isn't copied
+				return;
+			}
+			append(piece);
+			if(last && fin) {
+				deliver(message.flip());
+				if(message.capacity() > KEPT_BUFFER)
+					message = null;
+				else
+					message.clear();
+			}
+		}
+		private void append(ByteBuffer piece) {
+			if(message == null)
+				message = ByteBuffer.allocate((int) Math.min(Math.max(4096, messageLength), maxMessageSize));
+			else if(message.remaining() < piece.remaining()) {
+				long needed = (long) message.position() + piece.remaining();
+				int capacity = (int) Math.min(Math.max(needed, 2L * message.capacity()), maxMessageSize);
+				message = ByteBuffer.allocate(capacity).put(message.flip());
+			}
+			message.put(piece);
+		}
+		
+		private void deliver(ByteBuffer data) throws CloseException {
+			int type = messageType;
+			messageType = -1;
+			if(compressed) {
+				data = inflated = MessageDeflate.inflate(data, inflated, maxMessageSize);
+				if(inflated.capacity() > KEPT_BUFFER)
+					inflated = null;
+			}
+			String text = null;
+			if(type == TEXT)
+				text = decode(data);
+			try {
+				if(type == TEXT)
+					listener.onText(WebSocket.this, text);
+				else
+					listener.onBinary(WebSocket.this, data);
+			} catch(RuntimeException e) {
+				error(e);
+				throw new CloseException(INTERNAL_ERROR, "");
+			}
+		}
+		private String decode(ByteBuffer data) throws CloseException {
+			if(decoder == null)
+				decoder = StandardCharsets.UTF_8.newDecoder();
+			try {
+				return decoder.reset().decode(data).toString();
+			} catch(CharacterCodingException e) {
+				throw new CloseException(INVALID_DATA, "Text isn't valid UTF-8");
+			}
+		}
+		
+		private void control(ByteBuffer payload) throws CloseException {
+			try {
+				switch(opcode) {
+				case PING:
+					synchronized(sendLock) {
+						if(closeSent == 0)
+							writeFrame(PONG, payload, false);
+					}
+					break;
+				case PONG:
+					listener.onPong(WebSocket.this, payload);
+					break;
+				case CLOSE:
+					closed(payload);
+					break;
+				}
+			} catch(IOException e) {
+				throw new CloseException(ABNORMAL_CLOSURE, e.getMessage());
+			} catch(RuntimeException e) {
+				error(e);
+				throw new CloseException(INTERNAL_ERROR, "");
+			}
+		}
+		/**
+		 * the client closed, the close frame is echoed unless it answers one of the server
+		 */
+		private void closed(ByteBuffer payload) throws IOException {
+			int code = NO_STATUS;
+			var reason = "";
+			if(payload.remaining() == 1)
+				throw new CloseException(PROTOCOL_ERROR, "Invalid close frame");
+			if(payload.remaining() >= 2) {
+				code = payload.getShort() & 0xffff;
+				if(code < 1000 || code >= 5000 || code == 1004 || code == NO_STATUS || code == ABNORMAL_CLOSURE || code >= 1015 && code < 3000)
+					throw new CloseException(PROTOCOL_ERROR, "Invalid status code " + code);
+				reason = decode(payload);
+			}
+			closeReceived = true;
+			synchronized(sendLock) {
+				if(closeSent == 0) {
+					closeSent = System.currentTimeMillis();
+					payload.rewind();
+					writeFrame(CLOSE, code == NO_STATUS ? ByteBuffer.allocate(0) : payload.limit(2), false);
+				}
+			}
+			notifyClosed(code, reason);
+		}
+	}
+	
+	/**
+	 * fails the connection with a status code
+	 */
+	static final class CloseException extends IOException {
+		private static final long serialVersionUID = 1L;
+		final int code;
+		
+		CloseException(int code, String reason) {
+			super(reason);
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package httpserver.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * accepts or refuses the WebSocket handshakes of a route
+ * @see Server#routeWebSocket(String, WebSocketEndpoint)
+ */
+public interface WebSocketEndpoint {
+	/**
+	 * @param session the handshake request, e.g. to check its Origin or credentials. a status must only be sent
+	 * to refuse the handshake
+	 * @return the listener for the messages of the new connection, or null to refuse it with the status sent
+	 * or 403 Forbidden
+	 */
+	public WebSocketListener accept(String resource, Session session) throws IOException;
+	
+	/**
+	 * @param offered the subprotocols the client asked for, in its order of preference
+	 * @return the subprotocol to speak, which must be one of the offered ones, or null for none
+	 */
+	public default String selectSubprotocol(List<String> offered) {
+		return null;
+	}
+}
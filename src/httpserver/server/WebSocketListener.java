@@ -0,0 +1,43 @@
+package httpserver.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * receives the events of one WebSocket connection, one at a time. with the {@link Engine#NIO} engine they are
+ * delivered on an event loop that serves many connections, so a listener must not block; work that takes a while
+ * belongs on another thread, which can send from there
+ */
+public interface WebSocketListener {
+	/**
+	 * called once the handshake has been completed, before any message
+	 */
+	public default void onOpen(WebSocket socket) {
+	}
+	/**
+	 * called with every text message, fragmented messages are joined
+	 */
+	public default void onText(WebSocket socket, String text) {
+	}
+	/**
+	 * called with every binary message, fragmented messages are joined
+	 * @param data the message, only valid during the call
+	 */
+	public default void onBinary(WebSocket socket, ByteBuffer data) {
+	}
+	/**
+	 * called with a pong, whether it answers a ping or not. pings are answered by the server
+	 */
+	public default void onPong(WebSocket socket, ByteBuffer data) {
+	}
+	/**
+	 * called once when the connection has been closed, by either side or because it was lost
+	 * @param code the status code of the closing handshake, {@link WebSocket#ABNORMAL_CLOSURE} if there was none
+	 */
+	public default void onClose(WebSocket socket, int code, String reason) {
+	}
+	/**
+	 * called if a listener method threw, the connection is closed with {@link WebSocket#INTERNAL_ERROR} afterwards
+	 */
+	public default void onError(WebSocket socket, Throwable error) {
+	}
+}
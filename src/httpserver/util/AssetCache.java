@@ -0,0 +1,256 @@
+package httpserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * thread-safe in-memory cache of small, frequently served files. the total size of all entries, including their
+ * compressed variants, is bounded by a byte budget, the least recently used entries are evicted first.
+ * entries are revalidated against the modification time and size of the file, so changed files are reloaded
+ * within the revalidation interval
+ */
+public class AssetCache {
+	/**
+	 * files smaller than this aren't worth compressing
+	 */
+	private static final int MIN_COMPRESS_SIZE = 256;
+	
+	private final long maxBytes, maxEntrySize;
+	private final boolean direct;
+	private volatile long revalidateNanos = TimeUnit.SECONDS.toNanos(1);
+	
+	private final LinkedHashMap<Path, Asset> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long size;
+	
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+	
+	/**
+	 * @param maxBytes the budget for all entries together
+	 * @param maxEntrySize larger files are not cached and have to be streamed from disk
+	 * @param direct whether to keep the contents off-heap in direct buffers
+	 */
+	public AssetCache(long maxBytes, long maxEntrySize, boolean direct) {
+		if(maxBytes < 0 || maxEntrySize < 0)
+			throw new IllegalArgumentException("sizes must not be negative");
+		this.maxBytes = maxBytes;
+		this.maxEntrySize = Math.min(maxEntrySize, Integer.MAX_VALUE - 8);
+		this.direct = direct;
+	}
+	
+	/**
+	 * sets how long an entry is served without checking the file again, 1 second by default.
+	 * zero checks on every access, which costs a stat of the file per hit
+	 */
+	public void setRevalidationInterval(Duration interval) {
+		revalidateNanos = interval.toNanos();
+	}
+	public Duration getRevalidationInterval() {
+		return Duration.ofNanos(revalidateNanos);
+	}
+	
+	/**
+	 * @return the cached file, loading it if it isn't cached or has changed since it was cached,
+	 * or an empty optional if the file is too large to be cached
+	 * @throws NoSuchFileException If the file doesn't exist (anymore)
+	 * @throws IOException If the file couldn't be read
+	 */
+	public Optional<Asset> get(Path file) throws IOException {
+		file = file.toAbsolutePath().normalize();
+		long now = System.nanoTime();
+		Asset asset;
+		synchronized(this) {
+			asset = entries.get(file);
+		}
+		if(asset != null) {
+			if(now - asset.checked < revalidateNanos) {
+				hits.increment();
+				return Optional.of(asset);
+			}
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			} catch(NoSuchFileException e) {
+				invalidate(file);
+				throw e;
+			}
+			if(attributes.lastModifiedTime().equals(asset.lastModified) && attributes.size() == asset.length()) {
+				asset.checked = now;
+				hits.increment();
+				return Optional.of(asset);
+			}
+		}
+		misses.increment();
+		
+		var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		if(!attributes.isRegularFile())
+			throw new NoSuchFileException(file.toString(), null, "not a regular file");
+		if(attributes.size() > maxEntrySize) {
+			invalidate(file);
+			return Optional.empty();
+		}
+		// loaded outside the lock, concurrent misses on the same file may both read it
+		asset = load(file, attributes.lastModifiedTime(), now);
+		if(asset.weight() > maxBytes)
+			return Optional.of(asset);
+		synchronized(this) {
+			var old = entries.put(file, asset);
+			if(old != null)
+				size -= old.weight();
+			size += asset.weight();
+			var it = entries.values().iterator();
+			while(size > maxBytes && it.hasNext()) {
+				var eldest = it.next();
+				if(eldest == asset)
+					continue;
+				it.remove();
+				size -= eldest.weight();
+				evictions.increment();
+			}
+		}
+		return Optional.of(asset);
+	}
+	
+	/**
+	 * removes the file from the cache, e.g. after it has been deleted or replaced
+	 */
+	public synchronized void invalidate(Path file) {
+		var old = entries.remove(file.toAbsolutePath().normalize());
+		if(old != null)
+			size -= old.weight();
+	}
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+	
+	private Asset load(Path file, FileTime lastModified, long now) throws IOException {
+		var bytes = Files.readAllBytes(file);
+		var contentType = MimeTypes.get(file.getFileName().toString());
+		
+		byte[] gzip = null;
+		if(bytes.length >= MIN_COMPRESS_SIZE && isCompressible(contentType)) {
+			var out = new ByteArrayOutputStream(bytes.length / 2);
+			try(var stream = new GZIPOutputStream(out)) {
+				stream.write(bytes);
+			}
+			// only worth sending if it saves at least a tenth
+			if(out.size() < bytes.length - bytes.length / 10)
+				gzip = out.toByteArray();
+		}
+		return new Asset(file, wrap(bytes), gzip == null ? null : wrap(gzip), contentType, lastModified, now);
+	}
+	private ByteBuffer wrap(byte[] bytes) {
+		if(!direct)
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer();
+	}
+	static boolean isCompressible(String contentType) {
+		return contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("xml")
+				|| contentType.contains("javascript") || contentType.startsWith("application/wasm");
+	}
+	
+	/**
+	 * @return the number of bytes currently held, including compressed variants
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public long getHits() {
+		return hits.sum();
+	}
+	public long getMisses() {
+		return misses.sum();
+	}
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	/**
+	 * an immutable snapshot of a file's contents
+	 */
+	public static class Asset {
+		private final Path file;
+		private final ByteBuffer content, gzipContent;
+		private final String contentType, etag, gzipEtag;
+		private final FileTime lastModified;
+		private volatile long checked;
+		private volatile String text;
+		
+		private Asset(Path file, ByteBuffer content, ByteBuffer gzipContent, String contentType, FileTime lastModified, long checked) {
+			this.file = file;
+			this.content = content;
+			this.gzipContent = gzipContent;
+			this.contentType = contentType;
+			etag = ConditionalRequest.etag(content.capacity(), lastModified.toMillis(), false);
+			gzipEtag = ConditionalRequest.etag(content.capacity(), lastModified.toMillis(), true);
+			this.lastModified = lastModified;
+			this.checked = checked;
+		}
+		
+		public Path getFile() {
+			return file;
+		}
+		/**
+		 * @return a new read-only view of the contents, positioned at the start
+		 */
+		public ByteBuffer content() {
+			return content.duplicate();
+		}
+		/**
+		 * @return a new read-only view of the gzip-compressed contents, or null if the file isn't worth compressing
+		 */
+		public ByteBuffer gzipContent() {
+			return gzipContent == null ? null : gzipContent.duplicate();
+		}
+		public boolean hasGzip() {
+			return gzipContent != null;
+		}
+		/**
+		 * @return the contents decoded as UTF-8, decoded once per cached file
+		 */
+		public String text() {
+			var text = this.text;
+			if(text == null)
+				this.text = text = StandardCharsets.UTF_8.decode(content()).toString();
+			return text;
+		}
+		public int length() {
+			return content.capacity();
+		}
+		public String getContentType() {
+			return contentType;
+		}
+		/**
+		 * @param gzip whether the tag is for the compressed variant, which is a different representation
+		 * @return the quoted strong entity tag, the same as that of the file when it isn't cached
+		 */
+		public String getETag(boolean gzip) {
+			return gzip ? gzipEtag : etag;
+		}
+		public FileTime getLastModified() {
+			return lastModified;
+		}
+		long weight() {
+			return content.capacity() + (gzipContent == null ? 0 : gzipContent.capacity());
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package httpserver.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * thread-safe pool of equally sized byte buffers, avoids allocating a new buffer for every request
+ */
+public class BufferPool {
+	private final int bufferSize, maxPooled;
+	private final boolean direct;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	/**
+	 * @param bufferSize capacity of the buffers
+	 * @param maxPooled how many released buffers are kept at most, further ones are left to the garbage collector
+	 * @param direct whether to allocate direct (off-heap) buffers instead of heap buffers
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		if(bufferSize < 1)
+			throw new IllegalArgumentException("buffer size must be positive");
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+	
+	/**
+	 * @return a cleared buffer, either a pooled one or a newly allocated one if the pool is empty
+	 */
+	public ByteBuffer acquire() {
+		var buffer = pool.poll();
+		if(buffer == null)
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		pooled.decrementAndGet();
+		return buffer.clear();
+	}
+	/**
+	 * returns a buffer to the pool, the caller must not use it afterwards.
+	 * buffers that weren't acquired from this pool are ignored
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity() != bufferSize || buffer.isDirect() != direct)
+			return;
+		if(pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(buffer);
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -2,7 +2,6 @@ package httpserver.util;
 
 import java.lang.System.Logger.Level;
 import java.net.InetAddress;
-import java.text.MessageFormat;
 
 public class ColorUtil {
 	public static String rst() {
@@ -47,24 +46,32 @@ public class ColorUtil {
 		}
 	}
 	
-	public static String fromIP(InetAddress addr, Prefix ground) {
-		var byteAddr = addr.getAddress();
-		var avg = 0;
-		for(var b : byteAddr) {
-			avg += b;
+	/**
+	 * the colours only depend on the average byte of the address, so every colour is built once
+	 */
+	private static final String[][] GROUND_COLORS = new String[Prefix.values().length][256];
+	private static final String[] PAIR_COLORS = new String[256];
+	static {
+		for(int shade = 0; shade < 256; shade++) {
+			for(var ground : Prefix.values())
+				GROUND_COLORS[ground.ordinal()][shade] = "\033[" + ground.code() + ";5;" + shade + "m";
+			PAIR_COLORS[shade] = "\033[" + Prefix.BACKGROUND.code() + ";5;" + shade + "m\033[" + Prefix.FOREGROUND.code() + ";5;" + (255 - shade) + "m";
 		}
-		avg /= byteAddr.length;
-		
-		return "\033[" + ground.code() + ";5;" + (int) (avg + 128)+ "m";
 	}
-	public static String fromIP(InetAddress addr) {
+	private static int shade(InetAddress addr) {
 		var byteAddr = addr.getAddress();
 		var avg = 0;
 		for(var b : byteAddr) {
 			avg += b;
 		}
 		avg /= byteAddr.length;
-		
-		return MessageFormat.format("\033[{0};5;{1}m\033[{2};5;{3}m", Prefix.BACKGROUND.code(), (int) (avg+128), Prefix.FOREGROUND.code(), 255 - (int) (avg+128));
+		return avg + 128;
+	}
+	
+	public static String fromIP(InetAddress addr, Prefix ground) {
+		return GROUND_COLORS[ground.ordinal()][shade(addr)];
+	}
+	public static String fromIP(InetAddress addr) {
+		return PAIR_COLORS[shade(addr)];
 	}
 }
@@ -0,0 +1,155 @@
+package httpserver.util;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import httpserver.server.Session;
+
+/**
+ * evaluates the validators and the Range header of a request for a file (RFC 9110, sections 13 and 14)
+ */
+final class ConditionalRequest {
+	/**
+	 * requests for more ranges are answered with the whole file, many small ranges cost more than they save
+	 */
+	static final int MAX_RANGES = 16;
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+	
+	private ConditionalRequest() { }
+	
+	/**
+	 * derives the entity tag of a file from its length and modification time, so that it doesn't depend on
+	 * whether the file is served from an {@link AssetCache} or from disk
+	 * @param gzip whether the tag is for the gzip-compressed variant, which is a different representation
+	 * @return the quoted strong entity tag
+	 */
+	static String etag(long length, long lastModified, boolean gzip) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (gzip ? "-gz\"" : "\"");
+	}
+	/**
+	 * @return the time formatted as IMF-fixdate, e.g. for Last-Modified
+	 */
+	static String formatDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+	/**
+	 * @return the time in milliseconds, or -1 if the date can't be parsed
+	 */
+	static long parseDate(String date) {
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch(DateTimeParseException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * @return whether the client's copy is still current, so that 304 can be sent instead of the file.
+	 * If-Modified-Since is only considered without If-None-Match
+	 */
+	static boolean isNotModified(Session session, String etag, long lastModified) {
+		var ifNoneMatch = session.requestHeader("If-None-Match");
+		if(ifNoneMatch.isPresent())
+			return matches(ifNoneMatch.get(), etag);
+		var ifModifiedSince = session.requestHeader("If-Modified-Since");
+		if(ifModifiedSince.isEmpty())
+			return false;
+		long since = parseDate(ifModifiedSince.get());
+		return since >= 0 && lastModified / 1000 <= since / 1000; // dates only have a resolution of seconds
+	}
+	/**
+	 * @return whether a list of entity-tags contains the tag or is *, compared weakly
+	 */
+	static boolean matches(String list, String etag) {
+		list = list.trim();
+		if(list.equals("*"))
+			return true;
+		var opaque = opaque(etag);
+		for(var tag : list.split(","))
+			if(opaque(tag.trim()).equals(opaque))
+				return true;
+		return false;
+	}
+	private static String opaque(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+	
+	/**
+	 * @param length the length of the file
+	 * @return the ranges to send as pairs of first and last byte position, an empty array if none of them
+	 * is satisfiable, or null if the whole file should be sent
+	 */
+	static long[] ranges(Session session, String etag, long lastModified, long length) {
+		var range = session.requestHeader("Range");
+		if(range.isEmpty())
+			return null;
+		var ifRange = session.requestHeader("If-Range");
+		if(ifRange.isPresent() && !isCurrent(ifRange.get().trim(), etag, lastModified))
+			return null; // the client's partial copy is outdated, it needs the whole file
+		return parseRanges(range.get(), length);
+	}
+	/**
+	 * If-Range requires a strong match, a date only matches if it is exactly the modification time
+	 */
+	private static boolean isCurrent(String validator, String etag, long lastModified) {
+		if(validator.startsWith("\"") || validator.startsWith("W/"))
+			return validator.equals(etag) && !etag.startsWith("W/");
+		long date = parseDate(validator);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+	/**
+	 * parses a <code>bytes=</code> range set, unsatisfiable ranges are left out
+	 * @return null if the header is malformed, uses another unit or has too many ranges
+	 */
+	static long[] parseRanges(String header, long length) {
+		header = header.trim();
+		if(!header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+		var specs = header.substring(6).split(",");
+		if(specs.length > MAX_RANGES)
+			return null;
+		var ranges = new long[2 * specs.length];
+		int n = 0;
+		for(var spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if(dash < 0)
+				return null;
+			long first, last;
+			try {
+				if(dash == 0) {
+					// the last n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if(suffix <= 0)
+						continue;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if(dash == spec.length() - 1)
+						last = length - 1;
+					else {
+						last = Long.parseLong(spec.substring(dash + 1));
+						if(last < first)
+							return null; // invalid, not just unsatisfiable
+						last = Math.min(last, length - 1);
+					}
+				}
+			} catch(NumberFormatException e) {
+				return null;
+			}
+			if(first < 0)
+				return null;
+			if(first >= length || first > last)
+				continue;
+			ranges[n++] = first;
+			ranges[n++] = last;
+		}
+		return n == ranges.length ? ranges : Arrays.copyOf(ranges, n);
+	}
+}
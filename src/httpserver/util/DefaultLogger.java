@@ -8,16 +8,42 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.System.Logger;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.ResourceBundle;
-import java.util.UnknownFormatConversionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import httpserver.util.ColorUtil.Severity;
 
 public class DefaultLogger implements Logger {
+	/**
+	 * what to do with a message when the buffer of an asynchronous logger is full
+	 */
+	public static enum Overflow {
+		/**
+		 * discard the message, the caller never waits for the output
+		 */
+		DROP,
+		/**
+		 * wait until the writer has made room, no message is lost
+		 */
+		BLOCK
+	}
+	private static final int MAX_BATCH = 512;
+	
 	private final String name;
-	private OutputStream lowlevelOutput;
-	private Level level;
+	private volatile OutputStream lowlevelOutput;
+	private volatile Level level;
+	
+	private volatile BlockingQueue<Entry> queue;
+	private Overflow overflow;
+	private Thread writer;
+	private final LongAdder dropped = new LongAdder();
+	
+	private volatile Timestamp timestamp = new Timestamp(0, new Date(0).toString());
 	
 	public DefaultLogger(String name) {
 		this.name = name;
@@ -35,10 +61,14 @@ public class DefaultLogger implements Logger {
 	public String getName() {
 		return name;
 	}
-
+	
+	/**
+	 * @return whether a message of the level would be written anywhere, either because it passes the level
+	 * or because it goes to the lowlevel output
+	 */
 	@Override
 	public boolean isLoggable(Level level) {
-		return true;
+		return level.compareTo(this.level) >= 0 && level != Level.OFF || lowlevelOutput != null;
 	}
 	
 	public void setLowlevelOutput(OutputStream output) {
@@ -51,46 +81,212 @@ public class DefaultLogger implements Logger {
 		lowlevelOutput = new FileOutputStream(output);
 	}
 	
+	/**
+	 * formats and writes messages on a background thread instead of the logging thread.
+	 * messages are kept in a bounded buffer and written in batches
+	 * @param capacity how many messages may wait to be written
+	 * @param overflow whether to drop messages or to block the logging thread while the buffer is full
+	 * @throws IllegalStateException If the logger is already asynchronous
+	 */
+	public synchronized void setAsync(int capacity, Overflow overflow) {
+		if(queue != null)
+			throw new IllegalStateException("Logger is already asynchronous");
+		this.overflow = overflow;
+		queue = new ArrayBlockingQueue<>(capacity);
+		writer = new Thread(this::drain, "HttpServer-logger-" + name);
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+	public boolean isAsync() {
+		return queue != null;
+	}
+	/**
+	 * @return how many messages have been discarded because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	/**
+	 * writes the buffered messages and stops the background thread, further messages are written synchronously
+	 */
+	public void close() {
+		Thread writer;
+		synchronized(this) {
+			if(this.writer == null)
+				return;
+			writer = this.writer;
+			this.writer = null;
+		}
+		writer.interrupt(); // the writer empties the buffer before it stops
+		try {
+			writer.join(5000);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	@Override
 	public void log(Level level, ResourceBundle bundle, String msg, Throwable thrown) {
 		if(level.compareTo(this.level) < 0) return;
-		System.out.println(Severity.from(level) + "[" + level + "] " + rst() + new Date() + ": " + sanitize(msg));
+		submit(level, msg, false);
 	}
-
+	
 	@Override
 	public void log(Level level, ResourceBundle bundle, String format, Object... params) {
 		if(level.compareTo(this.level) < 0) {
 			if(lowlevelOutput == null) return;
-			
-			byte[] data;
-			try {
-				data = String.format("%s[" + level + "] " + rst() + new Date() + ": " + sanitize(format), Severity.from(level), params).getBytes();
-			} catch(UnknownFormatConversionException e) {
-				data = (Severity.from(level) + "[" + level + "] " + rst() + new Date() + ": " + sanitize(format)).getBytes();
-			}
+			submit(level, format, true);
+			return;
+		}
+		submit(level, format, false);
+	}
+	
+	private void submit(Level level, String msg, boolean lowlevel) {
+		var entry = new Entry(level, System.currentTimeMillis(), msg, lowlevel);
+		var queue = this.queue;
+		if(queue == null) {
+			write(entry);
+			return;
+		}
+		if(overflow == Overflow.BLOCK) {
 			try {
-				lowlevelOutput.write(data);
-				lowlevelOutput.write('\n');
-			} catch (IOException e) {
-				e.printStackTrace();
+				queue.put(entry);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.increment();
 			}
+		} else if(!queue.offer(entry))
+			dropped.increment();
+	}
+	
+	private void write(Entry entry) {
+		var line = format(entry);
+		if(!entry.lowlevel) {
+			System.out.println(line);
 			return;
 		}
+		var output = lowlevelOutput;
+		if(output == null)
+			return;
 		try {
-			System.out.println(String.format("%s[" + level + "] " + rst() + new Date() + ": " + sanitize(format), Severity.from(level), params));
-		} catch(UnknownFormatConversionException e) {
-			System.out.println(Severity.from(level) + "[" + level + "] " + rst() + new Date() + ": " + sanitize(format));
+			synchronized(output) {
+				output.write((line + "\n").getBytes());
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
 		}
 	}
-
+	
+	/**
+	 * runs on the writer thread, writes whatever is buffered at once until the logger is closed
+	 */
+	private void drain() {
+		var queue = this.queue;
+		var batch = new ArrayList<Entry>(MAX_BATCH);
+		var out = new StringBuilder();
+		var lowlevel = new StringBuilder();
+		boolean closing = false;
+		while(true) {
+			try {
+				if(!closing) {
+					var first = queue.poll(1, TimeUnit.SECONDS);
+					if(first != null)
+						batch.add(first);
+				}
+			} catch(InterruptedException e) {
+				closing = true;
+			}
+			queue.drainTo(batch, MAX_BATCH - batch.size());
+			if(batch.isEmpty()) {
+				if(closing)
+					break;
+				continue;
+			}
+			
+			for(var entry : batch)
+				(entry.lowlevel ? lowlevel : out).append(format(entry)).append('\n');
+			batch.clear();
+			if(out.length() > 0) {
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+			}
+			var output = lowlevelOutput;
+			if(lowlevel.length() > 0 && output != null) {
+				try {
+					synchronized(output) {
+						output.write(lowlevel.toString().getBytes());
+						output.flush();
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			lowlevel.setLength(0);
+		}
+		// messages submitted while switching back to synchronous logging
+		this.queue = null;
+		queue.drainTo(batch);
+		batch.forEach(this::write);
+	}
+	
+	private String format(Entry entry) {
+		return Severity.from(entry.level) + "[" + entry.level + "] " + rst() + timestamp(entry.time) + ": " + sanitize(entry.msg);
+	}
+	/**
+	 * @return the time as formatted by {@link Date#toString()}, which is only formatted once per second
+	 */
+	private String timestamp(long time) {
+		var cached = timestamp;
+		long second = time / 1000;
+		if(cached.second == second)
+			return cached.text;
+		timestamp = cached = new Timestamp(second, new Date(time).toString());
+		return cached.text;
+	}
+	
 	private static String sanitize(String text) {
-		var builder = new StringBuilder();
-		for(var c : text.toCharArray()) {
-			if((c < 0x20 || c == '%') && c != '\033') {
-				builder.append("\\0x" + Integer.toHexString(c));
+		int i = 0;
+		while(i < text.length() && !needsEscape(text.charAt(i)))
+			i++;
+		if(i == text.length())
+			return text;
+		
+		var builder = new StringBuilder(text.length() + 16).append(text, 0, i);
+		for(; i < text.length(); i++) {
+			var c = text.charAt(i);
+			if(needsEscape(c)) {
+				builder.append("\\0x").append(Integer.toHexString(c));
 			} else
 				builder.append(c);
 		}
 		return builder.toString();
 	}
+	private static boolean needsEscape(char c) {
+		return (c < 0x20 || c == '%') && c != '\033';
+	}
+	
+	private static class Entry {
+		final Level level;
+		final long time;
+		final String msg;
+		final boolean lowlevel;
+		
+		Entry(Level level, long time, String msg, boolean lowlevel) {
+			this.level = level;
+			this.time = time;
+			this.msg = msg;
+			this.lowlevel = lowlevel;
+		}
+	}
+	private static class Timestamp {
+		final long second;
+		final String text;
+		
+		Timestamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
 }
@@ -1,17 +1,37 @@
 package httpserver.util;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
 
 import httpserver.server.HttpStatus;
 import httpserver.server.Session;
+import httpserver.util.AssetCache.Asset;
 
 public class FileUtil {
+	private static volatile AssetCache cache;
+	
+	/**
+	 * serves and reads files through the cache instead of the filesystem, unless they are too large for it
+	 * @param cache the cache to use, or null to always access the filesystem
+	 */
+	public static void setAssetCache(AssetCache cache) {
+		FileUtil.cache = cache;
+	}
+	public static AssetCache getAssetCache() {
+		return cache;
+	}
+	
 	/**
 	 * replace all path-related special characters with underscores
 	 * for example: public_folder/../confidential_file -> public_folder/_/confidential_file
@@ -22,62 +42,189 @@ public class FileUtil {
 	}
 	
 	/**
-	 * convenience method, same as <code> loadTemplate(file, null) </code>
+	 * reads the file as UTF-8, unlike {@link #loadTemplate} the contents aren't cached
 	 * @return contents of the file without rendering template-variables
 	 */
 	public static Optional<String> read(String file) {
-		return loadTemplate(file, null);
+		try {
+			return Optional.of(new String(Files.readAllBytes(Path.of(file)), StandardCharsets.UTF_8));
+		} catch(IOException | InvalidPathException e) {
+			return Optional.empty();
+		}
 	}
 	
 	/**
-	 * load content of a file template and render template-variables
+	 * load content of a file template and render template-variables.
+	 * the compiled template is cached, see {@link Template#load(Path)}
 	 */
 	public static Optional<String> loadTemplate(String file, Map<String, Supplier<String>> vars) {
-		String contents;
 		try {
-			var reader = new FileReader(file);
-		
-			contents = "";
-			while(reader.ready())
-				contents += (char) reader.read();
-			reader.close();
-			
-			if(vars != null)
-				for(var var : vars.entrySet()) {
-					if(contents.contains("${" + var.getKey() + "}"))
-						contents = contents.replaceAll("\\$\\{" + var.getKey() + "\\}", var.getValue().get());
-			}
-		} catch(IOException e) {
+			return Optional.of(Template.load(Path.of(file)).render(vars));
+		} catch(IOException | InvalidPathException e) {
 			return Optional.empty();
 		}
-		
-		return Optional.of(contents);
 	}
 	/**
-	 * render template-variables on the content of the template
+	 * render template-variables on the content of the template, prefer a {@link Template} compiled once for repeated rendering
 	 */
 	public static String renderTemplate(String content, Map<String, Supplier<String>> vars) {
-		if(vars != null)
-			for(var var : vars.entrySet()) {
-				content = content.replaceAll("\\$\\{" + var.getKey() + "\\}", var.getValue().get());
-		}
-		return content;
+		return Template.compile(content).render(vars);
 	}
 	
 	public static void sendFile(String file, Session session) throws IOException {
 		sendFile(file, Map.of(), session);
 	}
+	/**
+	 * sends the file with its length and a Content-Type derived from its extension, unless <code>headers</code> contain one.
+	 * the file is transferred by the kernel where the connection allows it
+	 */
 	public static void sendFile(String file, Map<String,String> headers, Session session) throws IOException {
-		var stream = new FileInputStream(new File(file));
-		var n = stream.available();
-		var buf = new byte[4096];
-		session.sendStatus(HttpStatus.OK);
-		session.sendHeader("Content-Length", "" + n);
+		sendFile(Path.of(file), headers, true, session);
+	}
+	/**
+	 * sends the file with an ETag and its Last-Modified time, answering conditional requests with 304 and
+	 * Range requests with 206. ranges of large files are sent from a shared memory mapping
+	 * @param includeBody false to only send the head, e.g. for HEAD requests
+	 */
+	public static void sendFile(Path file, Map<String,String> headers, boolean includeBody, Session session) throws IOException {
+		var cache = FileUtil.cache;
+		if(cache != null) {
+			var asset = cache.get(file);
+			if(asset.isPresent()) {
+				sendAsset(asset.get(), headers, includeBody, session);
+				return;
+			}
+		}
+		try(var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			long lastModified = Files.getLastModifiedTime(file).toMillis();
+			var etag = ConditionalRequest.etag(length, lastModified, false);
+			var ranges = ConditionalRequest.ranges(session, etag, lastModified, length);
+			ByteBuffer mapped = includeBody && ranges != null && MappedFiles.isMappable(length) ? MappedFiles.map(file, channel, length, lastModified) : null;
+			Region region = mapped != null
+					? (s, from, count) -> s.sendBody(mapped.duplicate().limit((int) (from + count)).position((int) from))
+					: (s, from, count) -> s.sendBody(channel, from, count);
+			send(session, headers, includeBody, MimeTypes.get(file.getFileName().toString()), etag, lastModified, length, ranges, region);
+		}
+	}
+	/**
+	 * sends a cached file, compressed if the client accepts gzip and a compressed variant exists.
+	 * ranges always refer to the uncompressed file
+	 */
+	public static void sendAsset(Asset asset, Map<String,String> headers, boolean includeBody, Session session) throws IOException {
+		long lastModified = asset.getLastModified().toMillis();
+		var ranges = ConditionalRequest.ranges(session, asset.getETag(false), lastModified, asset.length());
+		boolean gzip = ranges == null && asset.hasGzip() && session.requestHeader("Accept-Encoding").map(FileUtil::acceptsGzip).orElse(false);
+		var body = gzip ? asset.gzipContent() : asset.content();
+		if(asset.hasGzip()) {
+			headers = new LinkedHashMap<>(headers);
+			if(headers.keySet().stream().noneMatch("Vary"::equalsIgnoreCase))
+				headers.put("Vary", "Accept-Encoding");
+			if(gzip)
+				headers.put("Content-Encoding", "gzip");
+		}
+		int offset = body.position();
+		Region region = (s, from, count) -> s.sendBody(body.duplicate().limit((int) (offset + from + count)).position((int) (offset + from)));
+		send(session, headers, includeBody, asset.getContentType(), asset.getETag(gzip), lastModified, body.remaining(), ranges, region);
+	}
+	
+	/**
+	 * writes a region of the body of a file
+	 */
+	private interface Region {
+		void send(Session session, long from, long count) throws IOException;
+	}
+	
+	/**
+	 * answers with 304 if the client's copy is current, otherwise with the ranges or the whole file
+	 * @param ranges the requested ranges as pairs of first and last byte, null for the whole file
+	 */
+	private static void send(Session session, Map<String,String> headers, boolean includeBody, String contentType,
+			String etag, long lastModified, long length, long[] ranges, Region body) throws IOException {
+		if(ConditionalRequest.isNotModified(session, etag, lastModified)) {
+			session.sendStatus(HttpStatus.NOT_MODIFIED);
+			session.sendHeader("ETag", etag);
+			session.sendHeader("Last-Modified", ConditionalRequest.formatDate(lastModified));
+			for(var header : headers.entrySet())
+				if(!header.getKey().equalsIgnoreCase("Content-Type"))
+					session.sendHeader(header.getKey(), header.getValue());
+			return;
+		}
+		if(ranges != null && ranges.length == 0) {
+			session.sendStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+			session.sendHeader("Content-Range", "bytes */" + length);
+			session.sendHeader("Content-Length", "0");
+			return;
+		}
+		if(headers.keySet().stream().anyMatch("Content-Type"::equalsIgnoreCase))
+			contentType = null; // sent with the other headers
+		
+		byte[][] parts = null;
+		byte[] end = null;
+		long contentLength = length;
+		if(ranges == null)
+			session.sendStatus(HttpStatus.OK);
+		else {
+			session.sendStatus(HttpStatus.PARTIAL_CONTENT);
+			if(ranges.length == 2) {
+				session.sendHeader("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + length);
+				contentLength = ranges[1] - ranges[0] + 1;
+			} else {
+				// every range is sent as a part of a multipart/byteranges body with its own Content-Range
+				var boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+				parts = new byte[ranges.length / 2][];
+				contentLength = 0;
+				for(int i = 0; i < ranges.length; i += 2) {
+					var part = (i == 0 ? "--" : "\r\n--") + boundary + "\r\n"
+							+ (contentType == null ? "" : "Content-Type: " + contentType + "\r\n")
+							+ "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + length + "\r\n\r\n";
+					parts[i / 2] = part.getBytes(StandardCharsets.ISO_8859_1);
+					contentLength += parts[i / 2].length + ranges[i + 1] - ranges[i] + 1;
+				}
+				end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+				contentLength += end.length;
+				contentType = "multipart/byteranges; boundary=" + boundary;
+			}
+		}
+		session.sendHeader("Content-Length", Long.toString(contentLength));
+		if(contentType != null)
+			session.sendHeader("Content-Type", contentType);
+		session.sendHeader("Accept-Ranges", "bytes");
+		session.sendHeader("ETag", etag);
+		session.sendHeader("Last-Modified", ConditionalRequest.formatDate(lastModified));
 		for(var header : headers.entrySet())
-			session.sendHeader(header.getKey(), header.getValue());
-		while((n = stream.read(buf)) >= 0) {
-			session.sendBody(buf, 0, n);
+			if(parts == null || !header.getKey().equalsIgnoreCase("Content-Type"))
+				session.sendHeader(header.getKey(), header.getValue());
+		if(!includeBody || contentLength == 0)
+			return;
+		
+		if(ranges == null)
+			body.send(session, 0, length);
+		else if(parts == null)
+			body.send(session, ranges[0], contentLength);
+		else {
+			for(int i = 0; i < ranges.length; i += 2) {
+				session.sendBody(parts[i / 2]);
+				body.send(session, ranges[i], ranges[i + 1] - ranges[i] + 1);
+			}
+			session.sendBody(end);
+		}
+	}
+	/**
+	 * @param acceptEncoding the value of an Accept-Encoding header
+	 * @return whether the header allows gzip, i.e. lists gzip or * without a quality of zero
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		boolean any = false;
+		for(var coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			var name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+			boolean accepted = semicolon < 0 || !coding.substring(semicolon + 1).replace(" ", "").matches("(?i)q=0(\\.0*)?");
+			if(name.equalsIgnoreCase("gzip"))
+				return accepted;
+			if(name.equals("*"))
+				any = accepted;
 		}
-		stream.close();
+		return any;
 	}
 }
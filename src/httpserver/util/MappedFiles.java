@@ -0,0 +1,66 @@
+package httpserver.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * read-only mappings of large files, shared by all range requests for them so that e.g. seeking in a video
+ * doesn't map the file again for every request. a mapping is replaced once the file's size or modification time
+ * changes, dropped mappings are unmapped when their buffers are garbage collected
+ */
+final class MappedFiles {
+	/**
+	 * smaller files are transferred as they are, mapping them costs more than it saves
+	 */
+	static final long MIN_SIZE = 1024 * 1024;
+	private static final int MAX_FILES = 64;
+	
+	private static final Map<Path, Mapping> MAPPINGS = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Mapping> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+	
+	private MappedFiles() { }
+	
+	/**
+	 * @return whether a file of this size is mapped instead of being transferred
+	 */
+	static boolean isMappable(long size) {
+		return size >= MIN_SIZE && size <= Integer.MAX_VALUE;
+	}
+	/**
+	 * @param channel an open channel of the file, only used if it isn't mapped yet
+	 * @return a read-only view of the whole file, with its own position and limit
+	 */
+	static ByteBuffer map(Path file, FileChannel channel, long size, long lastModified) throws IOException {
+		file = file.toAbsolutePath().normalize();
+		synchronized(MAPPINGS) {
+			var mapping = MAPPINGS.get(file);
+			if(mapping != null && mapping.size == size && mapping.lastModified == lastModified)
+				return mapping.buffer.duplicate();
+		}
+		var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		synchronized(MAPPINGS) {
+			MAPPINGS.put(file, new Mapping(buffer, size, lastModified));
+		}
+		return buffer.duplicate();
+	}
+	
+	private static class Mapping {
+		final MappedByteBuffer buffer;
+		final long size, lastModified;
+		
+		Mapping(MappedByteBuffer buffer, long size, long lastModified) {
+			this.buffer = buffer;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package httpserver.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * maps file extensions to the media types sent as Content-Type, textual types are declared as UTF-8
+ */
+public class MimeTypes {
+	public static final String DEFAULT = "application/octet-stream";
+	
+	private static final Map<String, String> TYPES = new ConcurrentHashMap<>();
+	static {
+		text("html", "text/html");
+		text("htm", "text/html");
+		text("css", "text/css");
+		text("js", "text/javascript");
+		text("mjs", "text/javascript");
+		text("json", "application/json");
+		text("map", "application/json");
+		text("xml", "application/xml");
+		text("txt", "text/plain");
+		text("csv", "text/csv");
+		text("md", "text/markdown");
+		text("svg", "image/svg+xml");
+		text("webmanifest", "application/manifest+json");
+		
+		TYPES.put("png", "image/png");
+		TYPES.put("jpg", "image/jpeg");
+		TYPES.put("jpeg", "image/jpeg");
+		TYPES.put("gif", "image/gif");
+		TYPES.put("webp", "image/webp");
+		TYPES.put("avif", "image/avif");
+		TYPES.put("ico", "image/x-icon");
+		TYPES.put("bmp", "image/bmp");
+		TYPES.put("woff", "font/woff");
+		TYPES.put("woff2", "font/woff2");
+		TYPES.put("ttf", "font/ttf");
+		TYPES.put("otf", "font/otf");
+		TYPES.put("mp3", "audio/mpeg");
+		TYPES.put("ogg", "audio/ogg");
+		TYPES.put("wav", "audio/wav");
+		TYPES.put("mp4", "video/mp4");
+		TYPES.put("webm", "video/webm");
+		TYPES.put("pdf", "application/pdf");
+		TYPES.put("zip", "application/zip");
+		TYPES.put("gz", "application/gzip");
+		TYPES.put("wasm", "application/wasm");
+	}
+	private static void text(String extension, String type) {
+		TYPES.put(extension, type + "; charset=utf-8");
+	}
+	
+	/**
+	 * registers or replaces the type of an extension
+	 * @param extension the extension without the dot, e.g. <code>html</code>
+	 */
+	public static void register(String extension, String type) {
+		TYPES.put(extension.toLowerCase(Locale.ROOT), type);
+	}
+	
+	/**
+	 * @return the media type of the file name, or {@link #DEFAULT} if the extension is unknown
+	 */
+	public static String get(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		if(dot < 0 || dot < fileName.lastIndexOf('/'))
+			return DEFAULT;
+		return TYPES.getOrDefault(fileName.substring(dot + 1).toLowerCase(Locale.ROOT), DEFAULT);
+	}
+}
@@ -0,0 +1,72 @@
+package httpserver.util;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import httpserver.server.HttpStatus;
+import httpserver.server.RouteEndpoint;
+import httpserver.server.Session;
+
+/**
+ * serves the files below a directory, e.g. <code>server.route("/assets/.*", new StaticFiles("/assets/", Path.of("public")))</code>.
+ * paths that would leave the directory are answered with 404, directories are served by their <code>index.html</code>
+ */
+public class StaticFiles implements RouteEndpoint {
+	private final String prefix;
+	private final Path root;
+	private final Map<String, String> headers;
+	
+	public StaticFiles(String prefix, Path root) {
+		this(prefix, root, Map.of());
+	}
+	/**
+	 * @param prefix the part of the resource that is stripped before resolving it against <code>root</code>
+	 * @param headers additional headers sent with every file, e.g. Cache-Control
+	 */
+	public StaticFiles(String prefix, Path root, Map<String, String> headers) {
+		this.prefix = prefix;
+		this.root = root.toAbsolutePath().normalize();
+		this.headers = Map.copyOf(headers);
+	}
+	
+	@Override
+	public void handle(String method, String resource, Session session) throws IOException {
+		if(!method.equals("GET") && !method.equals("HEAD")) {
+			session.sendStatus(HttpStatus.METHOD_NOT_ALLOWED);
+			session.sendHeader("Allow", "GET, HEAD");
+			return;
+		}
+		var file = resolve(resource);
+		if(file == null) {
+			session.sendStatus(HttpStatus.NOT_FOUND);
+			return;
+		}
+		FileUtil.sendFile(file, headers, method.equals("GET"), session);
+	}
+	
+	/**
+	 * @return the regular file the resource refers to, or null if there is none inside the root directory
+	 */
+	Path resolve(String resource) {
+		if(!resource.startsWith(prefix))
+			return null;
+		Path file;
+		try {
+			var relative = URLDecoder.decode(resource.substring(prefix.length()).replace("+", "%2B"), StandardCharsets.UTF_8); // a path keeps its plus signs
+			while(relative.startsWith("/"))
+				relative = relative.substring(1);
+			file = root.resolve(relative).normalize();
+		} catch(IllegalArgumentException e) { // malformed escapes or an invalid path
+			return null;
+		}
+		if(!file.startsWith(root))
+			return null;
+		if(Files.isDirectory(file))
+			file = file.resolve("index.html");
+		return Files.isRegularFile(file) ? file : null;
+	}
+}
@@ -0,0 +1,181 @@
+package httpserver.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import httpserver.server.Session;
+
+/**
+ * a template parsed once into literal text and <code>${name}</code> variables, which can be rendered any number of times.
+ * values are inserted verbatim, variables without a value are left in the output as they are
+ */
+public class Template {
+	/**
+	 * the bytes of template files the compiled templates are kept for, the least recently used are dropped first
+	 */
+	private static final long MAX_LOADED_BYTES = 16 * 1024 * 1024;
+	/**
+	 * larger files are compiled on every load
+	 */
+	private static final long MAX_LOADED_SIZE = MAX_LOADED_BYTES / 16;
+	private static final LinkedHashMap<Path, Loaded> LOADED = new LinkedHashMap<>(64, 0.75f, true);
+	private static long loadedBytes;
+	
+	private final String source;
+	/**
+	 * literal text, followed by a variable for every literal but the last
+	 */
+	private final String[] literals, names;
+	private final byte[][] encodedLiterals;
+	private final int literalLength;
+	
+	private Template(String source, String[] literals, String[] names) {
+		this.source = source;
+		this.literals = literals;
+		this.names = names;
+		encodedLiterals = new byte[literals.length][];
+		int length = 0;
+		for(int i = 0; i < literals.length; i++)
+			length += (encodedLiterals[i] = literals[i].getBytes(StandardCharsets.UTF_8)).length;
+		literalLength = length;
+	}
+	
+	/**
+	 * parses the template, should be kept and reused instead of compiling the same source again
+	 */
+	public static Template compile(String source) {
+		var literals = new ArrayList<String>();
+		var names = new ArrayList<String>();
+		int start = 0, from = 0;
+		while(true) {
+			int open = source.indexOf("${", from);
+			if(open < 0)
+				break;
+			int close = source.indexOf('}', open + 2);
+			if(close < 0)
+				break;
+			literals.add(source.substring(start, open));
+			names.add(source.substring(open + 2, close));
+			start = from = close + 1;
+		}
+		literals.add(source.substring(start));
+		return new Template(source, literals.toArray(String[]::new), names.toArray(String[]::new));
+	}
+	
+	/**
+	 * loads and compiles a template file, which is decoded as UTF-8. compiled templates are cached within a budget
+	 * and compiled again once the modification time or size of the file changes
+	 */
+	public static Template load(Path file) throws IOException {
+		file = file.toAbsolutePath().normalize();
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch(NoSuchFileException e) {
+			unload(file);
+			throw e;
+		}
+		Loaded loaded;
+		synchronized(LOADED) {
+			loaded = LOADED.get(file);
+		}
+		if(loaded != null && loaded.lastModified.equals(attributes.lastModifiedTime()) && loaded.size == attributes.size())
+			return loaded.template;
+		var template = compile(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		if(attributes.size() > MAX_LOADED_SIZE) {
+			unload(file);
+			return template;
+		}
+		synchronized(LOADED) {
+			var old = LOADED.put(file, new Loaded(template, attributes.lastModifiedTime(), attributes.size()));
+			if(old != null)
+				loadedBytes -= old.size;
+			loadedBytes += attributes.size();
+			var iterator = LOADED.values().iterator();
+			while(loadedBytes > MAX_LOADED_BYTES && iterator.hasNext()) {
+				loadedBytes -= iterator.next().size;
+				iterator.remove();
+			}
+		}
+		return template;
+	}
+	private static void unload(Path file) {
+		synchronized(LOADED) {
+			var old = LOADED.remove(file);
+			if(old != null)
+				loadedBytes -= old.size;
+		}
+	}
+	
+	public String getSource() {
+		return source;
+	}
+	
+	/**
+	 * @param vars the values of the variables, each supplier is called once per occurrence; may be null
+	 */
+	public String render(Map<String, ? extends Supplier<String>> vars) {
+		if(vars == null || names.length == 0)
+			return source;
+		var out = new StringBuilder(source.length() + 16 * names.length);
+		try {
+			render(vars, out);
+		} catch(IOException e) {
+			throw new AssertionError(e); // a StringBuilder doesn't throw
+		}
+		return out.toString();
+	}
+	/**
+	 * renders the template into the output without building the whole result first
+	 */
+	public void render(Map<String, ? extends Supplier<String>> vars, Appendable out) throws IOException {
+		for(int i = 0; i < names.length; i++) {
+			out.append(literals[i]);
+			out.append(value(vars, i));
+		}
+		out.append(literals[names.length]);
+	}
+	/**
+	 * sends the rendered template as UTF-8 encoded body with its Content-Length, the status and other headers
+	 * have to be sent before. the literal text is encoded once when compiling, only the values are encoded per request,
+	 * and the pieces are sent one after another instead of being joined first
+	 */
+	public void send(Map<String, ? extends Supplier<String>> vars, Session session) throws IOException {
+		var values = new byte[names.length][];
+		long length = literalLength;
+		for(int i = 0; i < names.length; i++)
+			length += (values[i] = value(vars, i).getBytes(StandardCharsets.UTF_8)).length;
+		session.sendHeader("Content-Length", Long.toString(length));
+		for(int i = 0; i < names.length; i++) {
+			session.sendBody(encodedLiterals[i]);
+			session.sendBody(values[i]);
+		}
+		session.sendBody(encodedLiterals[names.length]);
+	}
+	
+	private String value(Map<String, ? extends Supplier<String>> vars, int i) {
+		var supplier = vars == null ? null : vars.get(names[i]);
+		return supplier == null ? "${" + names[i] + "}" : String.valueOf(supplier.get());
+	}
+	
+	private static class Loaded {
+		final Template template;
+		final FileTime lastModified;
+		final long size;
+		
+		Loaded(Template template, FileTime lastModified, long size) {
+			this.template = template;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+	}
+}
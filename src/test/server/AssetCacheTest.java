@@ -0,0 +1,84 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Server;
+import httpserver.util.AssetCache;
+import httpserver.util.DefaultLogger;
+import httpserver.util.FileUtil;
+
+class AssetCacheTest {
+	
+	@Test
+	void sameETagWithAndWithoutCache() throws IOException, InterruptedException {
+		var file = Files.createTempFile("asset", ".txt");
+		var cache = new AssetCache(1 << 20, 1 << 16, false);
+		cache.setRevalidationInterval(Duration.ZERO);
+		var server = new Server(0, new DefaultLogger("test"));
+		server.route("/", (meth, res, sess) -> FileUtil.sendFile(file, Map.of(), true, sess));
+		server.start();
+		try(var client = new RawClient(server)) {
+			Files.writeString(file, "first version");
+			Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2024-05-01T12:00:00Z")));
+			
+			FileUtil.setAssetCache(cache);
+			var cached = get(client, "");
+			assertEquals("first version", cached.text());
+			var etag = cached.header("ETag");
+			
+			// after the cache has dropped the file, the client's copy is still current
+			cache.clear();
+			FileUtil.setAssetCache(null);
+			assertEquals(etag, get(client, "").header("ETag"));
+			assertEquals(304, get(client, "If-None-Match: " + etag + "\r\n").status);
+			FileUtil.setAssetCache(cache);
+			assertEquals(304, get(client, "If-None-Match: " + etag + "\r\n").status);
+			
+			// a changed file is reloaded with a new tag
+			Files.writeString(file, "second version");
+			var changed = get(client, "If-None-Match: " + etag + "\r\n");
+			assertEquals(200, changed.status);
+			assertEquals("second version", changed.text());
+			assertNotEquals(etag, changed.header("ETag"));
+		} finally {
+			FileUtil.setAssetCache(null);
+			server.shutdown(Duration.ofSeconds(5));
+			Files.delete(file);
+		}
+	}
+	
+	@Test
+	void revalidationInterval() throws IOException {
+		var file = Files.createTempFile("asset", ".txt");
+		try {
+			var cache = new AssetCache(1 << 20, 1 << 16, false);
+			assertEquals(Duration.ofSeconds(1), cache.getRevalidationInterval());
+			Files.writeString(file, "first version");
+			assertEquals("first version", cache.get(file).orElseThrow().text());
+			
+			// served without looking at the file until the interval has passed
+			Files.writeString(file, "second version");
+			assertEquals("first version", cache.get(file).orElseThrow().text());
+			cache.setRevalidationInterval(Duration.ZERO);
+			assertEquals("second version", cache.get(file).orElseThrow().text());
+			assertEquals(2, cache.getMisses());
+		} finally {
+			Files.delete(file);
+		}
+	}
+	
+	private static RawClient.Response get(RawClient client, String headers) throws IOException {
+		client.send("GET / HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n");
+		return client.read();
+	}
+}
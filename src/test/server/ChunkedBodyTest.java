@@ -0,0 +1,114 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class ChunkedBodyTest {
+	
+	@Test
+	void decodeChunks() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = echoServer(engine, 1024);
+			try(var client = new RawClient(server)) {
+				// an extension, a bare LF, upper-case hex digits and a trailer
+				client.send("POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "5;name=value\r\nhello\r\n1\n,\r\nA\r\n wonderful\r\n0\r\nX-Checksum: 1\r\n\r\n");
+				assertEcho(client.read(), "hello, wonderful");
+				
+				// the connection continues right after the trailers
+				client.send("POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n"
+						+ "POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\nend");
+				assertEcho(client.read(), "");
+				assertEcho(client.read(), "end");
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void rejectOversizedBody() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = echoServer(engine, 10);
+			try {
+				// exactly the limit is accepted
+				try(var client = new RawClient(server)) {
+					client.send(chunked("5\r\nhello\r\n5\r\nworld\r\n0\r\n\r\n"));
+					assertEcho(client.read(), "helloworld");
+				}
+				// the chunk that crosses the limit is refused before it is read
+				try(var client = new RawClient(server)) {
+					client.send(chunked("5\r\nhello\r\n6\r\nworld!\r\n0\r\n\r\n"));
+					assertError(client, 413);
+				}
+				try(var client = new RawClient(server)) {
+					client.send("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 11\r\n\r\nhello world");
+					assertError(client, 413);
+				}
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void rejectMalformedChunks() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = echoServer(engine, 1024);
+			try {
+				for(var body : new String[] {
+					"zz\r\nhello\r\n0\r\n\r\n",               // no hex digits
+					"5\r\nhelloX\r\n0\r\n\r\n",               // data longer than the chunk size
+					"1000000000000000\r\nhello\r\n0\r\n\r\n", // size beyond 15 digits
+				}) {
+					try(var client = new RawClient(server)) {
+						client.send(chunked(body));
+						assertError(client, 400);
+					}
+				}
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	private static Server echoServer(Engine engine, long maxBodySize) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"), engine);
+		server.setMaxBodySize(maxBodySize);
+		server.route("/", (meth, res, sess) -> {
+			var body = sess.getRequestBody();
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendBody(body);
+		});
+		server.start();
+		return server;
+	}
+	
+	private static String chunked(String body) {
+		return "POST / HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n" + body;
+	}
+	
+	private static void assertEcho(RawClient.Response response, String body) {
+		assertEquals(200, response.status);
+		assertEquals(body, response.text());
+	}
+	/**
+	 * the connection can't be reused, as the rest of the body is unknown
+	 */
+	private static void assertError(RawClient client, int status) throws IOException {
+		var response = client.read();
+		assertEquals(status, response.status);
+		assertEquals("close", response.header("Connection"));
+		assertTrue(client.isClosedByServer());
+	}
+}
@@ -0,0 +1,167 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class CompressionTest {
+	private static final String TEXT = "All work and no play makes Jack a dull boy.\n".repeat(100);
+	/**
+	 * larger than the body buffer of a session, so that it is compressed while it is written
+	 */
+	private static final String LONG_TEXT = "All work and no play makes Jack a dull boy.\n".repeat(10_000);
+	
+	@Test
+	void negotiate() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = server(engine);
+			try(var client = new RawClient(server)) {
+				var gzip = get(client, "/text", "gzip, deflate");
+				assertEquals("gzip", gzip.header("Content-Encoding"));
+				assertEquals("Accept-Encoding", gzip.header("Vary"));
+				assertEquals(Integer.toString(gzip.body.length), gzip.header("Content-Length"));
+				assertEquals(TEXT, gunzip(gzip.body));
+				
+				var deflate = get(client, "/text", "gzip;q=0.5, deflate");
+				assertEquals("deflate", deflate.header("Content-Encoding"));
+				assertEquals(TEXT, inflate(deflate.body));
+				
+				assertEquals("gzip", get(client, "/text", "*").header("Content-Encoding"));
+				
+				// the client refuses both codings or doesn't name any
+				assertIdentity(get(client, "/text", "gzip;q=0, deflate;q=0.0"), TEXT);
+				assertIdentity(get(client, "/text", "identity"), TEXT);
+				assertIdentity(get(client, "/text", null), TEXT);
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void compressStream() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = server(engine);
+			try(var client = new RawClient(server)) {
+				var response = get(client, "/stream", "gzip");
+				assertEquals("gzip", response.header("Content-Encoding"));
+				assertEquals("chunked", response.header("Transfer-Encoding"));
+				assertNull(response.header("Content-Length"));
+				assertEquals(LONG_TEXT, gunzip(response.body));
+				
+				// the connection is still in sync after the compressed chunks
+				assertIdentity(get(client, "/small", "gzip"), "short");
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void exclusions() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = server(engine);
+			try(var client = new RawClient(server)) {
+				assertIdentity(get(client, "/small", "gzip"), "short");
+				assertIdentity(get(client, "/binary", "gzip"), TEXT);
+				
+				// a range refers to the bytes of the uncompressed body
+				var partial = get(client, "/partial", "gzip");
+				assertEquals(206, partial.status);
+				assertNull(partial.header("Content-Encoding"));
+				assertEquals(TEXT, partial.text());
+				
+				var empty = get(client, "/empty", "gzip");
+				assertEquals(204, empty.status);
+				assertNull(empty.header("Content-Encoding"));
+				var notModified = get(client, "/not-modified", "gzip");
+				assertEquals(304, notModified.status);
+				assertNull(notModified.header("Content-Encoding"));
+				// still in sync after the responses without body
+				assertEquals("gzip", get(client, "/text", "gzip").header("Content-Encoding"));
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	private static Server server(Engine engine) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"), engine);
+		server.route("/text", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendHeader("Content-Type", "text/plain; charset=utf-8");
+			sess.sendBody(TEXT);
+		});
+		server.route("/stream", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendHeader("Content-Type", "text/plain");
+			sess.sendBody(LONG_TEXT.substring(0, LONG_TEXT.length() / 2));
+			sess.sendBody(LONG_TEXT.substring(LONG_TEXT.length() / 2));
+		});
+		server.route("/small", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendHeader("Content-Type", "text/plain");
+			sess.sendBody("short");
+		});
+		server.route("/binary", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendHeader("Content-Type", "image/png");
+			sess.sendBody(TEXT);
+		});
+		server.route("/partial", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.PARTIAL_CONTENT);
+			sess.sendHeader("Content-Type", "text/plain");
+			sess.sendHeader("Content-Range", "bytes 0-" + (TEXT.length() - 1) + "/" + (TEXT.length() + 10));
+			sess.sendBody(TEXT);
+		});
+		server.route("/empty", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.NO_CONTENT);
+			sess.sendHeader("Content-Type", "text/plain");
+		});
+		server.route("/not-modified", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.NOT_MODIFIED);
+			sess.sendHeader("Content-Type", "text/plain");
+		});
+		server.start();
+		return server;
+	}
+	
+	private static RawClient.Response get(RawClient client, String resource, String acceptEncoding) throws IOException {
+		client.send("GET " + resource + " HTTP/1.1\r\nHost: localhost\r\n"
+				+ (acceptEncoding == null ? "" : "Accept-Encoding: " + acceptEncoding + "\r\n") + "\r\n");
+		return client.read();
+	}
+	
+	private static void assertIdentity(RawClient.Response response, String body) {
+		assertEquals(200, response.status);
+		assertNull(response.header("Content-Encoding"));
+		assertEquals(body, response.text());
+	}
+	
+	private static String gunzip(byte[] body) throws IOException {
+		try(var in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+	/**
+	 * the deflate content-coding is a zlib stream (RFC 9110, section 8.4.1.2)
+	 */
+	private static String inflate(byte[] body) throws IOException {
+		try(var in = new InflaterInputStream(new ByteArrayInputStream(body))) {
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class Http2Test {
+	private static final String BIG = "0123456789abcdef".repeat(256 * 1024);
+	
+	@Test
+	void h2cRequests() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = new Server(0, new DefaultLogger("test"), engine);
+			server.setMaxConcurrentStreams(2);
+			server.route("/hello", (meth, res, sess) -> {
+				sess.sendStatus(HttpStatus.OK);
+				sess.sendHeader("X-Echo", sess.requestHeader("x-test").orElse("-"));
+				sess.sendBody("hello " + meth);
+			});
+			server.route("/echo", (meth, res, sess) -> {
+				var body = sess.getRequestBodyBytes();
+				sess.sendStatus(HttpStatus.OK);
+				sess.sendBody(Integer.toString(body.length));
+			});
+			server.route("/big", (meth, res, sess) -> {
+				sess.sendStatus(HttpStatus.OK);
+				sess.sendHeader("Content-Type", "application/octet-stream");
+				sess.sendBody(BIG);
+			});
+			server.route("/fail", (meth, res, sess) -> {
+				throw new IllegalStateException("fails before its response");
+			});
+			server.route("/late", (meth, res, sess) -> {
+				sess.sendStatus(HttpStatus.OK);
+				sess.startStream();
+				sess.sendBody("partial");
+				sess.flush();
+				throw new IllegalStateException("fails during its response");
+			});
+			server.start();
+			
+			try {
+				var base = "http://localhost:" + server.getLocalAddresses().get(0).getPort();
+				var client = HttpClient.newBuilder().version(Version.HTTP_2).build();
+				
+				// upgrades the connection, the following requests are streams on it
+				var hello = client.send(request(base + "/hello").header("X-Test", "upgrade").build(), BodyHandlers.ofString());
+				assertEquals(Version.HTTP_2, hello.version());
+				assertEquals("hello GET", hello.body());
+				assertEquals("upgrade", hello.headers().firstValue("x-echo").orElse(null));
+				
+				// failing endpoints must not keep their streams open beyond the limit of 2
+				for(int i = 0; i < 2; i++) {
+					assertEquals(500, client.send(request(base + "/fail").build(), BodyHandlers.ofString()).statusCode());
+					assertThrows(IOException.class, () -> client.send(request(base + "/late").build(), BodyHandlers.ofString()));
+				}
+				for(int i = 0; i < 10; i++) {
+					var response = client.send(request(base + "/hello").header("X-Test", "stream " + i).build(), BodyHandlers.ofString());
+					assertEquals(Version.HTTP_2, response.version());
+					assertEquals("stream " + i, response.headers().firstValue("x-echo").orElse(null));
+				}
+				
+				// both exceed the initial flow-control window of 64 KiB
+				var big = client.send(request(base + "/big").header("Accept-Encoding", "identity").build(), BodyHandlers.ofString());
+				assertEquals(Version.HTTP_2, big.version());
+				assertEquals(BIG, big.body());
+				var echo = client.send(request(base + "/echo").POST(BodyPublishers.ofString(BIG)).build(), BodyHandlers.ofString());
+				assertEquals(Version.HTTP_2, echo.version());
+				assertEquals(Integer.toString(BIG.length()), echo.body());
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void http1WhenDisabled() throws IOException, InterruptedException {
+		var server = new Server(0, new DefaultLogger("test"), Engine.NIO);
+		server.setHttp2Enabled(false);
+		server.route("/hello", (meth, res, sess) -> {
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendBody("hello");
+		});
+		server.start();
+		
+		try {
+			var client = HttpClient.newBuilder().version(Version.HTTP_2).build();
+			var response = client.send(request("http://localhost:" + server.getLocalAddresses().get(0).getPort() + "/hello").build(), BodyHandlers.ofString());
+			assertEquals(Version.HTTP_1_1, response.version());
+			assertEquals("hello", response.body());
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	private static HttpRequest.Builder request(String uri) {
+		return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(10));
+	}
+}
@@ -0,0 +1,131 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class KeepAliveTest {
+	
+	@Test
+	void pipelinedRequests() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = countingServer(engine);
+			try(var client = new RawClient(server)) {
+				// both requests arrive in one segment, the second one waits in the buffer of the first
+				client.send("GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n"
+						+ "POST /b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+				assertResponse(client.read(), "1 GET /a ", null);
+				assertResponse(client.read(), "2 POST /b hello", null);
+				
+				// the connection is still open for another request
+				client.send("GET /c HTTP/1.1\r\nHost: localhost\r\n\r\n");
+				assertResponse(client.read(), "3 GET /c ", null);
+				client.setTimeout(200);
+				assertFalse(client.isClosedByServer());
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void connectionHeader() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = countingServer(engine);
+			try {
+				// HTTP/1.1 is persistent unless the client closes it
+				try(var client = new RawClient(server)) {
+					client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\nGET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+					assertResponse(client.read(), "1 GET / ", null);
+					assertResponse(client.read(), "2 GET / ", "close");
+					assertTrue(client.isClosedByServer());
+				}
+				// HTTP/1.0 closes unless the client asks for keep-alive
+				try(var client = new RawClient(server)) {
+					client.send("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\nGET / HTTP/1.0\r\n\r\n");
+					var first = client.read();
+					assertEquals("HTTP/1.0", first.version);
+					assertResponse(first, "3 GET / ", "keep-alive");
+					assertResponse(client.read(), "4 GET / ", "close");
+					assertTrue(client.isClosedByServer());
+				}
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void maxRequestsPerConnection() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = countingServer(engine);
+			server.setMaxRequestsPerConnection(2);
+			try(var client = new RawClient(server)) {
+				client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".repeat(3));
+				assertResponse(client.read(), "1 GET / ", null);
+				assertResponse(client.read(), "2 GET / ", "close");
+				// the third request is dropped with the connection
+				assertTrue(client.isClosedByServer());
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void idleTimeout() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = countingServer(engine);
+			server.setKeepAliveTimeout(300);
+			try(var client = new RawClient(server)) {
+				client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+				assertResponse(client.read(), "1 GET / ", null);
+				long start = System.nanoTime();
+				assertTrue(client.isClosedByServer());
+				long idle = (System.nanoTime() - start) / 1_000_000;
+				assertTrue(idle >= 200 && idle < 3000, "closed after " + idle + " ms");
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	/**
+	 * answers with the number of the request, its method, resource and body
+	 */
+	private static Server countingServer(Engine engine) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"), engine);
+		var requests = new AtomicInteger();
+		server.route("/.*", (meth, res, sess) -> {
+			var body = sess.getRequestBody();
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendBody(requests.incrementAndGet() + " " + meth + " " + res + " " + body);
+		});
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * @param connection the expected Connection header, null if none should be sent
+	 */
+	private static void assertResponse(RawClient.Response response, String body, String connection) {
+		assertEquals(200, response.status);
+		assertEquals(body, response.text());
+		if(connection == null)
+			assertNull(response.header("Connection"));
+		else
+			assertEquals(connection, response.header("Connection"));
+	}
+}
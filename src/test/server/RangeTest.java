@@ -0,0 +1,192 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+import httpserver.util.FileUtil;
+
+class RangeTest {
+	private static final Instant MODIFIED = Instant.parse("2024-05-01T12:00:00Z");
+	
+	@Test
+	void conditionalGet() throws IOException, InterruptedException {
+		forEachFile((client, content) -> {
+			var full = get(client, "");
+			assertEquals(200, full.status);
+			assertEquals("bytes", full.header("Accept-Ranges"));
+			assertEquals(date(MODIFIED), full.header("Last-Modified"));
+			assertArrayEquals(content, full.body);
+			var etag = full.header("ETag");
+			assertNotNull(etag);
+			
+			assertNotModified(get(client, "If-None-Match: " + etag + "\r\n"), etag);
+			assertNotModified(get(client, "If-None-Match: \"other\", W/" + etag + "\r\n"), etag);
+			assertNotModified(get(client, "If-Modified-Since: " + date(MODIFIED) + "\r\n"), etag);
+			assertNotModified(get(client, "If-Modified-Since: " + date(MODIFIED.plusSeconds(60)) + "\r\n"), etag);
+			
+			assertEquals(200, get(client, "If-None-Match: \"other\"\r\n").status);
+			assertEquals(200, get(client, "If-Modified-Since: " + date(MODIFIED.minusSeconds(1)) + "\r\n").status);
+			// If-Modified-Since is ignored when If-None-Match is present
+			assertEquals(200, get(client, "If-None-Match: \"other\"\r\nIf-Modified-Since: " + date(MODIFIED) + "\r\n").status);
+		});
+	}
+	
+	@Test
+	void singleRange() throws IOException, InterruptedException {
+		forEachFile((client, content) -> {
+			int length = content.length;
+			assertPartial(get(client, "Range: bytes=10-19\r\n"), content, 10, 19);
+			assertPartial(get(client, "Range: bytes=-5\r\n"), content, length - 5, length - 1);
+			assertPartial(get(client, "Range: bytes=" + (length - 3) + "-\r\n"), content, length - 3, length - 1);
+			assertPartial(get(client, "Range: bytes=" + (length - 1) + "-" + (length * 2) + "\r\n"), content, length - 1, length - 1);
+			// a satisfiable range among unsatisfiable ones
+			assertPartial(get(client, "Range: bytes=" + length + "-, 0-0\r\n"), content, 0, 0);
+			
+			// the head of a partial response without its body
+			client.send("HEAD / HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-9\r\n\r\n");
+			var head = client.read(true);
+			assertEquals(206, head.status);
+			assertEquals("bytes 0-9/" + length, head.header("Content-Range"));
+			assertEquals("10", head.header("Content-Length"));
+		});
+	}
+	
+	@Test
+	void unsatisfiableRange() throws IOException, InterruptedException {
+		forEachFile((client, content) -> {
+			for(var range : new String[] { content.length + "-", content.length + "-" + (content.length + 10), "-0" }) {
+				var response = get(client, "Range: bytes=" + range + "\r\n");
+				assertEquals(416, response.status);
+				assertEquals("bytes */" + content.length, response.header("Content-Range"));
+				assertEquals(0, response.body.length);
+			}
+			// the connection continues after the empty 416 responses
+			assertArrayEquals(content, get(client, "").body);
+		});
+	}
+	
+	@Test
+	void multipleRanges() throws IOException, InterruptedException {
+		forEachFile((client, content) -> {
+			var contentType = get(client, "").header("Content-Type");
+			var response = get(client, "Range: bytes=0-1, 5-6\r\n");
+			assertEquals(206, response.status);
+			var type = response.header("Content-Type");
+			assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+			var boundary = type.substring(type.indexOf('=') + 1);
+			assertEquals(Integer.toString(response.body.length), response.header("Content-Length"));
+			
+			var expected = new ByteArrayOutputStream();
+			expected.write(part("--" + boundary, contentType, 0, 1, content.length));
+			expected.write(content, 0, 2);
+			expected.write(part("\r\n--" + boundary, contentType, 5, 6, content.length));
+			expected.write(content, 5, 2);
+			expected.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			assertArrayEquals(expected.toByteArray(), response.body);
+		});
+	}
+	
+	@Test
+	void ignoredRange() throws IOException, InterruptedException {
+		forEachFile((client, content) -> {
+			var etag = get(client, "").header("ETag");
+			var tooMany = new StringBuilder("Range: bytes=0-0");
+			for(int i = 1; i <= 16; i++)
+				tooMany.append(',').append(2 * i).append('-').append(2 * i);
+			// too many ranges, a malformed range and another unit are answered with the whole file
+			for(var header : new String[] { tooMany + "\r\n", "Range: bytes=5-2\r\n", "Range: items=0-1\r\n",
+					"Range: bytes=0-1\r\nIf-Range: \"outdated\"\r\n",
+					"Range: bytes=0-1\r\nIf-Range: " + date(MODIFIED.minusSeconds(1)) + "\r\n" }) {
+				var response = get(client, header);
+				assertEquals(200, response.status, header);
+				assertArrayEquals(content, response.body);
+			}
+			
+			assertPartial(get(client, "Range: bytes=0-1\r\nIf-Range: " + etag + "\r\n"), content, 0, 1);
+			assertPartial(get(client, "Range: bytes=0-1\r\nIf-Range: " + date(MODIFIED) + "\r\n"), content, 0, 1);
+		});
+	}
+	
+	private interface FileCheck {
+		void check(RawClient client, byte[] content) throws IOException;
+	}
+	/**
+	 * serves a small file, which is read through its channel, and a file that is large enough to be mapped, from both engines
+	 */
+	private static void forEachFile(FileCheck check) throws IOException, InterruptedException {
+		for(int size : new int[] { 100, 2 * 1024 * 1024 }) {
+			var content = new byte[size];
+			for(int i = 0; i < size; i++)
+				content[i] = (byte) (i % 251);
+			var file = Files.createTempFile("range", ".bin");
+			try {
+				Files.write(file, content);
+				Files.setLastModifiedTime(file, FileTime.from(MODIFIED));
+				for(var engine : Engine.values()) {
+					var server = fileServer(engine, file);
+					try(var client = new RawClient(server)) {
+						check.check(client, content);
+					} finally {
+						server.shutdown(Duration.ofSeconds(5));
+					}
+				}
+			} finally {
+				Files.delete(file);
+			}
+		}
+	}
+	private static Server fileServer(Engine engine, Path file) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"), engine);
+		server.route("/", (meth, res, sess) -> FileUtil.sendFile(file, Map.of(), !meth.equals("HEAD"), sess));
+		server.start();
+		return server;
+	}
+	
+	private static RawClient.Response get(RawClient client, String headers) throws IOException {
+		client.send("GET / HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n");
+		return client.read();
+	}
+	
+	private static void assertNotModified(RawClient.Response response, String etag) {
+		assertEquals(304, response.status);
+		assertEquals(etag, response.header("ETag"));
+		assertEquals(date(MODIFIED), response.header("Last-Modified"));
+	}
+	private static void assertPartial(RawClient.Response response, byte[] content, int first, int last) {
+		assertEquals(206, response.status);
+		assertEquals("bytes " + first + "-" + last + "/" + content.length, response.header("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(content, first, last + 1), response.body);
+	}
+	
+	private static byte[] part(String delimiter, String contentType, int first, int last, int length) {
+		return (delimiter + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes " + first + "-" + last + "/" + length + "\r\n\r\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+	}
+	/**
+	 * formats IMF-fixdate, as the server does
+	 */
+	private static String date(Instant instant) {
+		return DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC).format(instant);
+	}
+}
@@ -0,0 +1,146 @@
+package test.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import httpserver.server.Server;
+
+/**
+ * a connection that writes requests as they are given and reads responses byte by byte,
+ * so that tests see the framing the server chose
+ */
+class RawClient implements Closeable {
+	private final Socket socket;
+	private final InputStream in;
+	
+	RawClient(Server server) throws IOException {
+		socket = new Socket("localhost", server.getLocalAddresses().get(0).getPort());
+		socket.setSoTimeout(5000);
+		in = socket.getInputStream();
+	}
+	
+	void send(String request) throws IOException {
+		send(request.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	void send(byte[] request) throws IOException {
+		socket.getOutputStream().write(request);
+		socket.getOutputStream().flush();
+	}
+	
+	Response read() throws IOException {
+		return read(false);
+	}
+	/**
+	 * @param head whether the response answers a HEAD request and thus has no body
+	 */
+	Response read(boolean head) throws IOException {
+		var response = new Response();
+		var statusLine = readLine();
+		if(statusLine == null)
+			throw new EOFException("Connection closed before the response");
+		response.version = statusLine.substring(0, statusLine.indexOf(' '));
+		response.status = Integer.parseInt(statusLine.substring(statusLine.indexOf(' ') + 1, statusLine.indexOf(' ') + 4));
+		for(var line = readLine(); !line.isEmpty(); line = readLine()) {
+			int colon = line.indexOf(':');
+			var name = line.substring(0, colon).toLowerCase(Locale.ROOT);
+			var value = line.substring(colon + 1).trim();
+			response.headers.merge(name, value, (a, b) -> a + ", " + b);
+		}
+		
+		if(head || response.status / 100 == 1 || response.status == 204 || response.status == 304)
+			response.body = new byte[0];
+		else if("chunked".equalsIgnoreCase(response.header("Transfer-Encoding"))) {
+			var body = new ByteArrayOutputStream();
+			for(int size = chunkSize(); size > 0; size = chunkSize()) {
+				body.write(in.readNBytes(size));
+				expectCRLF();
+			}
+			while(!readLine().isEmpty()) { } // trailers
+			response.body = body.toByteArray();
+		} else if(response.header("Content-Length") != null) {
+			int length = Integer.parseInt(response.header("Content-Length"));
+			response.body = in.readNBytes(length);
+			if(response.body.length < length)
+				throw new EOFException("Body ended after " + response.body.length + " of " + length + " bytes");
+		} else
+			response.body = in.readAllBytes();
+		return response;
+	}
+	
+	/**
+	 * @return whether the server closed the connection, instead of sending anything else, within the socket's timeout
+	 */
+	boolean isClosedByServer() throws IOException {
+		try {
+			return in.read() < 0;
+		} catch(SocketTimeoutException e) {
+			return false;
+		}
+	}
+	void setTimeout(int millis) throws IOException {
+		socket.setSoTimeout(millis);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+	
+	private int chunkSize() throws IOException {
+		var line = readLine();
+		int extension = line.indexOf(';');
+		return Integer.parseInt(extension < 0 ? line : line.substring(0, extension), 16);
+	}
+	private void expectCRLF() throws IOException {
+		if(in.read() != '\r' || in.read() != '\n')
+			throw new IOException("Chunk isn't terminated by CRLF");
+	}
+	/**
+	 * @return a line without its CRLF, null if the connection closed before the line began
+	 */
+	private String readLine() throws IOException {
+		var line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != '\n') {
+			if(b < 0) {
+				if(line.size() == 0)
+					return null;
+				throw new EOFException("Connection closed within a line");
+			}
+			line.write(b);
+		}
+		var text = line.toString(StandardCharsets.ISO_8859_1);
+		if(!text.endsWith("\r"))
+			throw new IOException("Line isn't terminated by CRLF: " + text);
+		return text.substring(0, text.length() - 1);
+	}
+	
+	static class Response {
+		String version;
+		int status;
+		/**
+		 * lower-case names, the values of repeated headers are joined by commas
+		 */
+		final Map<String, String> headers = new TreeMap<>();
+		byte[] body;
+		
+		/**
+		 * @return the value of the header, null if it wasn't sent
+		 */
+		String header(String name) {
+			return headers.get(name.toLowerCase(Locale.ROOT));
+		}
+		String text() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.HttpStatus;
+import httpserver.server.ResponseCache;
+import httpserver.server.RouteEndpoint;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class ResponseCacheTest {
+	private final HttpClient client = HttpClient.newBuilder().version(Version.HTTP_1_1).build();
+	
+	@Test
+	void hit() throws IOException, InterruptedException {
+		var cache = new ResponseCache(1 << 20);
+		var calls = new AtomicInteger();
+		var server = server(cache.cache(counting(calls, 0), Duration.ofMinutes(1)));
+		try {
+			assertEquals("call 1", get(server, "/?a=1"));
+			assertEquals("call 1", get(server, "/?a=1"));
+			assertEquals("call 2", get(server, "/?a=2"));
+			assertEquals(2, calls.get());
+			assertEquals(1, cache.getHits());
+			assertEquals(2, cache.getMisses());
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	@Test
+	void singleFlight() throws IOException, InterruptedException {
+		var cache = new ResponseCache(1 << 20);
+		var calls = new AtomicInteger();
+		var server = server(cache.cache(counting(calls, 500), Duration.ofMinutes(1)));
+		try {
+			var responses = new ArrayList<CompletableFuture<HttpResponse<String>>>();
+			for(int i = 0; i < 8; i++)
+				responses.add(client.sendAsync(request(server, "/"), BodyHandlers.ofString()));
+			for(var response : responses)
+				assertEquals("call 1", response.join().body());
+			assertEquals(1, calls.get());
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	@Test
+	void expire() throws IOException, InterruptedException {
+		var cache = new ResponseCache(1 << 20);
+		AtomicInteger calls = new AtomicInteger(), staleCalls = new AtomicInteger();
+		var server = new Server(0, new DefaultLogger("test"));
+		server.route("/fresh", cache.cache(counting(calls, 0), Duration.ofMillis(100)));
+		server.route("/stale", cache.cache(counting(staleCalls, 0), Duration.ofMillis(100), Duration.ofMinutes(1)));
+		server.start();
+		try {
+			assertEquals("call 1", get(server, "/fresh"));
+			assertEquals("call 1", get(server, "/stale"));
+			Thread.sleep(300);
+			assertEquals("call 2", get(server, "/fresh"));
+			
+			// the expired response is served once more while a background request refreshes it
+			assertEquals("call 1", get(server, "/stale"));
+			for(int i = 0; i < 50 && staleCalls.get() < 2; i++)
+				Thread.sleep(20);
+			assertEquals("call 2", get(server, "/stale"));
+			assertEquals(1, cache.getStaleHits());
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	private static Server server(RouteEndpoint endpoint) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"));
+		server.route("/", endpoint);
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * answers with the number of its call after a delay
+	 */
+	private static RouteEndpoint counting(AtomicInteger calls, long delay) {
+		return (meth, res, sess) -> {
+			int call = calls.incrementAndGet();
+			try {
+				Thread.sleep(delay);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sess.sendStatus(HttpStatus.OK);
+			sess.sendBody("call " + call);
+		};
+	}
+	
+	private String get(Server server, String resource) throws IOException, InterruptedException {
+		var response = client.send(request(server, resource), BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+		return response.body();
+	}
+	
+	private static HttpRequest request(Server server, String resource) {
+		return HttpRequest.newBuilder(URI.create("http://localhost:" + server.getLocalAddresses().get(0).getPort() + resource))
+				.timeout(Duration.ofSeconds(10)).build();
+	}
+}
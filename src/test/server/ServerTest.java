@@ -4,15 +4,18 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.io.IOException;
 import java.lang.System.Logger.Level;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.jupiter.api.Test;
 
@@ -92,5 +95,64 @@ class ServerTest {
 		
 		System.out.println(client.send(request, BodyHandlers.ofString()));
 	}
+	
+	@Test
+	void parseHeaderValueWithColon() throws IOException, InterruptedException {
+		var logger = new DefaultLogger("test");
+		var server = new Server(0, logger);
+		var received = new AtomicReference<String>();
+		
+		server.route("/", (meth, res, sess) -> {
+			received.set(sess.requestHeader("x-colon").orElse(null));
+			sess.sendStatus(HttpStatus.OK);
+		});
+		server.start();
+		
+		try {
+			var client = HttpClient.newBuilder()
+				.version(Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(20))
+				.build();
+			
+			var request = HttpRequest.newBuilder()
+				.uri(URI.create("http://localhost:" + server.getLocalAddresses().get(0).getPort()))
+				.header("X-Colon", "value:with:colons")
+				.GET()
+				.build();
+			
+			assertEquals(200, client.send(request, BodyHandlers.ofString()).statusCode());
+			assertEquals("value:with:colons", received.get());
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	@Test
+	void rejectAmbiguousBodyLength() throws IOException, InterruptedException {
+		var logger = new DefaultLogger("test");
+		var server = new Server(0, logger);
+		server.route("/", (meth, res, sess) -> sess.sendStatus(HttpStatus.OK));
+		server.start();
+		
+		try {
+			int port = server.getLocalAddresses().get(0).getPort();
+			assertEquals("HTTP/1.1 400", exchange(port, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 0\r\n\r\nhello"));
+			assertEquals("HTTP/1.1 400", exchange(port, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n0\r\n\r\n"));
+			assertEquals("HTTP/1.1 200", exchange(port, "POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello"));
+		} finally {
+			server.shutdown(Duration.ofSeconds(5));
+		}
+	}
+	
+	/**
+	 * @return the protocol and status code of the response to a raw request
+	 */
+	private static String exchange(int port, String request) throws IOException {
+		try(var socket = new Socket("localhost", port)) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+			return new String(socket.getInputStream().readNBytes(12), StandardCharsets.US_ASCII);
+		}
+	}
 
 }
@@ -0,0 +1,100 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Version;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.HttpStatus;
+import httpserver.server.Server;
+import httpserver.util.DefaultLogger;
+
+class TlsTest {
+	private static final char[] PASSWORD = "password".toCharArray();
+	private static final String BIG = "0123456789abcdef".repeat(64 * 1024);
+	
+	@Test
+	void roundTrip() throws IOException, InterruptedException, GeneralSecurityException {
+		var keyStore = selfSigned(Files.createTempDirectory("tls").resolve("localhost.p12"));
+		for(var engine : Engine.values()) {
+			var server = new Server(0, new DefaultLogger("test"), engine);
+			server.setTls(keyStore, PASSWORD);
+			server.route("/hello", (meth, res, sess) -> {
+				sess.sendStatus(HttpStatus.OK);
+				sess.sendBody("hello " + meth);
+			});
+			server.route("/echo", (meth, res, sess) -> {
+				var body = sess.getRequestBodyBytes();
+				sess.sendStatus(HttpStatus.OK);
+				sess.sendHeader("Content-Type", "application/octet-stream");
+				sess.sendBody(body);
+			});
+			server.start();
+			
+			try {
+				var base = "https://localhost:" + server.getLocalAddresses().get(0).getPort();
+				// ALPN offers h2 to the second client only
+				for(var version : Version.values()) {
+					var client = HttpClient.newBuilder().version(version).sslContext(trusting(keyStore)).build();
+					var hello = client.send(request(base + "/hello").build(), BodyHandlers.ofString());
+					assertEquals(version, hello.version());
+					assertEquals("hello GET", hello.body());
+					
+					// spans many records in both directions
+					var echo = client.send(request(base + "/echo").header("Accept-Encoding", "identity").POST(BodyPublishers.ofString(BIG)).build(), BodyHandlers.ofString());
+					assertEquals(version, echo.version());
+					assertEquals(BIG, echo.body());
+				}
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+		Files.delete(keyStore);
+		Files.delete(keyStore.getParent());
+	}
+	
+	/**
+	 * creates a keystore for localhost and 127.0.0.1 by the keytool of the running JDK
+	 */
+	private static Path selfSigned(Path keyStore) throws IOException, InterruptedException {
+		var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+		var process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "EC",
+				"-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1", "-validity", "1",
+				"-storetype", "PKCS12", "-keystore", keyStore.toString(),
+				"-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+				.redirectErrorStream(true).start();
+		var output = new String(process.getInputStream().readAllBytes());
+		assertEquals(0, process.waitFor(), output);
+		assertTrue(Files.isRegularFile(keyStore), output);
+		return keyStore;
+	}
+	
+	private static SSLContext trusting(Path keyStore) throws IOException, GeneralSecurityException {
+		var trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(KeyStore.getInstance(keyStore.toFile(), PASSWORD));
+		var context = SSLContext.getInstance("TLS");
+		context.init(null, trust.getTrustManagers(), null);
+		return context;
+	}
+	
+	private static HttpRequest.Builder request(String uri) {
+		return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(10));
+	}
+}
@@ -0,0 +1,143 @@
+package test.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import httpserver.server.Engine;
+import httpserver.server.Server;
+import httpserver.server.WebSocket;
+import httpserver.server.WebSocketListener;
+import httpserver.util.DefaultLogger;
+
+class WebSocketTest {
+	private static final int TEXT = 1, CONTINUATION = 0, CLOSE = 8, PING = 9, PONG = 10;
+	
+	@Test
+	void echoFragmentedAndMaskedFrames() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = echoServer(engine);
+			try(var socket = connect(server)) {
+				var in = new DataInputStream(socket.getInputStream());
+				var out = socket.getOutputStream();
+				
+				writeFrame(out, TEXT, true, "hello", true);
+				assertFrame(in, TEXT, "hello");
+				
+				// a ping between the fragments is answered right away, the message is delivered once it is complete
+				writeFrame(out, TEXT, false, "hel", true);
+				writeFrame(out, PING, true, "p", true);
+				writeFrame(out, CONTINUATION, false, "lo, ", true);
+				writeFrame(out, CONTINUATION, true, "world", true);
+				assertFrame(in, PONG, "p");
+				assertFrame(in, TEXT, "hello, world");
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	@Test
+	void closeOnUnmaskedFrame() throws IOException, InterruptedException {
+		for(var engine : Engine.values()) {
+			var server = echoServer(engine);
+			try(var socket = connect(server)) {
+				var in = new DataInputStream(socket.getInputStream());
+				writeFrame(socket.getOutputStream(), TEXT, true, "hello", false);
+				
+				var payload = readFrame(in, CLOSE);
+				assertTrue(payload.length >= 2);
+				assertEquals(WebSocket.PROTOCOL_ERROR, (payload[0] & 0xff) << 8 | payload[1] & 0xff);
+			} finally {
+				server.shutdown(Duration.ofSeconds(5));
+			}
+		}
+	}
+	
+	private static Server echoServer(Engine engine) throws IOException {
+		var server = new Server(0, new DefaultLogger("test"), engine);
+		server.routeWebSocket("/echo", (resource, session) -> new WebSocketListener() {
+			@Override
+			public void onText(WebSocket socket, String text) {
+				try {
+					socket.sendText(text);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+		server.start();
+		return server;
+	}
+	
+	/**
+	 * performs the handshake with the key and accept value of RFC 6455, section 1.3
+	 */
+	private static Socket connect(Server server) throws IOException {
+		var socket = new Socket("localhost", server.getLocalAddresses().get(0).getPort());
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write(("GET /echo HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+				+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		var head = new ByteArrayOutputStream();
+		var in = socket.getInputStream();
+		while(!head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+			int b = in.read();
+			if(b < 0)
+				break;
+			head.write(b);
+		}
+		var response = head.toString(StandardCharsets.US_ASCII);
+		assertTrue(response.startsWith("HTTP/1.1 101"), response);
+		assertTrue(response.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), response);
+		return socket;
+	}
+	
+	private static void writeFrame(OutputStream out, int opcode, boolean fin, String text, boolean masked) throws IOException {
+		var payload = text.getBytes(StandardCharsets.UTF_8);
+		var frame = new ByteArrayOutputStream();
+		frame.write((fin ? 0x80 : 0) | opcode);
+		frame.write((masked ? 0x80 : 0) | payload.length);
+		if(masked) {
+			var mask = new byte[4];
+			ThreadLocalRandom.current().nextBytes(mask);
+			frame.write(mask);
+			for(int i = 0; i < payload.length; i++)
+				payload[i] ^= mask[i & 3];
+		}
+		frame.write(payload);
+		out.write(frame.toByteArray());
+	}
+	
+	private static void assertFrame(DataInputStream in, int opcode, String text) throws IOException {
+		assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), readFrame(in, opcode));
+	}
+	/**
+	 * reads an unmasked, unfragmented frame of the server
+	 * @return its payload
+	 */
+	private static byte[] readFrame(DataInputStream in, int opcode) throws IOException {
+		int first = in.readUnsignedByte(), second = in.readUnsignedByte();
+		assertEquals(0x80 | opcode, first);
+		assertEquals(0, second & 0x80);
+		long length = second & 0x7f;
+		if(length == 126)
+			length = in.readUnsignedShort();
+		else if(length == 127)
+			length = in.readLong();
+		var payload = new byte[(int) length];
+		in.readFully(payload);
+		return payload;
+	}
+}